@@ -0,0 +1,165 @@
+//usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17
+//DEPS io.mats3.examples:mats-jbangkit:1.1.0
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+
+import io.mats3.examples.jbang.MatsJbangKit;
+import io.mats3.examples.jbang.MatsJbangPersistentBroker;
+import io.mats3.impl.jms.JmsMatsFactory;
+import io.mats3.test.MatsTestHelp;
+
+/**
+ * Benchmarks persistent messaging throughput for different KahaDB configurations of {@link MatsJbangPersistentBroker}:
+ * For each configuration, an in-JVM persistent broker is started on a fresh store directory, and a MatsFactory
+ * connected over the <code>vm://</code> transport (so that the network stack doesn't muddle the store numbers) runs a
+ * flow of Initiator -&gt; Endpoint -&gt; Terminator, i.e. each message is persisted on two queues, and consumed
+ * transactionally. The initiations are done from multiple threads, one message per transaction. A summary table is
+ * printed at the end.
+ * <p>
+ * The numbers depend heavily on the disk: With <code>always</code> disk sync, the throughput is bound by the fsync
+ * rate, and the KahaDB journal batches concurrent writes into one fsync - which is why concurrency matters, and why
+ * multiple journals (mKahaDB) may help on disks that handle parallel fsyncs well. Remember that <code>periodic</code>
+ * may lose up to the sync interval of messages on power loss.
+ * <p>
+ * Optional arguments: Number of messages per configuration, default 20 000 - and number of initiator threads, which
+ * is also the concurrency of the Endpoint and Terminator, default 10. The store directories are created under the
+ * system temp dir, and deleted afterwards.
+ */
+public class ActiveMqPersistentBenchmark {
+    private static final String SERVICE = "ActiveMqPersistentBenchmark.service";
+    private static final String TERMINATOR = "ActiveMqPersistentBenchmark.private.terminator";
+
+    private static volatile CountDownLatch __terminated;
+
+    public static void main(String... args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        // :: The configurations to compare, given the store directory.
+        Map<String, Function<Path, MatsJbangPersistentBroker>> configurations = new LinkedHashMap<>();
+        configurations.put("KahaDB defaults", dir -> MatsJbangPersistentBroker.create(dir.toFile()));
+        configurations.put("no concurrentStoreAndDispatch", dir -> MatsJbangPersistentBroker.create(dir.toFile())
+                .concurrentStoreAndDispatch(false));
+        configurations.put("periodic sync 1s", dir -> MatsJbangPersistentBroker.create(dir.toFile())
+                .journalDiskSync("periodic", 1000));
+        configurations.put("tuned", dir -> tuned(MatsJbangPersistentBroker.create(dir.toFile())));
+        configurations.put("mKahaDB perDest", dir -> MatsJbangPersistentBroker.create(dir.toFile())
+                .mKahaDbPerDestination());
+        configurations.put("mKahaDB perDest, tuned", dir -> tuned(MatsJbangPersistentBroker.create(dir.toFile())
+                .mKahaDbPerDestination()));
+
+        List<String> summary = new ArrayList<>();
+        int round = 0;
+        for (Map.Entry<String, Function<Path, MatsJbangPersistentBroker>> configuration : configurations.entrySet()) {
+            Path dir = Files.createTempDirectory("ActiveMqPersistentBenchmark-");
+            String brokerName = "ActiveMqPersistentBenchmark_" + round++;
+            MatsJbangPersistentBroker persistentBroker = configuration.getValue().apply(dir).brokerName(brokerName);
+            BrokerService brokerService = persistentBroker.start();
+            JmsMatsFactory<String> matsFactory = MatsJbangKit.createMatsFactory(
+                    new ActiveMQConnectionFactory("vm://" + brokerName + "?create=false"), brokerName);
+            matsFactory.getFactoryConfig().setConcurrency(threads);
+            try {
+                matsFactory.single(SERVICE, BenchmarkDto.class, BenchmarkDto.class,
+                        (ctx, msg) -> new BenchmarkDto(msg.number(), msg.string()));
+                matsFactory.terminator(TERMINATOR, void.class, BenchmarkDto.class,
+                        (ctx, state, msg) -> __terminated.countDown());
+
+                // Warmup, JIT and store files - result ignored.
+                run(matsFactory, Math.max(1000, messages / 10), threads);
+
+                double seconds = run(matsFactory, messages, threads);
+                summary.add(String.format("%-30s | %10.0f | %8.2f | %8.1f | %s", configuration.getKey(),
+                        messages / seconds, seconds, directorySize(dir) / (1024d * 1024d),
+                        persistentBroker.describe()));
+            }
+            finally {
+                matsFactory.stop(30_000);
+                brokerService.stop();
+                brokerService.waitUntilStopped();
+                deleteRecursively(dir);
+            }
+        }
+
+        System.out.println("\n### Persistent flow Initiator -> Endpoint -> Terminator, " + messages + " messages, "
+                + threads + " threads\n");
+        System.out.println(String.format("%-30s | %10s | %8s | %8s | %s", "Configuration", "msgs/s", "seconds",
+                "store MB", "Store"));
+        summary.forEach(System.out::println);
+        System.out.println("\n(msgs/s is complete flows per second, each persisting two messages;"
+                + " 'store MB' is the size of the store directory at the end of the run)");
+    }
+
+    private static MatsJbangPersistentBroker tuned(MatsJbangPersistentBroker broker) {
+        return broker.journalDiskSync("periodic", 1000)
+                .journalMaxFileLength(64 * 1024 * 1024)
+                .indexCacheSize(100_000)
+                .checkpointInterval(10_000);
+    }
+
+    /**
+     * @return seconds from the first initiation until the Terminator has gotten all messages.
+     */
+    private static double run(JmsMatsFactory<String> matsFactory, int messages, int threads)
+            throws InterruptedException {
+        __terminated = new CountDownLatch(messages);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long nanosStart = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                for (int i = thread; i < messages; i += threads) {
+                    BenchmarkDto dto = new BenchmarkDto(i, "Persistent message #" + i);
+                    // One message per transaction, i.e. a store write (and, with 'always', a disk sync) per message.
+                    matsFactory.getDefaultInitiator().initiateUnchecked(init -> init
+                            .traceId(MatsTestHelp.traceId())
+                            .from("ActiveMqPersistentBenchmark.main")
+                            .to(SERVICE)
+                            .replyTo(TERMINATOR, null)
+                            .request(dto));
+                }
+            });
+        }
+        executor.shutdown();
+        if (!__terminated.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Didn't get all [" + messages + "] messages within 10 minutes, missing ["
+                    + __terminated.getCount() + "].");
+        }
+        return (System.nanoTime() - nanosStart) / 1_000_000_000d;
+    }
+
+    private static long directorySize(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    record BenchmarkDto(int number, String string) {
+    }
+}
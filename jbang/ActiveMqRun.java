@@ -1,6 +1,6 @@
 //usr/bin/env jbang "$0" "$@" ; exit $?
 //JAVA 17
-//DEPS io.mats3.examples:mats-jbangkit:1.0.0
+//DEPS io.mats3.examples:mats-jbangkit:1.1.0
 
 import static io.mats3.matsbrokermonitor.htmlgui.MatsBrokerMonitorHtmlGui.ACCESS_CONTROL_ALLOW_ALL;
 
@@ -14,8 +14,11 @@ import org.apache.activemq.broker.BrokerService;
 import org.slf4j.Logger;
 
 import io.mats3.MatsFactory;
+import io.mats3.examples.jbang.MatsJbangAdaptiveBrokerPoller;
+import io.mats3.examples.jbang.MatsJbangConcurrencyAutoscaler;
 import io.mats3.examples.jbang.MatsJbangJettyServer;
 import io.mats3.examples.jbang.MatsJbangKit;
+import io.mats3.examples.jbang.MatsJbangPersistentBroker;
 import io.mats3.impl.jms.JmsMatsFactory;
 import io.mats3.matsbrokermonitor.activemq.ActiveMqMatsBrokerMonitor;
 import io.mats3.matsbrokermonitor.api.MatsBrokerBrowseAndActions;
@@ -40,6 +43,15 @@ import jakarta.servlet.http.HttpServletResponse;
  * <p>
  * Also starts a Jetty HTTP server instance, which provides access to the embeddable MatsBrokerMonitor, to inspect the
  * Mats3-relevants queues and DLQs, as well as ability to inspect messages, and reissue messages on DLQs.
+ * <p>
+ * Start with <code>-Dpersistent</code> to get a persistent broker using KahaDB. The store can then be tuned with the
+ * <code>kahadb.*</code> system properties, e.g. <code>-Dkahadb.journalDiskSyncStrategy=periodic</code>, or
+ * <code>-Dkahadb.mKahaDB=perDestination</code> for a separate journal per queue - see
+ * {@link MatsJbangPersistentBroker}, and 'ActiveMqPersistentBenchmark' for comparing configurations.
+ * <p>
+ * Start with <code>-Dadaptive_polling</code> to have the MatsBrokerMonitor update every second while queues are
+ * active, backing off to once a minute when idle, instead of the fixed 15 seconds - see
+ * {@link MatsJbangAdaptiveBrokerPoller}.
  */
 public class ActiveMqRun {
 
@@ -49,6 +61,8 @@ public class ActiveMqRun {
         // :: Create the Jetty instance running and displaying the MatsBrokerMonitor
         // Notice: It is the webapp that also brings up the ActiveMQ instance itself, to get good shutdown ordering.
         MatsJbangJettyServer.create(8000)
+                // The MatsBrokerMonitor pages grow with the number of queues and DLQ messages: Compress them.
+                .useCompression()
                 .setRootHtlm("""
                         <html><body>
                         <h1>ActiveMQ instance, with HTTP server.</h1>
@@ -67,6 +81,7 @@ public class ActiveMqRun {
         private BrokerService _brokerService;
         private MatsFactory _matsFactory;
         private MatsBrokerMonitor _matsBrokerMonitor;
+        private MatsJbangAdaptiveBrokerPoller _adaptiveBrokerPoller;
         private MatsBrokerBrowseAndActions _matsBrokerBrowseAndActions;
 
         @Override
@@ -77,8 +92,10 @@ public class ActiveMqRun {
             BrokerService brokerService;
             // ?: Do we want persistent broker?
             if (System.getProperty("persistent") != null) {
-                // -> Yes, persistent broker, so ask for KahaDB to be installed.
-                brokerService = MatsTestBroker.newActiveMqBroker(ActiveMq.LOCALHOST, ActiveMq.PERSISTENT);
+                // -> Yes, persistent broker, with KahaDB configured by the 'kahadb.*' system properties.
+                brokerService = MatsJbangPersistentBroker.fromSystemProperties()
+                        .brokerName("ActiveMqRun")
+                        .start("tcp://localhost:61616");
             }
             else {
                 // -> No, not persistent broker.
@@ -98,9 +115,20 @@ public class ActiveMqRun {
             JmsMatsFactory<String> matsFactory = MatsJbangKit
                     .createMatsFactory(jmsConnectionFactory, "ActiveMqRun");
 
-            // .. Create the ActiveMQ MatsBrokerMonitor
+            // .. Create the ActiveMQ MatsBrokerMonitor - with adaptive polling, its own interval is the idle floor.
+            boolean adaptivePolling = System.getProperty("adaptive_polling") != null;
             MatsBrokerMonitor matsBrokerMonitor = ActiveMqMatsBrokerMonitor
-                    .create(jmsConnectionFactory, 15_000);
+                    .create(jmsConnectionFactory, adaptivePolling ? 60_000 : 15_000);
+            // .. broadcast the queue stats to other MatsFactories, e.g. for the MatsJbangConcurrencyAutoscaler
+            MatsJbangConcurrencyAutoscaler.installBroadcaster(matsBrokerMonitor, matsFactory);
+            // ?: Adaptive polling?
+            if (adaptivePolling) {
+                // -> Yes, so poll fast while the queues are active, and back off when idle.
+                _adaptiveBrokerPoller = MatsJbangAdaptiveBrokerPoller.create(matsBrokerMonitor)
+                        .minIntervalMillis(1_000)
+                        .maxIntervalMillis(60_000)
+                        .start();
+            }
             // .. start it.
             matsBrokerMonitor.start();
 
@@ -128,6 +156,9 @@ public class ActiveMqRun {
         public void contextDestroyed(ServletContextEvent sce) {
             // Clean up in good order, broker last (otherwise we'll get connectivity exceptions on takedown).
             _matsBrokerBrowseAndActions.close();
+            if (_adaptiveBrokerPoller != null) {
+                _adaptiveBrokerPoller.close();
+            }
             _matsBrokerMonitor.close();
             _matsFactory.stop(30_000);
             try {
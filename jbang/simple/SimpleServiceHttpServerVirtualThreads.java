@@ -0,0 +1,224 @@
+//usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 21+
+//DEPS io.mats3.examples:mats-jbangkit:1.1.0
+
+package simple;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jetty.util.VirtualThreads;
+
+import io.mats3.examples.jbang.MatsJbangJettyServer;
+import io.mats3.examples.jbang.MatsJbangJettyServer.FunctionalAsyncListener;
+import io.mats3.test.MatsTestHelp;
+import io.mats3.util.MatsFuturizer;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Demonstrates {@link MatsJbangJettyServer#useVirtualThreads()}, where Jetty runs the Servlets on Java 21 virtual
+ * threads: A plain synchronous Servlet which blocks on the futurization's <code>future.get()</code> then becomes as
+ * cheap as the async Servlet variant, wrt. the number of concurrent in-flight requests it can handle. The
+ * '/compare' Servlet fires off a set of concurrent HTTP requests towards each of the two variants on this same server,
+ * and outputs the timings. Run it with <code>-Dplatform</code> to use Jetty's ordinary platform thread pool, to see
+ * how the blocking variant then is limited by the thread pool size (default 200), while the async variant is not.
+ * <p>
+ * Depends on localhost ActiveMQ and the {@link SimpleService} running.
+ */
+public class SimpleServiceHttpServerVirtualThreads {
+    public static void main(String... args) {
+        MatsJbangJettyServer server = MatsJbangJettyServer.create(8080)
+                .addMatsFactory()
+                .addMatsFuturizer()
+                .addMatsLocalInspect()
+                .setRootHtlm("""
+                        <html><body>
+                        <h1>Virtual threads vs. async Servlets: Blocking on futurizations</h1>
+                        <h3>LocalHtmlInspectForMatsFactory</h3>
+                        <a href="localinspect">Monitoring/introspection GUI for the MatsFactory.</a><p>
+                        <h3>Single futurizations:</h3>
+                        <a href="blocking">Sync Servlet, blocking on future.get()</a><br/>
+                        <a href="async">Async Servlet, completing on futurizer thread</a><p>
+                        <h3>Comparison, concurrent HTTP requests towards both variants:</h3>
+                        You should run these a few times to warm the Mats fabric JVMs.<p>
+                        <a href="compare?concurrency=1000">Comparison, 1000 concurrent requests.</a><br/>
+                        <a href="compare?concurrency=5000">Comparison, 5000 concurrent requests.</a><br/>
+                        </body></html>
+                        """);
+        // ?: Have the jbang file been invoked with "-Dplatform"?
+        if (System.getProperty("platform") == null) {
+            // -> No, so use virtual threads.
+            server.useVirtualThreads();
+        }
+        server.start();
+    }
+
+    // ----- The two variants being compared: Blocking sync Servlet, and async Servlet.
+
+    @WebServlet("/blocking")
+    public static class BlockingServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            var matsFuturizer = (MatsFuturizer) req.getServletContext().getAttribute(MatsFuturizer.class.getName());
+
+            var replyFuture = matsFuturizer.futurizeNonessential(MatsTestHelp.traceId(),
+                    "VirtualThreads.blocking", "SimpleService.simple", SimpleServiceReplyDto.class,
+                    new SimpleServiceRequestDto(1, "blocking"));
+
+            // Block the Servlet thread: Cheap if virtual thread, expensive if platform thread.
+            try {
+                resp.getWriter().println("Reply: " + replyFuture.get(30, TimeUnit.SECONDS).getReply()
+                        + ", virtual thread: " + VirtualThreads.isVirtualThread());
+            }
+            catch (InterruptedException | ExecutionException | TimeoutException e) {
+                throw new IOException("Couldn't get reply.", e);
+            }
+        }
+    }
+
+    @WebServlet(urlPatterns = "/async", asyncSupported = true)
+    public static class AsyncServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            var matsFuturizer = (MatsFuturizer) req.getServletContext().getAttribute(MatsFuturizer.class.getName());
+
+            AsyncContext asyncContext = req.startAsync();
+            // Only the first of the reply, failure or timeout may respond and complete.
+            AtomicBoolean responded = new AtomicBoolean();
+            asyncContext.setTimeout(30_000);
+            asyncContext.addListener(FunctionalAsyncListener.onTimeout(event -> {
+                // ?: Are we first?
+                if (responded.compareAndSet(false, true)) {
+                    // -> Yes, so respond with timeout.
+                    resp.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Timed out waiting for reply.");
+                    asyncContext.complete();
+                }
+            }));
+
+            var replyFuture = matsFuturizer.futurizeNonessential(MatsTestHelp.traceId(),
+                    "VirtualThreads.async", "SimpleService.simple", SimpleServiceReplyDto.class,
+                    new SimpleServiceRequestDto(2, "async"));
+
+            // Complete on the futurizer's completer thread, the Servlet thread exits right away.
+            replyFuture.whenComplete((reply, throwable) -> {
+                // ?: Are we first? (The async timeout might have raced us.)
+                if (!responded.compareAndSet(false, true)) {
+                    // -> No, so the response is already sent.
+                    return;
+                }
+                try {
+                    // ?: Did the futurization fail, e.g. timed out?
+                    if (throwable != null) {
+                        // -> Yes, so respond with error.
+                        resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Couldn't get reply: "
+                                + throwable.getMessage());
+                    }
+                    else {
+                        resp.getWriter().println("Reply: " + reply.getReply());
+                    }
+                }
+                catch (IOException e) {
+                    /* ignore - client probably went away */
+                }
+                asyncContext.complete();
+            });
+        }
+    }
+
+    // ----- The comparison: Fire off concurrent HTTP requests towards both variants.
+
+    @WebServlet(urlPatterns = "/compare", asyncSupported = true)
+    public static class CompareServlet extends HttpServlet {
+        private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            String concurrencyP = req.getParameter("concurrency");
+            int concurrency = concurrencyP != null ? Integer.parseInt(concurrencyP) : 1000;
+            int port = (Integer) req.getServletContext()
+                    .getAttribute(MatsJbangJettyServer.CONTEXT_ATTRIBUTE_PORTNUMBER);
+
+            PrintWriter out = resp.getWriter();
+            out.println("Comparing blocking vs. async Servlet with " + concurrency + " concurrent requests,"
+                    + " Servlet threads are " + (VirtualThreads.isVirtualThread() ? "VIRTUAL" : "PLATFORM") + ".");
+            out.flush();
+
+            AsyncContext asyncContext = req.startAsync();
+            asyncContext.setTimeout(120_000);
+
+            // Run the two sequentially, not to have them compete.
+            fireConcurrentRequests(port, "blocking", concurrency)
+                    .thenCompose(blockingResult -> {
+                        out.println(blockingResult);
+                        out.flush();
+                        return fireConcurrentRequests(port, "async", concurrency);
+                    })
+                    .whenComplete((asyncResult, throwable) -> {
+                        out.println(throwable != null ? "Failed: " + throwable : asyncResult);
+                        asyncContext.complete();
+                    });
+        }
+
+        private CompletableFuture<String> fireConcurrentRequests(int port, String path, int concurrency) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/" + path))
+                    .timeout(Duration.ofSeconds(60))
+                    .build();
+            long nanosAtStart = System.nanoTime();
+            List<CompletableFuture<Long>> futures = new ArrayList<>(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                long nanosAtStart_request = System.nanoTime();
+                futures.add(HTTP_CLIENT.sendAsync(request, BodyHandlers.discarding())
+                        .thenApply(response -> {
+                            if (response.statusCode() != 200) {
+                                throw new IllegalStateException("Got HTTP status " + response.statusCode());
+                            }
+                            return System.nanoTime() - nanosAtStart_request;
+                        }));
+            }
+            return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+                    .thenApply(v -> {
+                        double msTotal = (System.nanoTime() - nanosAtStart) / 1_000_000d;
+                        long[] latencies = futures.stream().mapToLong(CompletableFuture::join).sorted().toArray();
+                        return "## /" + path + ": total millis: " + msTotal
+                                + ", req/sec: " + (concurrency / (msTotal / 1000d))
+                                + ", latency millis: median " + percentileMs(latencies, 0.5)
+                                + ", 99%: " + percentileMs(latencies, 0.99)
+                                + ", max: " + percentileMs(latencies, 1)
+                                + ", avg: " + (Arrays.stream(latencies).average().orElse(0) / 1_000_000d);
+                    });
+        }
+
+        private static double percentileMs(long[] sortedNanos, double percentile) {
+            int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+            return sortedNanos[Math.max(0, index)] / 1_000_000d;
+        }
+    }
+
+    // ----- Contract copied from SimpleService
+
+    record SimpleServiceRequestDto(int number, String string) {
+    }
+
+    record SimpleServiceReplyDto(String result, int numChars) {
+    }
+}
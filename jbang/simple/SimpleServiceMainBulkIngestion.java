@@ -0,0 +1,108 @@
+//usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17
+//DEPS io.mats3.examples:mats-jbangkit:1.1.0
+
+package simple;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.mats3.MatsFactory;
+import io.mats3.examples.jbang.MatsJbangBulkInitiator;
+import io.mats3.examples.jbang.MatsJbangBulkInitiator.BulkResult;
+import io.mats3.examples.jbang.MatsJbangKit;
+import io.mats3.test.MatsTestHelp;
+
+/**
+ * Demonstrates bulk ingestion using {@link MatsJbangBulkInitiator}: Streams the records of an NDJSON file into Mats3
+ * messages, committing every 500 messages, using 4 initiator threads - as opposed to the single big transaction of
+ * {@link SimpleServiceMainTerminator}. The messages are sent to a Terminator in this same JVM, which counts them.
+ * <p>
+ * Give the NDJSON file as argument, where each line is a <code>{"number":1,"string":"one"}</code> object - or give a
+ * number, and a temporary file with that many lines is generated, default 100 000. Requires an ActiveMQ running on
+ * localhost.
+ */
+public class SimpleServiceMainBulkIngestion {
+    private static final Logger log = MatsJbangKit.getClassLogger();
+
+    private static final String TERMINATOR = "SimpleServiceMainBulkIngestion.private.terminator";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    public static void main(String... args) throws Exception {
+        Path file;
+        // ?: Did we get a file as argument?
+        if ((args.length > 0) && Files.exists(Path.of(args[0]))) {
+            // -> Yes, so use it.
+            file = Path.of(args[0]);
+        }
+        else {
+            // -> No, so generate one.
+            file = generateNdjsonFile(args.length > 0 ? Integer.parseInt(args[0]) : 100_000);
+        }
+
+        MatsFactory matsFactory = MatsJbangKit.createMatsFactory();
+
+        // :: Terminator counting the received messages.
+        AtomicLong received = new AtomicLong();
+        matsFactory.terminator(TERMINATOR, void.class, SimpleServiceRequestDto.class,
+                (ctx, state, msg) -> received.incrementAndGet());
+
+        // :: Stream the file into Mats3 sends.
+        BulkResult result = MatsJbangBulkInitiator.fromFile(matsFactory, file)
+                .messagesPerTransaction(500)
+                .threads(4)
+                .run((init, line) -> init.traceId(MatsTestHelp.traceId())
+                        .from("SimpleServiceMainBulkIngestion.bulk")
+                        .to(TERMINATOR)
+                        .send(parse(line)));
+
+        // :: Wait for the Terminator to have gotten them all.
+        long nanosDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+        while ((received.get() < result.committed()) && (System.nanoTime() < nanosDeadline)) {
+            Thread.sleep(100);
+        }
+        log.info("Bulk initiation: " + result.toText());
+        log.info("Terminator received [" + received.get() + "] of [" + result.committed() + "] messages.");
+
+        // :: Clean up to exit.
+        matsFactory.close();
+    }
+
+    private static SimpleServiceRequestDto parse(String line) {
+        try {
+            return OBJECT_MAPPER.readValue(line, SimpleServiceRequestDto.class);
+        }
+        catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not parse NDJSON line [" + line + "].", e);
+        }
+    }
+
+    private static Path generateNdjsonFile(int lines) throws IOException {
+        Path file = Files.createTempFile("bulk-ingestion-", ".ndjson");
+        file.toFile().deleteOnExit();
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < lines; i++) {
+                writer.write(OBJECT_MAPPER.writeValueAsString(new SimpleServiceRequestDto(i, "record " + i)));
+                writer.newLine();
+            }
+        }
+        log.info("Generated NDJSON file [" + file + "] with [" + lines + "] lines, [" + Files.size(file)
+                + "] bytes.");
+        return file;
+    }
+
+    // ----- Contract copied from SimpleService
+
+    record SimpleServiceRequestDto(int number, String string) {
+    }
+}
@@ -1,6 +1,6 @@
 //usr/bin/env jbang "$0" "$@" ; exit $?
 //JAVA 17
-//DEPS io.mats3.examples:mats-jbangkit:1.0.0
+//DEPS io.mats3.examples:mats-jbangkit:1.1.0
 
 package simple;
 
@@ -0,0 +1,63 @@
+//usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17
+//DEPS io.mats3.examples:mats-jbangkit:1.1.0
+//SOURCES ServiceA.java ServiceB.java ServiceC.java ServiceD.java CalculatorApp.java
+
+package stdexample;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.mats3.examples.jbang.MatsJbangJettyServer;
+import stdexample.CalculatorApp.EndpointAReplyDTO;
+import stdexample.CalculatorApp.EndpointARequestDTO;
+
+/**
+ * Hosts all of ServiceA to ServiceD, along with the CalculatorApp Servlets, in a single JVM, communicating over an
+ * in-JVM ActiveMQ broker using the <code>vm://</code> transport - no TCP, and no need for a separate ActiveMqRun. This
+ * lets you measure the pure Mats3 and serialization overhead of the A-B-C-D flow, e.g. using the load generator. The
+ * application is available at HTTP port 9000, or a higher port if that is taken.
+ */
+public class AllServicesInJvm {
+    public static void main(String... args) {
+        MatsJbangJettyServer.create(9000)
+                .useInJvmBroker()
+                .addMatsFactory()
+                .addMatsFuturizer()
+                .addMatsFuturizerAdmission(200)
+                .setupUsingMatsFactory(matsFactory -> {
+                    ServiceA.setupEndpoint(matsFactory);
+                    ServiceB.setupEndpoint(matsFactory);
+                    ServiceC.setupEndpoint(matsFactory);
+                    ServiceD.setupEndpoint(matsFactory);
+                })
+                .addMatsLocalInspect()
+                .addMatsMetrics()
+                .addMatsLiveStats(1000)
+                // The CalculatorApp Servlets are not nested in this class, so must be added for '-Dfast_start'.
+                .addAnnotatedClasses(CalculatorApp.class)
+                .addMatsLoadGenerator("endpointA", "ServiceA.endpointA", EndpointAReplyDTO.class, sequence -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    return new EndpointARequestDTO(random.nextDouble(-100d, 100d), random.nextDouble(-100d, 100d),
+                            random.nextDouble(-100d, 100d), random.nextDouble(-100d, 100d),
+                            random.nextDouble(-100d, 100d));
+                })
+                .setRootHtlm("""
+                        <html><body>
+                        <h1>All of ServiceA-D and CalculatorApp in a single JVM, using in-JVM broker</h1>
+                        <h3>LocalHtmlInspectForMatsFactory</h3>
+                        <a href="localinspect">Monitoring/introspection GUI for the MatsFactory.</a><br/>
+                        <a href="localinspect/live">Live per-stage stats, pushed once a second.</a><br/>
+                        <a href="metrics">Metrics in Prometheus format.</a><p>
+                        <h3>Single, simple futurization for 'Math.PI * 4d - (5d / 6d + 7d)':</h3>
+                        <a href="simple_futurization">Simple sync Servlet handling, single call.</a><p>
+                        <h3>Multiple futurizations:</h3>
+                        <a href="initiate_multi?count=1000">Async Servlet handling, 1000 calls.</a><br/>
+                        <a href="initiate_multi?count=1000&failfast">Async Servlet handling, 1000 calls, fail-fast
+                        admission.</a><br/>
+                        <h3>Sustained load:</h3>
+                        <a href="loadgenerator">Load generator, with latency histograms.</a><br/>
+                        </body></html>
+                        """)
+                .start();
+    }
+}
@@ -1,6 +1,6 @@
 //usr/bin/env jbang "$0" "$@" ; exit $?
 //JAVA 17
-//DEPS io.mats3.examples:mats-jbangkit:1.0.0
+//DEPS io.mats3.examples:mats-jbangkit:1.1.0
 
 package stdexample;
 
@@ -14,6 +14,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 
+import io.mats3.examples.jbang.MatsJbangFuturizerAdmission;
+import io.mats3.examples.jbang.MatsJbangFuturizerAdmission.AdmissionRejectedException;
+import io.mats3.examples.jbang.MatsJbangFuturizerCache;
 import io.mats3.examples.jbang.MatsJbangJettyServer;
 import io.mats3.examples.jbang.MatsJbangJettyServer.FunctionalAsyncListener;
 import io.mats3.examples.jbang.MatsJbangKit;
@@ -36,7 +39,17 @@ public class CalculatorApp {
         MatsJbangJettyServer.create(9000)
                 .addMatsFactory()
                 .addMatsFuturizer()
+                .addMatsFuturizerAdmission(200)
+                .addMatsFuturizerCache(MatsJbangFuturizerCache.DEFAULT_MAX_WEIGHT_BYTES)
+                // Generic JSON gateway, e.g. POST to '/mats/ServiceA.endpointA' with {"a":3,"b":2,"c":1,"d":4,"e":5}
+                .addMatsHttpGateway(30_000, "ServiceA.endpointA")
                 .addMatsLocalInspect()
+                .addMatsLoadGenerator("endpointA", "ServiceA.endpointA", EndpointAReplyDTO.class, sequence -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    return new EndpointARequestDTO(random.nextDouble(-100d, 100d), random.nextDouble(-100d, 100d),
+                            random.nextDouble(-100d, 100d), random.nextDouble(-100d, 100d),
+                            random.nextDouble(-100d, 100d));
+                })
                 .setRootHtlm("""
                         <html><body>
                         <h1>CalculatorApp: Calculates <code>a*b - (c/d + e)</code> in an obscenely
@@ -44,10 +57,21 @@ public class CalculatorApp {
                         <h3>LocalHtmlInspectForMatsFactory</h3>
                         <a href="localinspect">Monitoring/introspection GUI for the MatsFactory.</a><p>
                         <h3>Single, simple futurization for 'Math.PI * 4d - (5d / 6d + 7d)':</h3>
-                        <a href="simple_futurization">Simple sync Servlet handling, single call.</a><p>
+                        <a href="simple_futurization">Simple sync Servlet handling, single call.</a><br/>
+                        <a href="cached_futurization">Same, but through the reply cache.</a> The request is constant,
+                        so its reply is cached for 10 seconds - reload to see the difference.<p>
                         <h3>Multiple futurizations:</h3>
                         You should run this a few times to warm the Mats fabric JVMs.<p>
                         <a href="initiate_multi?count=1000">Async Servlet handling, 1000 calls.</a><br/>
+                        At most 200 are in flight towards ServiceA at any time, the rest wait for a permit. With
+                        fail-fast, those that don't get a permit are rejected right away:<br/>
+                        <a href="initiate_multi?count=1000&failfast">Async Servlet handling, 1000 calls, fail-fast.</a>
+                        <br/>
+                        <h3>Sustained load:</h3>
+                        <a href="loadgenerator">Load generator, with latency histograms.</a><br/>
+                        <h3>JSON gateway:</h3>
+                        <code>curl -X POST localhost:9000/mats/ServiceA.endpointA
+                        -d '{"a":3,"b":2,"c":1,"d":4,"e":5}'</code><br/>
                         </body></html>
                         """)
                 .start();
@@ -81,6 +105,56 @@ public class CalculatorApp {
         }
     }
 
+    @WebServlet("/cached_futurization")
+    public static class InitiateServlet_Cached extends HttpServlet {
+        private MatsJbangFuturizerCache _cache;
+
+        @Override
+        public void init() {
+            // Note: The cache is only present if added with 'addMatsFuturizerCache(..)', otherwise we go uncached.
+            _cache = (MatsJbangFuturizerCache) getServletContext()
+                    .getAttribute(MatsJbangFuturizerCache.class.getName());
+            if (_cache != null) {
+                // The calculation is a pure function, so the replies may be cached - here for 10 seconds.
+                _cache.ttl("ServiceA.endpointA", 10_000);
+            }
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            var matsFuturizer = (MatsFuturizer) req.getServletContext().getAttribute(MatsFuturizer.class.getName());
+
+            resp.getWriter().println(_cache != null
+                    ? "Sending request via MatsFuturizer, through the reply cache."
+                    : "Sending request via MatsFuturizer - no reply cache added, so not cached.");
+            resp.flushBuffer();
+
+            // The Futurization, invoking 'ServiceA.endpointA' to do the calculation - unless the reply is cached.
+            long nanosStart = System.nanoTime();
+            var request = new EndpointARequestDTO(Math.PI, 4, 5, 6, 7);
+            var replyFuture = _cache != null
+                    ? _cache.futurizeNonessential(MatsTestHelp.traceId(), "CalculatorApp.cached",
+                            "ServiceA.endpointA", EndpointAReplyDTO.class, request)
+                    : matsFuturizer.futurizeNonessential(MatsTestHelp.traceId(), "CalculatorApp.cached",
+                            "ServiceA.endpointA", EndpointAReplyDTO.class, request);
+
+            // Outputting the result
+            try {
+                EndpointAReplyDTO reply = replyFuture.get(30, TimeUnit.SECONDS).getReply();
+                resp.getWriter().println("Got reply for 'Math.PI * 4d - (5d / 6d + 7d)': " + reply + ", in "
+                        + (System.nanoTime() - nanosStart) / 1000 + " microseconds.");
+                if (_cache != null) {
+                    resp.getWriter().println("Cache: " + _cache.getStats().get("ServiceA.endpointA"));
+                }
+                boolean correct = Math.PI * 4d - (5d / 6d + 7d) == reply.result;
+                resp.getWriter().println("Result is " + (correct ? "correct!" : "wrong!"));
+            }
+            catch (InterruptedException | ExecutionException | TimeoutException e) {
+                throw new IOException("Couldn't get reply.", e);
+            }
+        }
+    }
+
     @WebServlet(urlPatterns = "/initiate_multi", asyncSupported = true)
     public static class InitiateServlet_Async_Multi extends HttpServlet {
         private static final Logger log = MatsJbangKit.getClassLogger();
@@ -88,9 +162,14 @@ public class CalculatorApp {
         @Override
         protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
             var matsFuturizer = (MatsFuturizer) req.getServletContext().getAttribute(MatsFuturizer.class.getName());
+            // Note: The admission is only present if added with 'addMatsFuturizerAdmission(..)', otherwise we go
+            // straight to the MatsFuturizer.
+            var admission = (MatsJbangFuturizerAdmission) req.getServletContext()
+                    .getAttribute(MatsJbangFuturizerAdmission.class.getName());
 
             String countP = req.getParameter("count");
             int count = countP != null ? Integer.parseInt(countP) : 10;
+            boolean failFast = req.getParameter("failfast") != null;
 
             PrintWriter out = resp.getWriter();
             out.println("Initiating async " + count + " concurrent futurizations. Timing at bottom.");
@@ -111,6 +190,7 @@ public class CalculatorApp {
             long nanosStart_Start = System.nanoTime();
             // :: Fire off all the futures
             AtomicInteger countdown = new AtomicInteger(count);
+            AtomicInteger rejected = new AtomicInteger();
             ThreadLocalRandom random = ThreadLocalRandom.current();
             for (int i = 0; i < count; i++) {
                 double a = random.nextDouble(-100d, 100d);
@@ -121,23 +201,43 @@ public class CalculatorApp {
 
                 long nanosStart_futurization = System.nanoTime();
 
-                // Send off the Futurization.
-                var replyFuture = matsFuturizer.futurizeNonessential(MatsTestHelp.traceId(),
-                        "CalculatorApp.multi", "ServiceA.endpointA", EndpointAReplyDTO.class,
-                        new EndpointARequestDTO(a, b, c, d, e));
+                // Send off the Futurization, through the admission control if present: Either fail fast, or wait for
+                // a permit.
+                var request = new EndpointARequestDTO(a, b, c, d, e);
+                var replyFuture = admission == null
+                        ? matsFuturizer.futurizeNonessential(MatsTestHelp.traceId(), "CalculatorApp.multi",
+                                "ServiceA.endpointA", EndpointAReplyDTO.class, request)
+                        : failFast
+                                ? admission.tryFuturizeNonessential(MatsTestHelp.traceId(), "CalculatorApp.multi",
+                                        "ServiceA.endpointA", EndpointAReplyDTO.class, request)
+                                : admission.futurizeNonessentialWhenPermitted(MatsTestHelp.traceId(),
+                                        "CalculatorApp.multi", "ServiceA.endpointA", EndpointAReplyDTO.class,
+                                        request, 20_000);
 
-                // Handle the reply via thenAccept, which will run on the futurizer completer thread pool.
-                replyFuture.thenAccept(reply -> {
+                // Handle the reply via whenComplete, which will run on the futurizer completer thread pool - or
+                // directly on this thread, if rejected by fail-fast.
+                replyFuture.whenComplete((reply, throwable) -> {
                     long nanosAt_Reply = System.nanoTime();
-                    EndpointAReplyDTO replyDto = reply.getReply();
-                    // Write to the Servlet output stream (which is synchronized)
-                    boolean correct = a * b - (c / d + e) == replyDto.result;
-                    out.println("Result: " + replyDto + (correct ? " Correct!" : " Wrong!")
-                            + ", millis taken: " + ((nanosAt_Reply - nanosStart_futurization) / 1_000_000d)
-                            + ", millis since start: " + ((nanosAt_Reply - nanosStart_Start) / 1_000_000d));
+                    // ?: Was it rejected by the admission control?
+                    if (throwable instanceof AdmissionRejectedException) {
+                        // -> Yes, so just count it.
+                        rejected.incrementAndGet();
+                    }
+                    else if (throwable != null) {
+                        out.println("Failed: " + throwable);
+                    }
+                    else {
+                        EndpointAReplyDTO replyDto = reply.getReply();
+                        // Write to the Servlet output stream (which is synchronized)
+                        boolean correct = a * b - (c / d + e) == replyDto.result;
+                        out.println("Result: " + replyDto + (correct ? " Correct!" : " Wrong!")
+                                + ", millis taken: " + ((nanosAt_Reply - nanosStart_futurization) / 1_000_000d)
+                                + ", millis since start: " + ((nanosAt_Reply - nanosStart_Start) / 1_000_000d));
+                    }
                     // Count down, and if we hit 0, then complete Servlet AsyncContext.
                     int current = countdown.decrementAndGet();
                     if (current == 0) {
+                        out.println("## Rejected by admission control: " + rejected.get());
                         outputStats(out, count, nanosStart_Start);
                         asyncContext.complete();
                     }
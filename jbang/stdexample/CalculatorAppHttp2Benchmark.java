@@ -0,0 +1,132 @@
+//usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17
+//DEPS io.mats3.examples:mats-jbangkit:1.1.0
+//DEPS org.eclipse.jetty.http2:http2-http-client-transport:11.0.14
+
+package stdexample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+
+import io.mats3.examples.jbang.MatsJbangKit;
+
+/**
+ * Benchmarks HTTP/1.1 against multiplexed HTTP/2 cleartext (h2c) towards the CalculatorApp's
+ * <code>"/simple_futurization"</code>, which does a full Mats3 round-trip per request: For each concurrency level,
+ * a closed loop keeps that many requests in flight, first over HTTP/1.1 with at most 6 connections (as a browser or a
+ * typical connection-pooled client would), and then over a single h2c connection where each request is a stream. The
+ * latency percentiles and throughput are printed in a summary table at the end.
+ * <p>
+ * Depends on a running CalculatorApp with h2c enabled - e.g. 'AllServicesInJvm', which has everything in one JVM, or
+ * 'CalculatorApp' with ServiceA-D and ActiveMqRun. Both serve plain HTTP/1.1 by default, so start them with
+ * '<code>-Dh2c</code>'. Since the Servlet is synchronous, each in-flight request holds a Jetty thread - with hundreds
+ * of concurrent streams, the server's thread pool (default max 200) becomes the limit, which you may lift by starting
+ * the server with virtual threads.
+ * <p>
+ * Optional arguments: Number of requests per run, default 5 000 - and the URL, default
+ * <code>http://localhost:9000/simple_futurization</code>.
+ */
+public class CalculatorAppHttp2Benchmark {
+    private static final int[] CONCURRENCIES = { 1, 10, 100, 200, 500 };
+    private static final int HTTP11_MAX_CONNECTIONS = 6;
+
+    public static void main(String... args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        String url = args.length > 1 ? args[1] : "http://localhost:9000/simple_futurization";
+        // The Jetty client logs a lot at DEBUG, e.g. the connections closing when stopped.
+        MatsJbangKit.configureLogbackToConsole_Info();
+
+        // :: HTTP/1.1, with a limited number of connections - the rest of the requests queue in the client.
+        HttpClient http11 = new HttpClient();
+        http11.setMaxConnectionsPerDestination(HTTP11_MAX_CONNECTIONS);
+        http11.setMaxRequestsQueuedPerDestination(Integer.MAX_VALUE);
+
+        // :: HTTP/2 cleartext with prior knowledge, over a single connection - multiplexing the requests as streams.
+        HttpClient http2 = new HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()));
+        http2.setMaxConnectionsPerDestination(1);
+        http2.setMaxRequestsQueuedPerDestination(Integer.MAX_VALUE);
+
+        http11.start();
+        http2.start();
+        List<String> summary = new ArrayList<>();
+        try {
+            // Warmup, JIT both here and in the server, and the Mats fabric - results ignored.
+            run(http11, url, Math.max(1000, requests / 5), 50);
+            run(http2, url, Math.max(1000, requests / 5), 50);
+
+            for (int concurrency : CONCURRENCIES) {
+                summary.add(run(http11, url, requests, concurrency).toLine("HTTP/1.1 x" + HTTP11_MAX_CONNECTIONS,
+                        concurrency));
+                summary.add(run(http2, url, requests, concurrency).toLine("h2c x1", concurrency));
+            }
+        }
+        finally {
+            http11.stop();
+            http2.stop();
+        }
+
+        System.out.println("\n### HTTP/1.1 vs. h2c towards [" + url + "], " + requests + " requests per run\n");
+        System.out.println(String.format("%-14s | %6s | %10s | %8s %8s %8s %8s | %s", "Protocol", "cc", "r/s",
+                "p50", "p90", "p99", "max", "errors"));
+        summary.forEach(System.out::println);
+        System.out.println("\n(latencies in milliseconds; 'cc' = concurrent requests in closed loop; 'x6' / 'x1' is the"
+                + " max number of connections)");
+    }
+
+    /**
+     * Runs a closed loop with the given concurrency, until the given number of requests has completed.
+     */
+    private static RunResult run(HttpClient client, String url, int requests, int concurrency)
+            throws InterruptedException {
+        Histogram latencies = new ConcurrentHistogram(TimeUnit.MINUTES.toNanos(1), 3);
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch completed = new CountDownLatch(requests);
+        AtomicInteger errors = new AtomicInteger();
+        long nanosStart = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            long nanosSent = System.nanoTime();
+            client.newRequest(url)
+                    .timeout(60, TimeUnit.SECONDS)
+                    .send(result -> {
+                        latencies.recordValue(Math.min(System.nanoTime() - nanosSent,
+                                latencies.getHighestTrackableValue()));
+                        // ?: Did it fail?
+                        if (result.isFailed() || (result.getResponse().getStatus() != 200)) {
+                            // -> Yes, so count it.
+                            errors.incrementAndGet();
+                        }
+                        inFlight.release();
+                        completed.countDown();
+                    });
+        }
+        if (!completed.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Didn't complete [" + requests + "] requests within 10 minutes, missing ["
+                    + completed.getCount() + "].");
+        }
+        double seconds = (System.nanoTime() - nanosStart) / 1_000_000_000d;
+        return new RunResult(requests / seconds, latencies, errors.get());
+    }
+
+    record RunResult(double requestsPerSecond, Histogram latencies, int errors) {
+        String toLine(String protocol, int concurrency) {
+            return String.format("%-14s | %6d | %10.0f | %8.2f %8.2f %8.2f %8.2f | %d", protocol, concurrency,
+                    requestsPerSecond, millis(50), millis(90), millis(99), latencies.getMaxValue() / 1_000_000d,
+                    errors);
+        }
+
+        private double millis(double percentile) {
+            return latencies.getValueAtPercentile(percentile) / 1_000_000d;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+//usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 17
+//DEPS io.mats3.examples:mats-jbangkit:1.1.0
+//SOURCES ServiceA.java ServiceB.java ServiceC.java ServiceD.java CalculatorApp.java
+
+package stdexample;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongFunction;
+
+import io.mats3.examples.jbang.MatsJbangKit;
+import io.mats3.examples.jbang.MatsJbangKit.Profile;
+import io.mats3.examples.jbang.MatsJbangLoadGenerator;
+import io.mats3.examples.jbang.MatsJbangLoadGenerator.LoadResult;
+import io.mats3.impl.jms.JmsMatsFactory;
+import io.mats3.util.MatsFuturizer;
+import stdexample.CalculatorApp.EndpointAReplyDTO;
+import stdexample.CalculatorApp.EndpointARequestDTO;
+
+/**
+ * Benchmarks the {@link Profile}s of {@link MatsJbangKit#createActiveMqConnectionFactory(Profile)} on the A-B-C-D flow
+ * of the CalculatorApp: For each profile, a MatsFactory is created with a ConnectionFactory using that profile, all of
+ * ServiceA to ServiceD are set up on it, and the {@link MatsJbangLoadGenerator} is run with a warmup, a closed loop
+ * with 1 in flight (pure latency), a closed loop with 100 in flight (throughput), and an open loop at a fixed rate
+ * (latency under load). A summary table is printed at the end.
+ * <p>
+ * Depends on a localhost ActiveMQ, e.g. 'ActiveMqRun' - and do NOT have any of ServiceA-D running separately, as they
+ * would then take part of the load. Optional argument: Seconds per run, default 15.
+ */
+public class ConnectionFactoryProfileBenchmark {
+    public static void main(String... args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 15;
+        LongFunction<Object> requestSupplier = sequence -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            return new EndpointARequestDTO(random.nextDouble(-100d, 100d), random.nextDouble(-100d, 100d),
+                    random.nextDouble(-100d, 100d), random.nextDouble(-100d, 100d), random.nextDouble(-100d, 100d));
+        };
+
+        List<String> summary = new ArrayList<>();
+        for (Profile profile : Profile.values()) {
+            JmsMatsFactory<String> matsFactory = MatsJbangKit.createMatsFactory(
+                    MatsJbangKit.createActiveMqConnectionFactory(profile), "ProfileBenchmark_" + profile);
+            ServiceA.setupEndpoint(matsFactory);
+            ServiceB.setupEndpoint(matsFactory);
+            ServiceC.setupEndpoint(matsFactory);
+            ServiceD.setupEndpoint(matsFactory);
+            MatsFuturizer matsFuturizer = MatsFuturizer.createMatsFuturizer(matsFactory);
+            try {
+                // Warmup, JIT and connections - results ignored.
+                load(matsFuturizer, requestSupplier, profile).concurrency(50).duration(Duration.ofSeconds(seconds))
+                        .run();
+
+                LoadResult single = load(matsFuturizer, requestSupplier, profile).concurrency(1)
+                        .duration(Duration.ofSeconds(seconds)).run();
+                LoadResult throughput = load(matsFuturizer, requestSupplier, profile).concurrency(100)
+                        .duration(Duration.ofSeconds(seconds)).run();
+                // Open loop at half of the achieved throughput, to see the latency under a sustainable load.
+                double rate = Math.max(10, Math.floor(throughput.repliesPerSecond() / 2));
+                LoadResult openLoop = load(matsFuturizer, requestSupplier, profile).rate(rate)
+                        .duration(Duration.ofSeconds(seconds)).run();
+
+                summary.add(String.format("%-16s | %8.3f %8.3f | %10.0f | %8.0f %8.3f %8.3f %8.3f", profile,
+                        single.latencyMillis(50), single.latencyMillis(99),
+                        throughput.repliesPerSecond(),
+                        rate, openLoop.latencyMillis(50), openLoop.latencyMillis(99), openLoop.latencyMillis(99.9)));
+            }
+            finally {
+                matsFuturizer.close();
+                matsFactory.stop(30_000);
+            }
+        }
+
+        System.out.println("\n### ConnectionFactory Profiles on the A-B-C-D flow, " + seconds + " seconds per run\n");
+        System.out.println(String.format("%-16s | %8s %8s | %10s | %8s %8s %8s %8s", "Profile",
+                "1cc p50", "1cc p99", "100cc r/s", "open r/s", "p50", "p99", "p99.9"));
+        summary.forEach(System.out::println);
+        System.out.println("\n(latencies in milliseconds; 'cc' = concurrent requests in closed loop)");
+    }
+
+    private static MatsJbangLoadGenerator load(MatsFuturizer matsFuturizer, LongFunction<Object> requestSupplier,
+            Profile profile) {
+        return MatsJbangLoadGenerator.create(matsFuturizer, "ServiceA.endpointA", EndpointAReplyDTO.class,
+                requestSupplier).fromId("ProfileBenchmark." + profile);
+    }
+}
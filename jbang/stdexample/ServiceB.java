@@ -1,6 +1,6 @@
 //usr/bin/env jbang "$0" "$@" ; exit $?
 //JAVA 17
-//DEPS io.mats3.examples:mats-jbangkit:1.0.0
+//DEPS io.mats3.examples:mats-jbangkit:1.1.0
 
 package stdexample;
 
@@ -11,14 +11,30 @@ import io.mats3.examples.jbang.MatsJbangJettyServer;
  * Mats single-stage Endpoint which calculates <code>a*b</code>. A single Endpoint is a convenience method of creating a
  * Mats Endpoint with only a single stage. Since it only has a single stage, it does not need a state object (its state
  * is specified as void.class).
+ * <p>
+ * If invoked with "-Dmemoize", the replies are memoized, so that a repeated request doesn't invoke the lambda.
+ * <p>
+ * If invoked with "-Dautoscale", it also runs the concurrency autoscaler, so that if a backlog builds up on the queue,
+ * the stage's concurrency is raised based on the queue stats broadcast by ActiveMqRun - see "/autoscaler" for the
+ * scaling decisions.
  */
 public class ServiceB {
     public static void main(String... args) {
-        MatsJbangJettyServer.create(9020)
+        MatsJbangJettyServer server = MatsJbangJettyServer.create(9020)
                 .addMatsFactory()
                 .setupUsingMatsFactory(ServiceB::setupEndpoint)
-                .addMatsLocalInspect_WithRootHtml()
-                .start();
+                .addMatsLocalInspect_WithRootHtml();
+        // ?: Have the jbang file been invoked with "-Dmemoize"?
+        if (System.getProperty("memoize") != null) {
+            // -> Yes: The calculation is a pure function, so the replies may be memoized - see "/localinspect".
+            server.addMatsReplyMemoization(10_000, "ServiceB.endpointB");
+        }
+        // ?: Have the jbang file been invoked with "-Dautoscale"?
+        if (System.getProperty("autoscale") != null) {
+            // -> Yes, so scale the stage's concurrency by the queue stats broadcast by ActiveMqRun.
+            server.addMatsConcurrencyAutoscaler(1, 16);
+        }
+        server.start();
     }
 
     static void setupEndpoint(MatsFactory matsFactory) {
@@ -1,20 +1,28 @@
 //usr/bin/env jbang "$0" "$@" ; exit $?
 //JAVA 17
-//DEPS io.mats3.examples:mats-jbangkit:1.0.0
+//DEPS io.mats3.examples:mats-jbangkit:1.1.0
 
 package stdexample;
 
 import io.mats3.MatsFactory;
 import io.mats3.examples.jbang.MatsJbangJettyServer;
 
-/** Mats single-stage Endpoint which calculates <code>a/b</code>. */
+/**
+ * Mats single-stage Endpoint which calculates <code>a/b</code>. If invoked with "-Dmemoize", the replies are memoized,
+ * so that a repeated request doesn't invoke the lambda.
+ */
 public class ServiceD {
     public static void main(String... args) {
-        MatsJbangJettyServer.create(9040)
+        MatsJbangJettyServer server = MatsJbangJettyServer.create(9040)
                 .addMatsFactory()
                 .setupUsingMatsFactory(ServiceD::setupEndpoint)
-                .addMatsLocalInspect_WithRootHtml()
-                .start();
+                .addMatsLocalInspect_WithRootHtml();
+        // ?: Have the jbang file been invoked with "-Dmemoize"?
+        if (System.getProperty("memoize") != null) {
+            // -> Yes: The calculation is a pure function, so the replies may be memoized - see "/localinspect".
+            server.addMatsReplyMemoization(10_000, "ServiceD.endpointD");
+        }
+        server.start();
     }
 
     static void setupEndpoint(MatsFactory matsFactory) {
@@ -0,0 +1,169 @@
+package io.mats3.examples.jbang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.mats3.serial.MatsSerializer;
+import io.mats3.serial.MatsSerializer.DeserializedMatsTrace;
+import io.mats3.serial.MatsSerializer.SerializedMatsTrace;
+import io.mats3.serial.MatsTrace;
+import io.mats3.serial.MatsTrace.Call.MessagingModel;
+import io.mats3.serial.MatsTrace.KeepMatsTrace;
+import io.mats3.serial.json.MatsSerializerJson;
+
+/**
+ * JMH benchmark of the full envelope ({@link MatsTrace}) serialization and deserialization using
+ * {@link MatsSerializerJson}, for each of the {@link KeepMatsTrace} modes. The MatsTrace is built up by emulating the
+ * 'stdexample' flow: CalculatorApp futurizes to ServiceA, which requests ServiceB, then requests ServiceC, which again
+ * requests ServiceD - the <code>hop</code> parameter says how far into this 8-hop flow the envelope is taken. With
+ * <code>FULL</code>, the MatsTrace grows with every hop, while <code>COMPACT</code> and <code>MINIMAL</code> drop
+ * increasing amounts of the history.
+ * <p>
+ * Run with <code>./gradlew :mats-jbangkit-jmh:jmh -PjmhIncludes=JmhMatsSerializerJson_Envelope</code>. The 'gc'
+ * profiler is enabled in the build, so look at <code>gc.alloc.rate.norm</code> for bytes allocated per op.
+ *
+ * @see JmhMatsSerializerJson_Objects
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JmhMatsSerializerJson_Envelope {
+
+    @Param({ "FULL", "COMPACT", "MINIMAL" })
+    public KeepMatsTrace keepTrace;
+
+    @Param({ "1", "4", "8" })
+    public int hop;
+
+    private MatsSerializerJson _serializer;
+    private MatsTrace<String> _matsTrace;
+    private byte[] _serializedBytes;
+    private String _serializedMeta;
+
+    @Setup
+    public void setup() {
+        _serializer = MatsSerializerJson.create();
+        _matsTrace = createStdexampleFlowMatsTrace(_serializer, keepTrace, hop);
+        SerializedMatsTrace serialized = _serializer.serializeMatsTrace(_matsTrace);
+        _serializedBytes = serialized.getMatsTraceBytes();
+        _serializedMeta = serialized.getMeta();
+    }
+
+    @Benchmark
+    public SerializedMatsTrace serializeMatsTrace() {
+        return _serializer.serializeMatsTrace(_matsTrace);
+    }
+
+    @Benchmark
+    public DeserializedMatsTrace<String> deserializeMatsTrace() {
+        return _serializer.deserializeMatsTrace(_serializedBytes, _serializedMeta);
+    }
+
+    /**
+     * What a stage pays for the envelope on every hop: deserialize the incoming, serialize the outgoing.
+     */
+    @Benchmark
+    public SerializedMatsTrace deserializeAndReserialize() {
+        MatsTrace<String> matsTrace = _serializer.deserializeMatsTrace(_serializedBytes, _serializedMeta)
+                .getMatsTrace();
+        return _serializer.serializeMatsTrace(matsTrace);
+    }
+
+    /**
+     * Emulates the 'stdexample' flow, returning the MatsTrace as it would look on the wire at the specified hop.
+     */
+    static <Z> MatsTrace<Z> createStdexampleFlowMatsTrace(MatsSerializer<Z> serializer, KeepMatsTrace keepTrace,
+            int hop) {
+        MatsTrace<Z> mt = serializer.createNewMatsTrace("CalculatorApp.multi[rnd:" + hop + "]", "flowId_jmh",
+                keepTrace, true, false, 0, false);
+        // 1: CalculatorApp -> ServiceA.endpointA
+        mt = mt.addRequestCall("CalculatorApp.multi", "ServiceA.endpointA", MessagingModel.QUEUE,
+                "CalculatorApp.futurizer.private.terminator", MessagingModel.TOPIC,
+                serializer.serializeObject(new EndpointARequestDTO(Math.PI, 4, 5, 6, 7)),
+                serializer.serializeObject(new FuturizerState("cid_" + hop)), null);
+        if (hop == 1) {
+            return mt;
+        }
+        // 2: ServiceA.endpointA -> ServiceB.endpointB
+        EndpointAState stateA = new EndpointAState();
+        stateA.c = 5;
+        stateA.d = 6;
+        stateA.e = 7;
+        mt = mt.addRequestCall("ServiceA.endpointA", "ServiceB.endpointB", MessagingModel.QUEUE,
+                "ServiceA.endpointA.stage1", MessagingModel.QUEUE,
+                serializer.serializeObject(new EndpointBRequestDTO(Math.PI, 4)),
+                serializer.serializeObject(stateA), null);
+        if (hop == 2) {
+            return mt;
+        }
+        // 3: ServiceB.endpointB -> reply to ServiceA.endpointA.stage1
+        mt = mt.addReplyCall("ServiceB.endpointB", serializer.serializeObject(new EndpointReplyDTO(Math.PI * 4)));
+        if (hop == 3) {
+            return mt;
+        }
+        // 4: ServiceA.endpointA.stage1 -> ServiceC.endpointC
+        stateA.result_a_multiply_b = Math.PI * 4;
+        mt = mt.addRequestCall("ServiceA.endpointA.stage1", "ServiceC.endpointC", MessagingModel.QUEUE,
+                "ServiceA.endpointA.stage2", MessagingModel.QUEUE,
+                serializer.serializeObject(new EndpointCRequestDTO(5, 6, 7)),
+                serializer.serializeObject(stateA), null);
+        if (hop == 4) {
+            return mt;
+        }
+        // 5: ServiceC.endpointC -> ServiceD.endpointD
+        EndpointCState stateC = new EndpointCState();
+        stateC.c = 7;
+        mt = mt.addRequestCall("ServiceC.endpointC", "ServiceD.endpointD", MessagingModel.QUEUE,
+                "ServiceC.endpointC.stage1", MessagingModel.QUEUE,
+                serializer.serializeObject(new EndpointBRequestDTO(5, 6)),
+                serializer.serializeObject(stateC), null);
+        if (hop == 5) {
+            return mt;
+        }
+        // 6: ServiceD.endpointD -> reply to ServiceC.endpointC.stage1
+        mt = mt.addReplyCall("ServiceD.endpointD", serializer.serializeObject(new EndpointReplyDTO(5d / 6d)));
+        if (hop == 6) {
+            return mt;
+        }
+        // 7: ServiceC.endpointC.stage1 -> reply to ServiceA.endpointA.stage2
+        mt = mt.addReplyCall("ServiceC.endpointC.stage1",
+                serializer.serializeObject(new EndpointReplyDTO(5d / 6d + 7d)));
+        if (hop == 7) {
+            return mt;
+        }
+        // 8: ServiceA.endpointA.stage2 -> reply to CalculatorApp's futurizer
+        return mt.addReplyCall("ServiceA.endpointA.stage2",
+                serializer.serializeObject(new EndpointReplyDTO(Math.PI * 4d - (5d / 6d + 7d))));
+    }
+
+    // ----- States, as in 'stdexample', and a stand-in for the MatsFuturizer's state.
+
+    static class EndpointAState {
+        double result_a_multiply_b;
+        double c, d, e;
+    }
+
+    static class EndpointCState {
+        double c;
+    }
+
+    record FuturizerState(String correlationId) {}
+
+    // ----- DTOs from 'stdexample' (The Endpoint A-D replies are all the same shape: a single double)
+
+    record EndpointARequestDTO(double a, double b, double c, double d, double e) {}
+
+    record EndpointBRequestDTO(double a, double b) {}
+
+    record EndpointCRequestDTO(double a, double b, double c) {}
+
+    record EndpointReplyDTO(double result) {}
+}
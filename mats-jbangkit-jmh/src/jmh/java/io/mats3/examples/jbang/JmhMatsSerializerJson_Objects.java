@@ -0,0 +1,84 @@
+package io.mats3.examples.jbang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.mats3.serial.json.MatsSerializerJson;
+
+/**
+ * JMH benchmark of {@link MatsSerializerJson#serializeObject(Object)} and
+ * {@link MatsSerializerJson#deserializeObject(String, Class)} for the record DTO shapes used in the 'stdexample' and
+ * 'simple' JBang examples. These are the calls done for every outgoing message (and state), and every incoming message
+ * (and state) on every stage.
+ * <p>
+ * Run with <code>./gradlew :mats-jbangkit-jmh:jmh -PjmhIncludes=JmhMatsSerializerJson_Objects</code>. The 'gc'
+ * profiler is enabled in the build, so look at <code>gc.alloc.rate.norm</code> for bytes allocated per op.
+ *
+ * @see JmhMatsSerializerJson_Envelope
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JmhMatsSerializerJson_Objects {
+
+    @Param({ "EndpointARequestDTO", "EndpointBRequestDTO", "EndpointCRequestDTO", "EndpointReplyDTO",
+            "SimpleServiceRequestDto", "SimpleServiceReplyDto" })
+    public String dto;
+
+    private MatsSerializerJson _serializer;
+    private Object _object;
+    private Class<?> _type;
+    private String _serialized;
+
+    @Setup
+    public void setup() {
+        _serializer = MatsSerializerJson.create();
+        _object = switch (dto) {
+            case "EndpointARequestDTO" -> new EndpointARequestDTO(Math.PI, 4, 5, 6, 7);
+            case "EndpointBRequestDTO" -> new EndpointBRequestDTO(Math.PI, 4);
+            case "EndpointCRequestDTO" -> new EndpointCRequestDTO(5, 6, 7);
+            case "EndpointReplyDTO" -> new EndpointReplyDTO(Math.E * 1000);
+            case "SimpleServiceRequestDto" -> new SimpleServiceRequestDto(42, "teststring");
+            case "SimpleServiceReplyDto" -> new SimpleServiceReplyDto("teststring:42:FromSimple", 24);
+            default -> throw new IllegalArgumentException("Unknown dto [" + dto + "].");
+        };
+        _type = _object.getClass();
+        _serialized = _serializer.serializeObject(_object);
+    }
+
+    @Benchmark
+    public String serializeObject() {
+        return _serializer.serializeObject(_object);
+    }
+
+    @Benchmark
+    public Object deserializeObject() {
+        return _serializer.deserializeObject(_serialized, _type);
+    }
+
+    // ----- DTOs from 'stdexample' (The Endpoint A-D replies are all the same shape: a single double)
+
+    record EndpointARequestDTO(double a, double b, double c, double d, double e) {}
+
+    record EndpointBRequestDTO(double a, double b) {}
+
+    record EndpointCRequestDTO(double a, double b, double c) {}
+
+    record EndpointReplyDTO(double result) {}
+
+    // ----- DTOs from 'simple'
+
+    record SimpleServiceRequestDto(int number, String string) {
+    }
+
+    record SimpleServiceReplyDto(String result, int numChars) {
+    }
+}
@@ -0,0 +1,89 @@
+package io.mats3.examples.jbang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.mats3.examples.jbang.JmhMatsSerializerJson_Envelope.EndpointARequestDTO;
+import io.mats3.serial.MatsSerializer;
+import io.mats3.serial.MatsSerializer.SerializedMatsTrace;
+import io.mats3.serial.MatsTrace;
+import io.mats3.serial.MatsTrace.KeepMatsTrace;
+import io.mats3.serial.json.MatsSerializerJson;
+
+/**
+ * Side-by-side JMH comparison of the {@link MatsSerializerJson} and the binary {@link MatsSerializerSmile}: DTO
+ * serialization and deserialization of the 'stdexample' five-doubles <code>EndpointARequestDTO</code>, and a full
+ * envelope "hop" (deserialize incoming + serialize outgoing) at the end of the 'stdexample' flow. The serialized sizes
+ * are printed to stdout in the setup of each trial, as JMH doesn't have a good way to report static sizes.
+ * <p>
+ * Run with <code>./gradlew :mats-jbangkit-jmh:jmh -PjmhIncludes=JmhMatsSerializer_JsonVsSmile</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JmhMatsSerializer_JsonVsSmile {
+
+    @Param({ "json", "smile" })
+    public String serializer;
+
+    @Param({ "FULL", "MINIMAL" })
+    public KeepMatsTrace keepTrace;
+
+    private MatsSerializer<Object> _serializer;
+    private EndpointARequestDTO _dto;
+    private Object _serializedDto;
+    private MatsTrace<Object> _matsTrace;
+    private byte[] _serializedBytes;
+    private String _serializedMeta;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        MatsSerializer<?> matsSerializer = switch (serializer) {
+            case "json" -> MatsSerializerJson.create();
+            case "smile" -> MatsSerializerSmile.create();
+            default -> throw new IllegalArgumentException("Unknown serializer [" + serializer + "].");
+        };
+        _serializer = (MatsSerializer<Object>) matsSerializer;
+
+        // Use "random" values like CalculatorApp does, not the nice small numbers which are short as text.
+        _dto = new EndpointARequestDTO(-57.31415926535898, 12.718281828459045, 99.99876543210123,
+                -0.0001234567891011, 42.424242424242424);
+        _serializedDto = _serializer.serializeObject(_dto);
+
+        _matsTrace = JmhMatsSerializerJson_Envelope.createStdexampleFlowMatsTrace(_serializer, keepTrace, 8);
+        SerializedMatsTrace serialized = _serializer.serializeMatsTrace(_matsTrace);
+        _serializedBytes = serialized.getMatsTraceBytes();
+        _serializedMeta = serialized.getMeta();
+
+        System.out.println("\n### [" + serializer + "] EndpointARequestDTO serialized size: "
+                + _serializer.sizeOfSerialized(_serializedDto) + " bytes; hop 8 envelope KeepMatsTrace."
+                + keepTrace + ": " + serialized.getSizeUncompressed() + " bytes uncompressed, "
+                + _serializedBytes.length + " bytes on wire (meta:" + _serializedMeta + ")");
+    }
+
+    @Benchmark
+    public Object serializeObject() {
+        return _serializer.serializeObject(_dto);
+    }
+
+    @Benchmark
+    public EndpointARequestDTO deserializeObject() {
+        return _serializer.deserializeObject(_serializedDto, EndpointARequestDTO.class);
+    }
+
+    @Benchmark
+    public SerializedMatsTrace envelopeHop() {
+        MatsTrace<Object> matsTrace = _serializer.deserializeMatsTrace(_serializedBytes, _serializedMeta)
+                .getMatsTrace();
+        return _serializer.serializeMatsTrace(matsTrace);
+    }
+}
@@ -0,0 +1,223 @@
+package io.mats3.examples.jbang;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.mats3.MatsFactory;
+import io.mats3.MatsInitiator.InitiateLambda;
+import io.mats3.util.MatsFuturizer;
+
+/**
+ * A {@link MatsFuturizer} which completes the returned {@link CompletableFuture}s on a supplied {@link Executor},
+ * instead of on the MatsFuturizer's own completer thread pool. The point is that any dependent stages the user adds,
+ * e.g. <code>thenAccept(..)</code>, runs on the thread that completes the future: With the standard MatsFuturizer this
+ * is its bounded platform thread pool, so blocking user code in such stages will quickly saturate that pool and stall
+ * every other reply. With this variant, the completer thread only hands the completion over to the supplied Executor -
+ * which e.g. can be a virtual thread per task executor, see {@link MatsJbangKit#createMatsFuturizer_VirtualThreads(
+ * MatsFactory)}. Also the "async" dependent stage methods without an explicit Executor, e.g.
+ * <code>thenAcceptAsync(..)</code>, will run on the supplied Executor.
+ * <p>
+ * Counters for queued and active completions are available through {@link #getCompletionStats()}, where the time
+ * spent waiting in the Executor's queue and the time spent running the dependent stages are measured separately from
+ * the Mats round-trip.
+ * <p>
+ * The supplied Executor is not shut down when the futurizer is {@link #close() closed}, as it may be shared - unless
+ * created with {@link #createOwningExecutor(MatsFactory, ExecutorService)}.
+ */
+public class ExecutorCompletingMatsFuturizer extends MatsFuturizer {
+    private final Executor _completionExecutor;
+    private final boolean _shutdownExecutorOnClose;
+
+    private final AtomicInteger _queuedCompletions = new AtomicInteger();
+    private final AtomicInteger _activeCompletions = new AtomicInteger();
+    private final LongAdder _completedCompletions = new LongAdder();
+    private final LongAdder _totalQueueNanos = new LongAdder();
+    private final AtomicLong _maxQueueNanos = new AtomicLong();
+    private final LongAdder _totalCompletionNanos = new LongAdder();
+    private final AtomicLong _maxCompletionNanos = new AtomicLong();
+
+    protected ExecutorCompletingMatsFuturizer(MatsFactory matsFactory, String endpointIdPrefix, int corePoolSize,
+            int maxPoolSize, int maxOutstandingPromises, Executor completionExecutor,
+            boolean shutdownExecutorOnClose) {
+        super(matsFactory, endpointIdPrefix, corePoolSize, maxPoolSize, maxOutstandingPromises);
+        _completionExecutor = completionExecutor;
+        _shutdownExecutorOnClose = shutdownExecutorOnClose;
+    }
+
+    /**
+     * Creates a {@link ExecutorCompletingMatsFuturizer} with the same sizing as
+     * {@link MatsFuturizer#createMatsFuturizer(MatsFactory)} - the futurizer's own completer threads are only used to
+     * hand the completions over to the supplied {@link Executor}.
+     *
+     * @param matsFactory
+     *         the {@link MatsFactory} which the futurizer should use.
+     * @param completionExecutor
+     *         the {@link Executor} on which the returned futures will be completed, thus running the user's dependent
+     *         stages.
+     * @return the created {@link ExecutorCompletingMatsFuturizer}.
+     */
+    public static ExecutorCompletingMatsFuturizer create(MatsFactory matsFactory, Executor completionExecutor) {
+        return create(matsFactory, completionExecutor, false);
+    }
+
+    /**
+     * Variant of {@link #create(MatsFactory, Executor)} where the futurizer owns the supplied {@link ExecutorService}:
+     * It is shut down when the futurizer is {@link #close() closed}.
+     *
+     * @param matsFactory
+     *         the {@link MatsFactory} which the futurizer should use.
+     * @param completionExecutor
+     *         the {@link ExecutorService} on which the returned futures will be completed - shut down on close.
+     * @return the created {@link ExecutorCompletingMatsFuturizer}.
+     */
+    public static ExecutorCompletingMatsFuturizer createOwningExecutor(MatsFactory matsFactory,
+            ExecutorService completionExecutor) {
+        return create(matsFactory, completionExecutor, true);
+    }
+
+    private static ExecutorCompletingMatsFuturizer create(MatsFactory matsFactory, Executor completionExecutor,
+            boolean shutdownExecutorOnClose) {
+        String endpointIdPrefix = matsFactory.getFactoryConfig().getAppName();
+        int corePoolSize = Math.max(5, matsFactory.getFactoryConfig().getConcurrency() * 4);
+        int maximumPoolSize = Math.max(100, matsFactory.getFactoryConfig().getConcurrency() * 20);
+        return new ExecutorCompletingMatsFuturizer(matsFactory, endpointIdPrefix, corePoolSize, maximumPoolSize,
+                50_000, completionExecutor, shutdownExecutorOnClose);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        // ?: Do we own the Executor?
+        if (_shutdownExecutorOnClose) {
+            // -> Yes, so shut it down - any completions already handed over are still run.
+            ((ExecutorService) _completionExecutor).shutdown();
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<Reply<T>> futurize(String traceId, String from, String to, int timeout,
+            TimeUnit unit, Class<T> replyClass, Object request, InitiateLambda extraMessageCustomizer) {
+        return completeOnExecutor(super.futurize(traceId, from, to, timeout, unit, replyClass, request,
+                extraMessageCustomizer));
+    }
+
+    @Override
+    public <T> CompletableFuture<Reply<T>> futurizeNonessential(String traceId, String from, String to,
+            Class<T> replyClass, Object request) {
+        return completeOnExecutor(super.futurizeNonessential(traceId, from, to, replyClass, request));
+    }
+
+    /**
+     * @return the {@link Executor} on which the returned futures are completed.
+     */
+    public Executor getCompletionExecutor() {
+        return _completionExecutor;
+    }
+
+    /**
+     * @return a snapshot of the completion counters and timings.
+     */
+    public CompletionStats getCompletionStats() {
+        long completed = _completedCompletions.sum();
+        return new CompletionStats(_queuedCompletions.get(), _activeCompletions.get(), completed,
+                completed == 0 ? 0 : _totalQueueNanos.sum() / completed / 1_000_000d,
+                _maxQueueNanos.get() / 1_000_000d,
+                completed == 0 ? 0 : _totalCompletionNanos.sum() / completed / 1_000_000d,
+                _maxCompletionNanos.get() / 1_000_000d);
+    }
+
+    /**
+     * Snapshot of the completion counters and timings of a {@link ExecutorCompletingMatsFuturizer}.
+     *
+     * @param queued
+     *         number of completions currently waiting in the Executor's queue.
+     * @param active
+     *         number of completions currently running, i.e. running the user's dependent stages.
+     * @param completed
+     *         total number of finished completions.
+     * @param avgQueueMillis
+     *         average time from the reply was received by the futurizer, until the completion started on the
+     *         Executor.
+     * @param maxQueueMillis
+     *         max of the above.
+     * @param avgCompletionMillis
+     *         average time spent running the completion, i.e. the user's dependent stages.
+     * @param maxCompletionMillis
+     *         max of the above.
+     */
+    public record CompletionStats(int queued, int active, long completed, double avgQueueMillis,
+            double maxQueueMillis, double avgCompletionMillis, double maxCompletionMillis) {
+    }
+
+    private <T> CompletableFuture<T> completeOnExecutor(CompletableFuture<T> future) {
+        // ?: Is this already handed over? (The futurize-variants might delegate to each other)
+        if (future instanceof ExecutorCompletedFuture) {
+            // -> Yes, so don't do it twice.
+            return future;
+        }
+        ExecutorCompletedFuture<T> executorFuture = new ExecutorCompletedFuture<>(_completionExecutor);
+        future.whenComplete((value, throwable) -> {
+            long nanosAtQueue = System.nanoTime();
+            _queuedCompletions.incrementAndGet();
+            Runnable completion = () -> {
+                _queuedCompletions.decrementAndGet();
+                _activeCompletions.incrementAndGet();
+                long nanosAtStart = System.nanoTime();
+                long nanosQueued = nanosAtStart - nanosAtQueue;
+                try {
+                    // Note: Completing will run any dependent stages already added, i.e. the user's code.
+                    if (throwable != null) {
+                        executorFuture.completeExceptionally(throwable);
+                    }
+                    else {
+                        executorFuture.complete(value);
+                    }
+                }
+                finally {
+                    long nanosCompletion = System.nanoTime() - nanosAtStart;
+                    _activeCompletions.decrementAndGet();
+                    _completedCompletions.increment();
+                    _totalQueueNanos.add(nanosQueued);
+                    _maxQueueNanos.accumulateAndGet(nanosQueued, Math::max);
+                    _totalCompletionNanos.add(nanosCompletion);
+                    _maxCompletionNanos.accumulateAndGet(nanosCompletion, Math::max);
+                }
+            };
+            try {
+                _completionExecutor.execute(completion);
+            }
+            catch (RejectedExecutionException e) {
+                // The Executor didn't take it (probably shut down): Complete on this thread, so as to not hang.
+                completion.run();
+            }
+        });
+        return executorFuture;
+    }
+
+    /**
+     * Marker subclass, also making the "async" dependent stage methods without explicit Executor use our Executor.
+     */
+    private static class ExecutorCompletedFuture<T> extends CompletableFuture<T> {
+        private final Executor _executor;
+
+        ExecutorCompletedFuture(Executor executor) {
+            _executor = executor;
+        }
+
+        @Override
+        public Executor defaultExecutor() {
+            return _executor;
+        }
+
+        @Override
+        public <U> CompletableFuture<U> newIncompleteFuture() {
+            return new ExecutorCompletedFuture<>(_executor);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package io.mats3.examples.jbang;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.mats3.matsbrokermonitor.api.MatsBrokerDestination;
+import io.mats3.matsbrokermonitor.api.MatsBrokerDestination.DestinationType;
+import io.mats3.matsbrokermonitor.api.MatsBrokerMonitor;
+
+/**
+ * Drives the updates of a {@link MatsBrokerMonitor} adaptively, instead of at a fixed interval: While any queue is
+ * non-empty, or any queue depth changed since the previous update, it forces an update every
+ * {@link #minIntervalMillis(long) min interval} - and when idle, the interval is doubled for each quiet update, up to
+ * the {@link #maxIntervalMillis(long) max interval}. Thus, during an incident the stats are fresh, while an idle system
+ * costs few statistics requests - each of which makes the broker's statistics plugin reply with a message per
+ * destination. DLQs do not count as activity when merely non-empty, since they may hold messages for a long time.
+ * <p>
+ * The forced updates are not full, so they only carry the destinations which changed. Thus, the poller remembers the
+ * last depth of each queue, so that a queue stuck at the same non-zero depth, e.g. since its consumers are gone, still
+ * counts as activity although it isn't in the update.
+ * <p>
+ * The {@link MatsBrokerMonitor} should be created with an update interval of the max interval (or larger), since its
+ * own periodic updates then serve as the idle floor: The poller counts any update, also those the monitor does by
+ * itself, so it doesn't force an update if one came recently.
+ */
+public class MatsJbangAdaptiveBrokerPoller implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(MatsJbangAdaptiveBrokerPoller.class);
+
+    private static final String DLQ_PREFIX = "DLQ.";
+
+    private final MatsBrokerMonitor _matsBrokerMonitor;
+    private long _minIntervalMillis = 1_000;
+    private long _maxIntervalMillis = 60_000;
+
+    private final Object _lock = new Object();
+    // Guarded by _lock
+    private long _currentIntervalMillis;
+    private long _lastUpdateMillis;
+    private boolean _runPoller;
+
+    // Only accessed by the MatsBrokerMonitor's update thread.
+    private final Map<String, Long> _lastDepths = new HashMap<>();
+
+    private final LongAdder _updates = new LongAdder();
+    private final LongAdder _activeUpdates = new LongAdder();
+    private final LongAdder _forcedUpdates = new LongAdder();
+
+    private Thread _pollerThread;
+
+    private MatsJbangAdaptiveBrokerPoller(MatsBrokerMonitor matsBrokerMonitor) {
+        _matsBrokerMonitor = matsBrokerMonitor;
+    }
+
+    /**
+     * Creates the poller for the supplied {@link MatsBrokerMonitor} - you must invoke {@link #start()} to make it
+     * listen to the updates and start forcing them.
+     *
+     * @param matsBrokerMonitor
+     *         the {@link MatsBrokerMonitor} whose updates should be driven - not yet started.
+     * @return the poller, for further configuration.
+     */
+    public static MatsJbangAdaptiveBrokerPoller create(MatsBrokerMonitor matsBrokerMonitor) {
+        return new MatsJbangAdaptiveBrokerPoller(matsBrokerMonitor);
+    }
+
+    /**
+     * @param minIntervalMillis
+     *         the interval between updates while active, default 1 000.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangAdaptiveBrokerPoller minIntervalMillis(long minIntervalMillis) {
+        _minIntervalMillis = minIntervalMillis;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * @param maxIntervalMillis
+     *         the max interval between updates when idle, default 60 000.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangAdaptiveBrokerPoller maxIntervalMillis(long maxIntervalMillis) {
+        _maxIntervalMillis = maxIntervalMillis;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * Registers the listener on the {@link MatsBrokerMonitor} and starts the poller thread. Should be invoked before
+     * the monitor is started, so that the first update is seen.
+     *
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangAdaptiveBrokerPoller start() {
+        if (_minIntervalMillis > _maxIntervalMillis) {
+            throw new IllegalArgumentException("minIntervalMillis [" + _minIntervalMillis + "] must be <="
+                    + " maxIntervalMillis [" + _maxIntervalMillis + "].");
+        }
+        synchronized (_lock) {
+            // Start out fast, we know nothing yet.
+            _currentIntervalMillis = _minIntervalMillis;
+            _lastUpdateMillis = System.currentTimeMillis();
+            _runPoller = true;
+        }
+        _matsBrokerMonitor.registerListener(destinationUpdateEvent -> updateReceived(destinationUpdateEvent
+                .getEventDestinations().values()));
+        _pollerThread = new Thread(this::pollerLoop, "MatsJbangAdaptiveBrokerPoller");
+        _pollerThread.setDaemon(true);
+        _pollerThread.start();
+        log.info("Started adaptive broker polling, interval [" + _minIntervalMillis + " - " + _maxIntervalMillis
+                + "] ms.");
+        // .. for chaining
+        return this;
+    }
+
+    @Override
+    public void close() {
+        synchronized (_lock) {
+            _runPoller = false;
+            _lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return a snapshot of the poller's state and counters.
+     */
+    public PollingStats getStats() {
+        synchronized (_lock) {
+            return new PollingStats(_currentIntervalMillis, _updates.sum(), _activeUpdates.sum(),
+                    _forcedUpdates.sum());
+        }
+    }
+
+    /**
+     * Snapshot of the {@link MatsJbangAdaptiveBrokerPoller}.
+     *
+     * @param currentIntervalMillis
+     *         the current interval between updates.
+     * @param updates
+     *         total number of updates received from the monitor, forced or not.
+     * @param activeUpdates
+     *         of which showed activity, i.e. kept or reset the interval to min.
+     * @param forcedUpdates
+     *         total number of updates forced by the poller.
+     */
+    public record PollingStats(long currentIntervalMillis, long updates, long activeUpdates, long forcedUpdates) {
+    }
+
+    // ===== Internals
+
+    private void updateReceived(Iterable<MatsBrokerDestination> destinations) {
+        boolean active = false;
+        for (MatsBrokerDestination destination : destinations) {
+            // ?: Is this a queue? (Topics don't hold messages for long.)
+            if (destination.getDestinationType() != DestinationType.QUEUE) {
+                // -> No, so skip.
+                continue;
+            }
+            String name = destination.getDestinationName();
+            long depth = destination.getNumberOfQueuedMessages();
+            Long previousDepth = _lastDepths.put(name, depth);
+            // ?: Did the depth change?
+            if ((previousDepth != null) && (previousDepth != depth)) {
+                // -> Yes, so we're active. (Not breaking out, since all depths must be recorded.)
+                active = true;
+            }
+        }
+        // ?: No changes - but does any (non-DLQ) queue hold messages, also those not in this update?
+        if (!active && _lastDepths.entrySet().stream()
+                .anyMatch(e -> (e.getValue() > 0) && !e.getKey().startsWith(DLQ_PREFIX))) {
+            // -> Yes, so we're active: A queue whose depth didn't change isn't in a non-full update.
+            active = true;
+        }
+        _updates.increment();
+        synchronized (_lock) {
+            long previousInterval = _currentIntervalMillis;
+            // ?: Any activity?
+            if (active) {
+                // -> Yes, so poll fast.
+                _activeUpdates.increment();
+                _currentIntervalMillis = _minIntervalMillis;
+            }
+            else {
+                // -> No, so back off.
+                _currentIntervalMillis = Math.min(_maxIntervalMillis, _currentIntervalMillis * 2);
+            }
+            _lastUpdateMillis = System.currentTimeMillis();
+            // ?: Did we switch between fast and backed off?
+            if ((previousInterval == _minIntervalMillis) != (_currentIntervalMillis == _minIntervalMillis)) {
+                // -> Yes, so log it.
+                log.info("Adaptive broker polling: " + (active ? "Activity, polling every [" + _minIntervalMillis
+                        + " ms]." : "Idle, backing off to [" + _currentIntervalMillis + " ms]."));
+            }
+            // Wake up the poller, since the next update is now due at another time.
+            _lock.notifyAll();
+        }
+    }
+
+    private void pollerLoop() {
+        while (true) {
+            synchronized (_lock) {
+                if (!_runPoller) {
+                    return;
+                }
+                long waitMillis = (_lastUpdateMillis + _currentIntervalMillis) - System.currentTimeMillis();
+                // ?: Is the next update due yet?
+                if (waitMillis > 0) {
+                    // -> No, so wait for it - or until an update arrives, which moves the due time.
+                    try {
+                        _lock.wait(waitMillis);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                // E-> Due: Count it as the last update, so that we don't force again before the reply has come in.
+                _lastUpdateMillis = System.currentTimeMillis();
+            }
+            _forcedUpdates.increment();
+            try {
+                // Not a full update: The monitor only needs to tell about what changed.
+                _matsBrokerMonitor.forceUpdate("MatsJbangAdaptiveBrokerPoller:" + System.currentTimeMillis(),
+                        false);
+            }
+            catch (RuntimeException e) {
+                log.warn("Got problems forcing an update of the MatsBrokerMonitor - will try again.", e);
+            }
+        }
+    }
+}
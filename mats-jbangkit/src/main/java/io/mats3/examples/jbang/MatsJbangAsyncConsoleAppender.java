@@ -0,0 +1,230 @@
+package io.mats3.examples.jbang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+
+/**
+ * Asynchronous console appender for Logback, used by {@link MatsJbangKit#configureLogbackToConsole(Level)} when the JVM
+ * is started with '<code>-Dasync_logging</code>': The logging threads only put the event on a bounded queue, and a
+ * single writer thread drains the queue in batches, encoding the whole batch into one buffer which is written to the
+ * console with a single write and flush. Thus, the stage threads do not serialize on the console I/O, which otherwise
+ * caps the throughput when e.g. the mats-intercept-logging interceptor logs a few lines per message.
+ * <p>
+ * When the queue is full, the behavior depends on the {@link OverflowPolicy}: With {@link OverflowPolicy#BLOCK}
+ * (<code>-Dasync_logging</code>), the logging thread waits for room - no events are lost, but a slow console will
+ * eventually throttle the application as before. With {@link OverflowPolicy#DROP}
+ * (<code>-Dasync_logging=drop</code>), events of level INFO and below are dropped and counted, while WARN and ERROR
+ * still wait for room. The counters are available from {@link #getStats()}, and are included in the metrics of
+ * {@link MatsJbangJettyServer#addMatsMetrics()}.
+ */
+public class MatsJbangAsyncConsoleAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+    /**
+     * Default capacity of the queue between the logging threads and the writer thread.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * Max number of events written in one batch.
+     */
+    private static final int MAX_BATCH_SIZE = 512;
+
+    private static volatile MatsJbangAsyncConsoleAppender __installed;
+
+    /**
+     * What to do with an event when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for room - never loses events.
+         */
+        BLOCK,
+
+        /**
+         * Drop events of level INFO and below, wait for room for WARN and ERROR.
+         */
+        DROP
+    }
+
+    private final Encoder<ILoggingEvent> _encoder;
+    private final OverflowPolicy _overflowPolicy;
+    private final int _capacity;
+    private final BlockingQueue<ILoggingEvent> _queue;
+    private final PrintStream _out = System.out;
+
+    private final LongAdder _appended = new LongAdder();
+    private final LongAdder _dropped = new LongAdder();
+    private final LongAdder _blocked = new LongAdder();
+    private final LongAdder _written = new LongAdder();
+    private final LongAdder _batches = new LongAdder();
+
+    private Thread _writerThread;
+    private volatile boolean _runWriter;
+
+    /**
+     * Creates the appender - which as any Logback appender must get its context set, and be started. When installed by
+     * {@link MatsJbangKit#configureLogbackToConsole(Level)}, the queue capacity is {@link #DEFAULT_CAPACITY}, and the
+     * overflow policy is {@link OverflowPolicy#BLOCK}, or {@link OverflowPolicy#DROP} if started with
+     * '<code>-Dasync_logging=drop</code>'.
+     *
+     * @param encoder
+     *         the encoder formatting the events, which must be started.
+     * @param overflowPolicy
+     *         what to do with an event when the queue is full.
+     * @param capacity
+     *         the max number of events queued for the writer thread, e.g. {@link #DEFAULT_CAPACITY}.
+     */
+    public MatsJbangAsyncConsoleAppender(Encoder<ILoggingEvent> encoder, OverflowPolicy overflowPolicy,
+            int capacity) {
+        _encoder = encoder;
+        _overflowPolicy = overflowPolicy;
+        _capacity = capacity;
+        _queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return the started instance installed by {@link MatsJbangKit#configureLogbackToConsole(Level)}, or
+     *         <code>null</code> if asynchronous logging is not in use.
+     */
+    public static MatsJbangAsyncConsoleAppender getInstalled() {
+        return __installed;
+    }
+
+    @Override
+    public void start() {
+        _runWriter = true;
+        _writerThread = new Thread(this::writerLoop, "MatsJbangAsyncConsoleAppender");
+        _writerThread.setDaemon(true);
+        _writerThread.start();
+        super.start();
+        __installed = this;
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        super.stop();
+        // Let the writer thread drain what is left, then exit.
+        _runWriter = false;
+        _writerThread.interrupt();
+        try {
+            _writerThread.join(5_000);
+        }
+        catch (InterruptedException e) {
+            /* ignore, we're going down */
+        }
+        if (__installed == this) {
+            __installed = null;
+        }
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        // Freeze the event's thread name, formatted message and MDC, since it is handled on another thread.
+        event.prepareForDeferredProcessing();
+        _appended.increment();
+        // ?: Fast path: Was there room?
+        if (_queue.offer(event)) {
+            // -> Yes, so done.
+            return;
+        }
+        // E-> Queue is full.
+        // ?: Are we allowed to drop this event?
+        if ((_overflowPolicy == OverflowPolicy.DROP) && !event.getLevel().isGreaterOrEqual(Level.WARN)) {
+            // -> Yes, so drop it.
+            _dropped.increment();
+            return;
+        }
+        // E-> Wait for room.
+        _blocked.increment();
+        try {
+            _queue.put(event);
+        }
+        catch (InterruptedException e) {
+            // Don't lose the interrupt, but we lose the event.
+            _dropped.increment();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writerLoop() {
+        List<ILoggingEvent> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+        while (_runWriter || !_queue.isEmpty()) {
+            try {
+                ILoggingEvent first = _queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            }
+            catch (InterruptedException e) {
+                // Probably stop(): Loop around to check whether to exit, draining what is left.
+                continue;
+            }
+            _queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            try {
+                for (ILoggingEvent event : batch) {
+                    buffer.write(_encoder.encode(event));
+                }
+                // One write and flush for the whole batch.
+                buffer.writeTo(_out);
+                _out.flush();
+                _written.add(batch.size());
+                _batches.increment();
+            }
+            catch (IOException | RuntimeException e) {
+                addError("Could not write batch of [" + batch.size() + "] log events.", e);
+            }
+            finally {
+                batch.clear();
+                buffer.reset();
+            }
+        }
+    }
+
+    /**
+     * @return a snapshot of the counters.
+     */
+    public AsyncLoggingStats getStats() {
+        return new AsyncLoggingStats(_overflowPolicy, _capacity, _queue.size(), _appended.sum(), _dropped.sum(),
+                _blocked.sum(), _written.sum(), _batches.sum());
+    }
+
+    /**
+     * Snapshot of the counters of the {@link MatsJbangAsyncConsoleAppender}.
+     *
+     * @param overflowPolicy
+     *         the {@link OverflowPolicy} in use.
+     * @param capacity
+     *         the capacity of the queue.
+     * @param queued
+     *         number of events currently waiting in the queue.
+     * @param appended
+     *         total number of events logged.
+     * @param dropped
+     *         total number of events dropped due to full queue.
+     * @param blocked
+     *         total number of times a logging thread had to wait for room in the queue.
+     * @param written
+     *         total number of events written to console.
+     * @param batches
+     *         total number of batches written, i.e. console writes.
+     */
+    public record AsyncLoggingStats(OverflowPolicy overflowPolicy, int capacity, int queued, long appended,
+            long dropped, long blocked, long written, long batches) {
+    }
+}
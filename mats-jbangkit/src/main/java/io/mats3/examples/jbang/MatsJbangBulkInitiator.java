@@ -0,0 +1,555 @@
+package io.mats3.examples.jbang;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.mats3.MatsFactory;
+import io.mats3.MatsInitiator;
+import io.mats3.MatsInitiator.MatsInitiate;
+
+/**
+ * Streams records from an {@link Iterator} - or from the lines of a memory-mapped NDJSON or CSV file using
+ * {@link #fromFile(MatsFactory, Path)} - into Mats3 initiations, for bulk ingestion of e.g. millions of records in
+ * nightly jobs. Compared to doing all sends inside a single <code>initiator.initiate(..)</code> lambda, which holds
+ * all messages in one huge transaction, this commits a transaction every {@link #messagesPerTransaction(int) N
+ * messages} or {@link #maxMillisPerTransaction(long) T milliseconds}, whichever comes first, using multiple
+ * {@link #threads(int) initiator threads} in parallel.
+ * <p>
+ * A single reader thread pulls the records from the source and puts them on a bounded queue which the initiator
+ * threads take from - so memory is bounded by the queue size, regardless of the input size. (The memory-mapped file is
+ * mapped in windows, and is backed by the OS page cache, not the heap.) Progress and throughput are logged at
+ * {@link #progressInterval(Duration) intervals}. If a transaction fails, the run stops, and the {@link BulkResult}
+ * tells how many records were committed - note that the records of the failed transaction are not sent. If the source
+ * is {@link AutoCloseable}, as the file source is, it is closed when the run exits, also if it failed.
+ *
+ * @param <T>
+ *         the type of the records.
+ */
+public class MatsJbangBulkInitiator<T> {
+    private static final Logger log = LoggerFactory.getLogger(MatsJbangBulkInitiator.class);
+
+    private static final Object END_OF_RECORDS = new Object();
+
+    private final MatsFactory _matsFactory;
+    private final Iterator<T> _source;
+
+    private int _messagesPerTransaction = 500;
+    private long _maxMillisPerTransaction = 1000;
+    private int _threads = 4;
+    private Duration _progressInterval = Duration.ofSeconds(5);
+
+    private MatsJbangBulkInitiator(MatsFactory matsFactory, Iterator<T> source) {
+        _matsFactory = matsFactory;
+        _source = source;
+    }
+
+    /**
+     * Creates a bulk initiator taking the records from the supplied {@link Iterator}, which is only accessed from a
+     * single thread.
+     *
+     * @param matsFactory
+     *         the {@link MatsFactory} to initiate on.
+     * @param source
+     *         the records.
+     * @param <T>
+     *         the type of the records.
+     * @return the bulk initiator, for further configuration.
+     */
+    public static <T> MatsJbangBulkInitiator<T> create(MatsFactory matsFactory, Iterator<T> source) {
+        return new MatsJbangBulkInitiator<>(matsFactory, source);
+    }
+
+    /**
+     * Creates a bulk initiator taking the records from the lines of the supplied UTF-8 file, which is memory-mapped in
+     * windows: Each non-empty line is a record, e.g. a JSON object for NDJSON, or a row for CSV (use
+     * {@link #splitCsvLine(String)}, and remember that the header line is also a record).
+     *
+     * @param matsFactory
+     *         the {@link MatsFactory} to initiate on.
+     * @param file
+     *         the file to read the lines from.
+     * @return the bulk initiator, for further configuration.
+     */
+    public static MatsJbangBulkInitiator<String> fromFile(MatsFactory matsFactory, Path file) {
+        return new MatsJbangBulkInitiator<>(matsFactory, new MappedLineIterator(file));
+    }
+
+    /**
+     * Commit after this many messages, default 500.
+     */
+    public MatsJbangBulkInitiator<T> messagesPerTransaction(int messagesPerTransaction) {
+        if (messagesPerTransaction < 1) {
+            throw new IllegalArgumentException("messagesPerTransaction must be >= 1, was [" + messagesPerTransaction
+                    + "].");
+        }
+        _messagesPerTransaction = messagesPerTransaction;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * Commit after this many milliseconds since the first message of the transaction, even if fewer messages than
+     * {@link #messagesPerTransaction(int)} - so that a slow source doesn't hold messages back, default 1000 ms.
+     */
+    public MatsJbangBulkInitiator<T> maxMillisPerTransaction(long maxMillisPerTransaction) {
+        if (maxMillisPerTransaction < 1) {
+            throw new IllegalArgumentException("maxMillisPerTransaction must be >= 1, was [" + maxMillisPerTransaction
+                    + "].");
+        }
+        _maxMillisPerTransaction = maxMillisPerTransaction;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * Number of initiator threads, each running its own transactions, default 4.
+     */
+    public MatsJbangBulkInitiator<T> threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1, was [" + threads + "].");
+        }
+        _threads = threads;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * How often to log progress, default 5 seconds.
+     */
+    public MatsJbangBulkInitiator<T> progressInterval(Duration progressInterval) {
+        if (progressInterval.isNegative() || progressInterval.isZero()) {
+            throw new IllegalArgumentException("progressInterval must be positive, was [" + progressInterval + "].");
+        }
+        _progressInterval = progressInterval;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * Initiates one or more messages for a record, within the transaction of the initiator thread.
+     */
+    @FunctionalInterface
+    public interface RecordInitiator<T> {
+        void initiate(MatsInitiate init, T record);
+    }
+
+    /**
+     * Runs the ingestion, blocking until all records are initiated, or a transaction failed. The source is closed
+     * when done, if it is {@link AutoCloseable}.
+     *
+     * @param recordInitiator
+     *         invoked for each record, within the transaction, to initiate the message(s) for it - e.g.
+     *         <code>(init, record) -> init.traceId(..).from(..).to(..).send(dto)</code>.
+     * @return the {@link BulkResult}.
+     */
+    public BulkResult run(RecordInitiator<T> recordInitiator) {
+        try {
+            return runInternal(recordInitiator);
+        }
+        finally {
+            // ?: Is the source closeable, e.g. the memory-mapped file?
+            if (_source instanceof AutoCloseable closeable) {
+                // -> Yes, so close it - it is only closed by itself when fully read, not if the run failed.
+                try {
+                    closeable.close();
+                }
+                catch (Exception e) {
+                    log.warn("Failed closing the source [" + _source + "] - ignoring.", e);
+                }
+            }
+        }
+    }
+
+    private BulkResult runInternal(RecordInitiator<T> recordInitiator) {
+        MatsInitiator initiator = _matsFactory.getOrCreateInitiator("MatsJbangBulkInitiator");
+        // Bounded: Enough for each thread to fill two transactions.
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(Math.max(1000, _threads * _messagesPerTransaction
+                * 2));
+        AtomicLong read = new AtomicLong();
+        AtomicLong committed = new AtomicLong();
+        AtomicLong transactions = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        log.info("Starting bulk initiation: [" + _threads + "] threads, commit every [" + _messagesPerTransaction
+                + "] messages or [" + _maxMillisPerTransaction + " ms].");
+        long nanosAtStart = System.nanoTime();
+
+        // :: Reader: Source -> bounded queue, then an end marker per initiator thread.
+        Thread reader = new Thread(() -> {
+            try {
+                while ((failure.get() == null) && _source.hasNext()) {
+                    queue.put(_source.next());
+                    read.incrementAndGet();
+                }
+            }
+            catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+            }
+            catch (Throwable t) {
+                failure.compareAndSet(null, t);
+                log.error("Failed reading records from source.", t);
+            }
+            finally {
+                // ?: Did the run fail?
+                if (failure.get() != null) {
+                    // -> Yes, so the initiator threads are exiting, and the queue might be full: Make room.
+                    queue.clear();
+                }
+                for (int i = 0; i < _threads; i++) {
+                    putUninterruptibly(queue, END_OF_RECORDS);
+                }
+            }
+        }, "MatsJbangBulkInitiator-reader");
+        reader.start();
+
+        // :: Initiator threads: Take chunks from the queue, each chunk in a transaction.
+        List<Thread> initiatorThreads = new ArrayList<>();
+        for (int i = 0; i < _threads; i++) {
+            Thread thread = new Thread(() -> {
+                boolean[] endOfRecords = new boolean[1];
+                while (!endOfRecords[0] && (failure.get() == null)) {
+                    int[] messagesInTransaction = new int[1];
+                    try {
+                        initiator.initiateUnchecked(init -> initiateChunk(init, queue, recordInitiator,
+                                endOfRecords, messagesInTransaction));
+                        committed.addAndGet(messagesInTransaction[0]);
+                        if (messagesInTransaction[0] > 0) {
+                            transactions.incrementAndGet();
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                        log.error("Transaction with [" + messagesInTransaction[0] + "] records failed, stopping"
+                                + " bulk initiation.", e);
+                    }
+                }
+            }, "MatsJbangBulkInitiator-" + i);
+            thread.start();
+            initiatorThreads.add(thread);
+        }
+
+        // :: Progress reporting, on this thread, until all initiator threads are done.
+        long nanosAtLastReport = nanosAtStart;
+        long committedAtLastReport = 0;
+        for (Thread thread : initiatorThreads) {
+            while (thread.isAlive()) {
+                joinUninterruptibly(thread, 100);
+                long now = System.nanoTime();
+                if ((now - nanosAtLastReport) >= _progressInterval.toNanos()) {
+                    long committedNow = committed.get();
+                    log.info("Bulk initiation progress: read [" + read.get() + "], committed [" + committedNow
+                            + "] in [" + transactions.get() + "] transactions, queued [" + queue.size() + "] - ["
+                            + Math.round((committedNow - committedAtLastReport) / ((now - nanosAtLastReport) / 1e9))
+                            + " msgs/s] now, [" + Math.round(committedNow / ((now - nanosAtStart) / 1e9))
+                            + " msgs/s] average.");
+                    nanosAtLastReport = now;
+                    committedAtLastReport = committedNow;
+                }
+            }
+        }
+        // If we failed, the reader might be blocked on a full queue: Interrupt it, and wait for it.
+        reader.interrupt();
+        joinUninterruptibly(reader, 0);
+
+        BulkResult result = new BulkResult(read.get(), committed.get(), transactions.get(),
+                (System.nanoTime() - nanosAtStart) / 1e9, failure.get());
+        log.info("Bulk initiation finished: " + result.toText());
+        return result;
+    }
+
+    private void initiateChunk(MatsInitiate init, BlockingQueue<Object> queue, RecordInitiator<T> recordInitiator,
+            boolean[] endOfRecords, int[] count) {
+        long nanosDeadline = 0;
+        while (count[0] < _messagesPerTransaction) {
+            Object item;
+            try {
+                // ?: First message of the transaction?
+                if (count[0] == 0) {
+                    // -> Yes, so wait for it, and then start the transaction clock.
+                    item = queue.take();
+                    nanosDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_maxMillisPerTransaction);
+                }
+                else {
+                    // -> No, so wait at most until the transaction should be committed.
+                    item = queue.poll(nanosDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (item == null) {
+                        // Timed out: Commit what we have.
+                        break;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while taking records from queue.", e);
+            }
+            if (item == END_OF_RECORDS) {
+                endOfRecords[0] = true;
+                break;
+            }
+            @SuppressWarnings("unchecked")
+            T record = (T) item;
+            recordInitiator.initiate(init, record);
+            count[0]++;
+        }
+    }
+
+    /**
+     * The result of a bulk initiation.
+     *
+     * @param read
+     *         number of records read from the source.
+     * @param committed
+     *         number of records whose messages were committed.
+     * @param transactions
+     *         number of committed transactions.
+     * @param seconds
+     *         the duration of the run.
+     * @param failure
+     *         <code>null</code> if all went well, otherwise what stopped the run.
+     */
+    public record BulkResult(long read, long committed, long transactions, double seconds, Throwable failure) {
+        /**
+         * @return the number of committed records per second.
+         */
+        public double throughput() {
+            return seconds == 0 ? 0 : committed / seconds;
+        }
+
+        /**
+         * @return a single-line text representation of the result.
+         */
+        public String toText() {
+            return "read [" + read + "], committed [" + committed + "] in [" + transactions + "] transactions, in ["
+                    + seconds + " s] => [" + Math.round(throughput()) + " msgs/s]"
+                    + (failure != null ? " - FAILED: " + failure : "");
+        }
+    }
+
+    /**
+     * Splits a CSV line into fields, handling double-quoted fields with embedded commas and doubled quotes. Does not
+     * handle line breaks inside quoted fields, since the file is read line by line.
+     *
+     * @param line
+     *         the CSV line.
+     * @return the fields.
+     */
+    public static String[] splitCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean inQuotes = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (inQuotes) {
+                if (c == '"') {
+                    // ?: Doubled quote, i.e. escaped quote?
+                    if ((i + 1 < line.length()) && (line.charAt(i + 1) == '"')) {
+                        // -> Yes, so add a single quote.
+                        field.append('"');
+                        i++;
+                    }
+                    else {
+                        inQuotes = false;
+                    }
+                }
+                else {
+                    field.append(c);
+                }
+            }
+            else if (c == '"') {
+                inQuotes = true;
+            }
+            else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    private static void putUninterruptibly(BlockingQueue<Object> queue, Object item) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread, long millis) {
+        try {
+            thread.join(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for bulk initiation.", e);
+        }
+    }
+
+    /**
+     * Iterates over the non-empty lines of a UTF-8 file, memory-mapping it in windows so that files larger than 2 GB
+     * work, and so that only the current window is mapped. Closes the file when all is read, or when closed.
+     */
+    static class MappedLineIterator implements Iterator<String>, AutoCloseable {
+        static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+        private final FileChannel _channel;
+        private final long _fileSize;
+        private final int _windowSize;
+
+        private MappedByteBuffer _window;
+        private long _windowStart;
+        private long _position;
+        private String _next;
+
+        MappedLineIterator(Path file) {
+            this(file, DEFAULT_WINDOW_SIZE);
+        }
+
+        /**
+         * @param windowSize
+         *         the size of the mapped windows - a line, including its newline, must fit in a window.
+         */
+        MappedLineIterator(Path file, int windowSize) {
+            if (windowSize < 2) {
+                throw new IllegalArgumentException("windowSize must be >= 2, was [" + windowSize + "].");
+            }
+            _windowSize = windowSize;
+            try {
+                _channel = FileChannel.open(file, StandardOpenOption.READ);
+                _fileSize = _channel.size();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Could not open file [" + file + "].", e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (_next == null) {
+                _next = readNextNonEmptyLine();
+            }
+            return _next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String line = _next;
+            _next = null;
+            return line;
+        }
+
+        private String readNextNonEmptyLine() {
+            while (_position < _fileSize) {
+                String line = readLine();
+                if (!line.isEmpty()) {
+                    return line;
+                }
+            }
+            close();
+            return null;
+        }
+
+        private String readLine() {
+            // ?: Is the line start outside the current window, or too close to its end?
+            if ((_window == null) || ((_position - _windowStart) >= _window.limit())) {
+                // -> Yes, so map a new window from the line start.
+                mapWindowAt(_position);
+            }
+            int startInWindow = (int) (_position - _windowStart);
+            int endInWindow = indexOfNewline(startInWindow);
+            // ?: Did we find the end of the line within the window?
+            if (endInWindow < 0) {
+                // -> No. ?: Is the window already at the end of the file?
+                if ((_windowStart + _window.limit()) < _fileSize) {
+                    // -> No, so map a new window starting at the line, and search again.
+                    mapWindowAt(_position);
+                    startInWindow = 0;
+                    endInWindow = indexOfNewline(0);
+                    if ((endInWindow < 0) && ((_windowStart + _window.limit()) < _fileSize)) {
+                        throw new IllegalStateException("Line at position [" + _position + "] is longer than the"
+                                + " window size [" + _windowSize + "].");
+                    }
+                }
+                // Last line without trailing newline.
+                if (endInWindow < 0) {
+                    endInWindow = _window.limit();
+                }
+            }
+            int length = endInWindow - startInWindow;
+            _position += length + 1; // +1 for the newline
+            // Drop '\r' of '\r\n' line endings.
+            if ((length > 0) && (_window.get(startInWindow + length - 1) == '\r')) {
+                length--;
+            }
+            byte[] bytes = new byte[length];
+            _window.get(startInWindow, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private int indexOfNewline(int fromInWindow) {
+            for (int i = fromInWindow; i < _window.limit(); i++) {
+                if (_window.get(i) == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void mapWindowAt(long position) {
+            try {
+                _windowStart = position;
+                _window = _channel.map(MapMode.READ_ONLY, position, Math.min(_windowSize, _fileSize - position));
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Could not map file at position [" + position + "].", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            // Drop the mapping and any read-ahead line, so that the iterator is done.
+            _window = null;
+            _next = null;
+            _position = _fileSize;
+            try {
+                _channel.close();
+            }
+            catch (IOException e) {
+                /* ignore, we're done with it */
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package io.mats3.examples.jbang;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.mats3.MatsFactory;
+import io.mats3.test.MatsTestHelp;
+import io.mats3.util.MatsFuturizer;
+import io.mats3.util.MatsFuturizer.Reply;
+
+/**
+ * Training run for the dynamic AppCDS (Class Data Sharing) archive created by the Gradle task
+ * <code>'./gradlew :jbang:matsCdsArchive'</code>: Run with <code>-XX:ArchiveClassesAtExit=...</code>, it exercises the
+ * typical code paths of a mats-jbangkit service - Jetty with the Servlets of the kit, in-JVM ActiveMQ broker and
+ * client, MatsFactory with Endpoint, MatsFuturizer, JSON serialization with Jackson, Logback, and a small Spring
+ * context - and then exits, so that the JVM dumps all the loaded classes into the archive. Services started with
+ * <code>-XX:SharedArchiveFile=...</code> then map these classes directly, instead of loading, parsing and verifying
+ * them from the jars, which lowers both startup time and memory, the latter since the archive is shared between the
+ * JVMs. The time-to-listening, the RSS, and whether an archive is in use, is logged by {@link MatsJbangJettyServer}
+ * at startup - so that you can compare with and without.
+ * <p>
+ * The archive is only used by a JVM whose classpath starts with the same entries as when the archive was created,
+ * which is why <code>'./gradlew :jbang:runExample -PmainClass=... -Pcds'</code> runs the examples with the classpath of
+ * the Gradle build. It does not apply to examples launched by JBang, which builds its own classpath.
+ * <p>
+ * Optional argument: The HTTP port of the training Jetty server, default 8990 (or higher, if taken) - set by
+ * <code>-PcdsTrainingPort=&lt;port&gt;</code> on the Gradle task.
+ */
+public class MatsJbangCdsTraining {
+    private static final Logger log = LoggerFactory.getLogger(MatsJbangCdsTraining.class);
+
+    private static final String ENDPOINT_ID = "MatsJbangCdsTraining.endpoint";
+
+    private static final int DEFAULT_PORT = 8990;
+
+    public static void main(String... args) throws Exception {
+        long nanosAtStart = System.nanoTime();
+        int desiredPort = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        // :: Spring, since some of the examples use it.
+        try (AnnotationConfigApplicationContext spring = new AnnotationConfigApplicationContext(
+                TrainingSpringConfiguration.class)) {
+            spring.getBean(String.class);
+        }
+
+        // :: Jetty, MatsFactory towards in-JVM broker, MatsFuturizer, and the kit's Servlets
+        MatsJbangJettyServer server = MatsJbangJettyServer.create(desiredPort, MatsJbangCdsTraining.class)
+                .useInJvmBroker()
+                .addMatsFactory()
+                .addMatsFuturizer()
+                .setupUsingMatsFactory(MatsJbangCdsTraining::setupEndpoint)
+                .addMatsLocalInspect()
+                .addMatsMetrics()
+                .setRootHtlm("<html><body><h1>CDS training</h1></body></html>");
+        server.start();
+
+        // :: Futurizations
+        var matsFuturizer = (MatsFuturizer) server.getWebAppContext().getServletContext()
+                .getAttribute(MatsFuturizer.class.getName());
+        List<CompletableFuture<Reply<TrainingReply>>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(matsFuturizer.futurizeNonessential(MatsTestHelp.traceId(), "MatsJbangCdsTraining.main",
+                    ENDPOINT_ID, TrainingReply.class, new TrainingRequest(i, "training")));
+        }
+        for (CompletableFuture<Reply<TrainingReply>> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+
+        // :: HTTP requests towards the Servlets, so that the request handling paths are loaded too.
+        int port = (Integer) server.getWebAppContext().getServletContext()
+                .getAttribute(MatsJbangJettyServer.CONTEXT_ATTRIBUTE_PORTNUMBER);
+        for (String path : new String[] { "", "localinspect", "metrics" }) {
+            httpGet("http://localhost:" + port + "/" + path);
+        }
+
+        log.info("CDS training done in [" + (System.nanoTime() - nanosAtStart) / 1_000_000 + " ms] - exiting, which"
+                + " dumps the archive if started with '-XX:ArchiveClassesAtExit'.");
+        server.getJettyServer().stop();
+        // Exit explicitly, so that no lingering non-daemon thread can keep the JVM - and thus the dump - waiting.
+        System.exit(0);
+    }
+
+    private static void setupEndpoint(MatsFactory matsFactory) {
+        matsFactory.single(ENDPOINT_ID, TrainingReply.class, TrainingRequest.class,
+                (ctx, msg) -> new TrainingReply(msg.string() + ":" + msg.number()));
+    }
+
+    private static void httpGet(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            in.readAllBytes();
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    record TrainingRequest(int number, String string) {
+    }
+
+    record TrainingReply(String result) {
+    }
+
+    @Configuration
+    static class TrainingSpringConfiguration {
+        @Bean
+        String trainingBean() {
+            return "training";
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package io.mats3.examples.jbang;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.mats3.MatsEndpoint;
+import io.mats3.MatsFactory;
+import io.mats3.MatsStage;
+import io.mats3.matsbrokermonitor.api.MatsBrokerDestination;
+import io.mats3.matsbrokermonitor.api.MatsBrokerDestination.DestinationType;
+import io.mats3.matsbrokermonitor.api.MatsBrokerMonitor;
+
+/**
+ * Adjusts the concurrency of the local Mats3 Stages based on the queue depth and head-message age of their queues on
+ * the broker, as broadcast by {@link #installBroadcaster(MatsBrokerMonitor, MatsFactory)} - which 'ActiveMqRun' does.
+ * Thus, if a backlog builds up on e.g. 'ServiceB.endpointB', the concurrency of that stage is raised until the backlog
+ * drains, and then lowered again.
+ * <p>
+ * The broadcasts only carry the queues that changed, which are merged into the last known stats of all queues. The
+ * rules, evaluated per stage against these on each broadcast:
+ * <ul>
+ * <li>Scale up (double, bounded by max) if queue depth is above {@link #scaleUpDepth(int)} per current stage thread, or
+ * the head message is older than {@link #scaleUpHeadAgeMillis(long)}.</li>
+ * <li>Scale down (halve, bounded by min) if the queue has been below {@link #scaleDownDepth(int)} for
+ * {@link #scaleDownAfterUpdates(int)} consecutive updates carrying the queue.</li>
+ * <li>After any change, the stage is left alone for {@link #cooldownMillis(long)}.</li>
+ * </ul>
+ * A Mats3 stage creates its consumer threads when it starts, so setting the concurrency on a running stage does not
+ * change the number of threads. Thus, a change is applied by stopping the stage (letting the in-flight messages
+ * finish, up to {@link #restartGracefulMillis(int)}), setting the new concurrency, and starting it again - the
+ * messages on the queue just wait on the broker meanwhile.
+ * The consecutive-updates requirement and the cooldown provide the hysteresis, so that the concurrency does not flap.
+ * Only the broadcasts which carry a stage's queue count towards scaling it down: Since an empty queue whose depth
+ * didn't change is left out of the changes-only broadcasts, an emptied queue is typically carried by the broadcast
+ * where it became empty, and then by the full broadcast each minute. Thus, scaling down takes about
+ * {@link #scaleDownAfterUpdates(int)} minus one minutes of quiet. This is also the case if the broker stats are
+ * driven by the {@link MatsJbangAdaptiveBrokerPoller}, whose updates, even when forced, only carry what changed - and
+ * when idle, it backs off, so that the full broadcast comes with the first update after the minute has passed.
+ * Each decision is logged, and the last decisions are available from {@link #getDecisions()}. Note that each service
+ * instance consuming from the same queue runs its own autoscaler, and they will all react to the same backlog.
+ * {@link #close()} unsubscribes from the broker stats, leaving the stages at their current concurrency.
+ */
+public class MatsJbangConcurrencyAutoscaler implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(MatsJbangConcurrencyAutoscaler.class);
+
+    /**
+     * The Mats3 topic on which the broker queue stats are broadcast.
+     */
+    public static final String BROKER_STATS_TOPIC = "MatsJbangKit.brokerQueueStats";
+
+    private static final String MATS_DESTINATION_PREFIX = "mats.";
+
+    private static final int MAX_DECISIONS_KEPT = 100;
+
+    /**
+     * How often the broadcaster sends the full set of queue stats, in between only sending the changes.
+     */
+    private static final long FULL_BROADCAST_INTERVAL_MILLIS = 60_000;
+
+    private final MatsFactory _matsFactory;
+
+    private int _minConcurrency = 1;
+    private int _maxConcurrency = 32;
+    private int _scaleUpDepth = 20;
+    private long _scaleUpHeadAgeMillis = 2_000;
+    private int _scaleDownDepth = 1;
+    private int _scaleDownAfterUpdates = 3;
+    private long _cooldownMillis = 30_000;
+    private int _restartGracefulMillis = 5_000;
+
+    private volatile MatsEndpoint<?, ?> _subscription;
+    private volatile boolean _closed;
+
+    private final Map<String, StageState> _stageStates = new ConcurrentHashMap<>();
+    // The merged broadcasts: Only accessed by the subscription terminator, which is single threaded.
+    private final Map<String, QueueStats> _queueStats = new HashMap<>();
+    private final Deque<ScalingDecision> _decisions = new ArrayDeque<>();
+
+    private MatsJbangConcurrencyAutoscaler(MatsFactory matsFactory) {
+        _matsFactory = matsFactory;
+    }
+
+    /**
+     * Creates the autoscaler for the local stages of the supplied {@link MatsFactory} - you must invoke
+     * {@link #start()} to make it subscribe to the broker stats.
+     *
+     * @param matsFactory
+     *         the {@link MatsFactory} whose stages should be scaled, and which is used to subscribe to the stats.
+     * @return the autoscaler, for further configuration.
+     */
+    public static MatsJbangConcurrencyAutoscaler create(MatsFactory matsFactory) {
+        return new MatsJbangConcurrencyAutoscaler(matsFactory);
+    }
+
+    /**
+     * Sets the bounds for the concurrency of each stage, default 1 and 32.
+     */
+    public MatsJbangConcurrencyAutoscaler bounds(int minConcurrency, int maxConcurrency) {
+        if ((minConcurrency < 1) || (maxConcurrency < minConcurrency)) {
+            throw new IllegalArgumentException("Need 1 <= min <= max, got min [" + minConcurrency + "], max ["
+                    + maxConcurrency + "].");
+        }
+        _minConcurrency = minConcurrency;
+        _maxConcurrency = maxConcurrency;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * Scale up if the queue depth is above this number times the current concurrency, default 20.
+     */
+    public MatsJbangConcurrencyAutoscaler scaleUpDepth(int messagesPerThread) {
+        _scaleUpDepth = messagesPerThread;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * Scale up if the head message of the queue is older than this, default 2000 ms.
+     */
+    public MatsJbangConcurrencyAutoscaler scaleUpHeadAgeMillis(long headAgeMillis) {
+        _scaleUpHeadAgeMillis = headAgeMillis;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * The queue depth must be below this to count towards scaling down, default 1 (i.e. empty queue).
+     */
+    public MatsJbangConcurrencyAutoscaler scaleDownDepth(int depth) {
+        _scaleDownDepth = depth;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * The number of consecutive broker updates carrying the queue, with queue depth below {@link #scaleDownDepth(int)},
+     * before scaling down, default 3. Note that an idle queue is only carried by the full broadcast each minute.
+     */
+    public MatsJbangConcurrencyAutoscaler scaleDownAfterUpdates(int updates) {
+        _scaleDownAfterUpdates = updates;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * The time a stage is left alone after a change, default 30 000 ms.
+     */
+    public MatsJbangConcurrencyAutoscaler cooldownMillis(long cooldownMillis) {
+        _cooldownMillis = cooldownMillis;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * How long to wait for a stage's in-flight messages when restarting it with the new concurrency, default 5 000 ms.
+     */
+    public MatsJbangConcurrencyAutoscaler restartGracefulMillis(int gracefulMillis) {
+        if (gracefulMillis < 0) {
+            throw new IllegalArgumentException("gracefulMillis must be >= 0, was [" + gracefulMillis + "].");
+        }
+        _restartGracefulMillis = gracefulMillis;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * Subscribes to the broker queue stats topic.
+     *
+     * @return this, for chaining.
+     */
+    public MatsJbangConcurrencyAutoscaler start() {
+        // Subscription: All nodes get all updates, and each evaluates its own local stages.
+        _subscription = _matsFactory.subscriptionTerminator(BROKER_STATS_TOPIC, void.class, BrokerQueueStats.class,
+                (ctx, state, msg) -> {
+                    // ?: Closed meanwhile?
+                    if (_closed) {
+                        // -> Yes, so don't touch the stages anymore.
+                        return;
+                    }
+                    // ?: Full set, or only the changes?
+                    if (msg.full()) {
+                        // -> Full set, so replace what we have.
+                        _queueStats.clear();
+                    }
+                    _queueStats.putAll(msg.stages());
+                    evaluate(msg.stages().keySet());
+                });
+        log.info("Started concurrency autoscaler for MatsFactory [" + _matsFactory + "], bounds [" + _minConcurrency
+                + ", " + _maxConcurrency + "].");
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * Unsubscribes from the broker queue stats, so that no further scaling is done. The stages keep their current
+     * concurrency.
+     */
+    @Override
+    public void close() {
+        _closed = true;
+        MatsEndpoint<?, ?> subscription = _subscription;
+        if (subscription != null) {
+            subscription.remove(_restartGracefulMillis);
+            _subscription = null;
+        }
+        log.info("Closed concurrency autoscaler for MatsFactory [" + _matsFactory + "].");
+    }
+
+    /**
+     * @return the last scaling decisions, newest first.
+     */
+    public List<ScalingDecision> getDecisions() {
+        synchronized (_decisions) {
+            return new ArrayList<>(_decisions);
+        }
+    }
+
+    /**
+     * A scaling decision, as logged and kept by the autoscaler.
+     */
+    public record ScalingDecision(Instant timestamp, String stageId, int fromConcurrency, int toConcurrency,
+            long queueDepth, long headMessageAgeMillis, String reason) {
+        @Override
+        public String toString() {
+            return timestamp + " " + stageId + ": " + fromConcurrency + " -> " + toConcurrency + " (depth: "
+                    + queueDepth + ", head age: " + headMessageAgeMillis + " ms) - " + reason;
+        }
+    }
+
+    /**
+     * The broadcast message: Queue stats per Mats3 stageId - either the full set, or only the queues which changed
+     * since the previous broadcast, or which hold messages (since then the head message age changes).
+     */
+    public record BrokerQueueStats(long timestamp, boolean full, Map<String, QueueStats> stages) {
+    }
+
+    /**
+     * Stats for a single queue.
+     */
+    public record QueueStats(long queueDepth, long headMessageAgeMillis) {
+    }
+
+    /**
+     * Installs a listener on the {@link MatsBrokerMonitor} which broadcasts the queue depth and head message age of
+     * each Mats3 stage queue (not DLQs) on the topic {@link #BROKER_STATS_TOPIC}, using the supplied MatsFactory. Only
+     * the changes are broadcast, i.e. queues whose depth changed, or which hold messages - and if nothing changed,
+     * nothing is broadcast. Every minute, the full set is broadcast, so that new subscribers get the complete picture.
+     *
+     * @param matsBrokerMonitor
+     *         the {@link MatsBrokerMonitor} providing the broker stats.
+     * @param matsFactory
+     *         the {@link MatsFactory} used for publishing the stats.
+     */
+    public static void installBroadcaster(MatsBrokerMonitor matsBrokerMonitor, MatsFactory matsFactory) {
+        // State of this broadcaster, only accessed by the MatsBrokerMonitor's update thread.
+        Map<String, QueueStats> lastBroadcast = new HashMap<>();
+        long[] lastFullBroadcastMillis = { 0 };
+        matsBrokerMonitor.registerListener(destinationUpdateEvent -> {
+            long now = System.currentTimeMillis();
+            boolean full = (now - lastFullBroadcastMillis[0]) >= FULL_BROADCAST_INTERVAL_MILLIS;
+            Map<String, QueueStats> changes = new TreeMap<>();
+            for (MatsBrokerDestination destination : destinationUpdateEvent.getEventDestinations().values()) {
+                // ?: Is this a Mats3 stage queue (not topic, and not DLQ, which has another prefix)?
+                if ((destination.getDestinationType() != DestinationType.QUEUE)
+                        || !destination.getDestinationName().startsWith(MATS_DESTINATION_PREFIX)) {
+                    // -> No, so skip.
+                    continue;
+                }
+                String stageId = destination.getDestinationName().substring(MATS_DESTINATION_PREFIX.length());
+                QueueStats queueStats = new QueueStats(destination.getNumberOfQueuedMessages(),
+                        destination.getHeadMessageAgeMillis().orElse(0));
+                QueueStats previous = lastBroadcast.put(stageId, queueStats);
+                // ?: Is this a change, or does it hold messages?
+                if ((previous == null) || (previous.queueDepth() != queueStats.queueDepth())
+                        || (queueStats.queueDepth() > 0)) {
+                    // -> Yes, so include it.
+                    changes.put(stageId, queueStats);
+                }
+            }
+            // ?: Nothing to tell?
+            if (!full && changes.isEmpty()) {
+                // -> Nothing changed, so don't bother the subscribers.
+                return;
+            }
+            if (full) {
+                lastFullBroadcastMillis[0] = now;
+            }
+            Map<String, QueueStats> stages = full ? new TreeMap<>(lastBroadcast) : changes;
+            matsFactory.getDefaultInitiator().initiateUnchecked(init -> init
+                    .traceId("BrokerQueueStats:" + now)
+                    .from("MatsJbangConcurrencyAutoscaler.broadcaster")
+                    .to(BROKER_STATS_TOPIC)
+                    .nonPersistent()
+                    .publish(new BrokerQueueStats(now, full, stages)));
+        });
+    }
+
+    // ===== Internals
+
+    private static class StageState {
+        int updatesBelowScaleDown;
+        long lastChangeMillis;
+    }
+
+    private void evaluate(Set<String> stageIdsInUpdate) {
+        long now = System.currentTimeMillis();
+        for (MatsEndpoint<?, ?> endpoint : _matsFactory.getEndpoints()) {
+            // ?: Is this a subscription (topic) endpoint?
+            if (endpoint.getEndpointConfig().isSubscription()) {
+                // -> Yes, so skip - a topic has no queue, and subscriptions must have concurrency 1.
+                continue;
+            }
+            for (MatsStage<?, ?, ?> stage : endpoint.getStages()) {
+                String stageId = stage.getStageConfig().getStageId();
+                QueueStats queueStats = _queueStats.get(stageId);
+                // ?: Did we get stats for this stage's queue?
+                if (queueStats == null) {
+                    // -> No, so nothing to go on (the queue may not have been created on the broker yet).
+                    continue;
+                }
+                evaluateStage(stage, stageId, queueStats, stageIdsInUpdate.contains(stageId), now);
+            }
+        }
+    }
+
+    private void evaluateStage(MatsStage<?, ?, ?> stage, String stageId, QueueStats queueStats, boolean inUpdate,
+            long now) {
+        StageState stageState = _stageStates.computeIfAbsent(stageId, k -> new StageState());
+        int current = stage.getStageConfig().getConcurrency();
+
+        // :: Track how long the queue has been (near) empty, for scaling down.
+        // ?: Did this update carry this stage's queue?
+        if (inUpdate) {
+            // -> Yes, so count it - an update about other queues says nothing new about this one.
+            if (queueStats.queueDepth() < _scaleDownDepth) {
+                stageState.updatesBelowScaleDown++;
+            }
+            else {
+                stageState.updatesBelowScaleDown = 0;
+            }
+        }
+
+        // ?: Are we in the cooldown period after a change?
+        if ((now - stageState.lastChangeMillis) < _cooldownMillis) {
+            // -> Yes, so let the previous change take effect before evaluating anew.
+            return;
+        }
+
+        int target = current;
+        String reason = null;
+        if (queueStats.queueDepth() > ((long) _scaleUpDepth * current)) {
+            target = Math.min(_maxConcurrency, current * 2);
+            reason = "queue depth above " + _scaleUpDepth + " per thread";
+        }
+        else if (queueStats.headMessageAgeMillis() > _scaleUpHeadAgeMillis) {
+            target = Math.min(_maxConcurrency, current * 2);
+            reason = "head message older than " + _scaleUpHeadAgeMillis + " ms";
+        }
+        else if (stageState.updatesBelowScaleDown >= _scaleDownAfterUpdates) {
+            target = Math.max(_minConcurrency, current / 2);
+            reason = "queue depth below " + _scaleDownDepth + " for " + stageState.updatesBelowScaleDown
+                    + " updates";
+        }
+
+        // ?: Any change?
+        if (target == current) {
+            // -> No, either within band, or at bounds.
+            return;
+        }
+        // The stage's consumer threads are created when it starts, so restart it to get the new concurrency.
+        boolean graceful = stage.stop(_restartGracefulMillis);
+        stage.getStageConfig().setConcurrency(target);
+        stage.start();
+        stageState.lastChangeMillis = now;
+        stageState.updatesBelowScaleDown = 0;
+
+        // ?: Did the in-flight messages finish within the graceful period?
+        if (!graceful) {
+            // -> No, so note it - they will be redelivered from the broker.
+            reason += "; stage restart was not graceful within " + _restartGracefulMillis + " ms";
+        }
+        ScalingDecision decision = new ScalingDecision(Instant.ofEpochMilli(now), stageId, current, target,
+                queueStats.queueDepth(), queueStats.headMessageAgeMillis(), reason);
+        log.info("Concurrency autoscaler: " + decision);
+        synchronized (_decisions) {
+            _decisions.addFirst(decision);
+            while (_decisions.size() > MAX_DECISIONS_KEPT) {
+                _decisions.removeLast();
+            }
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package io.mats3.examples.jbang;
+
+import static io.mats3.examples.jbang.MatsJbangMetricsInterceptor.label;
+import static io.mats3.examples.jbang.MatsJbangMetricsInterceptor.sample;
+import static io.mats3.examples.jbang.MatsJbangMetricsInterceptor.type;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import io.mats3.util.MatsFuturizer;
+import io.mats3.util.MatsFuturizer.Reply;
+
+/**
+ * Admission control in front of a {@link MatsFuturizer}: Bounds the number of in-flight futurizations per target
+ * Endpoint, so that an overloaded or dead downstream service cannot make us pile up outstanding promises - each
+ * holding the request, the future and whatever the caller hangs on it - until the futurizer's hard limit (50 000 for
+ * {@link MatsJbangKit#createMatsFuturizer()}) is hit, with ever-increasing latency on the way. Two ways in:
+ * <ul>
+ * <li>{@link #tryFuturizeNonessential(String, String, String, Class, Object) tryFuturize..}: Fail fast - if the
+ * Endpoint is at its limit, the returned future is immediately completed exceptionally with an
+ * {@link AdmissionRejectedException}, so that e.g. a HTTP request can be answered with 503 right away.</li>
+ * <li>{@link #futurizeNonessentialWhenPermitted(String, String, String, Class, Object, long) futurize..WhenPermitted}:
+ * Wait asynchronously for a permit - the futurization is queued (no thread is blocked), and sent when a previous
+ * futurization towards the same Endpoint completes. If no permit is gotten within the max wait, or if the bounded
+ * wait queue is full, the future is completed exceptionally with an {@link AdmissionRejectedException}.</li>
+ * </ul>
+ * The generic {@link #tryAdmit(String, Supplier)} and {@link #admitWhenPermitted(String, long, Supplier)} take any
+ * futurization, e.g. the interactive variants. The counts of admitted and rejected (by reason), the current in-flight
+ * and waiting, and a summary of the wait times, are available from {@link #getStats()} - and are included in the
+ * metrics of {@link MatsJbangJettyServer#addMatsMetrics()} when added with
+ * {@link MatsJbangJettyServer#addMatsFuturizerAdmission(int)}.
+ */
+public class MatsJbangFuturizerAdmission implements AutoCloseable {
+    /**
+     * Default max number of futurizations waiting for a permit, per Endpoint.
+     */
+    public static final int DEFAULT_MAX_WAITING_PER_ENDPOINT = 10_000;
+
+    private final MatsFuturizer _matsFuturizer;
+    private final int _defaultMaxInFlight;
+    private final Map<String, Integer> _maxInFlightOverrides = new ConcurrentHashMap<>();
+    private volatile int _maxWaitingPerEndpoint = DEFAULT_MAX_WAITING_PER_ENDPOINT;
+
+    private final ConcurrentHashMap<String, EndpointAdmission> _endpoints = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor _timeoutScheduler;
+
+    private MatsJbangFuturizerAdmission(MatsFuturizer matsFuturizer, int maxInFlightPerEndpoint) {
+        _matsFuturizer = matsFuturizer;
+        _defaultMaxInFlight = maxInFlightPerEndpoint;
+        _timeoutScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "MatsJbangFuturizerAdmission-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most waits end with a permit, not a timeout - so don't let the cancelled timeouts pile up in the queue.
+        _timeoutScheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Creates the admission layer around the given {@link MatsFuturizer}.
+     *
+     * @param matsFuturizer
+     *         the {@link MatsFuturizer} to futurize with.
+     * @param maxInFlightPerEndpoint
+     *         the max number of in-flight futurizations per target Endpoint, unless overridden by
+     *         {@link #maxInFlight(String, int)}.
+     * @return the created {@link MatsJbangFuturizerAdmission}.
+     */
+    public static MatsJbangFuturizerAdmission create(MatsFuturizer matsFuturizer, int maxInFlightPerEndpoint) {
+        if (maxInFlightPerEndpoint < 1) {
+            throw new IllegalArgumentException("maxInFlightPerEndpoint must be >= 1, was [" + maxInFlightPerEndpoint
+                    + "].");
+        }
+        return new MatsJbangFuturizerAdmission(matsFuturizer, maxInFlightPerEndpoint);
+    }
+
+    /**
+     * Overrides the max number of in-flight futurizations for the specified Endpoint. Must be set before the first
+     * futurization towards the Endpoint.
+     *
+     * @param endpointId
+     *         the target Endpoint.
+     * @param maxInFlight
+     *         the max number of in-flight futurizations towards it.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangFuturizerAdmission maxInFlight(String endpointId, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be >= 1, was [" + maxInFlight + "].");
+        }
+        if (_endpoints.containsKey(endpointId)) {
+            throw new IllegalStateException("Endpoint [" + endpointId + "] has already been futurized towards,"
+                    + " so its limit cannot be changed.");
+        }
+        _maxInFlightOverrides.put(endpointId, maxInFlight);
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * @param maxWaitingPerEndpoint
+     *         the max number of futurizations waiting for a permit, per Endpoint - default
+     *         {@link #DEFAULT_MAX_WAITING_PER_ENDPOINT}. When full, further waiting futurizations are rejected.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangFuturizerAdmission maxWaitingPerEndpoint(int maxWaitingPerEndpoint) {
+        if (maxWaitingPerEndpoint < 0) {
+            throw new IllegalArgumentException("maxWaitingPerEndpoint must be >= 0, was [" + maxWaitingPerEndpoint
+                    + "].");
+        }
+        _maxWaitingPerEndpoint = maxWaitingPerEndpoint;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * @return the {@link MatsFuturizer} this admission layer is in front of.
+     */
+    public MatsFuturizer getMatsFuturizer() {
+        return _matsFuturizer;
+    }
+
+    // ===== Nonessential convenience variants
+
+    /**
+     * Fail-fast variant of {@link MatsFuturizer#futurizeNonessential(String, String, String, Class, Object)}: If the
+     * target Endpoint is at its limit of in-flight futurizations, the returned future is already completed
+     * exceptionally with an {@link AdmissionRejectedException}, and no message is sent.
+     */
+    public <T> CompletableFuture<Reply<T>> tryFuturizeNonessential(String traceId, String from, String to,
+            Class<T> replyClass, Object request) {
+        return tryAdmit(to, () -> _matsFuturizer.futurizeNonessential(traceId, from, to, replyClass, request));
+    }
+
+    /**
+     * Waiting variant of {@link MatsFuturizer#futurizeNonessential(String, String, String, Class, Object)}: If the
+     * target Endpoint is at its limit of in-flight futurizations, the futurization is queued until a permit is
+     * available, without blocking the calling thread. If not sent within <code>maxWaitMillis</code>, or if the wait
+     * queue is full, the returned future is completed exceptionally with an {@link AdmissionRejectedException}.
+     */
+    public <T> CompletableFuture<Reply<T>> futurizeNonessentialWhenPermitted(String traceId, String from, String to,
+            Class<T> replyClass, Object request, long maxWaitMillis) {
+        return admitWhenPermitted(to, maxWaitMillis,
+                () -> _matsFuturizer.futurizeNonessential(traceId, from, to, replyClass, request));
+    }
+
+    // ===== Generic variants
+
+    /**
+     * Runs the futurization if the target Endpoint has a free permit, otherwise returns a future completed
+     * exceptionally with an {@link AdmissionRejectedException}. The permit is held until the futurization's future
+     * completes.
+     *
+     * @param endpointId
+     *         the target Endpoint, which the permits are counted for.
+     * @param futurization
+     *         performs the futurization, e.g. <code>() -> matsFuturizer.futurizeInteractiveUnreliable(..)</code>.
+     * @return a future completed with the result of the futurization, or the rejection.
+     */
+    public <R> CompletableFuture<R> tryAdmit(String endpointId, Supplier<CompletableFuture<R>> futurization) {
+        EndpointAdmission endpoint = endpoint(endpointId);
+        // ?: Did we get a permit?
+        if (!endpoint.tryAcquire()) {
+            // -> No, so reject.
+            endpoint.rejectedFull.increment();
+            return CompletableFuture.failedFuture(new AdmissionRejectedException(endpointId,
+                    "all [" + endpoint.maxInFlight + "] permits in use"));
+        }
+        // E-> Yes, we have the permit: Run it.
+        endpoint.waitNanos.record(0);
+        Waiter<R> waiter = new Waiter<>(endpoint, futurization, System.nanoTime());
+        // ?: Did it throw, or complete, synchronously?
+        if (!waiter.launch()) {
+            // -> Yes, so the permit was not taken by it - pass it on, and then complete the result.
+            release(endpoint);
+            waiter.completeNotHeld();
+        }
+        return waiter.result;
+    }
+
+    /**
+     * Runs the futurization when the target Endpoint has a free permit, queuing it if not - the calling thread is not
+     * blocked. If no permit is gotten within <code>maxWaitMillis</code>, or if the wait queue for the Endpoint is
+     * full, the returned future is completed exceptionally with an {@link AdmissionRejectedException}. The permit is
+     * held until the futurization's future completes.
+     *
+     * @param endpointId
+     *         the target Endpoint, which the permits are counted for.
+     * @param maxWaitMillis
+     *         how long to wait for a permit.
+     * @param futurization
+     *         performs the futurization, e.g. <code>() -> matsFuturizer.futurizeInteractiveUnreliable(..)</code>.
+     * @return a future completed with the result of the futurization, or the rejection.
+     */
+    public <R> CompletableFuture<R> admitWhenPermitted(String endpointId, long maxWaitMillis,
+            Supplier<CompletableFuture<R>> futurization) {
+        EndpointAdmission endpoint = endpoint(endpointId);
+        Waiter<R> waiter = new Waiter<>(endpoint, futurization, System.nanoTime());
+        // ?: Did we get a permit right away?
+        if (endpoint.tryAcquire()) {
+            // -> Yes, so run it.
+            endpoint.waitNanos.record(0);
+            if (!waiter.launch()) {
+                release(endpoint);
+                waiter.completeNotHeld();
+            }
+            return waiter.result;
+        }
+        // E-> No permit, so try to queue it.
+        // ?: Was there room in the wait queue? (This also hands over a permit if one was released meanwhile.)
+        Boolean enqueued = endpoint.enqueueOrAcquire(waiter, _maxWaitingPerEndpoint);
+        if (enqueued == null) {
+            // -> Got a permit after all, so run it.
+            endpoint.waitNanos.record(System.nanoTime() - waiter.nanosAtEnqueue);
+            if (!waiter.launch()) {
+                release(endpoint);
+                waiter.completeNotHeld();
+            }
+        }
+        else if (!enqueued) {
+            // -> Wait queue full, so reject.
+            endpoint.rejectedWaitQueueFull.increment();
+            waiter.result.completeExceptionally(new AdmissionRejectedException(endpointId,
+                    "all [" + endpoint.maxInFlight + "] permits in use, and the wait queue of ["
+                            + _maxWaitingPerEndpoint + "] is full"));
+        }
+        else {
+            // -> Queued: Schedule the timeout. (If it is launched before the timeout is set, launch() cancels it.)
+            waiter.setTimeout(_timeoutScheduler.schedule(() -> timeout(waiter, maxWaitMillis),
+                    maxWaitMillis, TimeUnit.MILLISECONDS));
+        }
+        return waiter.result;
+    }
+
+    private void timeout(Waiter<?> waiter, long maxWaitMillis) {
+        EndpointAdmission endpoint = waiter.endpoint;
+        // ?: Was it still waiting? (If not, it has gotten a permit, and is launched.)
+        if (endpoint.removeWaiter(waiter)) {
+            // -> Yes, so reject it.
+            endpoint.rejectedTimeout.increment();
+            endpoint.waitNanos.record(System.nanoTime() - waiter.nanosAtEnqueue);
+            waiter.result.completeExceptionally(new AdmissionRejectedException(endpoint.endpointId,
+                    "no permit within [" + maxWaitMillis + " ms], all [" + endpoint.maxInFlight
+                            + "] permits in use"));
+        }
+    }
+
+    /**
+     * Releases a permit, or hands it directly over to the first waiter. If the waiter's futurization throws, or
+     * returns an already completed future (e.g. a cache hit, or a failed future), it didn't take the permit, so it is
+     * passed on to the next - in a loop, not recursively, so that a long queue of such futurizations (e.g. when the
+     * MatsFactory is stopping) cannot overflow the stack.
+     */
+    private void release(EndpointAdmission endpoint) {
+        Waiter<?> next = endpoint.releaseOrHandOver();
+        while (next != null) {
+            endpoint.waitNanos.record(System.nanoTime() - next.nanosAtEnqueue);
+            // ?: Did the futurization get going?
+            if (next.launch()) {
+                // -> Yes, so it now holds the permit, and will release it when done.
+                return;
+            }
+            // E-> No, it threw or is already done, so pass on the permit - and then complete its result.
+            Waiter<?> done = next;
+            next = endpoint.releaseOrHandOver();
+            done.completeNotHeld();
+        }
+    }
+
+    private EndpointAdmission endpoint(String endpointId) {
+        return _endpoints.computeIfAbsent(endpointId, id -> new EndpointAdmission(id,
+                _maxInFlightOverrides.getOrDefault(id, _defaultMaxInFlight)));
+    }
+
+    /**
+     * Stops the timeout thread, and rejects all waiting futurizations. Does not close the {@link MatsFuturizer}.
+     */
+    @Override
+    public void close() {
+        _timeoutScheduler.shutdownNow();
+        for (EndpointAdmission endpoint : _endpoints.values()) {
+            for (Waiter<?> waiter : endpoint.drainWaiters()) {
+                waiter.result.completeExceptionally(new AdmissionRejectedException(endpoint.endpointId,
+                        "admission layer closed"));
+            }
+        }
+    }
+
+    // ===== Stats and metrics
+
+    /**
+     * @return a snapshot of the counters per Endpoint, sorted by Endpoint id.
+     */
+    public Map<String, AdmissionStats> getStats() {
+        Map<String, AdmissionStats> stats = new TreeMap<>();
+        _endpoints.values().forEach(e -> stats.put(e.endpointId, e.stats()));
+        return stats;
+    }
+
+    /**
+     * Writes the admission metrics in Prometheus text exposition format, using the helpers of
+     * {@link MatsJbangMetricsInterceptor}.
+     */
+    void writePrometheusExposition(PrintWriter out) {
+        long nowNanos = System.nanoTime();
+        type(out, "mats_futurizer_admission_limit", "gauge", "Max in-flight futurizations per target Endpoint.");
+        _endpoints.values().forEach(e -> sample(out, "mats_futurizer_admission_limit", e.labels, e.maxInFlight));
+        type(out, "mats_futurizer_admission_in_flight", "gauge", "In-flight futurizations per target Endpoint.");
+        _endpoints.values().forEach(e -> sample(out, "mats_futurizer_admission_in_flight", e.labels,
+                e.stats().inFlight()));
+        type(out, "mats_futurizer_admission_waiting", "gauge", "Futurizations waiting for a permit.");
+        _endpoints.values().forEach(e -> sample(out, "mats_futurizer_admission_waiting", e.labels,
+                e.stats().waiting()));
+        type(out, "mats_futurizer_admission_admitted_total", "counter", "Futurizations which got a permit.");
+        _endpoints.values().forEach(e -> sample(out, "mats_futurizer_admission_admitted_total", e.labels,
+                e.admitted));
+        type(out, "mats_futurizer_admission_rejected_total", "counter", "Futurizations rejected, by reason.");
+        _endpoints.values().forEach(e -> {
+            sample(out, "mats_futurizer_admission_rejected_total", e.labels + ",reason=\"full\"", e.rejectedFull);
+            sample(out, "mats_futurizer_admission_rejected_total", e.labels + ",reason=\"wait_queue_full\"",
+                    e.rejectedWaitQueueFull);
+            sample(out, "mats_futurizer_admission_rejected_total", e.labels + ",reason=\"timeout\"",
+                    e.rejectedTimeout);
+        });
+        type(out, "mats_futurizer_admission_wait_seconds", "summary", "Time from futurization was requested until"
+                + " it got a permit, or was rejected by timeout.");
+        _endpoints.values().forEach(e -> e.waitNanos.write(out, "mats_futurizer_admission_wait_seconds", e.labels,
+                1e-9, nowNanos));
+    }
+
+    /**
+     * Snapshot of the admission counters for one target Endpoint.
+     *
+     * @param maxInFlight
+     *         the limit of in-flight futurizations.
+     * @param inFlight
+     *         the number of futurizations currently in flight.
+     * @param waiting
+     *         the number of futurizations currently waiting for a permit.
+     * @param admitted
+     *         total number of futurizations which got a permit.
+     * @param rejectedFull
+     *         total number of fail-fast futurizations rejected since all permits were in use.
+     * @param rejectedWaitQueueFull
+     *         total number of waiting futurizations rejected since the wait queue was full.
+     * @param rejectedTimeout
+     *         total number of waiting futurizations rejected since they didn't get a permit in time.
+     */
+    public record AdmissionStats(int maxInFlight, int inFlight, int waiting, long admitted, long rejectedFull,
+            long rejectedWaitQueueFull, long rejectedTimeout) {
+    }
+
+    /**
+     * Thrown (i.e. the futures are completed exceptionally with it) when a futurization is not admitted.
+     */
+    public static class AdmissionRejectedException extends RuntimeException {
+        private final String _endpointId;
+
+        public AdmissionRejectedException(String endpointId, String reason) {
+            super("Futurization towards Endpoint [" + endpointId + "] rejected: " + reason + ".");
+            _endpointId = endpointId;
+        }
+
+        public String getEndpointId() {
+            return _endpointId;
+        }
+    }
+
+    // ===== Internals
+
+    private static class EndpointAdmission {
+        private final String endpointId;
+        private final String labels;
+        private final int maxInFlight;
+
+        // Guarded by 'this'
+        private int _inFlight;
+        private final ArrayDeque<Waiter<?>> _waiters = new ArrayDeque<>();
+
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejectedFull = new LongAdder();
+        private final LongAdder rejectedWaitQueueFull = new LongAdder();
+        private final LongAdder rejectedTimeout = new LongAdder();
+        private final MatsJbangMetricsInterceptor.Summary waitNanos = new MatsJbangMetricsInterceptor.Summary();
+
+        EndpointAdmission(String endpointId, int maxInFlight) {
+            this.endpointId = endpointId;
+            this.labels = label("endpoint", endpointId);
+            this.maxInFlight = maxInFlight;
+        }
+
+        /**
+         * Fast path: Takes a permit if free - but not if others are waiting, since it would be unfair to overtake.
+         */
+        synchronized boolean tryAcquire() {
+            if ((_inFlight < maxInFlight) && _waiters.isEmpty()) {
+                _inFlight++;
+                admitted.increment();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return <code>null</code> if a permit was taken after all, <code>true</code> if queued, <code>false</code>
+         *         if the wait queue is full.
+         */
+        synchronized Boolean enqueueOrAcquire(Waiter<?> waiter, int maxWaiting) {
+            if ((_inFlight < maxInFlight) && _waiters.isEmpty()) {
+                _inFlight++;
+                admitted.increment();
+                return null;
+            }
+            if (_waiters.size() >= maxWaiting) {
+                return false;
+            }
+            _waiters.addLast(waiter);
+            return true;
+        }
+
+        /**
+         * @return the waiter which the permit was handed over to, or <code>null</code> if none waited, in which case
+         *         the permit was released.
+         */
+        synchronized Waiter<?> releaseOrHandOver() {
+            Waiter<?> next = _waiters.pollFirst();
+            if (next != null) {
+                admitted.increment();
+                return next;
+            }
+            _inFlight--;
+            return null;
+        }
+
+        synchronized boolean removeWaiter(Waiter<?> waiter) {
+            return _waiters.remove(waiter);
+        }
+
+        synchronized List<Waiter<?>> drainWaiters() {
+            List<Waiter<?>> drained = new ArrayList<>(_waiters);
+            _waiters.clear();
+            return drained;
+        }
+
+        synchronized AdmissionStats stats() {
+            return new AdmissionStats(maxInFlight, _inFlight, _waiters.size(), admitted.sum(), rejectedFull.sum(),
+                    rejectedWaitQueueFull.sum(), rejectedTimeout.sum());
+        }
+    }
+
+    private class Waiter<R> {
+        private final EndpointAdmission endpoint;
+        private final Supplier<CompletableFuture<R>> futurization;
+        private final long nanosAtEnqueue;
+        private final CompletableFuture<R> result = new CompletableFuture<>();
+        private volatile ScheduledFuture<?> _timeout;
+        private volatile boolean _launched;
+        // :: Set by launch() if the permit was not taken, for completeNotHeld().
+        private RuntimeException _thrown;
+        private CompletableFuture<R> _completedFuture;
+
+        Waiter(EndpointAdmission endpoint, Supplier<CompletableFuture<R>> futurization, long nanosAtEnqueue) {
+            this.endpoint = endpoint;
+            this.futurization = futurization;
+            this.nanosAtEnqueue = nanosAtEnqueue;
+        }
+
+        void setTimeout(ScheduledFuture<?> timeout) {
+            _timeout = timeout;
+            // ?: Did we get launched before the timeout was set?
+            if (_launched) {
+                // -> Yes, so cancel it right away.
+                timeout.cancel(false);
+            }
+        }
+
+        /**
+         * Runs the futurization, which must hold a permit - released when its future completes.
+         *
+         * @return <code>false</code> if the futurization threw, or its future was already completed, in which case
+         *         the permit must be passed on by the caller, which then must invoke {@link #completeNotHeld()}.
+         */
+        boolean launch() {
+            _launched = true;
+            ScheduledFuture<?> timeout = _timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            CompletableFuture<R> future;
+            try {
+                future = futurization.get();
+            }
+            catch (RuntimeException e) {
+                _thrown = e;
+                return false;
+            }
+            // ?: Already completed? (If so, whenComplete(..) would run release(..) right here, recursing per waiter.)
+            if (future.isDone()) {
+                // -> Yes, so don't hold the permit - the caller passes it on.
+                _completedFuture = future;
+                return false;
+            }
+            // Release the permit before completing, so that the caller's continuations may futurize right away.
+            future.whenComplete((value, throwable) -> {
+                release(endpoint);
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                }
+                else {
+                    result.complete(value);
+                }
+            });
+            return true;
+        }
+
+        /**
+         * Completes the result of a futurization which didn't hold the permit - after the permit is passed on, so
+         * that the caller's continuations may futurize right away.
+         */
+        void completeNotHeld() {
+            // ?: Did the futurization throw?
+            if (_thrown != null) {
+                // -> Yes, so that is the result.
+                result.completeExceptionally(_thrown);
+                return;
+            }
+            // E-> It was already completed, so this runs right away.
+            _completedFuture.whenComplete((value, throwable) -> {
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                }
+                else {
+                    result.complete(value);
+                }
+            });
+        }
+    }
+}
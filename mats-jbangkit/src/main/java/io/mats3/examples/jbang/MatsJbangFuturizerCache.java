@@ -0,0 +1,561 @@
+package io.mats3.examples.jbang;
+
+import static io.mats3.examples.jbang.MatsJbangMetricsInterceptor.label;
+import static io.mats3.examples.jbang.MatsJbangMetricsInterceptor.sample;
+import static io.mats3.examples.jbang.MatsJbangMetricsInterceptor.type;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+import io.mats3.util.MatsFuturizer;
+import io.mats3.util.MatsFuturizer.Reply;
+
+/**
+ * Reply cache in front of a {@link MatsFuturizer}, for idempotent lookups: A futurization towards an Endpoint which
+ * has a {@link #ttl(String, long) TTL set} is keyed on the Endpoint id, the reply class and the request DTO serialized
+ * to JSON - and if the same request was futurized within the TTL, the returned future is already completed with the
+ * cached {@link Reply}, without any message being sent. Thus, a cacheable call completes in microseconds instead of
+ * the milliseconds of a broker round-trip. Concurrent identical requests while the first is still in flight share its
+ * futurization, so that a burst of the same lookup results in a single message. Failed futurizations are not cached.
+ * Endpoints without a TTL are passed straight through.
+ * <p>
+ * The cache is bounded by the total weight of its entries, where the weight is the size of the key plus the reply
+ * serialized to JSON, approximating the memory held. When over the max, the least recently used entries are evicted -
+ * but only if the new entry has been requested at least as often, judged by a small frequency sketch: If not, the new
+ * entry is dropped instead, so that a scan of one-off requests does not flush out the hot entries (as in TinyLFU).
+ * Expired entries are removed when looked up, or when in line for eviction.
+ * <p>
+ * <b>Note that the cached {@link Reply} instance, including its reply DTO, is shared among all hits</b> - so the DTO
+ * must be immutable, e.g. a record, or at least never be modified by the users. Also, the {@link Reply#getContext()
+ * context} of a hit is that of the original futurization, e.g. its traceId and timestamps.
+ * <p>
+ * The counts of hits, misses, evictions and expirations, and the current entries and weight, are available per
+ * Endpoint from {@link #getStats()} - and are included in the metrics of {@link MatsJbangJettyServer#addMatsMetrics()}
+ * when added with {@link MatsJbangJettyServer#addMatsFuturizerCache(long)}.
+ */
+public class MatsJbangFuturizerCache {
+    /**
+     * Default max total weight of the cache, in (approximate) bytes.
+     */
+    public static final long DEFAULT_MAX_WEIGHT_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Added to the weight of each entry, approximating the map entry, the future, the {@link Reply} and the context.
+     */
+    static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    /**
+     * Deterministic JSON for the keys: Sorted properties and map entries, so that equal requests give equal keys.
+     * Field based, like the Mats serializer - which also weighs the replies. Also used by
+     * {@link MatsJbangReplyMemoizer}.
+     */
+    static final ObjectMapper KEY_MAPPER = JsonMapper.builder()
+            .visibility(PropertyAccessor.FIELD, Visibility.ANY)
+            .visibility(PropertyAccessor.GETTER, Visibility.NONE)
+            .visibility(PropertyAccessor.IS_GETTER, Visibility.NONE)
+            .visibility(PropertyAccessor.SETTER, Visibility.NONE)
+            .enable(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY)
+            .enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+            .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS)
+            .build();
+
+    private final MatsFuturizer _matsFuturizer;
+    private final long _maxWeight;
+    private final Map<String, Long> _ttlNanos = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, EndpointCache> _endpoints = new ConcurrentHashMap<>();
+
+    // :: Guarded by 'this'
+    // Access ordered, so that the iteration order is from least to most recently used.
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final FrequencySketch _sketch;
+    private long _weight;
+
+    private MatsJbangFuturizerCache(MatsFuturizer matsFuturizer, long maxWeightBytes) {
+        _matsFuturizer = matsFuturizer;
+        _maxWeight = maxWeightBytes;
+        // Size the sketch for the number of entries we can hold if they are small, e.g. a lookup of a few fields.
+        _sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(256, maxWeightBytes / 512)));
+    }
+
+    /**
+     * Creates the reply cache in front of the given {@link MatsFuturizer}. No Endpoints are cached until their TTL
+     * is set using {@link #ttl(String, long)}.
+     *
+     * @param matsFuturizer
+     *         the {@link MatsFuturizer} to futurize with.
+     * @param maxWeightBytes
+     *         the max total weight of the entries, in (approximate) bytes - e.g. {@link #DEFAULT_MAX_WEIGHT_BYTES}.
+     * @return the created {@link MatsJbangFuturizerCache}.
+     */
+    public static MatsJbangFuturizerCache create(MatsFuturizer matsFuturizer, long maxWeightBytes) {
+        if (maxWeightBytes < ENTRY_OVERHEAD_BYTES) {
+            throw new IllegalArgumentException("maxWeightBytes must be >= " + ENTRY_OVERHEAD_BYTES + ", was ["
+                    + maxWeightBytes + "].");
+        }
+        return new MatsJbangFuturizerCache(matsFuturizer, maxWeightBytes);
+    }
+
+    /**
+     * Enables caching of the replies from the specified Endpoint - which must be an idempotent lookup, where a reply
+     * that is up to the TTL old is as good as a fresh one. May be set at any time, but only affects replies cached
+     * afterwards.
+     *
+     * @param endpointId
+     *         the target Endpoint.
+     * @param ttlMillis
+     *         how long a reply is served from the cache, counted from when it was received.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangFuturizerCache ttl(String endpointId, long ttlMillis) {
+        if (ttlMillis < 1) {
+            throw new IllegalArgumentException("ttlMillis must be >= 1, was [" + ttlMillis + "].");
+        }
+        _ttlNanos.put(endpointId, TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * @return the {@link MatsFuturizer} this cache is in front of.
+     */
+    public MatsFuturizer getMatsFuturizer() {
+        return _matsFuturizer;
+    }
+
+    /**
+     * Cached variant of {@link MatsFuturizer#futurizeNonessential(String, String, String, Class, Object)}: If the
+     * target Endpoint has a TTL, and the same request has a cached reply, the returned future is already completed
+     * with it, and no message is sent.
+     */
+    public <T> CompletableFuture<Reply<T>> futurizeNonessential(String traceId, String from, String to,
+            Class<T> replyClass, Object request) {
+        return getOrFuturize(to, replyClass, request,
+                () -> _matsFuturizer.futurizeNonessential(traceId, from, to, replyClass, request));
+    }
+
+    /**
+     * Returns the cached reply for the request if present, otherwise runs the futurization and caches its reply - if
+     * the target Endpoint has a TTL, otherwise the futurization is just run. If an identical futurization is already
+     * in flight, its result is shared instead of running the futurization.
+     *
+     * @param endpointId
+     *         the target Endpoint, which the TTL is set for.
+     * @param replyClass
+     *         the reply class, which is part of the key.
+     * @param request
+     *         the request DTO, which when serialized to JSON is part of the key.
+     * @param futurization
+     *         performs the futurization on a miss, e.g. <code>() -> admission.tryFuturizeNonessential(..)</code>.
+     * @return a future completed with the cached reply, or the result of the futurization.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public <T> CompletableFuture<Reply<T>> getOrFuturize(String endpointId, Class<T> replyClass, Object request,
+            Supplier<CompletableFuture<Reply<T>>> futurization) {
+        Long ttlNanos = _ttlNanos.get(endpointId);
+        // ?: Is this Endpoint cached?
+        if (ttlNanos == null) {
+            // -> No, so just futurize.
+            return futurization.get();
+        }
+        // E-> Yes, cached: Look it up.
+        String key = key(endpointId, replyClass, request);
+        EndpointCache endpoint = endpoint(endpointId);
+        Entry entry;
+        synchronized (this) {
+            _sketch.increment(key);
+            entry = _entries.get(key);
+            // ?: Did we find an entry which has expired?
+            if ((entry != null) && entry.isExpired(System.nanoTime())) {
+                // -> Yes, so remove it, and go on as a miss.
+                remove(entry);
+                endpoint.expirations.increment();
+                entry = null;
+            }
+            // ?: Did we find a live entry?
+            if (entry != null) {
+                // -> Yes, so it is a hit - either completed, or in flight, which we'll share.
+                endpoint.hits.increment();
+                // Copy, so that the caller cannot complete or cancel the cached future.
+                return (CompletableFuture) entry.future.copy();
+            }
+            // E-> Miss: Insert the entry while in flight, so that identical requests share it.
+            endpoint.misses.increment();
+            entry = new Entry(key, endpoint);
+            _entries.put(key, entry);
+            endpoint.entries++;
+        }
+
+        // :: Futurize outside the lock.
+        CompletableFuture<Reply<T>> future;
+        try {
+            future = futurization.get();
+        }
+        catch (RuntimeException e) {
+            // The futurization threw synchronously, so the sharers must get the failure - and it must not be cached.
+            failed(entry, e);
+            throw e;
+        }
+        Entry missEntry = entry;
+        future.whenComplete((reply, throwable) -> {
+            // ?: Did the futurization fail?
+            if (throwable != null) {
+                // -> Yes, so don't cache it.
+                failed(missEntry, throwable);
+            }
+            else {
+                // -> No, so cache it.
+                completed(missEntry, reply, ttlNanos);
+            }
+        });
+        return (CompletableFuture) entry.future.copy();
+    }
+
+    /**
+     * Removes all cached replies from the specified Endpoint. In-flight futurizations are not affected.
+     */
+    public synchronized void invalidate(String endpointId) {
+        _entries.values().removeIf(entry -> {
+            if (entry.endpoint.endpointId.equals(endpointId) && entry.future.isDone()) {
+                _weight -= entry.weight;
+                entry.endpoint.weight -= entry.weight;
+                entry.endpoint.entries--;
+                return true;
+            }
+            return false;
+        });
+    }
+
+    // ===== Stats and metrics
+
+    /**
+     * @return the current total weight of the entries, in (approximate) bytes.
+     */
+    public synchronized long getWeight() {
+        return _weight;
+    }
+
+    /**
+     * @return the max total weight of the entries, in (approximate) bytes.
+     */
+    public long getMaxWeight() {
+        return _maxWeight;
+    }
+
+    /**
+     * @return a snapshot of the counters per Endpoint, sorted by Endpoint id.
+     */
+    public Map<String, CacheStats> getStats() {
+        Map<String, CacheStats> stats = new TreeMap<>();
+        _endpoints.values().forEach(e -> stats.put(e.endpointId, stats(e)));
+        return stats;
+    }
+
+    /**
+     * Writes the cache metrics in Prometheus text exposition format, using the helpers of
+     * {@link MatsJbangMetricsInterceptor}.
+     */
+    void writePrometheusExposition(PrintWriter out) {
+        Map<EndpointCache, CacheStats> stats = new LinkedHashMap<>();
+        _endpoints.values().forEach(e -> stats.put(e, stats(e)));
+        type(out, "mats_futurizer_cache_requests_total", "counter", "Cacheable futurizations, by result.");
+        stats.forEach((e, s) -> {
+            sample(out, "mats_futurizer_cache_requests_total", e.labels + ",result=\"hit\"", s.hits());
+            sample(out, "mats_futurizer_cache_requests_total", e.labels + ",result=\"miss\"", s.misses());
+        });
+        type(out, "mats_futurizer_cache_removals_total", "counter", "Cache entries removed, by reason - 'rejected'"
+                + " is a new entry dropped since it was requested less often than those it would evict.");
+        stats.forEach((e, s) -> {
+            sample(out, "mats_futurizer_cache_removals_total", e.labels + ",reason=\"evicted\"", s.evictions());
+            sample(out, "mats_futurizer_cache_removals_total", e.labels + ",reason=\"rejected\"", s.rejections());
+            sample(out, "mats_futurizer_cache_removals_total", e.labels + ",reason=\"expired\"", s.expirations());
+        });
+        type(out, "mats_futurizer_cache_entries", "gauge", "Cache entries, including in-flight futurizations.");
+        stats.forEach((e, s) -> sample(out, "mats_futurizer_cache_entries", e.labels, s.entries()));
+        type(out, "mats_futurizer_cache_weight_bytes", "gauge", "Approximate memory held by the cache entries.");
+        stats.forEach((e, s) -> sample(out, "mats_futurizer_cache_weight_bytes", e.labels, s.weightBytes()));
+        type(out, "mats_futurizer_cache_max_weight_bytes", "gauge", "Max total weight of the cache.");
+        sample(out, "mats_futurizer_cache_max_weight_bytes", "", _maxWeight);
+    }
+
+    /**
+     * Snapshot of the cache counters for one target Endpoint.
+     *
+     * @param ttlMillis
+     *         the current TTL of the Endpoint's replies.
+     * @param entries
+     *         the number of entries, including in-flight futurizations.
+     * @param weightBytes
+     *         the approximate memory held by the entries.
+     * @param hits
+     *         total number of futurizations answered from the cache, or by sharing an in-flight futurization.
+     * @param misses
+     *         total number of futurizations which had to be sent.
+     * @param evictions
+     *         total number of entries evicted to make room for new ones.
+     * @param rejections
+     *         total number of new entries dropped since they were requested less often than those they would evict.
+     * @param expirations
+     *         total number of entries removed due to their TTL.
+     */
+    public record CacheStats(long ttlMillis, int entries, long weightBytes, long hits, long misses, long evictions,
+            long rejections, long expirations) {
+        /**
+         * @return hits / (hits + misses), 0 to 1 - or <code>NaN</code> if no requests yet.
+         */
+        public double hitRatio() {
+            long requests = hits + misses;
+            return requests == 0 ? Double.NaN : (double) hits / requests;
+        }
+    }
+
+    // ===== Internals
+
+    private static String key(String endpointId, Class<?> replyClass, Object request) {
+        try {
+            return endpointId + '\n' + replyClass.getName() + '\n' + KEY_MAPPER.writeValueAsString(request);
+        }
+        catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Couldn't serialize the request DTO [" + request.getClass().getName()
+                    + "] to make the cache key.", e);
+        }
+    }
+
+    private static long weigh(String key, Reply<?> reply) {
+        try {
+            return ENTRY_OVERHEAD_BYTES + 2L * key.length() + KEY_MAPPER.writeValueAsBytes(reply.getReply()).length;
+        }
+        catch (JsonProcessingException e) {
+            // It was deserialized from the wire, so this shouldn't happen - but if, assume it is fairly large.
+            return ENTRY_OVERHEAD_BYTES + 2L * key.length() + 8 * 1024;
+        }
+    }
+
+    private EndpointCache endpoint(String endpointId) {
+        return _endpoints.computeIfAbsent(endpointId, EndpointCache::new);
+    }
+
+    private CacheStats stats(EndpointCache endpoint) {
+        int entries;
+        long weight;
+        synchronized (this) {
+            entries = endpoint.entries;
+            weight = endpoint.weight;
+        }
+        Long ttlNanos = _ttlNanos.get(endpoint.endpointId);
+        return new CacheStats(ttlNanos == null ? 0 : TimeUnit.NANOSECONDS.toMillis(ttlNanos), entries, weight,
+                endpoint.hits.sum(), endpoint.misses.sum(), endpoint.evictions.sum(), endpoint.rejections.sum(),
+                endpoint.expirations.sum());
+    }
+
+    private void failed(Entry entry, Throwable throwable) {
+        synchronized (this) {
+            // ?: Is it still in the map? (It may have been invalidated - but that only removes completed entries.)
+            if (_entries.get(entry.key) == entry) {
+                // -> Yes, so remove it, so that the next request tries anew.
+                remove(entry);
+            }
+        }
+        entry.future.completeExceptionally(throwable);
+    }
+
+    private void completed(Entry entry, Reply<?> reply, long ttlNanos) {
+        // Weigh outside the lock, as it serializes the reply.
+        long weight = weigh(entry.key, reply);
+        synchronized (this) {
+            entry.expiresAtNanos = System.nanoTime() + ttlNanos;
+            // ?: Is it still in the map? (Only completed entries are invalidated or evicted, so it should be.)
+            if (_entries.get(entry.key) == entry) {
+                // -> Yes, so account for its weight, and make room.
+                entry.weight = weight;
+                _weight += weight;
+                entry.endpoint.weight += weight;
+                evictIfNeeded(entry);
+            }
+        }
+        // Complete outside the lock, since the sharers' continuations run on this thread.
+        entry.future.complete(reply);
+    }
+
+    /**
+     * Evicts from the least recently used end until within the max weight. The candidate itself and in-flight entries
+     * are skipped, and expired entries are always evicted. A live victim is only evicted if the candidate has been
+     * requested at least as often: If the victim is hotter, or the victims found are not enough to make room, the
+     * candidate is removed instead, and the live victims are kept.
+     */
+    private void evictIfNeeded(Entry candidate) {
+        long nowNanos = System.nanoTime();
+        int candidateFrequency = _sketch.frequency(candidate.key);
+        List<Entry> victims = new ArrayList<>();
+        long excess = _weight - _maxWeight;
+        Iterator<Entry> lru = _entries.values().iterator();
+        while ((excess > 0) && lru.hasNext()) {
+            Entry entry = lru.next();
+            // ?: Is it the candidate itself, or in flight? (In-flight entries have no weight yet.)
+            if ((entry == candidate) || !entry.future.isDone()) {
+                // -> Yes, so it is not a victim - look further.
+                continue;
+            }
+            // ?: Has it expired?
+            if (entry.isExpired(nowNanos)) {
+                // -> Yes, so it goes regardless.
+                lru.remove();
+                removed(entry);
+                entry.endpoint.expirations.increment();
+                excess -= entry.weight;
+                continue;
+            }
+            // ?: Is the victim hotter than the candidate?
+            if (_sketch.frequency(entry.key) > candidateFrequency) {
+                // -> Yes, so keep it - the candidate will be dropped.
+                break;
+            }
+            victims.add(entry);
+            excess -= entry.weight;
+        }
+        // ?: Did we find enough to make room?
+        if (excess > 0) {
+            // -> No, so drop the candidate instead - keeping the live victims.
+            remove(candidate);
+            candidate.endpoint.rejections.increment();
+            return;
+        }
+        // E-> Yes, so evict the victims.
+        for (Entry victim : victims) {
+            remove(victim);
+            victim.endpoint.evictions.increment();
+        }
+    }
+
+    private void remove(Entry entry) {
+        _entries.remove(entry.key);
+        removed(entry);
+    }
+
+    private void removed(Entry entry) {
+        _weight -= entry.weight;
+        entry.endpoint.weight -= entry.weight;
+        entry.endpoint.entries--;
+    }
+
+    private static class EndpointCache {
+        private final String endpointId;
+        private final String labels;
+
+        // :: Guarded by the MatsJbangFuturizerCache
+        private int entries;
+        private long weight;
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder rejections = new LongAdder();
+        private final LongAdder expirations = new LongAdder();
+
+        EndpointCache(String endpointId) {
+            this.endpointId = endpointId;
+            this.labels = label("endpoint", endpointId);
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final EndpointCache endpoint;
+        private final CompletableFuture<Reply<?>> future = new CompletableFuture<>();
+
+        // :: Guarded by the MatsJbangFuturizerCache - both 0 while in flight.
+        private long weight;
+        private long expiresAtNanos;
+
+        Entry(String key, EndpointCache endpoint) {
+            this.key = key;
+            this.endpoint = endpoint;
+        }
+
+        boolean isExpired(long nowNanos) {
+            return future.isDone() && ((nowNanos - expiresAtNanos) >= 0);
+        }
+    }
+
+    /**
+     * Count-Min sketch of how often each key has been requested, with 4-bit counters which are all halved when the
+     * number of increments reaches 10 times the width - so that it tracks the recent popularity, in constant space.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final byte[][] _counters;
+        private final int _mask;
+        private final int _resetAt;
+        private int _increments;
+
+        FrequencySketch(int width) {
+            int powerOfTwo = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+            _counters = new byte[DEPTH][powerOfTwo];
+            _mask = powerOfTwo - 1;
+            _resetAt = 10 * powerOfTwo;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            int min = frequency(hash);
+            // ?: Saturated?
+            if (min == 15) {
+                // -> Yes, so no change.
+                return;
+            }
+            // Conservative update: Only increment the counters at the minimum, which reduces the overestimation.
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (_counters[i][index] == min) {
+                    _counters[i][index]++;
+                }
+            }
+            // ?: Time to age the counts?
+            if (++_increments >= _resetAt) {
+                // -> Yes, so halve them all.
+                for (byte[] row : _counters) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] >>= 1;
+                    }
+                }
+                _increments /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            return frequency(key.hashCode());
+        }
+
+        private int frequency(int hash) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, _counters[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & _mask;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package io.mats3.examples.jbang;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import io.mats3.examples.jbang.MatsJbangFuturizerAdmission.AdmissionRejectedException;
+import io.mats3.examples.jbang.MatsJbangJettyServer.FunctionalAsyncListener;
+import io.mats3.test.MatsTestHelp;
+import io.mats3.util.MatsFuturizer;
+import io.mats3.util.MatsFuturizer.MatsFuturizerTimeoutException;
+import io.mats3.util.MatsFuturizer.Reply;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Generic JSON-over-HTTP gateway to Mats3 Endpoints: <code>POST /mats/{endpointId}</code> with a JSON body futurizes
+ * the body as the request to the Endpoint, and responds with the reply as JSON - so that you don't have to hand-write
+ * a Servlet with a hard-coded DTO for each Endpoint you want to expose. The request and reply are handled as Jackson
+ * {@link JsonNode} trees, which the Mats JSON serialization passes through as is, so the gateway needs no DTO classes.
+ * <p>
+ * The request handling is fully async, so that no thread is held while reading the body, waiting for the reply, or
+ * writing the response: The body is read with non-blocking servlet I/O, feeding the bytes into Jackson's non-blocking
+ * parser as they arrive, so the body is never held as a whole in a byte array or String. The reply is serialized
+ * directly to bytes, and written with non-blocking servlet I/O. If a {@link MatsJbangFuturizerAdmission} is present
+ * in the ServletContext, the futurizations go through it, failing fast with <code>503</code> when the Endpoint has no
+ * free permits.
+ * <p>
+ * The futurizations are by default <i>nonessential</i>, i.e. non-persistent and no audit, like
+ * {@link MatsFuturizer#futurizeNonessential(String, String, String, Class, Object) futurizeNonessential(..)}. With
+ * the header <code>{@value #HEADER_INTERACTIVE}: true</code> or the query parameter <code>interactive</code>, they
+ * are instead non-persistent and <i>interactive</i>, i.e. prioritized on the Mats fabric - for a human waiting. The
+ * timeout is {@link MatsJbangJettyServer#addMatsHttpGateway(int, String...) configured}, and may be lowered per request
+ * with the header <code>{@value #HEADER_TIMEOUT_MILLIS}</code>. A traceId may be given with the header
+ * <code>{@value #HEADER_TRACE_ID}</code>: It is appended to a random traceId made by the gateway, so that a client
+ * can't make the traceId of a request equal to that of another - the header is cut at
+ * {@link #MAX_TRACE_ID_HEADER_LENGTH} chars.
+ * <p>
+ * Which Endpoints to expose must be stated: Either explicitly by the
+ * {@link #MatsJbangHttpGateway(int, String...) constructor}, or with the explicit opt-in {@link #exposingAll(int)},
+ * which exposes all Endpoints except the private, i.e. those whose id contains <code>".private."</code>.
+ * <p>
+ * Responses: <code>200</code> with the reply; <code>400</code> for invalid JSON; <code>403</code> for an Endpoint
+ * which is not exposed; <code>413</code> if the body is larger than {@link #MAX_REQUEST_BYTES}; <code>503</code> if
+ * rejected by admission control; <code>504</code> on timeout; and <code>500</code> for other failures - all with a
+ * JSON body <code>{"error": "..", "endpointId": ".."}</code>.
+ */
+public class MatsJbangHttpGateway extends HttpServlet {
+    private static final Logger log = LoggerFactory.getLogger(MatsJbangHttpGateway.class);
+
+    /**
+     * Default timeout of the futurizations.
+     */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * Max size of the request body.
+     */
+    public static final int MAX_REQUEST_BYTES = 1024 * 1024;
+
+    public static final String HEADER_TIMEOUT_MILLIS = "X-Mats-Timeout-Millis";
+    public static final String HEADER_INTERACTIVE = "X-Mats-Interactive";
+    public static final String HEADER_TRACE_ID = "X-Mats-TraceId";
+
+    /**
+     * Max length of the {@link #HEADER_TRACE_ID} header used in the traceId - the rest is cut.
+     */
+    public static final int MAX_TRACE_ID_HEADER_LENGTH = 128;
+
+    private static final String FROM = "MatsJbangHttpGateway";
+    private static final String PRIVATE_ENDPOINT_MARKER = ".private.";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final int _timeoutMillis;
+    private final Set<String> _endpointIds;
+    private final boolean _exposeAll;
+
+    private MatsFuturizer _matsFuturizer;
+    private MatsJbangFuturizerAdmission _admission;
+
+    /**
+     * @param timeoutMillis
+     *         the timeout of the futurizations - a request may lower it, not raise it.
+     * @param endpointIds
+     *         the Endpoints which may be invoked - at least one. To expose all, use {@link #exposingAll(int)}.
+     */
+    public MatsJbangHttpGateway(int timeoutMillis, String... endpointIds) {
+        this(timeoutMillis, Set.of(endpointIds), false);
+        // :: Sanity assert
+        if (endpointIds.length == 0) {
+            throw new IllegalArgumentException("At least one endpointId must be exposed - use 'exposingAll(..)' to"
+                    + " explicitly expose all non-private Endpoints.");
+        }
+    }
+
+    /**
+     * Creates a gateway which exposes all Endpoints except the private, i.e. those whose id contains
+     * <code>".private."</code> - meaning that anyone who can reach the HTTP server can invoke any such Endpoint.
+     *
+     * @param timeoutMillis
+     *         the timeout of the futurizations - a request may lower it, not raise it.
+     * @return the gateway.
+     */
+    public static MatsJbangHttpGateway exposingAll(int timeoutMillis) {
+        return new MatsJbangHttpGateway(timeoutMillis, Set.of(), true);
+    }
+
+    private MatsJbangHttpGateway(int timeoutMillis, Set<String> endpointIds, boolean exposeAll) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("timeoutMillis must be >= 1, was [" + timeoutMillis + "].");
+        }
+        _timeoutMillis = timeoutMillis;
+        _endpointIds = endpointIds;
+        _exposeAll = exposeAll;
+    }
+
+    @Override
+    public void init() {
+        _matsFuturizer = (MatsFuturizer) getServletContext().getAttribute(MatsFuturizer.class.getName());
+        // :: Sanity assert
+        if (_matsFuturizer == null) {
+            throw new IllegalStateException("Missing MatsFuturizer in ServletContext. You may add one"
+                    + " using '" + MatsJbangJettyServer.class.getSimpleName() + ".addMatsFuturizer()'.");
+        }
+        // Note: The admission is optional, and may thus be null.
+        _admission = (MatsJbangFuturizerAdmission) getServletContext()
+                .getAttribute(MatsJbangFuturizerAdmission.class.getName());
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String endpointId = req.getPathInfo() != null ? req.getPathInfo().substring(1) : "";
+        // ?: Is this an Endpoint we expose?
+        if (!isExposed(endpointId)) {
+            // -> No, so deny - synchronously, as we haven't started async.
+            resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            resp.setContentType("application/json");
+            OBJECT_MAPPER.writeValue(resp.getOutputStream(), errorNode("Endpoint is not exposed by the gateway.",
+                    endpointId));
+            return;
+        }
+        boolean interactive = "true".equalsIgnoreCase(req.getHeader(HEADER_INTERACTIVE))
+                || hasQueryFlag(req, "interactive");
+        int timeoutMillis = _timeoutMillis;
+        String timeoutHeader = req.getHeader(HEADER_TIMEOUT_MILLIS);
+        if (timeoutHeader != null) {
+            try {
+                timeoutMillis = Math.max(1, Math.min(_timeoutMillis, Integer.parseInt(timeoutHeader)));
+            }
+            catch (NumberFormatException e) {
+                /* ignore, using the configured timeout */
+            }
+        }
+        String traceIdHeader = req.getHeader(HEADER_TRACE_ID);
+        // Note: The client's traceId is only appended to our own, so it can't impersonate another's.
+        String traceId = (traceIdHeader != null) && !traceIdHeader.isBlank()
+                ? MatsTestHelp.traceId() + "+" + traceIdHeader.substring(0,
+                        Math.min(traceIdHeader.length(), MAX_TRACE_ID_HEADER_LENGTH))
+                : MatsTestHelp.traceId();
+
+        AsyncContext asyncContext = req.startAsync();
+        Exchange exchange = new Exchange(asyncContext, resp, endpointId);
+        // Backstop: The futurizer times out by itself, so this is only if something goes astray.
+        asyncContext.setTimeout(timeoutMillis + 10_000L);
+        asyncContext.addListener(FunctionalAsyncListener.onTimeout(event -> exchange.respond(
+                HttpServletResponse.SC_GATEWAY_TIMEOUT, errorNode("Timed out in the gateway.", endpointId))));
+
+        int finalTimeoutMillis = timeoutMillis;
+        ServletInputStream in = req.getInputStream();
+        in.setReadListener(new StreamingJsonReader(in, exchange, request -> futurize(exchange, traceId,
+                finalTimeoutMillis, interactive, request)));
+    }
+
+    private boolean isExposed(String endpointId) {
+        if (endpointId.isEmpty() || endpointId.contains("/")) {
+            return false;
+        }
+        return _exposeAll
+                ? !endpointId.contains(PRIVATE_ENDPOINT_MARKER)
+                : _endpointIds.contains(endpointId);
+    }
+
+    // ===== Internals
+
+    /**
+     * Note: Not using <code>req.getParameter(..)</code>, as that would consume a form-encoded body.
+     */
+    private static boolean hasQueryFlag(HttpServletRequest req, String flag) {
+        String queryString = req.getQueryString();
+        if (queryString == null) {
+            return false;
+        }
+        for (String param : queryString.split("&")) {
+            if (param.equals(flag) || param.startsWith(flag + "=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void futurize(Exchange exchange, String traceId, int timeoutMillis, boolean interactive,
+            JsonNode request) {
+        Supplier<CompletableFuture<Reply<JsonNode>>> futurization = () -> _matsFuturizer.futurize(traceId, FROM,
+                exchange._endpointId, timeoutMillis, TimeUnit.MILLISECONDS, JsonNode.class, request,
+                interactive
+                        ? msg -> msg.nonPersistent().interactive()
+                        : msg -> msg.nonPersistent().noAudit());
+        CompletableFuture<Reply<JsonNode>> future;
+        try {
+            future = _admission != null
+                    ? _admission.tryAdmit(exchange._endpointId, futurization)
+                    : futurization.get();
+        }
+        catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((reply, throwable) -> {
+            // ?: Did we get a reply?
+            if (throwable == null) {
+                // -> Yes, so respond with it.
+                exchange.respond(HttpServletResponse.SC_OK, reply.getReply());
+                return;
+            }
+            // E-> Failure: Map to a status.
+            Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+            if (cause instanceof AdmissionRejectedException) {
+                exchange.respond(HttpServletResponse.SC_SERVICE_UNAVAILABLE, errorNode(cause.getMessage(),
+                        exchange._endpointId));
+            }
+            else if (cause instanceof MatsFuturizerTimeoutException) {
+                exchange.respond(HttpServletResponse.SC_GATEWAY_TIMEOUT, errorNode("Timed out after ["
+                        + timeoutMillis + " ms] waiting for reply.", exchange._endpointId));
+            }
+            else {
+                log.warn("Futurization towards [" + exchange._endpointId + "] failed.", cause);
+                exchange.respond(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, errorNode("Futurization failed: "
+                        + cause, exchange._endpointId));
+            }
+        });
+    }
+
+    private static ObjectNode errorNode(String error, String endpointId) {
+        ObjectNode node = OBJECT_MAPPER.createObjectNode();
+        node.put("error", error);
+        node.put("endpointId", endpointId);
+        return node;
+    }
+
+    /**
+     * Reads the body with non-blocking I/O, feeding the bytes to Jackson's non-blocking parser as they arrive, and
+     * buffering the parsed tokens - then hands the JSON tree to the consumer.
+     */
+    private static class StreamingJsonReader implements ReadListener {
+        private final ServletInputStream _in;
+        private final Exchange _exchange;
+        private final Consumer<JsonNode> _requestConsumer;
+
+        private final JsonParser _parser;
+        private final TokenBuffer _tokens;
+        private final byte[] _buffer = new byte[8192];
+        private long _bytesRead;
+        private boolean _rootComplete;
+        private boolean _failed;
+
+        StreamingJsonReader(ServletInputStream in, Exchange exchange,
+                Consumer<JsonNode> requestConsumer) throws IOException {
+            _in = in;
+            _exchange = exchange;
+            _requestConsumer = requestConsumer;
+            _parser = OBJECT_MAPPER.getFactory().createNonBlockingByteArrayParser();
+            _tokens = new TokenBuffer(OBJECT_MAPPER, false);
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            // Read while data is available - when not, we're called again when there is.
+            while (!_failed && _in.isReady()) {
+                int read = _in.read(_buffer);
+                if (read < 0) {
+                    return;
+                }
+                _bytesRead += read;
+                // ?: Too large?
+                if (_bytesRead > MAX_REQUEST_BYTES) {
+                    // -> Yes, so reject.
+                    fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Request body larger than ["
+                            + MAX_REQUEST_BYTES + "] bytes.");
+                    return;
+                }
+                // Note: The parser consumes all fed bytes in drain(), so the buffer may be reused.
+                ((ByteArrayFeeder) _parser.getNonBlockingInputFeeder()).feedInput(_buffer, 0, read);
+                drain();
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException {
+            if (_failed) {
+                return;
+            }
+            ((ByteArrayFeeder) _parser.getNonBlockingInputFeeder()).endOfInput();
+            drain();
+            if (_failed) {
+                return;
+            }
+            // ?: Did we get a complete JSON value?
+            if (!_rootComplete) {
+                // -> No, so it's a bad request.
+                fail(HttpServletResponse.SC_BAD_REQUEST, "Request body is not a complete JSON value.");
+                return;
+            }
+            JsonNode request;
+            try (JsonParser tokens = _tokens.asParser()) {
+                request = OBJECT_MAPPER.readTree(tokens);
+            }
+            _requestConsumer.accept(request);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            fail(HttpServletResponse.SC_BAD_REQUEST, "Failed reading request body: " + t);
+        }
+
+        private void drain() throws IOException {
+            try {
+                JsonToken token;
+                while (((token = _parser.nextToken()) != null) && (token != JsonToken.NOT_AVAILABLE)) {
+                    // ?: Already got a complete value?
+                    if (_rootComplete) {
+                        // -> Yes, so this is trailing garbage.
+                        fail(HttpServletResponse.SC_BAD_REQUEST, "Request body has content after the JSON value.");
+                        return;
+                    }
+                    _tokens.copyCurrentEvent(_parser);
+                    // The value is complete when we're back at root level after the token.
+                    _rootComplete = _parser.getParsingContext().inRoot();
+                }
+            }
+            catch (JsonProcessingException e) {
+                fail(HttpServletResponse.SC_BAD_REQUEST, "Invalid JSON in request body: " + e.getOriginalMessage());
+            }
+        }
+
+        private void fail(int status, String error) {
+            _failed = true;
+            _exchange.respond(status, errorNode(error, _exchange._endpointId));
+        }
+    }
+
+    /**
+     * One request-response: Responds once, writing the JSON with non-blocking I/O, then completes.
+     */
+    private static class Exchange {
+        private final AsyncContext _asyncContext;
+        private final HttpServletResponse _response;
+        private final String _endpointId;
+        private final AtomicBoolean _responded = new AtomicBoolean();
+
+        Exchange(AsyncContext asyncContext, HttpServletResponse response, String endpointId) {
+            _asyncContext = asyncContext;
+            _response = response;
+            _endpointId = endpointId;
+        }
+
+        void respond(int status, JsonNode body) {
+            // ?: Did we already respond? (E.g. the backstop timeout raced the reply.)
+            if (!_responded.compareAndSet(false, true)) {
+                // -> Yes, so drop this one.
+                return;
+            }
+            try {
+                // Serialized directly from the tree to bytes, no intermediate String.
+                byte[] bytes = OBJECT_MAPPER.writeValueAsBytes(body);
+                _response.setStatus(status);
+                _response.setContentType("application/json");
+                _response.setContentLength(bytes.length);
+                ServletOutputStream out = _response.getOutputStream();
+                out.setWriteListener(new WriteListener() {
+                    private boolean _written;
+
+                    @Override
+                    public void onWritePossible() throws IOException {
+                        // ?: Have we written the body yet?
+                        if (!_written) {
+                            // -> No, so write it.
+                            _written = true;
+                            out.write(bytes);
+                        }
+                        // ?: Is the write done? (If not, we're called again when it is.)
+                        if (out.isReady()) {
+                            // -> Yes, so we're done.
+                            _asyncContext.complete();
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        log.debug("Failed writing response for [" + _endpointId + "], client probably gone.", t);
+                        _asyncContext.complete();
+                    }
+                });
+            }
+            catch (IOException | RuntimeException e) {
+                log.warn("Failed responding for [" + _endpointId + "].", e);
+                _asyncContext.complete();
+            }
+        }
+    }
+}
@@ -2,17 +2,37 @@ package io.mats3.examples.jbang;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EventListener;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.LongFunction;
 
+import org.eclipse.jetty.annotations.AnnotationConfiguration;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.VirtualThreads;
 import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.util.component.LifeCycle.Listener;
 import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,8 +46,12 @@ import io.mats3.test.MatsTestHelp;
 import io.mats3.util.MatsFuturizer;
 import jakarta.servlet.AsyncEvent;
 import jakarta.servlet.AsyncListener;
+import jakarta.servlet.Servlet;
+import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletContextEvent;
 import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebInitParam;
+import jakarta.servlet.annotation.WebListener;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -65,6 +89,16 @@ public interface MatsJbangJettyServer {
      */
     MatsJbangJettyServer addMatsFactory();
 
+    /**
+     * Makes the {@link MatsFactory} added by {@link #addMatsFactory(String)} connect to an in-JVM ActiveMQ broker over
+     * the <code>vm://</code> transport, instead of to the localhost ActiveMQ over TCP - see
+     * {@link MatsJbangKit#createInJvmActiveMqConnectionFactory()}. Useful when hosting multiple services in a single
+     * JVM, e.g. for measuring the pure Mats3 overhead.
+     *
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer useInJvmBroker();
+
     /**
      * Adds a {@link ServletContextListener} which adds {@link MatsFuturizer} to the ServletContext, so that any added
      * Servlets may get hold of it. Needs a {@link MatsFactory} in the ServletContext, as provided by
@@ -74,6 +108,34 @@ public interface MatsJbangJettyServer {
      */
     MatsJbangJettyServer addMatsFuturizer();
 
+    /**
+     * Adds a {@link ServletContextListener} which puts a {@link MatsJbangFuturizerAdmission} in front of the
+     * {@link MatsFuturizer} and adds it to the ServletContext, so that Servlets can futurize with a bound on the
+     * in-flight futurizations per target Endpoint - either failing fast, or waiting asynchronously for a permit. If
+     * {@link #addMatsMetrics()} is also used, the admission counters are included in the metrics. Needs a
+     * {@link MatsFuturizer} in the ServletContext, as provided by {@link #addMatsFuturizer()}.
+     *
+     * @param maxInFlightPerEndpoint
+     *         the max number of in-flight futurizations per target Endpoint.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addMatsFuturizerAdmission(int maxInFlightPerEndpoint);
+
+    /**
+     * Adds a {@link ServletContextListener} which puts a {@link MatsJbangFuturizerCache} in front of the
+     * {@link MatsFuturizer} and adds it to the ServletContext, so that Servlets can have the replies of idempotent
+     * lookups cached - the Endpoints to cache, and their TTLs, are set by {@link MatsJbangFuturizerCache#ttl(String,
+     * long)}, e.g. in a Servlet's <code>init()</code>. If {@link #addMatsMetrics()} is also used, the cache counters
+     * are included in the metrics. Needs a {@link MatsFuturizer} in the ServletContext, as provided by
+     * {@link #addMatsFuturizer()}.
+     *
+     * @param maxWeightBytes
+     *         the max total weight of the cache entries, in (approximate) bytes - e.g.
+     *         {@link MatsJbangFuturizerCache#DEFAULT_MAX_WEIGHT_BYTES}.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addMatsFuturizerCache(long maxWeightBytes);
+
     /**
      * Adds a {@link ServletContextListener} and {@link HttpServlet} for providing the
      * {@link LocalHtmlInspectForMatsFactory} local monitoring and inspection utility - also installs the
@@ -84,6 +146,24 @@ public interface MatsJbangJettyServer {
      */
     MatsJbangJettyServer addMatsLocalInspect();
 
+    /**
+     * Variant of {@link #addMatsLocalInspect()} which specifies how long a rendering of the local inspect page is
+     * served from cache. The page is rendered at most once per this interval no matter how many clients request it, and
+     * is served with an ETag so that an unchanged page is answered with <code>304 Not Modified</code>. The default, as
+     * used by {@link #addMatsLocalInspect()}, is {@link #DEFAULT_LOCAL_INSPECT_CACHE_MILLIS}.
+     *
+     * @param cacheMillis
+     *         how long a rendering is served from cache, 0 to render on every request.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addMatsLocalInspect(long cacheMillis);
+
+    /**
+     * How long the rendering of the local inspect page is served from cache, unless specified by
+     * {@link #addMatsLocalInspect(long)}.
+     */
+    long DEFAULT_LOCAL_INSPECT_CACHE_MILLIS = 2_000;
+
     /**
      * Convenience for {@link #addMatsLocalInspect()} which adds a small HTML to root using
      * {@link #setRootHtlm(String)}.
@@ -92,6 +172,122 @@ public interface MatsJbangJettyServer {
      */
     MatsJbangJettyServer addMatsLocalInspect_WithRootHtml();
 
+    /**
+     * Registers a load scenario for the {@link MatsJbangLoadGenerator}, and adds a Servlet on
+     * <code>"/loadgenerator"</code> which lists the registered scenarios, and shows the running and the previous
+     * runs. A <code>POST</code> starts a run in the background with the given form parameters: <code>scenario</code>,
+     * and either <code>rate</code> for open loop or <code>concurrency</code> for closed loop, and
+     * <code>duration</code> in seconds, max 300 - invalid parameters give <code>400</code>, and a run already in
+     * progress gives <code>409</code>. Needs a {@link MatsFuturizer} in the ServletContext, as provided by
+     * {@link #addMatsFuturizer()}. May be invoked multiple times to register multiple scenarios.
+     *
+     * @param scenarioName
+     *         the name of the scenario, used in the <code>scenario</code> query parameter.
+     * @param targetEndpointId
+     *         the Endpoint to drive.
+     * @param replyClass
+     *         the reply DTO class of the Endpoint.
+     * @param requestSupplier
+     *         creates the request DTO, given the sequence number of the request.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addMatsLoadGenerator(String scenarioName, String targetEndpointId, Class<?> replyClass,
+            LongFunction<Object> requestSupplier);
+
+    /**
+     * Adds the {@link MatsJbangHttpGateway} on <code>"/mats/*"</code>, so that <code>POST /mats/{endpointId}</code>
+     * with a JSON body futurizes it towards the Endpoint, and responds with the reply as JSON - using fully async
+     * Servlet I/O. Only the specified Endpoints are exposed, with timeout
+     * {@link MatsJbangHttpGateway#DEFAULT_TIMEOUT_MILLIS}. If {@link #addMatsFuturizerAdmission(int)} is used, the
+     * futurizations go through it. Needs a {@link MatsFuturizer} in the ServletContext, as provided by
+     * {@link #addMatsFuturizer()}.
+     *
+     * @param endpointIds
+     *         the Endpoints to expose - at least one.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addMatsHttpGateway(String... endpointIds);
+
+    /**
+     * Variant of {@link #addMatsHttpGateway(String...)} which also specifies the timeout.
+     *
+     * @param timeoutMillis
+     *         the timeout of the futurizations - a request may lower it using the header
+     *         <code>{@value MatsJbangHttpGateway#HEADER_TIMEOUT_MILLIS}</code>.
+     * @param endpointIds
+     *         the Endpoints to expose - at least one.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addMatsHttpGateway(int timeoutMillis, String... endpointIds);
+
+    /**
+     * Variant of {@link #addMatsHttpGateway(int, String...)} which explicitly exposes all Endpoints except the
+     * private, i.e. those whose id contains <code>".private."</code> - meaning that anyone who can reach the server
+     * can invoke them. Only for development.
+     *
+     * @param timeoutMillis
+     *         the timeout of the futurizations.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addMatsHttpGatewayExposingAll(int timeoutMillis);
+
+    /**
+     * Installs the {@link MatsJbangMetricsInterceptor} on the {@link MatsFactory}, and adds a Servlet on
+     * <code>"/metrics"</code> which outputs the metrics in Prometheus text exposition format: Counts per Initiator,
+     * Endpoint and Stage, summaries of processing times, queue times and message sizes, and - if a
+     * {@link MatsFuturizer} is present, as by {@link #addMatsFuturizer()} - the number of outstanding futurizations.
+     * Needs a {@link MatsFactory} in the ServletContext, as provided by {@link #addMatsFactory(String)}. The
+     * interceptor is put in the ServletContext, so that other Servlets may get hold of it.
+     *
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addMatsMetrics();
+
+    /**
+     * Installs the {@link MatsJbangReplyMemoizer} on the {@link MatsFactory}, memoizing the replies of the specified
+     * Endpoints - which must be pure, single-stage Endpoints, i.e. the reply depends only on the request. On a hit, the
+     * Endpoint's lambda is not invoked, and the cached reply is sent. The hit ratios are shown on the
+     * <code>"/localinspect"</code> page if {@link #addMatsLocalInspect()} is used, and included in the metrics if
+     * {@link #addMatsMetrics()} is used. Needs a {@link MatsFactory} in the ServletContext, as provided by
+     * {@link #addMatsFactory(String)}.
+     *
+     * @param maxEntriesPerEndpoint
+     *         the max number of cached replies per Endpoint - the least recently used are evicted.
+     * @param endpointIds
+     *         the Endpoints to memoize.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addMatsReplyMemoization(int maxEntriesPerEndpoint, String... endpointIds);
+
+    /**
+     * Creates a {@link MatsJbangLiveStats} and adds a page on <code>"/localinspect/live"</code> showing a table of the
+     * per-Stage counts and timings which is updated in place by Server-Sent Events from
+     * <code>"/localinspect/live/events"</code>. The service takes one snapshot per tick and pushes only the changed
+     * Stages, rendered once for all observers - so that many may watch a busy service, as opposed to each refreshing
+     * the {@link #addMatsLocalInspect() local inspect} page. Uses the {@link MatsJbangMetricsInterceptor}, installing
+     * it if {@link #addMatsMetrics()} is not used. Needs a {@link MatsFactory} in the ServletContext, as provided by
+     * {@link #addMatsFactory(String)}.
+     *
+     * @param tickMillis
+     *         the interval between each push of changes to the observers.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addMatsLiveStats(int tickMillis);
+
+    /**
+     * Creates and starts a {@link MatsJbangConcurrencyAutoscaler} for the {@link MatsFactory}, which raises and lowers
+     * the concurrency of the local stages within the given bounds based on the broker queue stats broadcast by
+     * 'ActiveMqRun' - and adds a Servlet on <code>"/autoscaler"</code> showing the last scaling decisions. Needs a
+     * {@link MatsFactory} in the ServletContext, as provided by {@link #addMatsFactory(String)}.
+     *
+     * @param minConcurrency
+     *         the minimum concurrency of each stage.
+     * @param maxConcurrency
+     *         the maximum concurrency of each stage.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addMatsConcurrencyAutoscaler(int minConcurrency, int maxConcurrency);
+
     /**
      * Provides a way to e.g. easily add Mats3 Endpoints using the ServletContext MatsFactory.
      *
@@ -111,6 +307,146 @@ public interface MatsJbangJettyServer {
      */
     MatsJbangJettyServer setRootHtlm(String html);
 
+    /**
+     * Makes Jetty run the request handling, i.e. the Servlets, on virtual threads instead of the platform threads of
+     * its {@link QueuedThreadPool}. This makes it cheap to block the Servlet thread, e.g. on
+     * <code>future.get()</code> of a {@link MatsFuturizer} futurization, so that you can have a large number of
+     * concurrent in-flight requests using plain synchronous Servlets, without the Servlet async plumbing. Jetty's
+     * platform threads are still used for the selectors and acceptors.
+     * <p>
+     * Virtual threads requires Java 21 (or Java 19-20 with <code>--enable-preview</code>) - remember to specify this
+     * in the JBang file, e.g. <code>//JAVA 21+</code>. If the JVM does not support virtual threads, a warning is
+     * logged, and Jetty's platform threads are used as normal.
+     *
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer useVirtualThreads();
+
+    /**
+     * Makes Jetty skip the annotation scanning of the code-source locations of {@link MatsJbangKit} and of the calling
+     * class, which otherwise dominates the startup time of small services. Instead, the <code>@WebServlet</code> and
+     * <code>@WebListener</code> annotated nested classes of the calling class are registered explicitly, along with
+     * any classes added using {@link #addAnnotatedClasses(Class[])} - and the kit's own "/shutdown" Servlet. The
+     * time-to-listening is logged when the server has started, both in this and in the scanning mode, so that you can
+     * compare. May also be enabled with '<code>-Dfast_start</code>', to compare without changing code.
+     *
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer useFastStart();
+
+    /**
+     * Compresses the responses using gzip, if the client accepts it - which is a big win for the HTML and JSON pages of
+     * the GUIs, e.g. the local inspect and the MatsBrokerMonitor with its inlined CSS and JavaScript, when viewed over
+     * slow links. Uses Jetty's GzipHandler with a minimum size of {@link #DEFAULT_COMPRESSION_MIN_SIZE} bytes, and its
+     * default set of compressible MIME types, i.e. all but the already compressed formats. Server-Sent Events streams
+     * are never compressed, since they must be flushed per event. (Brotli would need a native encoder, which Jetty
+     * 11 does not have, so it's gzip only.) May also be enabled with '<code>-Dcompression</code>', to compare
+     * without changing code.
+     *
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer useCompression();
+
+    /**
+     * Variant of {@link #useCompression()} which specifies the minimum size and the MIME types to compress.
+     *
+     * @param minSize
+     *         the minimum response size in bytes to compress - smaller responses are not worth the CPU and header
+     *         overhead. If the size is not known up front, the response is compressed.
+     * @param mimeTypes
+     *         the MIME types to compress, e.g. <code>"text/html", "application/json"</code> - none means Jetty's
+     *         default set.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer useCompression(int minSize, String... mimeTypes);
+
+    /**
+     * The minimum response size in bytes for compression, unless specified by
+     * {@link #useCompression(int, String...)}.
+     */
+    int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+
+    /**
+     * Configures Jetty's thread pool, which runs the acceptors, selectors and request handling. The pool's utilisation
+     * - busy, idle and reserved threads, queue size and max queue latency - is shown on the root page if
+     * {@link #setRootHtlm(String)} is used, and in the metrics if {@link #addMatsMetrics()} is used, see
+     * {@link MatsJbangQueuedThreadPool}. Use -1 for Jetty's default of any of the parameters.
+     *
+     * @param minThreads
+     *         the min number of threads kept in the pool, Jetty default 8.
+     * @param maxThreads
+     *         the max number of threads in the pool, Jetty default 200. When all are busy, jobs queue up.
+     * @param reservedThreads
+     *         the number of threads kept reserved for running jobs without queuing, Jetty default is heuristic
+     *         based on the number of cores and max threads.
+     * @param idleTimeoutMillis
+     *         how long a thread above min may be idle before it exits, Jetty default 60 000.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer configureThreadPool(int minThreads, int maxThreads, int reservedThreads,
+            int idleTimeoutMillis);
+
+    /**
+     * Configures the Jetty connector, which accepts the connections and handles the I/O. Use -1 for Jetty's default of
+     * any of the parameters.
+     *
+     * @param acceptors
+     *         the number of acceptor threads, Jetty default is heuristic, 1 to 4 based on the number of cores.
+     * @param selectors
+     *         the number of selectors handling the I/O of the connections, Jetty default is heuristic, based on the
+     *         number of cores.
+     * @param acceptQueueSize
+     *         the OS' accept queue (backlog) of connections not yet accepted, Jetty default is the OS' default.
+     * @param idleTimeoutMillis
+     *         how long a connection may be idle before it is closed, Jetty default 30 000.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer configureConnector(int acceptors, int selectors, int acceptQueueSize,
+            int idleTimeoutMillis);
+
+    /**
+     * Adds HTTP/2 over cleartext, "h2c", alongside HTTP/1.1 on the same port - meant for internal traffic, e.g. from a
+     * frontend server fanning out many small calls to an edge service: Instead of being serialized over a handful of
+     * HTTP/1.1 connections, the calls are multiplexed as concurrent streams over a single connection. Clients may
+     * either start with HTTP/2 directly ("prior knowledge", as most server side HTTP clients do), or upgrade from
+     * HTTP/1.1. Plain HTTP/1.1 clients, e.g. browsers, which only do HTTP/2 over TLS, are unaffected. Allows
+     * {@link #DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS} concurrent streams per connection. May also be enabled with
+     * '<code>-Dh2c</code>', to compare without changing code.
+     * <p>
+     * Note that with many concurrent streams, a synchronous Servlet blocks a thread per stream, so you might want
+     * {@link #useVirtualThreads()}, or async Servlets.
+     *
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer useHttp2C();
+
+    /**
+     * Variant of {@link #useHttp2C()} which specifies the max number of concurrent streams per connection.
+     *
+     * @param maxConcurrentStreams
+     *         the max number of concurrent streams per HTTP/2 connection - the client queues any above this.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer useHttp2C(int maxConcurrentStreams);
+
+    /**
+     * The max number of concurrent streams per HTTP/2 connection, unless specified by {@link #useHttp2C(int)}.
+     * (Jetty's default is 128.)
+     */
+    int DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS = 1000;
+
+    /**
+     * For {@link #useFastStart() fast-start mode}: Registers the given classes, and their nested classes, if annotated
+     * with <code>@WebServlet</code> or <code>@WebListener</code> - use this for annotated classes which are not nested
+     * in the calling class, e.g. the Servlets of other classes included using JBang's <code>//SOURCES</code>. In the
+     * scanning mode these classes are found by the scan, so this is then ignored.
+     *
+     * @param classes
+     *         the classes to register.
+     * @return this {@link MatsJbangJettyServer} for chaining.
+     */
+    MatsJbangJettyServer addAnnotatedClasses(Class<?>... classes);
+
     /**
      * @return the Jetty {@link WebAppContext} if you want to add more to it.
      */
@@ -197,8 +533,11 @@ public interface MatsJbangJettyServer {
         // .. Set these locations to be scanned.
         webAppContext.getMetaData().setWebInfClassesResources(resources);
 
-        // :: Create the actual Jetty Server
-        Server server = new Server(port);
+        // :: Create the actual Jetty Server, with a thread pool measuring the queue latency.
+        Server server = new Server(new MatsJbangQueuedThreadPool());
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(port);
+        server.addConnector(connector);
 
         // Wrap WebAppContext in a StatisticsHandler (to enable graceful shutdown), put in the WebApp Context
         StatisticsHandler stats = new StatisticsHandler();
@@ -248,14 +587,38 @@ public interface MatsJbangJettyServer {
         }
 
         private String _addMatsFactory_AppName;
+        private boolean _useInJvmBroker;
 
         private boolean _addMatsFuturizer;
+        private int _addMatsFuturizerAdmission_MaxInFlight;
+        private long _addMatsFuturizerCache_MaxWeightBytes;
         private boolean _addMatsLocalInspect;
+        private long _addMatsLocalInspect_CacheMillis = DEFAULT_LOCAL_INSPECT_CACHE_MILLIS;
+        private boolean _addMatsMetrics;
+        private int _addMatsReplyMemoization_MaxEntries;
+        private String[] _addMatsReplyMemoization_EndpointIds;
+        private int _addMatsLiveStats_TickMillis;
+        private MatsJbangHttpGateway _addMatsHttpGateway;
+        private int[] _addMatsConcurrencyAutoscaler_Bounds;
 
         private Consumer<MatsFactory> _matsFactoryConsumer;
 
         private String _rootHtlm;
 
+        private boolean _useVirtualThreads;
+
+        private boolean _useFastStart = System.getProperty("fast_start") != null;
+        private boolean _useCompression = System.getProperty("compression") != null;
+        private int _useCompression_MinSize = DEFAULT_COMPRESSION_MIN_SIZE;
+        private String[] _useCompression_MimeTypes = new String[0];
+        private boolean _useHttp2C = System.getProperty("h2c") != null;
+        private int[] _configureThreadPool;
+        private int[] _configureConnector;
+        private int _useHttp2C_MaxConcurrentStreams = DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS;
+        private final List<Class<?>> _annotatedClasses = new ArrayList<>();
+
+        private final Map<String, LoadScenario> _loadScenarios = new LinkedHashMap<>();
+
         @Override
         public MatsJbangJettyServer addMatsFactory(String appName) {
             _addMatsFactory_AppName = appName;
@@ -268,6 +631,13 @@ public interface MatsJbangJettyServer {
             return addMatsFactory(_callingClass.getSimpleName());
         }
 
+        @Override
+        public MatsJbangJettyServer useInJvmBroker() {
+            _useInJvmBroker = true;
+            // .. for chaining
+            return this;
+        }
+
         @Override
         public MatsJbangJettyServer addMatsFuturizer() {
             _addMatsFuturizer = true;
@@ -275,6 +645,80 @@ public interface MatsJbangJettyServer {
             return this;
         }
 
+        @Override
+        public MatsJbangJettyServer addMatsFuturizerAdmission(int maxInFlightPerEndpoint) {
+            _addMatsFuturizerAdmission_MaxInFlight = maxInFlightPerEndpoint;
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer addMatsFuturizerCache(long maxWeightBytes) {
+            _addMatsFuturizerCache_MaxWeightBytes = maxWeightBytes;
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer addMatsLoadGenerator(String scenarioName, String targetEndpointId,
+                Class<?> replyClass, LongFunction<Object> requestSupplier) {
+            _loadScenarios.put(scenarioName, new LoadScenario(targetEndpointId, replyClass, requestSupplier));
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer addMatsHttpGateway(String... endpointIds) {
+            return addMatsHttpGateway(MatsJbangHttpGateway.DEFAULT_TIMEOUT_MILLIS, endpointIds);
+        }
+
+        @Override
+        public MatsJbangJettyServer addMatsHttpGateway(int timeoutMillis, String... endpointIds) {
+            _addMatsHttpGateway = new MatsJbangHttpGateway(timeoutMillis, endpointIds);
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer addMatsHttpGatewayExposingAll(int timeoutMillis) {
+            _addMatsHttpGateway = MatsJbangHttpGateway.exposingAll(timeoutMillis);
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer addMatsMetrics() {
+            _addMatsMetrics = true;
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer addMatsReplyMemoization(int maxEntriesPerEndpoint, String... endpointIds) {
+            if (maxEntriesPerEndpoint < 1) {
+                throw new IllegalArgumentException("maxEntriesPerEndpoint must be >= 1, was ["
+                        + maxEntriesPerEndpoint + "].");
+            }
+            _addMatsReplyMemoization_MaxEntries = maxEntriesPerEndpoint;
+            _addMatsReplyMemoization_EndpointIds = endpointIds;
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer addMatsLiveStats(int tickMillis) {
+            _addMatsLiveStats_TickMillis = tickMillis;
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer addMatsConcurrencyAutoscaler(int minConcurrency, int maxConcurrency) {
+            _addMatsConcurrencyAutoscaler_Bounds = new int[] { minConcurrency, maxConcurrency };
+            // .. for chaining
+            return this;
+        }
+
         @Override
         public MatsJbangJettyServer setupUsingMatsFactory(Consumer<MatsFactory> matsFactoryConsumer) {
             _matsFactoryConsumer = matsFactoryConsumer;
@@ -289,6 +733,12 @@ public interface MatsJbangJettyServer {
             return this;
         }
 
+        @Override
+        public MatsJbangJettyServer addMatsLocalInspect(long cacheMillis) {
+            _addMatsLocalInspect_CacheMillis = cacheMillis;
+            return addMatsLocalInspect();
+        }
+
         @Override
         public MatsJbangJettyServer addMatsLocalInspect_WithRootHtml() {
             addMatsLocalInspect();
@@ -312,6 +762,70 @@ public interface MatsJbangJettyServer {
         }
 
 
+        @Override
+        public MatsJbangJettyServer useVirtualThreads() {
+            _useVirtualThreads = true;
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer useFastStart() {
+            _useFastStart = true;
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer useCompression() {
+            _useCompression = true;
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer useCompression(int minSize, String... mimeTypes) {
+            _useCompression_MinSize = minSize;
+            _useCompression_MimeTypes = mimeTypes;
+            return useCompression();
+        }
+
+        @Override
+        public MatsJbangJettyServer configureThreadPool(int minThreads, int maxThreads, int reservedThreads,
+                int idleTimeoutMillis) {
+            _configureThreadPool = new int[] { minThreads, maxThreads, reservedThreads, idleTimeoutMillis };
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer configureConnector(int acceptors, int selectors, int acceptQueueSize,
+                int idleTimeoutMillis) {
+            _configureConnector = new int[] { acceptors, selectors, acceptQueueSize, idleTimeoutMillis };
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer useHttp2C() {
+            _useHttp2C = true;
+            // .. for chaining
+            return this;
+        }
+
+        @Override
+        public MatsJbangJettyServer useHttp2C(int maxConcurrentStreams) {
+            _useHttp2C_MaxConcurrentStreams = maxConcurrentStreams;
+            return useHttp2C();
+        }
+
+        @Override
+        public MatsJbangJettyServer addAnnotatedClasses(Class<?>... classes) {
+            _annotatedClasses.addAll(Arrays.asList(classes));
+            // .. for chaining
+            return this;
+        }
+
         @Override
         public WebAppContext getWebAppContext() {
             return _webAppContext;
@@ -332,6 +846,14 @@ public interface MatsJbangJettyServer {
                 includeMatsFuturizerScl();
             }
 
+            if (_addMatsFuturizerAdmission_MaxInFlight > 0) {
+                includeMatsFuturizerAdmissionScl();
+            }
+
+            if (_addMatsFuturizerCache_MaxWeightBytes > 0) {
+                includeMatsFuturizerCacheScl();
+            }
+
             if (_matsFactoryConsumer != null) {
                 setupUsingMatsFactoryScl();
             }
@@ -341,16 +863,75 @@ public interface MatsJbangJettyServer {
                 includeMatsLocalInspectSclAndServlet();
             }
 
+            if (_addMatsHttpGateway != null) {
+                includeMatsHttpGatewayServlet();
+            }
+
+            if (_addMatsMetrics) {
+                includeMatsMetricsSclAndServlet();
+            }
+
+            if (_addMatsReplyMemoization_MaxEntries > 0) {
+                includeMatsReplyMemoizationScl();
+            }
+
+            if (_addMatsLiveStats_TickMillis > 0) {
+                includeMatsLiveStatsSclAndServlets();
+            }
+
+            if (_addMatsConcurrencyAutoscaler_Bounds != null) {
+                includeMatsConcurrencyAutoscalerSclAndServlet();
+            }
+
+            if (!_loadScenarios.isEmpty()) {
+                includeLoadGeneratorServlet();
+            }
+
             if (_rootHtlm != null) {
                 includeRootServletWithHtml();
             }
 
+            if (_useVirtualThreads) {
+                configureVirtualThreads();
+            }
+
+            if (_useFastStart) {
+                configureFastStart();
+            }
+
+            if (_useCompression) {
+                configureCompression();
+            }
+
+            if (_configureThreadPool != null) {
+                configureThreadPool();
+            }
+
+            // Note: Before h2c, as the connector may be replaced.
+            if (_configureConnector != null) {
+                configureConnector();
+            }
+
+            if (_useHttp2C) {
+                configureHttp2C();
+            }
+
+            long nanosAtJettyStart = System.nanoTime();
             try {
                 _server.start();
             }
             catch (Exception e) {
                 throw new AssertionError("Could not start Jetty.", e);
             }
+            // Jetty's start() returns when the connector is listening.
+            long millisJettyStart = (System.nanoTime() - nanosAtJettyStart) / 1_000_000;
+            long millisSinceJvmStart = System.currentTimeMillis()
+                    - ManagementFactory.getRuntimeMXBean().getStartTime();
+            log.info("Time to listening: [" + millisSinceJvmStart + " ms] since JVM start, of which Jetty start"
+                    + " (including ServletContextListeners) [" + millisJettyStart + " ms], using "
+                    + (_useFastStart ? "fast-start, no annotation scanning" : "annotation scanning")
+                    + " - RSS [" + MatsJbangKit.getResidentSetSizeBytes() / (1024 * 1024) + " MB], "
+                    + MatsJbangKit.getClassDataSharingDescription() + ".");
 
             // Make a cute little line pointing out the port and URL for the server
             new Thread(() -> {
@@ -365,6 +946,184 @@ public interface MatsJbangJettyServer {
             }).start();
         }
 
+        private void configureVirtualThreads() {
+            // ?: Does this JVM support virtual threads?
+            if (!VirtualThreads.areSupported()) {
+                // -> No, so warn and go on with platform threads.
+                log.warn("Virtual threads was requested for Jetty, but this JVM [" + Runtime.version()
+                        + "] does not support them - need Java 21, or 19-20 with '--enable-preview'."
+                        + " Using platform threads.");
+                return;
+            }
+            // E-> Yes, virtual threads are supported, so make Jetty's thread pool dispatch onto these.
+            // Note: create(..) makes a MatsJbangQueuedThreadPool, which is VirtualThreads.Configurable.
+            if (!(_server.getThreadPool() instanceof VirtualThreads.Configurable configurable)) {
+                throw new IllegalStateException("The Jetty Server's ThreadPool [" + _server.getThreadPool()
+                        + "] is not VirtualThreads.Configurable.");
+            }
+            configurable.setVirtualThreadsExecutor(VirtualThreads.getDefaultVirtualThreadsExecutor());
+            log.info("Jetty will run request handling on virtual threads.");
+        }
+
+        private void configureCompression() {
+            GzipHandler gzipHandler = new GzipHandler();
+            gzipHandler.setMinGzipSize(_useCompression_MinSize);
+            // ?: Did we get specific MIME types?
+            if (_useCompression_MimeTypes.length > 0) {
+                // -> Yes, so only compress these.
+                gzipHandler.setIncludedMimeTypes(_useCompression_MimeTypes);
+            }
+            // Not only GET: e.g. the MatsBrokerMonitor answers its PUT and DELETE actions with JSON.
+            gzipHandler.setIncludedMethods("GET", "POST", "PUT", "DELETE");
+            // Never compress Server-Sent Events, since the deflater would hold back the events.
+            gzipHandler.addExcludedMimeTypes("text/event-stream");
+            // Note: The GzipHandler handles ETags, appending "--gzip" to the compressed variant's, and stripping it
+            // from If-None-Match - so the conditional requests of the local inspect still work.
+
+            // :: Insert it between the StatisticsHandler and the WebAppContext.
+            if (!(_server.getHandler() instanceof StatisticsHandler statisticsHandler)) {
+                throw new IllegalStateException("The Jetty Server's Handler [" + _server.getHandler()
+                        + "] is not the expected StatisticsHandler.");
+            }
+            gzipHandler.setHandler(_webAppContext);
+            statisticsHandler.setHandler(gzipHandler);
+            log.info("Jetty will gzip responses of at least [" + _useCompression_MinSize + "] bytes, MIME types "
+                    + (_useCompression_MimeTypes.length > 0 ? Arrays.toString(_useCompression_MimeTypes) : "default")
+                    + ".");
+        }
+
+        private void configureThreadPool() {
+            QueuedThreadPool threadPool = (QueuedThreadPool) _server.getThreadPool();
+            if (_configureThreadPool[0] >= 0) {
+                threadPool.setMinThreads(_configureThreadPool[0]);
+            }
+            if (_configureThreadPool[1] >= 0) {
+                threadPool.setMaxThreads(_configureThreadPool[1]);
+            }
+            if (_configureThreadPool[2] >= 0) {
+                threadPool.setReservedThreads(_configureThreadPool[2]);
+            }
+            if (_configureThreadPool[3] >= 0) {
+                threadPool.setIdleTimeout(_configureThreadPool[3]);
+            }
+            log.info("Jetty thread pool: min [" + threadPool.getMinThreads() + "], max [" + threadPool.getMaxThreads()
+                    + "], reserved [" + threadPool.getReservedThreads() + "] (-1 is heuristic), idle timeout ["
+                    + threadPool.getIdleTimeout() + " ms].");
+        }
+
+        private void configureConnector() {
+            ServerConnector connector = (ServerConnector) _server.getConnectors()[0];
+            // ?: Are acceptors or selectors specified?
+            if ((_configureConnector[0] >= 0) || (_configureConnector[1] >= 0)) {
+                // -> Yes, and these can only be given in the constructor - so replace the connector.
+                ServerConnector replacement = new ServerConnector(_server, _configureConnector[0],
+                        _configureConnector[1], connector.getConnectionFactories().toArray(new ConnectionFactory[0]));
+                replacement.setPort(connector.getPort());
+                _server.removeConnector(connector);
+                _server.addConnector(replacement);
+                connector = replacement;
+            }
+            if (_configureConnector[2] >= 0) {
+                connector.setAcceptQueueSize(_configureConnector[2]);
+            }
+            if (_configureConnector[3] >= 0) {
+                connector.setIdleTimeout(_configureConnector[3]);
+            }
+            log.info("Jetty connector: acceptors [" + connector.getAcceptors() + "], selectors ["
+                    + connector.getSelectorManager().getSelectorCount() + "], accept queue ["
+                    + connector.getAcceptQueueSize() + "] (0 is OS default), idle timeout ["
+                    + connector.getIdleTimeout() + " ms].");
+        }
+
+        private void configureHttp2C() {
+            // Note: create(..) makes a single ServerConnector with an HTTP/1.1 ConnectionFactory.
+            for (Connector connector : _server.getConnectors()) {
+                // ?: Is this a ServerConnector?
+                if (!(connector instanceof ServerConnector serverConnector)) {
+                    // -> No, so leave it be.
+                    continue;
+                }
+                HttpConnectionFactory http11 = serverConnector.getConnectionFactory(HttpConnectionFactory.class);
+                // Share the HttpConfiguration, so that the protocols behave the same wrt. headers, buffers etc.
+                HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(http11.getHttpConfiguration());
+                h2c.setMaxConcurrentStreams(_useHttp2C_MaxConcurrentStreams);
+                // Added after HTTP/1.1, which thus is the default: The HTTP/1.1 connection switches to h2c upon the
+                // HTTP/2 connection preface ("prior knowledge"), or upon an "Upgrade: h2c" request.
+                serverConnector.addConnectionFactory(h2c);
+            }
+            log.info("Jetty will serve HTTP/2 cleartext (h2c) alongside HTTP/1.1, max ["
+                    + _useHttp2C_MaxConcurrentStreams + "] concurrent streams per connection.");
+        }
+
+        private void configureFastStart() {
+            // Remove the annotation scanning, and the locations to scan.
+            _webAppContext.removeConfiguration(AnnotationConfiguration.class);
+            _webAppContext.getMetaData().setWebInfClassesResources(new ArrayList<>());
+
+            // Register explicitly what the scan would have found: Our own, and the calling class' nested classes.
+            registerAnnotatedClass(ShutdownServlet.class);
+            if (_callingClass != null) {
+                registerAnnotatedClassAndNested(_callingClass);
+            }
+            _annotatedClasses.forEach(this::registerAnnotatedClassAndNested);
+        }
+
+        private void registerAnnotatedClassAndNested(Class<?> clazz) {
+            if (clazz.isAnnotationPresent(WebServlet.class) || clazz.isAnnotationPresent(WebListener.class)) {
+                registerAnnotatedClass(clazz);
+            }
+            for (Class<?> nested : clazz.getDeclaredClasses()) {
+                if (nested.isAnnotationPresent(WebServlet.class) || nested.isAnnotationPresent(WebListener.class)) {
+                    registerAnnotatedClass(nested);
+                }
+            }
+        }
+
+        private void registerAnnotatedClass(Class<?> clazz) {
+            WebServlet webServlet = clazz.getAnnotation(WebServlet.class);
+            // ?: Servlet?
+            if (webServlet != null) {
+                // -> Yes, so register it with its mappings.
+                if (!Servlet.class.isAssignableFrom(clazz)) {
+                    throw new IllegalArgumentException("Class [" + clazz.getName() + "] is annotated with"
+                            + " @WebServlet, but is not a Servlet.");
+                }
+                ServletHolder servletHolder = new ServletHolder(clazz.asSubclass(Servlet.class));
+                if (!webServlet.name().isEmpty()) {
+                    servletHolder.setName(webServlet.name());
+                }
+                servletHolder.setAsyncSupported(webServlet.asyncSupported());
+                servletHolder.setInitOrder(webServlet.loadOnStartup());
+                for (WebInitParam initParam : webServlet.initParams()) {
+                    servletHolder.setInitParameter(initParam.name(), initParam.value());
+                }
+                String[] urlPatterns = webServlet.urlPatterns().length > 0
+                        ? webServlet.urlPatterns()
+                        : webServlet.value();
+                for (String urlPattern : urlPatterns) {
+                    _webAppContext.addServlet(servletHolder, urlPattern);
+                }
+                log.info("Fast-start: Registered Servlet [" + clazz.getName() + "] on " + Arrays.toString(urlPatterns)
+                        + ".");
+            }
+            // ?: Listener?
+            if (clazz.isAnnotationPresent(WebListener.class)) {
+                // -> Yes, so instantiate and add it.
+                if (!EventListener.class.isAssignableFrom(clazz)) {
+                    throw new IllegalArgumentException("Class [" + clazz.getName() + "] is annotated with"
+                            + " @WebListener, but is not an EventListener.");
+                }
+                try {
+                    _webAppContext.addEventListener((EventListener) clazz.getDeclaredConstructor().newInstance());
+                }
+                catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Could not instantiate @WebListener [" + clazz.getName() + "].",
+                            e);
+                }
+                log.info("Fast-start: Registered Listener [" + clazz.getName() + "].");
+            }
+        }
+
         private void includeRootServletWithHtml() {
             ServletHolder servletHolder = new ServletHolder(new HttpServlet() {
                 @Override
@@ -372,7 +1131,13 @@ public interface MatsJbangJettyServer {
                         HttpServletResponse resp) throws IOException {
                     resp.setContentType("text/html; charset=UTF-8");
                     PrintWriter out = resp.getWriter();
-                    out.println(_rootHtlm);
+                    // :: Add the Jetty thread pool utilisation at the bottom of the page.
+                    String poolStats = "<p><small>Jetty " + ((MatsJbangQueuedThreadPool) _server.getThreadPool())
+                            .getPoolStats().toText() + "</small></p>";
+                    int endOfBody = _rootHtlm.lastIndexOf("</body>");
+                    out.println(endOfBody >= 0
+                            ? _rootHtlm.substring(0, endOfBody) + poolStats + _rootHtlm.substring(endOfBody)
+                            : _rootHtlm + poolStats);
                 }
             });
             _webAppContext.addServlet(servletHolder, "");
@@ -385,8 +1150,11 @@ public interface MatsJbangJettyServer {
 
                 @Override
                 public void contextInitialized(ServletContextEvent sce) {
-                    // Create the MatsFactory and then MatsFuturizer
-                    _matsFactory = MatsJbangKit.createMatsFactory(_addMatsFactory_AppName);
+                    // Create the MatsFactory, either towards in-JVM broker, or localhost ActiveMQ.
+                    _matsFactory = _useInJvmBroker
+                            ? MatsJbangKit.createMatsFactory(MatsJbangKit.createInJvmActiveMqConnectionFactory(),
+                            _addMatsFactory_AppName)
+                            : MatsJbangKit.createMatsFactory(_addMatsFactory_AppName);
                     // Put these in the ServletContext, so that the Servlets can get hold of it.
                     sce.getServletContext().setAttribute(MatsFactory.class.getName(), _matsFactory);
                 }
@@ -428,6 +1196,51 @@ public interface MatsJbangJettyServer {
             });
         }
 
+        private void includeMatsFuturizerAdmissionScl() {
+            _webAppContext.addEventListener(new ServletContextListener() {
+                private MatsJbangFuturizerAdmission _admission;
+
+                @Override
+                public void contextInitialized(ServletContextEvent sce) {
+                    // Fetch MatsFuturizer from ServletContext
+                    var matsFuturizer = (MatsFuturizer) sce.getServletContext()
+                            .getAttribute(MatsFuturizer.class.getName());
+                    // :: Sanity assert
+                    if (matsFuturizer == null) {
+                        throw new IllegalStateException("Missing MatsFuturizer in ServletContext. You may add one"
+                                + " using '" + MatsJbangJettyServer.class.getSimpleName() + ".addMatsFuturizer()'.");
+                    }
+                    _admission = MatsJbangFuturizerAdmission.create(matsFuturizer,
+                            _addMatsFuturizerAdmission_MaxInFlight);
+                    sce.getServletContext().setAttribute(MatsJbangFuturizerAdmission.class.getName(), _admission);
+                }
+
+                @Override
+                public void contextDestroyed(ServletContextEvent sce) {
+                    // Clean up - the MatsFuturizer is closed by its own listener.
+                    _admission.close();
+                }
+            });
+        }
+
+        private void includeMatsFuturizerCacheScl() {
+            _webAppContext.addEventListener(new ServletContextListener() {
+                @Override
+                public void contextInitialized(ServletContextEvent sce) {
+                    // Fetch MatsFuturizer from ServletContext
+                    var matsFuturizer = (MatsFuturizer) sce.getServletContext()
+                            .getAttribute(MatsFuturizer.class.getName());
+                    // :: Sanity assert
+                    if (matsFuturizer == null) {
+                        throw new IllegalStateException("Missing MatsFuturizer in ServletContext. You may add one"
+                                + " using '" + MatsJbangJettyServer.class.getSimpleName() + ".addMatsFuturizer()'.");
+                    }
+                    sce.getServletContext().setAttribute(MatsJbangFuturizerCache.class.getName(),
+                            MatsJbangFuturizerCache.create(matsFuturizer, _addMatsFuturizerCache_MaxWeightBytes));
+                }
+            });
+        }
+
         private void setupUsingMatsFactoryScl() {
             // The ServletContextListener creates the app MatsFactory and MatsFuturizer, for use by Servlets.
             _webAppContext.addEventListener(new ServletContextListener() {
@@ -468,18 +1281,27 @@ public interface MatsJbangJettyServer {
                 }
             });
 
-            // Add Servlet that serves the LocalInspect.
+            // Add Servlet that serves the LocalInspect - rendered at most once per cache interval.
             ServletHolder servletHolder = new ServletHolder(new HttpServlet() {
+                private MatsJbangRenderCache _renderCache;
+
+                @Override
+                public void init() {
+                    _renderCache = new MatsJbangRenderCache(out -> render(out, getServletContext()),
+                            _addMatsLocalInspect_CacheMillis);
+                }
+
                 @Override
                 protected void doGet(HttpServletRequest req,
                         HttpServletResponse resp) throws IOException {
                     resp.setContentType("text/html; charset=UTF-8");
+                    _renderCache.serve(req, resp);
+                }
 
-                    var localInspect = (LocalHtmlInspectForMatsFactory) req.getServletContext()
+                private void render(PrintWriter out, ServletContext servletContext) throws IOException {
+                    var localInspect = (LocalHtmlInspectForMatsFactory) servletContext
                             .getAttribute(LocalHtmlInspectForMatsFactory.class.getName());
 
-                    PrintWriter out = resp.getWriter();
-
                     out.println("""
                             <!DOCTYPE html>
                             <html><body>
@@ -497,6 +1319,18 @@ public interface MatsJbangJettyServer {
                               <h1>Service <i>'\
                             """ + _callingClass.getName()
                             + "'</i> embeddable Introspection GUI</h1>");
+                    // ?: Do we have the live stats?
+                    if (servletContext.getAttribute(MatsJbangLiveStats.class.getName()) != null) {
+                        // -> Yes, so link to them.
+                        out.println("<a href='localinspect/live'>Live per-stage stats</a><br><br>");
+                    }
+                    var memoizer = (MatsJbangReplyMemoizer) servletContext
+                            .getAttribute(MatsJbangReplyMemoizer.class.getName());
+                    // ?: Do we have reply memoization?
+                    if (memoizer != null) {
+                        // -> Yes, so show the hit ratios.
+                        memoizer.writeHtml(out);
+                    }
                     localInspect.createFactoryReport(out, true, true, true);
 
                     out.println("</body></html>");
@@ -505,6 +1339,333 @@ public interface MatsJbangJettyServer {
             _webAppContext.addServlet(servletHolder, "/localinspect");
         }
 
+        private void includeMatsHttpGatewayServlet() {
+            // Note: The gateway fetches the MatsFuturizer (and optional admission) from the ServletContext on init.
+            ServletHolder servletHolder = new ServletHolder(_addMatsHttpGateway);
+            servletHolder.setAsyncSupported(true);
+            _webAppContext.addServlet(servletHolder, "/mats/*");
+        }
+
+        private void includeMatsMetricsSclAndServlet() {
+            _webAppContext.addEventListener(new ServletContextListener() {
+                @Override
+                public void contextInitialized(ServletContextEvent sce) {
+                    getOrInstallMetricsInterceptor(sce.getServletContext());
+                }
+            });
+
+            // Add Servlet that serves the metrics in Prometheus text format.
+            ServletHolder servletHolder = new ServletHolder(new HttpServlet() {
+                @Override
+                protected void doGet(HttpServletRequest req,
+                        HttpServletResponse resp) throws IOException {
+                    resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+
+                    var metrics = (MatsJbangMetricsInterceptor) req.getServletContext()
+                            .getAttribute(MatsJbangMetricsInterceptor.class.getName());
+                    // Note: The futurizer is optional, and may thus be null.
+                    var matsFuturizer = (MatsFuturizer) req.getServletContext()
+                            .getAttribute(MatsFuturizer.class.getName());
+
+                    metrics.writePrometheusExposition(resp.getWriter(), matsFuturizer);
+
+                    // Note: The futurizer admission is optional, and may thus be null.
+                    var admission = (MatsJbangFuturizerAdmission) req.getServletContext()
+                            .getAttribute(MatsJbangFuturizerAdmission.class.getName());
+                    if (admission != null) {
+                        admission.writePrometheusExposition(resp.getWriter());
+                    }
+
+                    // Note: The reply memoizer is optional, and may thus be null.
+                    var memoizer = (MatsJbangReplyMemoizer) req.getServletContext()
+                            .getAttribute(MatsJbangReplyMemoizer.class.getName());
+                    if (memoizer != null) {
+                        memoizer.writePrometheusExposition(resp.getWriter());
+                    }
+
+                    // Note: The futurizer cache is optional, and may thus be null.
+                    var cache = (MatsJbangFuturizerCache) req.getServletContext()
+                            .getAttribute(MatsJbangFuturizerCache.class.getName());
+                    if (cache != null) {
+                        cache.writePrometheusExposition(resp.getWriter());
+                    }
+
+                    ((MatsJbangQueuedThreadPool) _server.getThreadPool()).writePrometheusExposition(resp.getWriter());
+                }
+            });
+            _webAppContext.addServlet(servletHolder, "/metrics");
+        }
+
+        private void includeMatsReplyMemoizationScl() {
+            _webAppContext.addEventListener(new ServletContextListener() {
+                @Override
+                public void contextInitialized(ServletContextEvent sce) {
+                    // Fetch MatsFactory from ServletContext
+                    var matsFactory = (MatsFactory) sce.getServletContext()
+                            .getAttribute(MatsFactory.class.getName());
+                    // :: Sanity assert
+                    if (matsFactory == null) {
+                        throw new IllegalStateException("Missing MatsFactory in ServletContext. You may add one"
+                                + " using '" + MatsJbangJettyServer.class.getSimpleName() + ".addMatsFactory()'.");
+                    }
+                    var memoizer = MatsJbangReplyMemoizer.install((MatsInterceptable) matsFactory,
+                            _addMatsReplyMemoization_MaxEntries).memoize(_addMatsReplyMemoization_EndpointIds);
+                    sce.getServletContext().setAttribute(MatsJbangReplyMemoizer.class.getName(), memoizer);
+                }
+            });
+        }
+
+        private void includeMatsLiveStatsSclAndServlets() {
+            _webAppContext.addEventListener(new ServletContextListener() {
+                @Override
+                public void contextInitialized(ServletContextEvent sce) {
+                    MatsJbangLiveStats liveStats = MatsJbangLiveStats.create(
+                            getOrInstallMetricsInterceptor(sce.getServletContext()), _addMatsLiveStats_TickMillis);
+                    sce.getServletContext().setAttribute(MatsJbangLiveStats.class.getName(), liveStats);
+                }
+
+                @Override
+                public void contextDestroyed(ServletContextEvent sce) {
+                    var liveStats = (MatsJbangLiveStats) sce.getServletContext()
+                            .getAttribute(MatsJbangLiveStats.class.getName());
+                    if (liveStats != null) {
+                        liveStats.close();
+                    }
+                }
+            });
+
+            // Add Servlet that serves the page, which applies the events to its table.
+            ServletHolder pageHolder = new ServletHolder(new HttpServlet() {
+                @Override
+                protected void doGet(HttpServletRequest req,
+                        HttpServletResponse resp) throws IOException {
+                    resp.setContentType("text/html; charset=UTF-8");
+                    var liveStats = (MatsJbangLiveStats) req.getServletContext()
+                            .getAttribute(MatsJbangLiveStats.class.getName());
+                    PrintWriter out = resp.getWriter();
+                    out.println("<!DOCTYPE html>\n<html><body>");
+                    out.println("<a href='../localinspect'>Back to local inspect</a>");
+                    out.println("<h1>Service <i>'" + _callingClass.getName() + "'</i> live per-stage stats</h1>");
+                    liveStats.writeHtml(out, "live/events");
+                    out.println("</body></html>");
+                }
+            });
+            _webAppContext.addServlet(pageHolder, "/localinspect/live");
+
+            // Add async Servlet that holds the Server-Sent Events streams.
+            ServletHolder eventsHolder = new ServletHolder(new HttpServlet() {
+                @Override
+                protected void doGet(HttpServletRequest req,
+                        HttpServletResponse resp) throws IOException {
+                    var liveStats = (MatsJbangLiveStats) req.getServletContext()
+                            .getAttribute(MatsJbangLiveStats.class.getName());
+                    liveStats.addClient(req, resp);
+                }
+            });
+            eventsHolder.setAsyncSupported(true);
+            _webAppContext.addServlet(eventsHolder, "/localinspect/live/events");
+        }
+
+        /**
+         * Both {@link #addMatsMetrics()} and {@link #addMatsLiveStats(int)} use the interceptor, so whichever
+         * ServletContextListener runs first installs it.
+         */
+        private static MatsJbangMetricsInterceptor getOrInstallMetricsInterceptor(ServletContext servletContext) {
+            var metrics = (MatsJbangMetricsInterceptor) servletContext
+                    .getAttribute(MatsJbangMetricsInterceptor.class.getName());
+            // ?: Already installed?
+            if (metrics != null) {
+                // -> Yes, so use it.
+                return metrics;
+            }
+            // E-> No, so install it.
+            // Fetch MatsFactory from ServletContext
+            var matsFactory = (MatsFactory) servletContext.getAttribute(MatsFactory.class.getName());
+            // :: Sanity assert
+            if (matsFactory == null) {
+                throw new IllegalStateException("Missing MatsFactory in ServletContext. You may add one"
+                        + " using '" + MatsJbangJettyServer.class.getSimpleName() + ".addMatsFactory()'.");
+            }
+            metrics = MatsJbangMetricsInterceptor.install((MatsInterceptable) matsFactory);
+            servletContext.setAttribute(MatsJbangMetricsInterceptor.class.getName(), metrics);
+            return metrics;
+        }
+
+        private void includeMatsConcurrencyAutoscalerSclAndServlet() {
+            _webAppContext.addEventListener(new ServletContextListener() {
+                @Override
+                public void contextInitialized(ServletContextEvent sce) {
+                    // Fetch MatsFactory from ServletContext
+                    var matsFactory = (MatsFactory) sce.getServletContext()
+                            .getAttribute(MatsFactory.class.getName());
+                    // :: Sanity assert
+                    if (matsFactory == null) {
+                        throw new IllegalStateException("Missing MatsFactory in ServletContext. You may add one"
+                                + " using '" + MatsJbangJettyServer.class.getSimpleName() + ".addMatsFactory()'.");
+                    }
+
+                    MatsJbangConcurrencyAutoscaler autoscaler = MatsJbangConcurrencyAutoscaler.create(matsFactory)
+                            .bounds(_addMatsConcurrencyAutoscaler_Bounds[0], _addMatsConcurrencyAutoscaler_Bounds[1])
+                            .start();
+                    sce.getServletContext().setAttribute(MatsJbangConcurrencyAutoscaler.class.getName(),
+                            autoscaler);
+                }
+
+                @Override
+                public void contextDestroyed(ServletContextEvent sce) {
+                    var autoscaler = (MatsJbangConcurrencyAutoscaler) sce.getServletContext()
+                            .getAttribute(MatsJbangConcurrencyAutoscaler.class.getName());
+                    // ?: Did we get to create it? (Not if the MatsFactory was missing.)
+                    if (autoscaler != null) {
+                        // -> Yes, so clean up - the MatsFactory is stopped by its own listener.
+                        autoscaler.close();
+                    }
+                }
+            });
+
+            // Add Servlet that shows the scaling decisions.
+            ServletHolder servletHolder = new ServletHolder(new HttpServlet() {
+                @Override
+                protected void doGet(HttpServletRequest req,
+                        HttpServletResponse resp) throws IOException {
+                    resp.setContentType("text/plain; charset=UTF-8");
+
+                    var autoscaler = (MatsJbangConcurrencyAutoscaler) req.getServletContext()
+                            .getAttribute(MatsJbangConcurrencyAutoscaler.class.getName());
+
+                    PrintWriter out = resp.getWriter();
+                    out.println("Concurrency autoscaler decisions, newest first:");
+                    autoscaler.getDecisions().forEach(out::println);
+                }
+            });
+            _webAppContext.addServlet(servletHolder, "/autoscaler");
+        }
+
+        private record LoadScenario(String targetEndpointId, Class<?> replyClass,
+                LongFunction<Object> requestSupplier) {
+        }
+
+        private void includeLoadGeneratorServlet() {
+            // Keep the results of the last runs, newest first.
+            Deque<String> previousResults = new ArrayDeque<>();
+            // The description of the run in progress, if any - only one run at a time.
+            AtomicReference<String> currentRun = new AtomicReference<>();
+            long maxDurationSeconds = 300;
+
+            ServletHolder servletHolder = new ServletHolder(new HttpServlet() {
+                @Override
+                protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                    resp.setContentType("text/html; charset=UTF-8");
+                    PrintWriter out = resp.getWriter();
+                    String running = currentRun.get();
+                    out.println("<html><head>" + (running != null ? "<meta http-equiv='refresh' content='2'>" : "")
+                            + "</head><body><a href='.'>Back to root</a>");
+                    out.println("<h1>Load generator</h1>");
+                    // ?: Is a run in progress?
+                    if (running != null) {
+                        // -> Yes, so show it - the page refreshes until it is done.
+                        out.println("<h3>Running</h3><pre>" + running + "</pre>");
+                    }
+
+                    out.println("<h3>Scenarios</h3>");
+                    out.println("Runs in the background, one at a time. POST <code>scenario={name}</code> with"
+                            + " either <code>rate={req/s}</code> (open loop) or <code>concurrency={n}</code> (closed"
+                            + " loop), and <code>duration={seconds}</code>, max " + maxDurationSeconds + ".<br>");
+                    for (Map.Entry<String, LoadScenario> entry : _loadScenarios.entrySet()) {
+                        String name = entry.getKey();
+                        out.println("<b>" + name + "</b> -> " + entry.getValue().targetEndpointId() + ":"
+                                + runForm(name, "rate", 100, "100 req/s, 10 s")
+                                + runForm(name, "rate", 1000, "1000 req/s, 10 s")
+                                + runForm(name, "concurrency", 50, "50 concurrent, 10 s") + "<br>");
+                    }
+                    out.println("<h3>Previous results</h3><pre>");
+                    synchronized (previousResults) {
+                        out.println(String.join("\n\n", previousResults));
+                    }
+                    out.println("</pre></body></html>");
+                }
+
+                private String runForm(String scenarioName, String param, int value, String label) {
+                    return " <form method='post' action='loadgenerator' style='display:inline'>"
+                            + "<input type='hidden' name='scenario' value='" + scenarioName + "'>"
+                            + "<input type='hidden' name='" + param + "' value='" + value + "'>"
+                            + "<input type='hidden' name='duration' value='10'>"
+                            + "<input type='submit' value='" + label + "'></form>";
+                }
+
+                @Override
+                protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                    String scenarioName = req.getParameter("scenario");
+                    LoadScenario scenario = scenarioName != null ? _loadScenarios.get(scenarioName) : null;
+                    if (scenario == null) {
+                        resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown scenario.");
+                        return;
+                    }
+                    var matsFuturizer = (MatsFuturizer) req.getServletContext()
+                            .getAttribute(MatsFuturizer.class.getName());
+                    // :: Sanity assert
+                    if (matsFuturizer == null) {
+                        throw new IllegalStateException("Missing MatsFuturizer in ServletContext. You may add one"
+                                + " using '" + MatsJbangJettyServer.class.getSimpleName()
+                                + ".addMatsFuturizer()'.");
+                    }
+                    MatsJbangLoadGenerator loadGenerator = MatsJbangLoadGenerator.create(matsFuturizer,
+                                    scenario.targetEndpointId(), scenario.replyClass(), scenario.requestSupplier())
+                            .fromId(_callingClass.getSimpleName() + ".loadgenerator." + scenarioName);
+                    String rateP = req.getParameter("rate");
+                    String concurrencyP = req.getParameter("concurrency");
+                    String durationP = req.getParameter("duration");
+                    long durationSeconds;
+                    try {
+                        if (rateP != null) {
+                            loadGenerator.rate(Double.parseDouble(rateP));
+                        }
+                        else {
+                            loadGenerator.concurrency(concurrencyP != null ? Integer.parseInt(concurrencyP) : 10);
+                        }
+                        durationSeconds = durationP != null ? Long.parseLong(durationP) : 10;
+                        if ((durationSeconds < 1) || (durationSeconds > maxDurationSeconds)) {
+                            throw new IllegalArgumentException("duration must be 1 to " + maxDurationSeconds
+                                    + " seconds, was [" + durationSeconds + "].");
+                        }
+                    }
+                    // Note: NumberFormatException is an IllegalArgumentException.
+                    catch (IllegalArgumentException e) {
+                        resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid parameters: " + e.getMessage());
+                        return;
+                    }
+                    loadGenerator.duration(Duration.ofSeconds(durationSeconds));
+
+                    String load = rateP != null
+                            ? "rate " + rateP
+                            : "concurrency " + (concurrencyP != null ? concurrencyP : 10);
+                    String description = "Scenario '" + scenarioName + "' @ " + LocalDateTime.now().withNano(0)
+                            + ", " + load + ", duration " + durationSeconds + " s";
+                    // ?: Could we claim the run?
+                    if (!currentRun.compareAndSet(null, description)) {
+                        // -> No, another is in progress.
+                        resp.sendError(HttpServletResponse.SC_CONFLICT, "A load run is already in progress.");
+                        return;
+                    }
+                    loadGenerator.start().whenComplete((loadResult, throwable) -> {
+                        String result = description + "\n" + (throwable != null
+                                ? "Failed: " + throwable
+                                : loadResult.toText());
+                        synchronized (previousResults) {
+                            previousResults.addFirst(result);
+                            while (previousResults.size() > 20) {
+                                previousResults.removeLast();
+                            }
+                        }
+                        currentRun.set(null);
+                    });
+                    // Post/Redirect/Get, to the page which shows the run in progress.
+                    resp.sendRedirect("loadgenerator");
+                }
+            });
+            _webAppContext.addServlet(servletHolder, "/loadgenerator");
+        }
+
         /**
          * Servlet to shut down this JVM (<code>System.exit(0)</code>).
          */
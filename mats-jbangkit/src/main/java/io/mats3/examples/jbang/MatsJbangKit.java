@@ -1,16 +1,26 @@
 package io.mats3.examples.jbang;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jms.ConnectionFactory;
 
 import io.mats3.MatsInitiator.KeepTrace;
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.activemq.RedeliveryPolicy;
+import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.broker.region.Queue;
 import org.apache.activemq.store.kahadb.MessageDatabase;
 import org.apache.activemq.transport.AbstractInactivityMonitor;
+import org.eclipse.jetty.util.VirtualThreads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
@@ -19,14 +29,19 @@ import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.ConsoleAppender;
 import ch.qos.logback.core.status.InfoStatus;
 import ch.qos.logback.core.status.StatusManager;
 import ch.qos.logback.core.util.StatusPrinter;
 import io.mats3.MatsFactory;
+import io.mats3.examples.jbang.MatsJbangAsyncConsoleAppender.OverflowPolicy;
 import io.mats3.impl.jms.JmsMatsFactory;
 import io.mats3.impl.jms.JmsMatsJmsSessionHandler_Pooling;
+import io.mats3.serial.MatsSerializer;
 import io.mats3.serial.json.MatsSerializerJson;
+import io.mats3.test.broker.MatsTestBroker;
+import io.mats3.test.broker.MatsTestBroker.ActiveMq;
 import io.mats3.util.MatsFuturizer;
 import io.mats3.util.RandomString;
 
@@ -47,9 +62,122 @@ public class MatsJbangKit {
      * @return the JMS {@link ConnectionFactory} to localhost ActiveMQ.
      */
     public static ConnectionFactory createActiveMqConnectionFactory() {
+        return createActiveMqConnectionFactory(Profile.DEFAULT);
+    }
+
+    /**
+     * Same as {@link #createActiveMqConnectionFactory()}, but additionally applies the settings of the specified
+     * {@link Profile}.
+     *
+     * @param profile
+     *         which set of client-side performance settings to apply.
+     * @return the JMS {@link ConnectionFactory} to localhost ActiveMQ.
+     */
+    public static ConnectionFactory createActiveMqConnectionFactory(Profile profile) {
         // :: Make ActiveMq JMS ConnectionFactory, towards localhost (which is default, using failover protocol)
         ActiveMQConnectionFactory jmsConnectionFactory = new ActiveMQConnectionFactory();
+        configureActiveMqConnectionFactory(jmsConnectionFactory);
+        profile.applyTo(jmsConnectionFactory);
+        return jmsConnectionFactory;
+    }
+
+    /**
+     * Client-side performance profiles for the ActiveMQ {@link ConnectionFactory}, used with
+     * {@link #createActiveMqConnectionFactory(Profile)}. Note that Mats3 always uses transacted JMS Sessions, and
+     * consumes using <code>MessageConsumer.receive()</code> in its own stage threads: Thus <code>useAsyncSend</code>
+     * (transacted sends are already async up to the commit), <code>optimizeAcknowledge</code> (only for
+     * auto-acknowledge) and <code>alwaysSessionAsync</code> (only for MessageListeners) do not have any effect for the
+     * Mats3 stages - they are still set explicitly, so that you can see all the relevant knobs in one place. The
+     * settings that do matter are prefetch, <code>dispatchAsync</code> and <code>copyMessageOnSend</code>. Compression
+     * is left off in all profiles, since the Mats3 serializer already compresses larger envelopes, and compressing
+     * twice only costs CPU.
+     */
+    public enum Profile {
+        /**
+         * ActiveMQ's defaults: Queue prefetch 1000, <code>dispatchAsync=true</code>,
+         * <code>alwaysSessionAsync=true</code>, <code>copyMessageOnSend=true</code>, <code>useAsyncSend=false</code>,
+         * <code>optimizeAcknowledge=false</code>, <code>useCompression=false</code>.
+         */
+        DEFAULT,
+
+        /**
+         * Queue prefetch 1, so that a message is never stuck in the prefetch buffer of a busy consumer while another
+         * consumer (stage thread, or other service instance) is idle - this lowers the tail latency when processing
+         * times vary, at the cost of a broker round-trip per message. <code>dispatchAsync=false</code>, so that the
+         * broker dispatches directly on the connection's transport thread instead of handing over to a dispatch
+         * thread - saving a thread hop, but letting a slow consumer slow down the broker side of its connection.
+         * <code>copyMessageOnSend=false</code>, since Mats3 never reuses a sent message object.
+         */
+        LOW_LATENCY,
+
+        /**
+         * Queue prefetch 5000, so that each consumer always has a buffer of messages ready - this maximizes throughput
+         * when there is a backlog, but gives unfair distribution between consumers when there is not.
+         * <code>dispatchAsync=true</code>, so that the broker's transport thread is never held up by the consumer.
+         * <code>copyMessageOnSend=false</code>, since Mats3 never reuses a sent message object. Also sets
+         * <code>useAsyncSend=true</code> and <code>optimizeAcknowledge=true</code>, which benefit any non-Mats3 JMS
+         * usage of the same ConnectionFactory.
+         */
+        HIGH_THROUGHPUT;
+
+        void applyTo(ActiveMQConnectionFactory jmsConnectionFactory) {
+            switch (this) {
+                case DEFAULT -> {
+                    /* Leave ActiveMQ's defaults */
+                }
+                case LOW_LATENCY -> {
+                    jmsConnectionFactory.getPrefetchPolicy().setQueuePrefetch(1);
+                    jmsConnectionFactory.setDispatchAsync(false);
+                    jmsConnectionFactory.setAlwaysSessionAsync(false);
+                    jmsConnectionFactory.setCopyMessageOnSend(false);
+                    jmsConnectionFactory.setUseAsyncSend(false);
+                    jmsConnectionFactory.setOptimizeAcknowledge(false);
+                    jmsConnectionFactory.setUseCompression(false);
+                }
+                case HIGH_THROUGHPUT -> {
+                    jmsConnectionFactory.getPrefetchPolicy().setQueuePrefetch(5000);
+                    jmsConnectionFactory.setDispatchAsync(true);
+                    jmsConnectionFactory.setAlwaysSessionAsync(true);
+                    jmsConnectionFactory.setCopyMessageOnSend(false);
+                    jmsConnectionFactory.setUseAsyncSend(true);
+                    jmsConnectionFactory.setOptimizeAcknowledge(true);
+                    jmsConnectionFactory.setUseCompression(false);
+                }
+            }
+        }
+    }
 
+    private static BrokerService __inJvmBroker;
+
+    /**
+     * Creates an ActiveMQ {@link ConnectionFactory} towards an in-JVM ActiveMQ broker, using the <code>vm://</code>
+     * transport - thus no TCP, and no external ActiveMQ process needed. The broker is started on first invocation using
+     * {@link MatsTestBroker}, and is shared by all subsequent invocations in this JVM: You may thus host multiple
+     * services, e.g. all of the 'stdexample' services, in the same JVM, communicating over the in-JVM broker. This is
+     * useful for measuring the pure Mats3 and serialization overhead without the network stack, and for running
+     * high-rate performance tests. The broker is non-persistent, and is stopped by a shutdown hook. The
+     * ConnectionFactory is configured the same way as {@link #createActiveMqConnectionFactory()}.
+     * <p>
+     * Note that the in-JVM broker is not reachable from other JVMs, so e.g. the 'ActiveMqRun' MatsBrokerMonitor cannot
+     * see it.
+     *
+     * @return the JMS {@link ConnectionFactory} to the in-JVM ActiveMQ broker.
+     */
+    public static synchronized ConnectionFactory createInJvmActiveMqConnectionFactory() {
+        // ?: Have we already started the in-JVM broker?
+        if (__inJvmBroker == null) {
+            // -> No, so start it.
+            MatsJbangKit.configureLogbackToConsole_Info();
+            __inJvmBroker = MatsTestBroker.newActiveMqBroker(ActiveMq.SHUTDOWNHOOK);
+        }
+        // "create=false": Do not create an embedded broker on demand if it is not there - it should be.
+        ActiveMQConnectionFactory jmsConnectionFactory = new ActiveMQConnectionFactory(
+                "vm://" + __inJvmBroker.getBrokerName() + "?create=false");
+        configureActiveMqConnectionFactory(jmsConnectionFactory);
+        return jmsConnectionFactory;
+    }
+
+    private static void configureActiveMqConnectionFactory(ActiveMQConnectionFactory jmsConnectionFactory) {
         // :: We won't be needing Topic Advisories (we don't use temp queues/topics), so don't subscribe to them.
         jmsConnectionFactory.setWatchTopicAdvisories(false);
 
@@ -68,8 +196,6 @@ public class MatsJbangKit {
         // :: We don't need in-order, so just deliver other messages while waiting for redelivery.
         // NOTE: This was buggy until 5.17.3: https://issues.apache.org/jira/browse/AMQ-8617
         jmsConnectionFactory.setNonBlockingRedelivery(true);
-
-        return jmsConnectionFactory;
     }
 
     /**
@@ -122,12 +248,66 @@ public class MatsJbangKit {
      * @return the created MatsFactory.
      */
     public static JmsMatsFactory<String> createMatsFactory(ConnectionFactory jmsConnectionFactory, String appName) {
+        return createMatsFactory(jmsConnectionFactory, appName, MatsSerializerJson.create());
+    }
+
+    /**
+     * Creates a JMS-transaction-only MatsFactory using the supplied JMS {@link ConnectionFactory}, app name and
+     * {@link MatsSerializer} - the other variants use {@link MatsSerializerJson}. You may e.g. employ the binary
+     * {@link MatsSerializerSmile}, but note that all MatsFactories on the Mats fabric must then use the same
+     * serializer. Also adds some randomness to the node name (in addition to default hostname), so that each JVM
+     * "emulates" a different node.
+     *
+     * @param jmsConnectionFactory
+     *         the {@link ConnectionFactory} to use for the {@link JmsMatsFactory}.
+     * @param appName
+     *         what appName to use for the MatsFactory.
+     * @param matsSerializer
+     *         the {@link MatsSerializer} to use for the MatsFactory.
+     * @param <Z>
+     *         the type which the DTOs and States are serialized to by the {@link MatsSerializer}.
+     * @return the created MatsFactory.
+     */
+    public static <Z> JmsMatsFactory<Z> createMatsFactory(ConnectionFactory jmsConnectionFactory, String appName,
+            MatsSerializer<Z> matsSerializer) {
+        return createMatsFactory(jmsConnectionFactory, appName, matsSerializer, getKeepTraceFromSystemProperty());
+    }
+
+    /**
+     * The System Property which the other <code>createMatsFactory(..)</code> variants read the default
+     * {@link KeepTrace} from - e.g. <code>"-DkeepTrace=MINIMAL"</code>. If not set, {@link KeepTrace#FULL} is used.
+     */
+    public static final String SYSPROP_KEEP_TRACE = "keepTrace";
+
+    /**
+     * Creates a JMS-transaction-only MatsFactory as {@link #createMatsFactory(ConnectionFactory, String,
+     * MatsSerializer)}, but with the specified default {@link KeepTrace}. With {@link KeepTrace#FULL}, the MatsTrace
+     * carries every call along with its data and state throughout the flow, so the envelope grows with each hop of a
+     * multi-stage flow, and is serialized, sent and deserialized in full at every stage. {@link KeepTrace#COMPACT}
+     * drops the data and state of earlier calls, while {@link KeepTrace#MINIMAL} also drops the call history. You may
+     * compare the modes using the envelope sizes and serialization times per stage from
+     * {@link MatsJbangJettyServer#addMatsMetrics()}.
+     *
+     * @param jmsConnectionFactory
+     *         the {@link ConnectionFactory} to use for the {@link JmsMatsFactory}.
+     * @param appName
+     *         what appName to use for the MatsFactory.
+     * @param matsSerializer
+     *         the {@link MatsSerializer} to use for the MatsFactory.
+     * @param keepTrace
+     *         the default {@link KeepTrace} for initiations from this MatsFactory.
+     * @param <Z>
+     *         the type which the DTOs and States are serialized to by the {@link MatsSerializer}.
+     * @return the created MatsFactory.
+     */
+    public static <Z> JmsMatsFactory<Z> createMatsFactory(ConnectionFactory jmsConnectionFactory, String appName,
+            MatsSerializer<Z> matsSerializer, KeepTrace keepTrace) {
         MatsJbangKit.configureLogbackToConsole_Info();
 
         // :: Make the JMS-based MatsFactory, providing the JMS ConnectionFactory
-        JmsMatsFactory<String> matsFactory = JmsMatsFactory.createMatsFactory_JmsOnlyTransactions(appName, "#examples#",
+        JmsMatsFactory<Z> matsFactory = JmsMatsFactory.createMatsFactory_JmsOnlyTransactions(appName, "#examples#",
                 JmsMatsJmsSessionHandler_Pooling.create(jmsConnectionFactory),
-                MatsSerializerJson.create());
+                matsSerializer);
 
         // .. turn down the concurrency from default cpus * 2, as that is pretty heavy on an e.g. 8-core dev machine.
         matsFactory.getFactoryConfig().setConcurrency(2);
@@ -137,8 +317,11 @@ public class MatsJbangKit {
         String origNodename = matsFactory.getFactoryConfig().getNodename();
         matsFactory.getFactoryConfig().setNodename(origNodename + "_" + RandomString.randomString(6));
 
-        // Since this is meant to demonstrate the functionality of Mats, pull out all the stops: FULL MatsTrace!
-        matsFactory.setDefaultKeepTrace(KeepTrace.FULL);
+        // Since this is meant to demonstrate the functionality of Mats, the default is to pull out all the stops:
+        // FULL MatsTrace! But you may want to see the difference, so it is selectable.
+        matsFactory.setDefaultKeepTrace(keepTrace);
+        LoggerFactory.getLogger(MatsJbangKit.class).info("Default KeepTrace for MatsFactory [" + appName + "] is ["
+                + keepTrace + "] - you may change this with '-D" + SYSPROP_KEEP_TRACE + "=FULL|COMPACT|MINIMAL'.");
 
         // :: Add a shutdownhook to take it down in case of e.g. Ctrl-C - if it has not been done by the code.
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -186,6 +369,54 @@ public class MatsJbangKit {
         };
     }
 
+    /**
+     * Creates a {@link MatsFuturizer} which completes the returned futures on the supplied {@link Executor}, instead of
+     * on the futurizer's own bounded completer thread pool - so that blocking user code in e.g.
+     * <code>thenAccept(..)</code> won't stall the other replies. See {@link ExecutorCompletingMatsFuturizer}, which
+     * also has counters for queued and active completions.
+     *
+     * @param matsFactory
+     *         the {@link MatsFactory} which the futurizer should use.
+     * @param completionExecutor
+     *         the {@link Executor} on which the returned futures will be completed.
+     * @return the created {@link ExecutorCompletingMatsFuturizer}.
+     */
+    public static ExecutorCompletingMatsFuturizer createMatsFuturizer(MatsFactory matsFactory,
+            Executor completionExecutor) {
+        return ExecutorCompletingMatsFuturizer.create(matsFactory, completionExecutor);
+    }
+
+    /**
+     * Variant of {@link #createMatsFuturizer(MatsFactory, Executor)} which completes the returned futures on virtual
+     * threads, one per completion, so that user code in the dependent stages can block cheaply. Virtual threads
+     * requires Java 21 (or Java 19-20 with <code>--enable-preview</code>): If the JVM doesn't support them, a warning
+     * is logged, and an unbounded cached pool of daemon platform threads is used instead - which is shut down when
+     * the futurizer is closed.
+     *
+     * @param matsFactory
+     *         the {@link MatsFactory} which the futurizer should use.
+     * @return the created {@link ExecutorCompletingMatsFuturizer}.
+     */
+    public static ExecutorCompletingMatsFuturizer createMatsFuturizer_VirtualThreads(MatsFactory matsFactory) {
+        // ?: Does this JVM support virtual threads?
+        if (VirtualThreads.areSupported()) {
+            // -> Yes, so use a virtual thread per completion - the default executor is shared, so not ours to close.
+            return ExecutorCompletingMatsFuturizer.create(matsFactory,
+                    VirtualThreads.getDefaultVirtualThreadsExecutor());
+        }
+        // E-> No, so warn and use cached platform threads, which the futurizer shuts down on close.
+        LoggerFactory.getLogger(MatsJbangKit.class).warn("Virtual threads was requested for MatsFuturizer"
+                + " completions, but this JVM [" + Runtime.version() + "] does not support them - need Java 21,"
+                + " or 19-20 with '--enable-preview'. Using a cached pool of platform threads.");
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService completionExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "MatsFuturizer-completion-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        return ExecutorCompletingMatsFuturizer.createOwningExecutor(matsFactory, completionExecutor);
+    }
+
     /**
      * Creates a Spring {@link AnnotationConfigApplicationContext}, populating it with a {@link MatsFactory} so that the
      * annotation {@link io.mats3.spring.EnableMats @EnableMats} works, and a {@link MatsFuturizer} for simple injection
@@ -267,6 +498,10 @@ public class MatsJbangKit {
      * can be overridden with '<code>-D{level}</code>', where {level} can be trace, debug, info, warn, error, and
      * no_logging).
      * <p>
+     * If the JVM is started with '<code>-Dasync_logging</code>', the console output is done asynchronously by the
+     * {@link MatsJbangAsyncConsoleAppender}, blocking the logging thread only if its queue is full - or with
+     * '<code>-Dasync_logging=drop</code>', dropping INFO and below instead of blocking when the queue is full.
+     * <p>
      * Note that it will only be configured once even in face of multiple invocations. Most methods in the Example Kit
      * configures logging with INFO, but if you want anything else, just configure it earlier - or use the '-D{level}'
      * functionality.
@@ -318,11 +553,32 @@ public class MatsJbangKit {
         }
         logEncoder.start();
 
-        ConsoleAppender<ILoggingEvent> logConsoleAppender = new ConsoleAppender<>();
-        logConsoleAppender.setContext(context);
-        logConsoleAppender.setName("console");
-        logConsoleAppender.setEncoder(logEncoder);
-        logConsoleAppender.start();
+        Appender<ILoggingEvent> logConsoleAppender;
+        String asyncLogging = System.getProperty("async_logging");
+        // ?: Do we want asynchronous logging?
+        if (asyncLogging != null) {
+            // -> Yes, so use the async appender, with the specified overflow policy.
+            OverflowPolicy overflowPolicy = "drop".equalsIgnoreCase(asyncLogging.trim())
+                    ? OverflowPolicy.DROP
+                    : OverflowPolicy.BLOCK;
+            var asyncAppender = new MatsJbangAsyncConsoleAppender(logEncoder, overflowPolicy,
+                    MatsJbangAsyncConsoleAppender.DEFAULT_CAPACITY);
+            asyncAppender.setContext(context);
+            asyncAppender.setName("async_console");
+            asyncAppender.start();
+            // Make sure the queued events are written upon shutdown.
+            Runtime.getRuntime().addShutdownHook(new Thread(asyncAppender::stop, "Stop async console logging"));
+            logConsoleAppender = asyncAppender;
+        }
+        else {
+            // -> No, so use the standard synchronous ConsoleAppender.
+            ConsoleAppender<ILoggingEvent> consoleAppender = new ConsoleAppender<>();
+            consoleAppender.setContext(context);
+            consoleAppender.setName("console");
+            consoleAppender.setEncoder(logEncoder);
+            consoleAppender.start();
+            logConsoleAppender = consoleAppender;
+        }
 
         ch.qos.logback.classic.Logger root = (ch.qos.logback.classic.Logger) org.slf4j.LoggerFactory.getLogger(
                 ch.qos.logback.classic.Logger.ROOT_LOGGER_NAME);
@@ -332,7 +588,8 @@ public class MatsJbangKit {
 
         StatusManager statusManager = context.getStatusManager();
         statusManager.add(new InfoStatus("Programmatically removed existing root appenders,"
-                + " adding formatted ConsoleAppender, root Logger threshold [" + rootLevel + "].",
+                + " adding formatted " + (asyncLogging != null ? "async " : "") + "ConsoleAppender,"
+                + " root Logger threshold [" + rootLevel + "].",
                 MatsJbangKit.class));
 
         StatusPrinter.print(context);
@@ -448,6 +705,56 @@ public class MatsJbangKit {
         return true;
     }
 
+    /**
+     * @return the resident set size (RSS) of this process in bytes, as read from <code>/proc/self/status</code> - or
+     *         -1 if not available (i.e. not on Linux).
+     */
+    static long getResidentSetSizeBytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                // Line is like "VmRSS:    123456 kB"
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim()) * 1024;
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            /* ignore, not available */
+        }
+        return -1;
+    }
+
+    /**
+     * @return a description of the Class Data Sharing in use: The AppCDS archive specified with
+     *         <code>-XX:SharedArchiveFile</code> if any, and whether the JVM reports that sharing is active.
+     */
+    static String getClassDataSharingDescription() {
+        String archive = ManagementFactory.getRuntimeMXBean().getInputArguments().stream()
+                .filter(arg -> arg.startsWith("-XX:SharedArchiveFile="))
+                .map(arg -> arg.substring("-XX:SharedArchiveFile=".length()))
+                .findFirst().orElse(null);
+        // "java.vm.info" contains "sharing" if CDS is active - also for the JDK's default archive.
+        boolean sharing = System.getProperty("java.vm.info", "").contains("sharing");
+        return (archive != null ? "AppCDS archive [" + archive + "]" : "no AppCDS archive")
+                + (sharing ? ", sharing active" : ", sharing NOT active");
+    }
+
+    static KeepTrace getKeepTraceFromSystemProperty() {
+        String keepTrace = System.getProperty(SYSPROP_KEEP_TRACE);
+        // ?: Is it set?
+        if (keepTrace == null) {
+            // -> No, so use FULL.
+            return KeepTrace.FULL;
+        }
+        try {
+            return KeepTrace.valueOf(keepTrace.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The System Property '" + SYSPROP_KEEP_TRACE + "' has the value ["
+                    + keepTrace + "], which is not one of " + Arrays.toString(KeepTrace.values()) + ".", e);
+        }
+    }
+
     // Loaned from MatsTestHelp
     static String getCallingClassSimpleName() {
         String[] classnameAndMethod = getCallingClassNameAndMethod();
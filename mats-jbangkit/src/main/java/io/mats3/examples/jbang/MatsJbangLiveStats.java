@@ -0,0 +1,361 @@
+package io.mats3.examples.jbang;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.mats3.examples.jbang.MatsJbangJettyServer.FunctionalAsyncListener;
+import io.mats3.examples.jbang.MatsJbangMetricsInterceptor.StageSnapshot;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Pushes the per-Stage counts and timings from a {@link MatsJbangMetricsInterceptor} to any number of browsers using
+ * Server-Sent Events, so that many observers may watch a busy service without each of them making the service render
+ * a full report: Once per tick, a single thread takes a snapshot, renders the Stages that changed since the previous
+ * tick into one <code>delta</code> event, and that same text is written to every connected client. A newly connected
+ * client first gets a <code>full</code> event with all Stages - as does a client which was too slow to take the
+ * previous event: Instead of queuing up events for it, it is skipped until its write has finished, and then gets a full
+ * event, so a slow client never costs more than one rendered event of memory.
+ * <p>
+ * Each Stage row has the total count and counts per process result, and over the last tick: The rate, the mean and
+ * median and 99th percentile execution time, and the 99th percentile queue time. The quantiles are thus not those of
+ * the Prometheus metrics, which are over a longer window, but from recorders harvested on each tick - see
+ * {@link MatsJbangMetricsInterceptor#getStageSnapshots()}. The page provided by
+ * {@link #writeHtml(PrintWriter, String)} applies the events in place to a table.
+ * <p>
+ * Use {@link MatsJbangJettyServer#addMatsLiveStats(int)} to get the page on <code>"/localinspect/live"</code>.
+ */
+public class MatsJbangLiveStats implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(MatsJbangLiveStats.class);
+
+    /**
+     * If nothing was sent to a client for this long, a comment line is sent, so that proxies don't close the idle
+     * connection - and so that a closed connection is detected.
+     */
+    static final long KEEPALIVE_MILLIS = 15_000;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final MatsJbangMetricsInterceptor _metrics;
+    private final long _tickMillis;
+
+    private final ScheduledExecutorService _ticker;
+    private final ExecutorService _writers;
+
+    private final List<Client> _clients = new CopyOnWriteArrayList<>();
+
+    // :: Only accessed by the ticker thread.
+    private final Map<String, StageSnapshot> _previousSnapshots = new HashMap<>();
+    private final Map<String, String> _previousRows = new LinkedHashMap<>();
+    private long _previousTickNanos = System.nanoTime();
+
+    private MatsJbangLiveStats(MatsJbangMetricsInterceptor metrics, long tickMillis) {
+        _metrics = metrics;
+        _tickMillis = tickMillis;
+        _ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MatsJbangLiveStats-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The writes are blocking, so a slow client must not hold up the others: A thread per concurrent write.
+        _writers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "MatsJbangLiveStats-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates and starts the live stats, ticking at the given interval.
+     *
+     * @param metrics
+     *         the {@link MatsJbangMetricsInterceptor} to take the snapshots from.
+     * @param tickMillis
+     *         the interval between each snapshot and push to the clients.
+     * @return the started {@link MatsJbangLiveStats}.
+     */
+    public static MatsJbangLiveStats create(MatsJbangMetricsInterceptor metrics, long tickMillis) {
+        if (tickMillis < 50) {
+            throw new IllegalArgumentException("tickMillis must be >= 50, was [" + tickMillis + "].");
+        }
+        MatsJbangLiveStats liveStats = new MatsJbangLiveStats(metrics, tickMillis);
+        liveStats._ticker.scheduleAtFixedRate(liveStats::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        return liveStats;
+    }
+
+    /**
+     * Turns the request into a Server-Sent Events stream, which will get a <code>full</code> event on the next tick,
+     * and <code>delta</code> events thereafter. The request must be async supported. Returns immediately.
+     *
+     * @param req
+     *         the request.
+     * @param resp
+     *         the response.
+     * @throws IOException
+     *         if getting the writer fails.
+     */
+    public void addClient(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/event-stream; charset=UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        // Tell nginx and friends to not buffer the stream.
+        resp.setHeader("X-Accel-Buffering", "no");
+        PrintWriter writer = resp.getWriter();
+        AsyncContext asyncContext = req.startAsync();
+        // The stream lives until the client goes away, or we close.
+        asyncContext.setTimeout(0);
+        Client client = new Client(asyncContext, writer);
+        asyncContext.addListener(FunctionalAsyncListener.onComplete(event -> _clients.remove(client)));
+        asyncContext.addListener(FunctionalAsyncListener.onError(event -> removeClient(client)));
+        // Tell the client to reconnect after a couple of ticks if the stream breaks.
+        writer.write("retry: " + Math.max(1000, _tickMillis * 2) + "\n\n");
+        writer.flush();
+        _clients.add(client);
+    }
+
+    /**
+     * @return the number of connected clients.
+     */
+    public int getClientCount() {
+        return _clients.size();
+    }
+
+    /**
+     * Writes the HTML for the live table, including style and script, which connects to the given events URL.
+     *
+     * @param out
+     *         where to write the HTML.
+     * @param eventsUrl
+     *         the URL of the Servlet invoking {@link #addClient(HttpServletRequest, HttpServletResponse)}.
+     */
+    public void writeHtml(PrintWriter out, String eventsUrl) {
+        out.println("""
+                <style>
+                  .mats_live { border-collapse: collapse; font-family: monospace; font-size: 0.9em; }
+                  .mats_live th, .mats_live td { border: 1px solid #ccc; padding: 2px 6px; }
+                  .mats_live td.num { text-align: right; }
+                  .mats_live tr.changed { background: #ffffc0; }
+                </style>
+                <div>Updated: <span id='mats_live_updated'>connecting..</span>, tick TICK_MILLIS ms.
+                  Rate, mean and quantiles are over the last tick.</div>
+                <table class='mats_live'>
+                  <thead><tr><th>Stage</th><th>Count</th><th>Rate/s</th><th>Mean ms</th><th>p50 ms</th>
+                    <th>p99 ms</th><th>Queue p99 ms</th><th>Results</th></tr></thead>
+                  <tbody id='mats_live_body'></tbody>
+                </table>
+                <script>
+                  (function () {
+                    const body = document.getElementById('mats_live_body');
+                    const rows = {};
+                    const fmt = (v) => (v === null || v === undefined) ? '' : String(v);
+                    function apply(data, full) {
+                      if (full) {
+                        body.innerHTML = '';
+                        for (const key in rows) { delete rows[key]; }
+                      }
+                      for (const tr of body.querySelectorAll('tr.changed')) { tr.classList.remove('changed'); }
+                      for (const s of data.stages) {
+                        let tr = rows[s.stage];
+                        if (!tr) {
+                          tr = document.createElement('tr');
+                          for (let i = 0; i < 8; i++) { tr.appendChild(document.createElement('td')); }
+                          for (let i = 1; i < 7; i++) { tr.cells[i].className = 'num'; }
+                          tr.cells[0].textContent = s.stage;
+                          rows[s.stage] = tr;
+                          // Keep the rows sorted by stageId.
+                          const next = Array.from(body.rows).find((r) => r.cells[0].textContent > s.stage);
+                          body.insertBefore(tr, next || null);
+                        }
+                        tr.cells[1].textContent = fmt(s.count);
+                        tr.cells[2].textContent = fmt(s.rate);
+                        tr.cells[3].textContent = fmt(s.mean);
+                        tr.cells[4].textContent = fmt(s.p50);
+                        tr.cells[5].textContent = fmt(s.p99);
+                        tr.cells[6].textContent = fmt(s.queueP99);
+                        tr.cells[7].textContent = Object.entries(s.results).map(([k, v]) => k + ': ' + v)
+                            .join(', ');
+                        if (!full) { tr.classList.add('changed'); }
+                      }
+                      document.getElementById('mats_live_updated').textContent =
+                          new Date(data.timestamp).toLocaleTimeString();
+                    }
+                    const source = new EventSource('EVENTS_URL');
+                    source.addEventListener('full', (e) => apply(JSON.parse(e.data), true));
+                    source.addEventListener('delta', (e) => apply(JSON.parse(e.data), false));
+                    source.onerror = () => {
+                      document.getElementById('mats_live_updated').textContent = 'disconnected, retrying..';
+                    };
+                  })();
+                </script>
+                """.replace("TICK_MILLIS", Long.toString(_tickMillis))
+                .replace("EVENTS_URL", eventsUrl));
+    }
+
+    @Override
+    public void close() {
+        _ticker.shutdownNow();
+        _clients.forEach(this::removeClient);
+        _writers.shutdown();
+    }
+
+    // ===== Internals
+
+    private void tick() {
+        try {
+            long nowNanos = System.nanoTime();
+            long nowMillis = System.currentTimeMillis();
+            double tickSeconds = (nowNanos - _previousTickNanos) / 1_000_000_000d;
+            _previousTickNanos = nowNanos;
+
+            // :: Render the rows, and pick out those that changed since the previous tick.
+            // Note: Rendering even without clients, so that the first delta after a connect is over a single tick.
+            List<String> changedRows = new ArrayList<>();
+            for (StageSnapshot snapshot : _metrics.getStageSnapshots()) {
+                String row = renderRow(snapshot, _previousSnapshots.put(snapshot.stageId(), snapshot), tickSeconds);
+                String previousRow = _previousRows.put(snapshot.stageId(), row);
+                // ?: Did the row change?
+                if (!row.equals(previousRow)) {
+                    // -> Yes, so it goes in the delta.
+                    changedRows.add(row);
+                }
+            }
+
+            // ?: Any clients?
+            if (_clients.isEmpty()) {
+                // -> No, so nothing more to do.
+                return;
+            }
+
+            // :: Render the events once, lazily - the same text goes to all clients.
+            String delta = changedRows.isEmpty() ? null : event("delta", nowMillis, changedRows);
+            String full = null;
+            for (Client client : _clients) {
+                String text;
+                if (client.needsFull) {
+                    if (full == null) {
+                        full = event("full", nowMillis, _previousRows.values());
+                    }
+                    text = full;
+                }
+                else if (delta != null) {
+                    text = delta;
+                }
+                else if ((nowMillis - client.lastWriteMillis) >= KEEPALIVE_MILLIS) {
+                    text = ": keepalive\n\n";
+                }
+                else {
+                    continue;
+                }
+                // ?: Is the client still busy with the previous write?
+                if (!client.writing.compareAndSet(false, true)) {
+                    // -> Yes, so skip it - it must get the full picture when it has caught up.
+                    client.needsFull = true;
+                    continue;
+                }
+                client.needsFull = false;
+                client.lastWriteMillis = nowMillis;
+                _writers.execute(() -> write(client, text));
+            }
+        }
+        catch (Throwable t) {
+            // Must not throw out, as that would cancel the scheduled ticks.
+            log.warn("Got problems on live stats tick - will try again on next tick.", t);
+        }
+    }
+
+    private String renderRow(StageSnapshot snapshot, StageSnapshot previous, double tickSeconds) {
+        long countDelta = snapshot.executionCount() - (previous != null ? previous.executionCount() : 0);
+        long nanosDelta = snapshot.executionNanosSum() - (previous != null ? previous.executionNanosSum() : 0);
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("stage", snapshot.stageId());
+        row.put("endpoint", snapshot.endpointId());
+        row.put("count", snapshot.executionCount());
+        row.put("rate", round(countDelta / tickSeconds));
+        row.put("mean", countDelta == 0 ? null : round(nanosDelta / (countDelta * 1_000_000d)));
+        row.put("p50", millis(snapshot.executionNanosP50()));
+        row.put("p99", millis(snapshot.executionNanosP99()));
+        row.put("queueP99", millis(snapshot.queueNanosP99()));
+        row.put("results", snapshot.results());
+        try {
+            return OBJECT_MAPPER.writeValueAsString(row);
+        }
+        catch (JsonProcessingException e) {
+            throw new AssertionError("Couldn't serialize a Map of Strings and numbers.", e);
+        }
+    }
+
+    private static Double millis(double nanos) {
+        return Double.isNaN(nanos) ? null : round(nanos / 1_000_000d);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100d;
+    }
+
+    private static String event(String eventName, long timestamp, Iterable<String> rows) {
+        return "event: " + eventName + "\ndata: {\"timestamp\":" + timestamp + ",\"stages\":["
+                + String.join(",", rows) + "]}\n\n";
+    }
+
+    private void write(Client client, String text) {
+        try {
+            client.writer.write(text);
+            client.writer.flush();
+            // ?: Did the write fail? (PrintWriter swallows the IOException.)
+            if (client.writer.checkError()) {
+                // -> Yes, so the client is gone.
+                removeClient(client);
+            }
+        }
+        catch (UncheckedIOException | IllegalStateException e) {
+            removeClient(client);
+        }
+        finally {
+            client.writing.set(false);
+        }
+    }
+
+    private void removeClient(Client client) {
+        // ?: Was it still here? (Both the write failure and the AsyncListener may remove it.)
+        if (_clients.remove(client)) {
+            // -> Yes, so complete the async context.
+            try {
+                client.asyncContext.complete();
+            }
+            catch (IllegalStateException e) {
+                // Already completed or errored - fine.
+            }
+        }
+    }
+
+    private static class Client {
+        final AsyncContext asyncContext;
+        final PrintWriter writer;
+        final AtomicBoolean writing = new AtomicBoolean();
+        volatile boolean needsFull = true;
+        volatile long lastWriteMillis = System.currentTimeMillis();
+
+        Client(AsyncContext asyncContext, PrintWriter writer) {
+            this.asyncContext = asyncContext;
+            this.writer = writer;
+        }
+    }
+}
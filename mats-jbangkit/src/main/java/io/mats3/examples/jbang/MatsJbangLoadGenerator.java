@@ -0,0 +1,372 @@
+package io.mats3.examples.jbang;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongFunction;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.mats3.test.MatsTestHelp;
+import io.mats3.util.MatsFuturizer;
+import io.mats3.util.MatsFuturizer.MatsFuturizerTimeoutException;
+
+/**
+ * Load generator driving a Mats3 Endpoint using a {@link MatsFuturizer}, recording the latencies in an
+ * <a href="http://hdrhistogram.org/">HdrHistogram</a>. It has two modes:
+ * <ul>
+ * <li><b>Open loop</b>, {@link #rate(double)}: Requests are sent at a fixed target rate, no matter how fast the replies
+ * come back. The latency is measured from when the request <i>should</i> have been sent according to the schedule, not
+ * from when it actually was sent - thus, if the load generator itself falls behind (e.g. due to GC, or the futurizer
+ * blocking), this is correctly accounted as latency, avoiding "coordinated omission". This is the mode that tells how
+ * the system behaves under a sustained load.</li>
+ * <li><b>Closed loop</b>, {@link #concurrency(int)}: A fixed number of requests are in flight, a new being sent when a
+ * reply comes back. This measures max throughput at a given concurrency, but the latencies will be too optimistic if
+ * the system stalls, since the load generator then also stops sending.</li>
+ * </ul>
+ * The uncorrected "service time", measured from the actual send, is also recorded. Not only the replies are recorded,
+ * but also the errors and timeouts, at the time they took to fail - and the requests still unfinished when the
+ * {@link #drainTimeout(Duration) drain times out}, at the time they had taken by then: Otherwise a stalled Endpoint
+ * would give better percentiles than a slow one. Only requests that fail to be sent at all are merely counted as
+ * errors. Use {@link #run()} to run it
+ * synchronously, or {@link #start()} to get a {@link CompletableFuture} of the {@link LoadResult}. The
+ * {@link MatsJbangJettyServer#addMatsLoadGenerator(String, String, Class, LongFunction)} provides a Servlet for running
+ * load scenarios and viewing the results.
+ */
+public class MatsJbangLoadGenerator {
+    private static final Logger log = LoggerFactory.getLogger(MatsJbangLoadGenerator.class);
+
+    private final MatsFuturizer _matsFuturizer;
+    private final String _targetEndpointId;
+    private final Class<?> _replyClass;
+    private final LongFunction<Object> _requestSupplier;
+
+    private String _fromId = "MatsJbangLoadGenerator";
+    private double _rate;
+    private int _concurrency;
+    private Duration _duration = Duration.ofSeconds(10);
+    private Duration _drainTimeout = Duration.ofSeconds(30);
+
+    private MatsJbangLoadGenerator(MatsFuturizer matsFuturizer, String targetEndpointId, Class<?> replyClass,
+            LongFunction<Object> requestSupplier) {
+        _matsFuturizer = matsFuturizer;
+        _targetEndpointId = targetEndpointId;
+        _replyClass = replyClass;
+        _requestSupplier = requestSupplier;
+    }
+
+    /**
+     * Creates a load generator for the specified Endpoint - you must then specify either {@link #rate(double)} or
+     * {@link #concurrency(int)}, and may specify {@link #duration(Duration)}, before invoking {@link #run()} or
+     * {@link #start()}.
+     *
+     * @param matsFuturizer
+     *         the {@link MatsFuturizer} to use for sending requests (using <code>futurizeNonessential(..)</code>).
+     * @param targetEndpointId
+     *         the Endpoint to drive.
+     * @param replyClass
+     *         the reply DTO class of the Endpoint.
+     * @param requestSupplier
+     *         creates the request DTO, given the sequence number of the request.
+     * @return the load generator, for further configuration.
+     */
+    public static MatsJbangLoadGenerator create(MatsFuturizer matsFuturizer, String targetEndpointId,
+            Class<?> replyClass, LongFunction<Object> requestSupplier) {
+        return new MatsJbangLoadGenerator(matsFuturizer, targetEndpointId, replyClass, requestSupplier);
+    }
+
+    /**
+     * @param fromId
+     *         the "from" of the initiations, default <code>"MatsJbangLoadGenerator"</code>.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangLoadGenerator fromId(String fromId) {
+        _fromId = fromId;
+        return this;
+    }
+
+    /**
+     * Open loop mode: Sends requests at the specified rate, independent of replies.
+     *
+     * @param requestsPerSecond
+     *         the target rate.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangLoadGenerator rate(double requestsPerSecond) {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("requestsPerSecond must be > 0, was [" + requestsPerSecond + "].");
+        }
+        _rate = requestsPerSecond;
+        _concurrency = 0;
+        return this;
+    }
+
+    /**
+     * Closed loop mode: Keeps the specified number of requests in flight.
+     *
+     * @param concurrency
+     *         number of concurrent requests.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangLoadGenerator concurrency(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be > 0, was [" + concurrency + "].");
+        }
+        _concurrency = concurrency;
+        _rate = 0;
+        return this;
+    }
+
+    /**
+     * @param duration
+     *         how long to send requests, default 10 seconds.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangLoadGenerator duration(Duration duration) {
+        _duration = duration;
+        return this;
+    }
+
+    /**
+     * @param drainTimeout
+     *         how long to wait for outstanding replies after the sending has stopped, default 30 seconds.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangLoadGenerator drainTimeout(Duration drainTimeout) {
+        _drainTimeout = drainTimeout;
+        return this;
+    }
+
+    /**
+     * Runs the load, blocking until done.
+     *
+     * @return the {@link LoadResult}.
+     */
+    public LoadResult run() {
+        if ((_rate <= 0) && (_concurrency <= 0)) {
+            throw new IllegalStateException("You must specify either rate(..) for open loop, or concurrency(..) for"
+                    + " closed loop.");
+        }
+        String mode = _rate > 0
+                ? "open loop @ " + _rate + " req/s"
+                : "closed loop @ " + _concurrency + " concurrent";
+        log.info("Starting load towards [" + _targetEndpointId + "], " + mode + ", for " + _duration + ".");
+
+        Run run = new Run();
+        if (_rate > 0) {
+            run.openLoop();
+        }
+        else {
+            run.closedLoop();
+        }
+        run.awaitDrained();
+
+        LoadResult result = new LoadResult(_targetEndpointId, mode, run._nanosSending / 1_000_000_000d,
+                run._sent.get(), run._replies.get(), run._errors.get(), run._timeouts.get(),
+                run.recordUnfinished(), run._latency, run._serviceTime);
+        log.info("Finished load towards [" + _targetEndpointId + "]:\n" + result.toText());
+        return result;
+    }
+
+    /**
+     * Runs the load on a new thread.
+     *
+     * @return a {@link CompletableFuture} of the {@link LoadResult}.
+     */
+    public CompletableFuture<LoadResult> start() {
+        CompletableFuture<LoadResult> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                future.complete(run());
+            }
+            catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, "MatsJbangLoadGenerator[" + _targetEndpointId + "]");
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    /**
+     * The result of a load run. The latency is measured from the scheduled send time (open loop), while the service
+     * time is measured from the actual send - for closed loop these are the same. Both histograms include the errors,
+     * timeouts and unfinished requests, at the time they took - <code>errors</code> does not include the timeouts.
+     */
+    public record LoadResult(String targetEndpointId, String mode, double secondsSending, long sent, long replies,
+            long errors, long timeouts, long unfinished, Histogram latency, Histogram serviceTime) {
+        /**
+         * @return the achieved rate of replies during the sending period.
+         */
+        public double repliesPerSecond() {
+            return secondsSending == 0 ? 0 : replies / secondsSending;
+        }
+
+        /**
+         * @param percentile
+         *         the percentile, e.g. 99.9.
+         * @return the latency at the percentile, in milliseconds.
+         */
+        public double latencyMillis(double percentile) {
+            return latency.getValueAtPercentile(percentile) / 1_000_000d;
+        }
+
+        /**
+         * @return a multi-line text representation of the result.
+         */
+        public String toText() {
+            return "Target: " + targetEndpointId + ", " + mode + "\n"
+                    + "  Sent: " + sent + " in " + secondsSending + " s, replies: " + replies
+                    + ", errors: " + errors + ", timeouts: " + timeouts + ", unfinished: " + unfinished
+                    + ", replies/sec: " + repliesPerSecond() + "\n"
+                    + "  (Latencies include errors, timeouts and unfinished, at the time they took)\n"
+                    + "  Latency ms      " + percentiles(latency) + "\n"
+                    + "  Service time ms " + percentiles(serviceTime);
+        }
+
+        private static String percentiles(Histogram histogram) {
+            return "p50: " + histogram.getValueAtPercentile(50) / 1_000_000d
+                    + ", p90: " + histogram.getValueAtPercentile(90) / 1_000_000d
+                    + ", p99: " + histogram.getValueAtPercentile(99) / 1_000_000d
+                    + ", p99.9: " + histogram.getValueAtPercentile(99.9) / 1_000_000d
+                    + ", max: " + histogram.getMaxValue() / 1_000_000d;
+        }
+    }
+
+    /**
+     * The state of a single run.
+     */
+    private class Run {
+        private final Histogram _latency = new ConcurrentHistogram(3);
+        private final Histogram _serviceTime = new ConcurrentHistogram(3);
+        private final AtomicLong _sequence = new AtomicLong();
+        private final AtomicLong _sent = new AtomicLong();
+        private final AtomicLong _replies = new AtomicLong();
+        private final AtomicLong _errors = new AtomicLong();
+        private final AtomicLong _timeouts = new AtomicLong();
+        private final AtomicInteger _outstanding = new AtomicInteger();
+        // The send times of the outstanding requests, by sequence - whoever removes the entry records the latency.
+        private final Map<Long, long[]> _outstandingNanos = new ConcurrentHashMap<>();
+        private final long _nanosAtStart = System.nanoTime();
+        private final long _nanosAtEnd = _nanosAtStart + _duration.toNanos();
+        private volatile long _nanosSending;
+
+        void openLoop() {
+            double intervalNanos = 1_000_000_000d / _rate;
+            while (true) {
+                long sequence = _sequence.getAndIncrement();
+                long nanosIntended = _nanosAtStart + (long) (sequence * intervalNanos);
+                if (nanosIntended - _nanosAtEnd >= 0) {
+                    break;
+                }
+                long nanosToWait = nanosIntended - System.nanoTime();
+                if (nanosToWait > 0) {
+                    LockSupport.parkNanos(nanosToWait);
+                }
+                // Note: If we are behind schedule, we send right away, and the latency includes the lag.
+                send(sequence, nanosIntended, false);
+            }
+            _nanosSending = System.nanoTime() - _nanosAtStart;
+        }
+
+        void closedLoop() {
+            for (int i = 0; i < _concurrency; i++) {
+                send(_sequence.getAndIncrement(), System.nanoTime(), true);
+            }
+            long nanosToWait;
+            while ((nanosToWait = _nanosAtEnd - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(nanosToWait);
+            }
+            _nanosSending = System.nanoTime() - _nanosAtStart;
+        }
+
+        void awaitDrained() {
+            long nanosDrainEnd = System.nanoTime() + _drainTimeout.toNanos();
+            while ((_outstanding.get() > 0) && (System.nanoTime() - nanosDrainEnd < 0)) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            if (_outstanding.get() > 0) {
+                log.warn("Timed out waiting for [" + _outstanding.get() + "] outstanding replies from ["
+                        + _targetEndpointId + "].");
+            }
+        }
+
+        /**
+         * Records the still outstanding requests at the time they have taken so far - any reply coming later is then
+         * ignored.
+         *
+         * @return the number of unfinished requests.
+         */
+        long recordUnfinished() {
+            long nanosNow = System.nanoTime();
+            long unfinished = 0;
+            for (Long sequence : _outstandingNanos.keySet()) {
+                long[] nanos = _outstandingNanos.remove(sequence);
+                // ?: Did we win the race with the reply?
+                if (nanos != null) {
+                    // -> Yes, so it is unfinished.
+                    record(nanos, nanosNow);
+                    unfinished++;
+                }
+            }
+            return unfinished;
+        }
+
+        private void record(long[] nanos, long nanosAtEnd) {
+            _latency.recordValue(nanosAtEnd - nanos[0]);
+            _serviceTime.recordValue(nanosAtEnd - nanos[1]);
+        }
+
+        private void send(long sequence, long nanosIntended, boolean closedLoop) {
+            long nanosAtSend = System.nanoTime();
+            CompletableFuture<?> future;
+            try {
+                future = _matsFuturizer.futurizeNonessential(MatsTestHelp.traceId(), _fromId, _targetEndpointId,
+                        _replyClass, _requestSupplier.apply(sequence));
+            }
+            catch (RuntimeException e) {
+                // Note: For closed loop, this "worker" now stops.
+                _errors.incrementAndGet();
+                log.warn("Got exception when sending request #" + sequence + " to [" + _targetEndpointId + "].", e);
+                return;
+            }
+            _sent.incrementAndGet();
+            _outstanding.incrementAndGet();
+            _outstandingNanos.put(sequence, new long[] { nanosIntended, nanosAtSend });
+            future.whenComplete((reply, throwable) -> {
+                long nanosAtReply = System.nanoTime();
+                long[] nanos = _outstandingNanos.remove(sequence);
+                // ?: Was it already recorded as unfinished, by the drain timing out?
+                if (nanos != null) {
+                    // -> No, so record it - also if failed, as a timeout is a latency, too.
+                    record(nanos, nanosAtReply);
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    if (cause instanceof MatsFuturizerTimeoutException) {
+                        _timeouts.incrementAndGet();
+                    }
+                    else if (throwable != null) {
+                        _errors.incrementAndGet();
+                    }
+                    else {
+                        _replies.incrementAndGet();
+                    }
+                }
+                // ?: Closed loop, and still within the duration?
+                if (closedLoop && (nanosAtReply - _nanosAtEnd < 0)) {
+                    // -> Yes, so send next (before decrementing outstanding, so that we never "look drained").
+                    send(_sequence.getAndIncrement(), System.nanoTime(), true);
+                }
+                _outstanding.decrementAndGet();
+            });
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package io.mats3.examples.jbang;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import io.mats3.MatsInitiator;
+import io.mats3.MatsStage;
+import io.mats3.api.intercept.MatsInitiateInterceptor;
+import io.mats3.api.intercept.MatsInterceptable;
+import io.mats3.api.intercept.MatsStageInterceptor;
+import io.mats3.util.MatsFuturizer;
+
+/**
+ * Interceptor collecting metrics for the Initiators, Endpoints and Stages of a {@link io.mats3.MatsFactory
+ * MatsFactory}, and writing them in the
+ * <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus text exposition format</a> -
+ * installed and served on <code>"/metrics"</code> by {@link MatsJbangJettyServer#addMatsMetrics()}. The per-stage
+ * serialized MatsTrace sizes and (de)serialization times let you quantify the cost of the different
+ * {@link io.mats3.MatsInitiator.KeepTrace KeepTrace} modes on deep flows.
+ * <p>
+ * Counts are kept in {@link LongAdder}s, and timings and sizes are recorded in HdrHistogram {@link Recorder}s, which
+ * are wait-free for the recording threads. The quantiles are calculated over a window: When a scrape comes in and the
+ * current window is older than {@link #QUANTILE_WINDOW_MILLIS}, the Recorder's interval is harvested and the quantiles
+ * are recalculated - otherwise the previous quantiles are reused. Thus, the stage threads never contend with the
+ * scrapes, and many scrapers cost the same as one.
+ */
+public class MatsJbangMetricsInterceptor implements MatsInitiateInterceptor, MatsStageInterceptor {
+
+    /**
+     * The quantiles are recalculated over the values recorded since last recalculation, at most this often.
+     */
+    public static final long QUANTILE_WINDOW_MILLIS = 15_000;
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final Map<MatsInitiator, InitiatorMetrics> _initiators = new ConcurrentHashMap<>();
+    private final Map<MatsStage<?, ?, ?>, StageMetrics> _stages = new ConcurrentHashMap<>();
+
+    // Set by the first getStageSnapshots(), so that the snapshot recorders cost nothing unless used.
+    private volatile boolean _snapshotRecording;
+
+    /**
+     * Creates and installs the metrics interceptor on the supplied {@link MatsInterceptable}, which typically is the
+     * MatsFactory.
+     *
+     * @param matsInterceptable
+     *         the {@link MatsInterceptable} (MatsFactory) to install on.
+     * @return the installed interceptor.
+     */
+    public static MatsJbangMetricsInterceptor install(MatsInterceptable matsInterceptable) {
+        MatsJbangMetricsInterceptor interceptor = new MatsJbangMetricsInterceptor();
+        matsInterceptable.addInitiationInterceptor(interceptor);
+        matsInterceptable.addStageInterceptor(interceptor);
+        return interceptor;
+    }
+
+    // ===== Interceptor callbacks
+
+    @Override
+    public void initiateCompleted(InitiateCompletedContext context) {
+        InitiatorMetrics metrics = _initiators.computeIfAbsent(context.getInitiator(), InitiatorMetrics::new);
+        metrics.executions.increment();
+        if (context.getThrowable().isPresent()) {
+            metrics.errors.increment();
+        }
+        metrics.executionNanos.record(context.getTotalExecutionNanos());
+        context.getOutgoingMessages().forEach(msg -> {
+            metrics.outgoingMessages.increment();
+            metrics.outgoingBytes.record(msg.getEnvelopeWireSize());
+        });
+    }
+
+    @Override
+    public void stageReceived(StageReceivedContext context) {
+        // Queue time: From the message was sent (JMSTimestamp, set by the sender's ActiveMQ client), until now.
+        // Note: Using wall clock, so across hosts this is only as good as the clock sync.
+        context.getProcessContext().getAttribute(Message.class).ifPresent(message -> {
+            try {
+                long sentTimestamp = message.getJMSTimestamp();
+                if (sentTimestamp > 0) {
+                    long queueMillis = Math.max(0, System.currentTimeMillis() - sentTimestamp);
+                    StageMetrics metrics = stageMetrics(context.getStage());
+                    metrics.queueNanos.record(TimeUnit.MILLISECONDS.toNanos(queueMillis));
+                    if (_snapshotRecording) {
+                        metrics.snapshotQueueNanos.record(TimeUnit.MILLISECONDS.toNanos(queueMillis));
+                    }
+                }
+            }
+            catch (JMSException e) {
+                /* ignore, no queue time then */
+            }
+        });
+    }
+
+    @Override
+    public void stageCompleted(StageCompletedContext context) {
+        StageMetrics metrics = stageMetrics(context.getStage());
+        metrics.results.computeIfAbsent(String.valueOf(context.getProcessResult()), k -> new LongAdder())
+                .increment();
+        metrics.executionNanos.record(context.getTotalExecutionNanos());
+        if (_snapshotRecording) {
+            metrics.snapshotExecutionNanos.record(context.getTotalExecutionNanos());
+        }
+        metrics.incomingBytes.record(context.getEnvelopeWireSize());
+        // The serialized size is before compression, i.e. the actual size of the MatsTrace - which with
+        // KeepTrace.FULL grows with each hop of the flow.
+        metrics.incomingSerializedBytes.record(context.getEnvelopeSerializedSize());
+        metrics.incomingDeserializationNanos.record(context.getEnvelopeDecompressionNanos()
+                + context.getEnvelopeDeserializationNanos());
+        context.getOutgoingMessages().forEach(msg -> {
+            metrics.outgoingBytes.record(msg.getEnvelopeWireSize());
+            metrics.outgoingSerializedBytes.record(msg.getEnvelopeSerializedSize());
+            metrics.outgoingSerializationNanos.record(msg.getEnvelopeSerializationNanos()
+                    + msg.getEnvelopeCompressionNanos());
+        });
+    }
+
+    private StageMetrics stageMetrics(MatsStage<?, ?, ?> stage) {
+        return _stages.computeIfAbsent(stage, StageMetrics::new);
+    }
+
+    // ===== Snapshots
+
+    /**
+     * Takes a snapshot of each Stage, where the quantiles are over the interval since the previous invocation - so that
+     * a periodic caller, like the ticks of {@link MatsJbangLiveStats}, gets the quantiles over its own period, instead
+     * of over the {@link #QUANTILE_WINDOW_MILLIS} window of the Prometheus metrics. Since each invocation starts a new
+     * interval, there should be a single caller. The interval recording only starts with the first invocation.
+     *
+     * @return a snapshot of the counts and timings of each Stage which has processed messages, sorted by stageId.
+     */
+    public List<StageSnapshot> getStageSnapshots() {
+        _snapshotRecording = true;
+        List<StageSnapshot> snapshots = new ArrayList<>();
+        for (StageMetrics metrics : _stages.values()) {
+            Map<String, Long> results = new TreeMap<>();
+            metrics.results.forEach((result, count) -> results.put(result, count.sum()));
+            Histogram executionNanos = metrics.snapshotExecutionNanos.harvest();
+            Histogram queueNanos = metrics.snapshotQueueNanos.harvest();
+            snapshots.add(new StageSnapshot(metrics.stageId, metrics.endpointId, results,
+                    metrics.executionNanos.count(), metrics.executionNanos.sum(),
+                    valueAtQuantile(executionNanos, 0.5), valueAtQuantile(executionNanos, 0.99),
+                    valueAtQuantile(queueNanos, 0.99)));
+        }
+        snapshots.sort(Comparator.comparing(StageSnapshot::stageId));
+        return snapshots;
+    }
+
+    /**
+     * Snapshot of the metrics of a Stage. The quantiles are over the interval since the previous snapshot, and are
+     * <code>NaN</code> if there were no observations in the interval.
+     *
+     * @param stageId
+     *         the stageId.
+     * @param endpointId
+     *         the endpointId of the Stage's Endpoint.
+     * @param results
+     *         the number of processed messages, by process result.
+     * @param executionCount
+     *         total number of processed messages.
+     * @param executionNanosSum
+     *         total execution time.
+     * @param executionNanosP50
+     *         median execution time.
+     * @param executionNanosP99
+     *         99th percentile execution time.
+     * @param queueNanosP99
+     *         99th percentile queue time, i.e. from the message was sent until received.
+     */
+    public record StageSnapshot(String stageId, String endpointId, Map<String, Long> results, long executionCount,
+            long executionNanosSum, double executionNanosP50, double executionNanosP99, double queueNanosP99) {
+    }
+
+    // ===== Prometheus exposition
+
+    /**
+     * Writes all metrics in Prometheus text exposition format.
+     *
+     * @param out
+     *         where to write.
+     * @param matsFuturizer
+     *         if non-<code>null</code>, the number of outstanding promises is included - and if it is a
+     *         {@link ExecutorCompletingMatsFuturizer}, also its completion counters.
+     */
+    public void writePrometheusExposition(PrintWriter out, MatsFuturizer matsFuturizer) {
+        long nowNanos = System.nanoTime();
+
+        // :: Initiators
+        type(out, "mats_initiator_executions_total", "counter", "Number of initiations executed.");
+        _initiators.values().forEach(m -> sample(out, "mats_initiator_executions_total", m.labels, m.executions));
+        type(out, "mats_initiator_errors_total", "counter", "Number of initiations that threw.");
+        _initiators.values().forEach(m -> sample(out, "mats_initiator_errors_total", m.labels, m.errors));
+        type(out, "mats_initiator_outgoing_messages_total", "counter", "Number of messages sent by initiations.");
+        _initiators.values().forEach(m -> sample(out, "mats_initiator_outgoing_messages_total", m.labels,
+                m.outgoingMessages));
+        type(out, "mats_initiator_execution_seconds", "summary", "Total execution time of initiations.");
+        _initiators.values().forEach(m -> m.executionNanos.write(out, "mats_initiator_execution_seconds", m.labels,
+                1e-9, nowNanos));
+        type(out, "mats_initiator_outgoing_message_bytes", "summary", "Wire size of messages sent by initiations.");
+        _initiators.values().forEach(m -> m.outgoingBytes.write(out, "mats_initiator_outgoing_message_bytes",
+                m.labels, 1, nowNanos));
+
+        // :: Endpoints (as counted on their initial stage)
+        type(out, "mats_endpoint_incoming_messages_total", "counter", "Number of messages received on the initial"
+                + " stage of the endpoint.");
+        _stages.values().stream().filter(m -> m.initialStage).forEach(m -> sample(out,
+                "mats_endpoint_incoming_messages_total", m.endpointLabels, m.totalResults()));
+
+        // :: Stages
+        type(out, "mats_stage_messages_total", "counter", "Number of messages processed by stage, by result.");
+        _stages.values().forEach(m -> m.results.forEach((result, count) -> sample(out, "mats_stage_messages_total",
+                m.labels + ",result=\"" + result + '"', count.sum())));
+        type(out, "mats_stage_execution_seconds", "summary", "Total execution time of stage processing.");
+        _stages.values().forEach(m -> m.executionNanos.write(out, "mats_stage_execution_seconds", m.labels, 1e-9,
+                nowNanos));
+        type(out, "mats_stage_queue_seconds", "summary", "Time from the message was sent until received by stage.");
+        _stages.values().forEach(m -> m.queueNanos.write(out, "mats_stage_queue_seconds", m.labels, 1e-9,
+                nowNanos));
+        type(out, "mats_stage_incoming_message_bytes", "summary", "Wire size of messages received by stage.");
+        _stages.values().forEach(m -> m.incomingBytes.write(out, "mats_stage_incoming_message_bytes", m.labels, 1,
+                nowNanos));
+        type(out, "mats_stage_outgoing_message_bytes", "summary", "Wire size of messages sent by stage.");
+        _stages.values().forEach(m -> m.outgoingBytes.write(out, "mats_stage_outgoing_message_bytes", m.labels, 1,
+                nowNanos));
+        type(out, "mats_stage_incoming_trace_serialized_bytes", "summary", "Serialized size of the MatsTrace received"
+                + " by stage, before decompression.");
+        _stages.values().forEach(m -> m.incomingSerializedBytes.write(out,
+                "mats_stage_incoming_trace_serialized_bytes", m.labels, 1, nowNanos));
+        type(out, "mats_stage_outgoing_trace_serialized_bytes", "summary", "Serialized size of the MatsTrace sent by"
+                + " stage, before compression.");
+        _stages.values().forEach(m -> m.outgoingSerializedBytes.write(out,
+                "mats_stage_outgoing_trace_serialized_bytes", m.labels, 1, nowNanos));
+        type(out, "mats_stage_incoming_trace_deserialization_seconds", "summary", "Time decompressing and"
+                + " deserializing the MatsTrace received by stage.");
+        _stages.values().forEach(m -> m.incomingDeserializationNanos.write(out,
+                "mats_stage_incoming_trace_deserialization_seconds", m.labels, 1e-9, nowNanos));
+        type(out, "mats_stage_outgoing_trace_serialization_seconds", "summary", "Time serializing and compressing"
+                + " the MatsTrace sent by stage.");
+        _stages.values().forEach(m -> m.outgoingSerializationNanos.write(out,
+                "mats_stage_outgoing_trace_serialization_seconds", m.labels, 1e-9, nowNanos));
+
+        // :: Futurizer
+        if (matsFuturizer != null) {
+            type(out, "mats_futurizer_outstanding_promises", "gauge", "Number of futurizations awaiting reply.");
+            sample(out, "mats_futurizer_outstanding_promises", "", matsFuturizer.getOutstandingPromiseCount());
+            if (matsFuturizer instanceof ExecutorCompletingMatsFuturizer executorCompleting) {
+                var stats = executorCompleting.getCompletionStats();
+                type(out, "mats_futurizer_completions_queued", "gauge", "Completions waiting for the executor.");
+                sample(out, "mats_futurizer_completions_queued", "", stats.queued());
+                type(out, "mats_futurizer_completions_active", "gauge", "Completions running on the executor.");
+                sample(out, "mats_futurizer_completions_active", "", stats.active());
+                type(out, "mats_futurizer_completions_total", "counter", "Finished completions.");
+                sample(out, "mats_futurizer_completions_total", "", stats.completed());
+            }
+        }
+
+        // :: Async logging, if in use
+        MatsJbangAsyncConsoleAppender asyncConsoleAppender = MatsJbangAsyncConsoleAppender.getInstalled();
+        if (asyncConsoleAppender != null) {
+            var stats = asyncConsoleAppender.getStats();
+            type(out, "mats_logging_async_queued", "gauge", "Log events waiting to be written.");
+            sample(out, "mats_logging_async_queued", "", stats.queued());
+            type(out, "mats_logging_async_events_total", "counter", "Log events appended.");
+            sample(out, "mats_logging_async_events_total", "", stats.appended());
+            type(out, "mats_logging_async_dropped_total", "counter", "Log events dropped due to full queue.");
+            sample(out, "mats_logging_async_dropped_total", "", stats.dropped());
+            type(out, "mats_logging_async_blocked_total", "counter", "Times a logging thread waited for room.");
+            sample(out, "mats_logging_async_blocked_total", "", stats.blocked());
+            type(out, "mats_logging_async_batches_total", "counter", "Batches written to console.");
+            sample(out, "mats_logging_async_batches_total", "", stats.batches());
+        }
+    }
+
+    // ===== Helpers for the Prometheus text format
+
+    static void type(PrintWriter out, String name, String type, String help) {
+        out.print("# HELP ");
+        out.print(name);
+        out.print(' ');
+        out.println(help);
+        out.print("# TYPE ");
+        out.print(name);
+        out.print(' ');
+        out.println(type);
+    }
+
+    static void sample(PrintWriter out, String name, String labels, LongAdder value) {
+        sample(out, name, labels, value.sum());
+    }
+
+    static void sample(PrintWriter out, String name, String labels, double value) {
+        out.print(name);
+        if (!labels.isEmpty()) {
+            out.print('{');
+            out.print(labels);
+            out.print('}');
+        }
+        out.print(' ');
+        // Prometheus wants integers without ".0", but it is not required - just nicer.
+        if ((value == Math.rint(value)) && !Double.isInfinite(value)) {
+            out.println((long) value);
+        }
+        else {
+            out.println(value);
+        }
+    }
+
+    static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+
+    // ===== Metric holders
+
+    private static class InitiatorMetrics {
+        final String labels;
+        final LongAdder executions = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder outgoingMessages = new LongAdder();
+        final Summary executionNanos = new Summary();
+        final Summary outgoingBytes = new Summary();
+
+        InitiatorMetrics(MatsInitiator initiator) {
+            labels = label("initiator", initiator.getName());
+        }
+    }
+
+    private static class StageMetrics {
+        final String stageId;
+        final String endpointId;
+        final String labels;
+        final String endpointLabels;
+        final boolean initialStage;
+        final Map<String, LongAdder> results = new ConcurrentHashMap<>();
+        final Summary executionNanos = new Summary();
+        final Summary queueNanos = new Summary();
+        final Summary incomingBytes = new Summary();
+        final Summary outgoingBytes = new Summary();
+        final Summary incomingSerializedBytes = new Summary();
+        final Summary outgoingSerializedBytes = new Summary();
+        final Summary incomingDeserializationNanos = new Summary();
+        final Summary outgoingSerializationNanos = new Summary();
+        final IntervalRecorder snapshotExecutionNanos = new IntervalRecorder();
+        final IntervalRecorder snapshotQueueNanos = new IntervalRecorder();
+
+        StageMetrics(MatsStage<?, ?, ?> stage) {
+            stageId = stage.getStageConfig().getStageId();
+            endpointId = stage.getParentEndpoint().getEndpointConfig().getEndpointId();
+            endpointLabels = label("endpoint", endpointId);
+            labels = endpointLabels + "," + label("stage", stageId);
+            initialStage = stage.getStageConfig().getStageIndex() == 0;
+        }
+
+        long totalResults() {
+            return results.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+    }
+
+    /**
+     * Recorder for the quantiles of {@link #getStageSnapshots()}, over the interval between each harvest.
+     */
+    private static class IntervalRecorder {
+        private final Recorder _recorder = new Recorder(2);
+        private Histogram _intervalHistogram;
+
+        void record(long value) {
+            _recorder.recordValue(Math.max(0, value));
+        }
+
+        /**
+         * @return the values recorded since the previous harvest - only valid until the next harvest.
+         */
+        synchronized Histogram harvest() {
+            _intervalHistogram = _recorder.getIntervalHistogram(_intervalHistogram);
+            return _intervalHistogram;
+        }
+    }
+
+    private static double valueAtQuantile(Histogram histogram, double quantile) {
+        return histogram.getTotalCount() == 0 ? Double.NaN : histogram.getValueAtPercentile(quantile * 100);
+    }
+
+    /**
+     * A Prometheus "summary": Count and sum since start, and quantiles over the last window.
+     */
+    static class Summary {
+        private final Recorder _recorder = new Recorder(2);
+        private final LongAdder _count = new LongAdder();
+        private final LongAdder _sum = new LongAdder();
+
+        private Histogram _intervalHistogram;
+        private long _nanosAtWindowStart = System.nanoTime();
+        private double[] _quantileValues;
+
+        void record(long value) {
+            long nonNegative = Math.max(0, value);
+            _recorder.recordValue(nonNegative);
+            _count.increment();
+            _sum.add(nonNegative);
+        }
+
+        long count() {
+            return _count.sum();
+        }
+
+        long sum() {
+            return _sum.sum();
+        }
+
+        /**
+         * @return the value at {@link #QUANTILES}[quantileIndex] over the last window.
+         */
+        double quantile(int quantileIndex, long nowNanos) {
+            return quantileValues(nowNanos)[quantileIndex];
+        }
+
+        void write(PrintWriter out, String name, String labels, double scale, long nowNanos) {
+            long count = _count.sum();
+            // ?: Any observations at all?
+            if (count == 0) {
+                // -> No, so don't output anything (Prometheus handles absent series fine).
+                return;
+            }
+            double[] quantileValues = quantileValues(nowNanos);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                sample(out, name, labels + ",quantile=\"" + QUANTILES[i] + '"', quantileValues[i] * scale);
+            }
+            sample(out, name + "_sum", labels, _sum.sum() * scale);
+            sample(out, name + "_count", labels, count);
+        }
+
+        private synchronized double[] quantileValues(long nowNanos) {
+            // ?: Do we need to harvest a new window?
+            if ((_quantileValues == null)
+                    || ((nowNanos - _nanosAtWindowStart) >= TimeUnit.MILLISECONDS.toNanos(QUANTILE_WINDOW_MILLIS))) {
+                // -> Yes, so get the values since last harvest, and recalculate.
+                _intervalHistogram = _recorder.getIntervalHistogram(_intervalHistogram);
+                _nanosAtWindowStart = nowNanos;
+                double[] quantileValues = new double[QUANTILES.length];
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    quantileValues[i] = _intervalHistogram.getTotalCount() == 0
+                            ? Double.NaN
+                            : _intervalHistogram.getValueAtPercentile(QUANTILES[i] * 100);
+                }
+                _quantileValues = quantileValues;
+            }
+            return _quantileValues;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package io.mats3.examples.jbang;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.activemq.broker.BrokerPlugin;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.policy.IndividualDeadLetterStrategy;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.plugin.StatisticsBrokerPlugin;
+import org.apache.activemq.store.PersistenceAdapter;
+import org.apache.activemq.store.kahadb.FilteredKahaDBPersistenceAdapter;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+import org.apache.activemq.store.kahadb.MultiKahaDBPersistenceAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates a persistent ActiveMQ broker with the KahaDB store options that matter for performance exposed - used by
+ * 'ActiveMqRun' when started with <code>-Dpersistent</code>, and by 'ActiveMqPersistentBenchmark' to compare
+ * configurations. The broker gets the same Mats3-relevant setup as the non-persistent broker from
+ * <code>MatsTestBroker</code>: Statistics plugin (for the MatsBrokerMonitor), individual DLQs also for expired
+ * messages, prioritized messages, GC of inactive destinations, and split memory for producers and consumers.
+ * <p>
+ * The KahaDB options, with the system property used by {@link #fromSystemProperties()} - any option not set is left
+ * at the KahaDB default:
+ * <ul>
+ * <li><code>kahadb.journalMaxFileLength</code>: Size of each journal file, e.g. <code>64mb</code>. Larger files means
+ * fewer file rolls, but a single unacked message keeps the whole file from being cleaned up.</li>
+ * <li><code>kahadb.journalDiskSyncStrategy</code>: <code>always</code> (default) fsyncs every journal write - fully
+ * durable, but capped by the disk's fsync rate. <code>periodic</code> fsyncs every
+ * <code>kahadb.journalDiskSyncInterval</code> ms (default 1000), thus may lose that much on power loss (not on process
+ * crash). <code>never</code> leaves it to the OS.</li>
+ * <li><code>kahadb.indexCacheSize</code>: Number of index pages (4 KB each) cached in memory, default 10 000.</li>
+ * <li><code>kahadb.concurrentStoreAndDispatch</code>: Whether to dispatch a queue message to a consumer concurrently
+ * with storing it, so that a fast consumer's ack may cancel the write altogether. Default true.</li>
+ * <li><code>kahadb.checkpointInterval</code> and <code>kahadb.cleanupInterval</code>: Milliseconds between index
+ * checkpoints and journal cleanups.</li>
+ * <li><code>kahadb.mKahaDB</code>: Multi-KahaDB, giving queues their own journal and index: Either
+ * <code>perDestination</code> for a store per destination, or a comma separated list of queue patterns, e.g.
+ * <code>mats.ServiceA.&gt;,mats.ServiceB.&gt;</code>, each getting its own store, while the rest share one. A hot
+ * queue thus doesn't have its journal files held by a few slow messages on other queues, and the stores are
+ * written in parallel.</li>
+ * <li><code>kahadb.directory</code>: Where to put the store, default <code>activemq-data/kahadb</code>.</li>
+ * </ul>
+ */
+public class MatsJbangPersistentBroker {
+    private static final Logger log = LoggerFactory.getLogger(MatsJbangPersistentBroker.class);
+
+    /**
+     * Value for <code>kahadb.mKahaDB</code> giving each destination its own store.
+     */
+    public static final String MKAHADB_PER_DESTINATION = "perDestination";
+
+    private static final String SYSPROP_PREFIX = "kahadb.";
+
+    private final File _directory;
+    private String _brokerName = "MatsJbangPersistentBroker";
+    private Integer _journalMaxFileLength;
+    private String _journalDiskSyncStrategy;
+    private Long _journalDiskSyncInterval;
+    private Integer _indexCacheSize;
+    private Boolean _concurrentStoreAndDispatch;
+    private Long _checkpointInterval;
+    private Long _cleanupInterval;
+    private boolean _mKahaDbPerDestination;
+    private final List<String> _mKahaDbQueuePatterns = new ArrayList<>();
+
+    private MatsJbangPersistentBroker(File directory) {
+        _directory = directory;
+    }
+
+    /**
+     * @param directory
+     *         where to put the KahaDB store.
+     * @return a builder with all KahaDB options at default.
+     */
+    public static MatsJbangPersistentBroker create(File directory) {
+        return new MatsJbangPersistentBroker(directory);
+    }
+
+    /**
+     * @return a builder configured from the <code>kahadb.*</code> system properties, as described in the class
+     *         JavaDoc.
+     */
+    public static MatsJbangPersistentBroker fromSystemProperties() {
+        MatsJbangPersistentBroker broker = create(new File(System.getProperty(SYSPROP_PREFIX + "directory",
+                "activemq-data/kahadb")));
+        String journalMaxFileLength = sysprop("journalMaxFileLength");
+        if (journalMaxFileLength != null) {
+            broker.journalMaxFileLength(parseBytes(journalMaxFileLength));
+        }
+        String journalDiskSyncStrategy = sysprop("journalDiskSyncStrategy");
+        if (journalDiskSyncStrategy != null) {
+            String interval = sysprop("journalDiskSyncInterval");
+            broker.journalDiskSync(journalDiskSyncStrategy, interval != null ? Long.parseLong(interval) : 1000);
+        }
+        String indexCacheSize = sysprop("indexCacheSize");
+        if (indexCacheSize != null) {
+            broker.indexCacheSize(Integer.parseInt(indexCacheSize));
+        }
+        String concurrentStoreAndDispatch = sysprop("concurrentStoreAndDispatch");
+        if (concurrentStoreAndDispatch != null) {
+            broker.concurrentStoreAndDispatch(Boolean.parseBoolean(concurrentStoreAndDispatch));
+        }
+        String checkpointInterval = sysprop("checkpointInterval");
+        if (checkpointInterval != null) {
+            broker.checkpointInterval(Long.parseLong(checkpointInterval));
+        }
+        String cleanupInterval = sysprop("cleanupInterval");
+        if (cleanupInterval != null) {
+            broker.cleanupInterval(Long.parseLong(cleanupInterval));
+        }
+        String mKahaDb = sysprop("mKahaDB");
+        if (mKahaDb != null) {
+            // ?: Per destination, or list of queue patterns?
+            if (MKAHADB_PER_DESTINATION.equalsIgnoreCase(mKahaDb.trim())) {
+                // -> Per destination
+                broker.mKahaDbPerDestination();
+            }
+            else {
+                // -> List of queue patterns
+                broker.mKahaDbSeparateQueues(Arrays.stream(mKahaDb.split(","))
+                        .map(String::trim)
+                        .filter(s -> !s.isEmpty())
+                        .toArray(String[]::new));
+            }
+        }
+        return broker;
+    }
+
+    private static String sysprop(String name) {
+        return System.getProperty(SYSPROP_PREFIX + name);
+    }
+
+    /**
+     * @param brokerName
+     *         the name of the broker, which is also what in-JVM clients connect to using
+     *         <code>vm://{brokerName}</code>, default "MatsJbangPersistentBroker".
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangPersistentBroker brokerName(String brokerName) {
+        _brokerName = brokerName;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * @param bytes
+     *         the size of each journal file - larger files means fewer file rolls, but a file is only cleaned up
+     *         when none of its messages are needed anymore.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangPersistentBroker journalMaxFileLength(int bytes) {
+        _journalMaxFileLength = bytes;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * @param strategy
+     *         <code>always</code>, <code>periodic</code> or <code>never</code>.
+     * @param intervalMillis
+     *         the fsync interval for <code>periodic</code>.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangPersistentBroker journalDiskSync(String strategy, long intervalMillis) {
+        String upper = strategy.trim().toUpperCase(Locale.ROOT);
+        if (!List.of("ALWAYS", "PERIODIC", "NEVER").contains(upper)) {
+            throw new IllegalArgumentException("journalDiskSyncStrategy must be one of 'always', 'periodic' or"
+                    + " 'never', was [" + strategy + "].");
+        }
+        _journalDiskSyncStrategy = upper;
+        _journalDiskSyncInterval = intervalMillis;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * @param pages
+     *         the number of index pages, 4 KB each, cached in memory - if the index doesn't fit, lookups go to disk.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangPersistentBroker indexCacheSize(int pages) {
+        _indexCacheSize = pages;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * @param concurrentStoreAndDispatch
+     *         whether a queue message is dispatched to a consumer while it is being stored, so that an ack arriving
+     *         before the write is done cancels it.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangPersistentBroker concurrentStoreAndDispatch(boolean concurrentStoreAndDispatch) {
+        _concurrentStoreAndDispatch = concurrentStoreAndDispatch;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * @param millis
+     *         the time between writing the index to disk - the longer, the more journal to replay on recovery.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangPersistentBroker checkpointInterval(long millis) {
+        _checkpointInterval = millis;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * @param millis
+     *         the time between checking for journal files that may be deleted.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangPersistentBroker cleanupInterval(long millis) {
+        _cleanupInterval = millis;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * Use Multi-KahaDB with a separate store for each destination. Cannot be combined with
+     * {@link #mKahaDbSeparateQueues(String...)}.
+     *
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangPersistentBroker mKahaDbPerDestination() {
+        if (!_mKahaDbQueuePatterns.isEmpty()) {
+            throw new IllegalStateException("Cannot combine per-destination stores with separate queue patterns.");
+        }
+        _mKahaDbPerDestination = true;
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * Use Multi-KahaDB, where the queues matching each of the patterns get their own store, while all other
+     * destinations share one. May be invoked multiple times, adding patterns. Cannot be combined with
+     * {@link #mKahaDbPerDestination()}.
+     *
+     * @param queuePatterns
+     *         ActiveMQ destination wildcards, e.g. <code>mats.ServiceA.&gt;</code>.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangPersistentBroker mKahaDbSeparateQueues(String... queuePatterns) {
+        if (_mKahaDbPerDestination) {
+            throw new IllegalStateException("Cannot combine separate queue patterns with per-destination stores.");
+        }
+        _mKahaDbQueuePatterns.addAll(Arrays.asList(queuePatterns));
+        // .. for chaining
+        return this;
+    }
+
+    /**
+     * @return a one-line description of the store configuration, for logging and benchmark tables.
+     */
+    public String describe() {
+        StringBuilder buf = new StringBuilder();
+        buf.append(_mKahaDbPerDestination
+                ? "mKahaDB[perDestination]"
+                : _mKahaDbQueuePatterns.isEmpty() ? "KahaDB" : "mKahaDB" + _mKahaDbQueuePatterns);
+        append(buf, "journalMaxFileLength", _journalMaxFileLength);
+        append(buf, "diskSync", _journalDiskSyncStrategy == null ? null
+                : _journalDiskSyncStrategy.equals("PERIODIC")
+                        ? "PERIODIC/" + _journalDiskSyncInterval + "ms"
+                        : _journalDiskSyncStrategy);
+        append(buf, "indexCacheSize", _indexCacheSize);
+        append(buf, "concurrentStoreAndDispatch", _concurrentStoreAndDispatch);
+        append(buf, "checkpointInterval", _checkpointInterval);
+        append(buf, "cleanupInterval", _cleanupInterval);
+        return buf.toString();
+    }
+
+    private static void append(StringBuilder buf, String name, Object value) {
+        if (value != null) {
+            buf.append(' ').append(name).append('=').append(value);
+        }
+    }
+
+    /**
+     * Creates and starts the broker, with the store and the specified transport connectors.
+     *
+     * @param transportConnectorUris
+     *         e.g. <code>tcp://localhost:61616</code> - if none, the broker is only reachable in-JVM, using
+     *         <code>vm://{brokerName}?create=false</code>.
+     * @return the started {@link BrokerService}, which the caller must stop.
+     */
+    public BrokerService start(String... transportConnectorUris) {
+        BrokerService brokerService = new BrokerService();
+        brokerService.setBrokerName(_brokerName);
+        // Caller stops it, in good order.
+        brokerService.setUseShutdownHook(false);
+        brokerService.setUseJmx(false);
+        // Keep the temp storage (non-persistent messages spooled to disk) with the store, not in the current dir.
+        brokerService.setTmpDataDirectory(new File(_directory, "tmp_storage"));
+        // The MatsBrokerMonitor needs the statistics plugin.
+        brokerService.setPlugins(new BrokerPlugin[] { new StatisticsBrokerPlugin() });
+        brokerService.setSchedulePeriodForDestinationPurge(60_000);
+
+        // :: Policies
+        // .. Queues: Individual DLQs, also for expired messages, prioritized messages, GC inactive destinations.
+        IndividualDeadLetterStrategy deadLetterStrategy = new IndividualDeadLetterStrategy();
+        deadLetterStrategy.setQueuePrefix("DLQ.");
+        deadLetterStrategy.setUseQueueForQueueMessages(true);
+        deadLetterStrategy.setProcessExpired(true);
+        PolicyEntry allQueuesPolicy = new PolicyEntry();
+        allQueuesPolicy.setQueue(">");
+        allQueuesPolicy.setDeadLetterStrategy(deadLetterStrategy);
+        allQueuesPolicy.setPrioritizedMessages(true);
+        allQueuesPolicy.setGcInactiveDestinations(true);
+        allQueuesPolicy.setInactiveTimeoutBeforeGC(2 * 24 * 60 * 60 * 1000);
+        allQueuesPolicy.setQueuePrefetch(25);
+        // .. Topics: GC inactive destinations.
+        PolicyEntry allTopicsPolicy = new PolicyEntry();
+        allTopicsPolicy.setTopic(">");
+        allTopicsPolicy.setGcInactiveDestinations(true);
+        allTopicsPolicy.setInactiveTimeoutBeforeGC(2 * 24 * 60 * 60 * 1000);
+        PolicyMap policyMap = new PolicyMap();
+        policyMap.setPolicyEntries(List.of(allQueuesPolicy, allTopicsPolicy));
+        brokerService.setDestinationPolicy(policyMap);
+
+        // Split memory between producers and consumers, so that blocked producers cannot starve the consumers.
+        brokerService.setSplitSystemUsageForProducersConsumers(true);
+
+        try {
+            brokerService.setPersistent(true);
+            brokerService.setPersistenceAdapter(createPersistenceAdapter());
+            for (String uri : transportConnectorUris) {
+                brokerService.addConnector(uri);
+            }
+            brokerService.start();
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Could not start persistent ActiveMQ broker [" + _brokerName + "].", e);
+        }
+        brokerService.waitUntilStarted();
+        log.info("Started persistent ActiveMQ broker [" + _brokerName + "] at [" + _directory.getAbsolutePath()
+                + "]: " + describe());
+        return brokerService;
+    }
+
+    private PersistenceAdapter createPersistenceAdapter() {
+        // ?: Multi-KahaDB?
+        if (!_mKahaDbPerDestination && _mKahaDbQueuePatterns.isEmpty()) {
+            // -> No, so a single KahaDB.
+            KahaDBPersistenceAdapter kahaDb = createKahaDb();
+            kahaDb.setDirectory(_directory);
+            return kahaDb;
+        }
+        // E-> Yes, Multi-KahaDB: Each filtered adapter is a template, the directories are set by the multi adapter.
+        List<FilteredKahaDBPersistenceAdapter> filtered = new ArrayList<>();
+        for (String queuePattern : _mKahaDbQueuePatterns) {
+            FilteredKahaDBPersistenceAdapter separate = new FilteredKahaDBPersistenceAdapter();
+            separate.setQueue(queuePattern);
+            separate.setPersistenceAdapter(createKahaDb());
+            filtered.add(separate);
+        }
+        // Catch-all, last: Either a store per destination, or one shared store for the rest.
+        FilteredKahaDBPersistenceAdapter catchAll = new FilteredKahaDBPersistenceAdapter();
+        catchAll.setPerDestination(_mKahaDbPerDestination);
+        catchAll.setPersistenceAdapter(createKahaDb());
+        filtered.add(catchAll);
+
+        MultiKahaDBPersistenceAdapter multiKahaDb = new MultiKahaDBPersistenceAdapter();
+        multiKahaDb.setDirectory(_directory);
+        multiKahaDb.setFilteredPersistenceAdapters(filtered);
+        return multiKahaDb;
+    }
+
+    private KahaDBPersistenceAdapter createKahaDb() {
+        KahaDBPersistenceAdapter kahaDb = new KahaDBPersistenceAdapter();
+        if (_journalMaxFileLength != null) {
+            kahaDb.setJournalMaxFileLength(_journalMaxFileLength);
+        }
+        if (_journalDiskSyncStrategy != null) {
+            kahaDb.setJournalDiskSyncStrategy(_journalDiskSyncStrategy);
+            kahaDb.setJournalDiskSyncInterval(_journalDiskSyncInterval);
+        }
+        if (_indexCacheSize != null) {
+            kahaDb.setIndexCacheSize(_indexCacheSize);
+        }
+        if (_concurrentStoreAndDispatch != null) {
+            kahaDb.setConcurrentStoreAndDispatchQueues(_concurrentStoreAndDispatch);
+        }
+        if (_checkpointInterval != null) {
+            kahaDb.setCheckpointInterval(_checkpointInterval);
+        }
+        if (_cleanupInterval != null) {
+            kahaDb.setCleanupInterval(_cleanupInterval);
+        }
+        return kahaDb;
+    }
+
+    /**
+     * Parses a byte size, either a plain number, or with suffix <code>kb</code>, <code>mb</code> or <code>gb</code>.
+     */
+    static int parseBytes(String size) {
+        String lower = size.trim().toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+        if (lower.endsWith("kb")) {
+            multiplier = 1024;
+        }
+        else if (lower.endsWith("mb")) {
+            multiplier = 1024 * 1024;
+        }
+        else if (lower.endsWith("gb")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        String number = multiplier == 1 ? lower : lower.substring(0, lower.length() - 2).trim();
+        long bytes;
+        try {
+            bytes = Long.parseLong(number) * multiplier;
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Could not parse byte size [" + size + "].", e);
+        }
+        if ((bytes <= 0) || (bytes > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("Byte size [" + size + "] must be > 0 and < 2 GB.");
+        }
+        return (int) bytes;
+    }
+}
@@ -0,0 +1,173 @@
+package io.mats3.examples.jbang;
+
+import static io.mats3.examples.jbang.MatsJbangMetricsInterceptor.sample;
+import static io.mats3.examples.jbang.MatsJbangMetricsInterceptor.type;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.thread.Invocable;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Jetty's {@link QueuedThreadPool}, measuring how long the jobs wait in the queue before a thread picks them up - the
+ * first sign of an edge service that is running out of threads, often well before the busy count hits the max. The
+ * max queue latency is over the last one to two windows of {@link #QUEUE_LATENCY_WINDOW_MILLIS}, so that it shows a
+ * recent spike without sticking forever. Used by {@link MatsJbangJettyServer}, which shows the {@link #getPoolStats()
+ * stats} on the root page and in the metrics.
+ * <p>
+ * Note: Jobs run by Jetty's reserved threads, i.e. by {@link #tryExecute(Runnable)}, never wait in the queue, and are
+ * thus not measured.
+ */
+public class MatsJbangQueuedThreadPool extends QueuedThreadPool {
+    /**
+     * The window of the max queue latency.
+     */
+    public static final long QUEUE_LATENCY_WINDOW_MILLIS = 15_000;
+
+    private static final long QUEUE_LATENCY_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(QUEUE_LATENCY_WINDOW_MILLIS);
+
+    private final Object _windowLock = new Object();
+    // :: Written under _windowLock, but read without: A slightly stale max is fine for a gauge.
+    private volatile long _windowStartNanos = System.nanoTime();
+    private volatile long _maxQueueNanosCurrentWindow;
+    private volatile long _maxQueueNanosPreviousWindow;
+
+    @Override
+    public void execute(Runnable job) {
+        super.execute(new TimedJob(job, System.nanoTime()));
+    }
+
+    /**
+     * @return a snapshot of the pool's utilisation.
+     */
+    public PoolStats getPoolStats() {
+        return new PoolStats(getThreads(), getMaxThreads(), getBusyThreads(), getIdleThreads(),
+                getAvailableReservedThreads(), getMaxReservedThreads(), getQueueSize(), getUtilizationRate(),
+                maxQueueNanos(System.nanoTime()) / 1_000_000d);
+    }
+
+    /**
+     * Snapshot of the {@link MatsJbangQueuedThreadPool}.
+     *
+     * @param threads
+     *         the number of threads in the pool.
+     * @param maxThreads
+     *         the max number of threads in the pool.
+     * @param busyThreads
+     *         the number of threads running jobs.
+     * @param idleThreads
+     *         the number of threads waiting for jobs.
+     * @param availableReservedThreads
+     *         the number of reserved threads which are available.
+     * @param maxReservedThreads
+     *         the max number of reserved threads.
+     * @param queueSize
+     *         the number of jobs waiting for a thread.
+     * @param utilization
+     *         busy threads / max threads, excluding the reserved - 0 to 1.
+     * @param maxQueueLatencyMillis
+     *         the max time a job waited for a thread, over the last one to two windows.
+     */
+    public record PoolStats(int threads, int maxThreads, int busyThreads, int idleThreads,
+            int availableReservedThreads, int maxReservedThreads, int queueSize, double utilization,
+            double maxQueueLatencyMillis) {
+        /**
+         * @return a one-line description, for e.g. HTML.
+         */
+        public String toText() {
+            return String.format("threads %d of max %d: busy %d, idle %d, reserved %d of %d; queue %d;"
+                            + " utilization %.1f %%; max queue latency %.3f ms", threads, maxThreads, busyThreads,
+                    idleThreads, availableReservedThreads, maxReservedThreads, queueSize, utilization * 100,
+                    maxQueueLatencyMillis);
+        }
+    }
+
+    /**
+     * Writes the pool stats in Prometheus text exposition format.
+     */
+    void writePrometheusExposition(PrintWriter out) {
+        PoolStats stats = getPoolStats();
+        type(out, "jetty_threads", "gauge", "Jetty thread pool threads, by state.");
+        sample(out, "jetty_threads", "state=\"busy\"", stats.busyThreads());
+        sample(out, "jetty_threads", "state=\"idle\"", stats.idleThreads());
+        sample(out, "jetty_threads", "state=\"reserved\"", stats.availableReservedThreads());
+        type(out, "jetty_threads_max", "gauge", "Jetty thread pool max threads.");
+        sample(out, "jetty_threads_max", "", stats.maxThreads());
+        type(out, "jetty_thread_pool_queue_size", "gauge", "Jobs waiting for a Jetty thread.");
+        sample(out, "jetty_thread_pool_queue_size", "", stats.queueSize());
+        type(out, "jetty_thread_pool_utilization", "gauge", "Busy threads / max threads, 0 to 1.");
+        sample(out, "jetty_thread_pool_utilization", "", stats.utilization());
+        type(out, "jetty_thread_pool_queue_latency_max_seconds", "gauge", "Max time a job waited for a Jetty"
+                + " thread, over the last " + QUEUE_LATENCY_WINDOW_MILLIS / 1000 + " to "
+                + 2 * QUEUE_LATENCY_WINDOW_MILLIS / 1000 + " seconds.");
+        sample(out, "jetty_thread_pool_queue_latency_max_seconds", "", stats.maxQueueLatencyMillis() / 1000d);
+    }
+
+    // ===== Internals
+
+    private void recordQueueNanos(long queueNanos, long nowNanos) {
+        // Fast path: Not a new max, and the window is current - the common case.
+        if ((queueNanos <= _maxQueueNanosCurrentWindow)
+                && ((nowNanos - _windowStartNanos) < QUEUE_LATENCY_WINDOW_NANOS)) {
+            return;
+        }
+        synchronized (_windowLock) {
+            rotateIfNeeded(nowNanos);
+            if (queueNanos > _maxQueueNanosCurrentWindow) {
+                _maxQueueNanosCurrentWindow = queueNanos;
+            }
+        }
+    }
+
+    private long maxQueueNanos(long nowNanos) {
+        synchronized (_windowLock) {
+            rotateIfNeeded(nowNanos);
+            return Math.max(_maxQueueNanosCurrentWindow, _maxQueueNanosPreviousWindow);
+        }
+    }
+
+    private void rotateIfNeeded(long nowNanos) {
+        long windowsPassed = (nowNanos - _windowStartNanos) / QUEUE_LATENCY_WINDOW_NANOS;
+        // ?: Still in the current window?
+        if (windowsPassed == 0) {
+            // -> Yes, so nothing to do.
+            return;
+        }
+        // E-> New window: The current becomes previous - unless more than one window passed, then both are empty.
+        _maxQueueNanosPreviousWindow = windowsPassed == 1 ? _maxQueueNanosCurrentWindow : 0;
+        _maxQueueNanosCurrentWindow = 0;
+        _windowStartNanos += windowsPassed * QUEUE_LATENCY_WINDOW_NANOS;
+    }
+
+    /**
+     * Wraps the job to time the queue wait - keeping the job's {@link Invocable.InvocationType}, which Jetty uses to
+     * decide whether a job may run on the calling thread.
+     */
+    private class TimedJob implements Runnable, Invocable {
+        private final Runnable _job;
+        private final long _nanosEnqueued;
+
+        TimedJob(Runnable job, long nanosEnqueued) {
+            _job = job;
+            _nanosEnqueued = nanosEnqueued;
+        }
+
+        @Override
+        public void run() {
+            long nowNanos = System.nanoTime();
+            recordQueueNanos(nowNanos - _nanosEnqueued, nowNanos);
+            _job.run();
+        }
+
+        @Override
+        public InvocationType getInvocationType() {
+            return Invocable.getInvocationType(_job);
+        }
+
+        @Override
+        public String toString() {
+            return _job.toString();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package io.mats3.examples.jbang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Caches the output of an expensive page renderer for a short while, so that it is rendered at most once per interval
+ * no matter how many clients request it: The first request after expiry renders while holding the lock, and any
+ * concurrent requests wait for, and then get, that same rendering. The response carries an ETag computed from the
+ * content, so that a client which already has the same content gets a <code>304 Not Modified</code> without the body.
+ */
+class MatsJbangRenderCache {
+    private final Renderer _renderer;
+    private final long _ttlNanos;
+
+    // Guarded by this
+    private Rendered _rendered;
+
+    /**
+     * @param renderer
+     *         writes the page - invoked at most once per TTL.
+     * @param ttlMillis
+     *         how long a rendering is served before it is rendered anew. 0 renders on every request, but still
+     *         employs the ETag.
+     */
+    MatsJbangRenderCache(Renderer renderer, long ttlMillis) {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("ttlMillis must be >= 0, was [" + ttlMillis + "].");
+        }
+        _renderer = renderer;
+        _ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Serves the cached rendering, or <code>304 Not Modified</code> if the request's <code>If-None-Match</code>
+     * matches it. The content type must already be set, with charset UTF-8.
+     */
+    void serve(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Rendered rendered = get();
+        // Let the browser store it, but always revalidate - which is cheap, as it is answered from the cache.
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setHeader("ETag", rendered.etag);
+        // ?: Does the client already have this rendering?
+        if (etagMatches(req.getHeader("If-None-Match"), rendered.etag)) {
+            // -> Yes, so tell it so, without the body.
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        resp.setContentLength(rendered.body.length);
+        resp.getOutputStream().write(rendered.body);
+    }
+
+    private synchronized Rendered get() throws IOException {
+        long nowNanos = System.nanoTime();
+        // ?: Do we have a fresh rendering?
+        if ((_rendered != null) && ((nowNanos - _rendered.nanosRendered) < _ttlNanos)) {
+            // -> Yes, so use it.
+            return _rendered;
+        }
+        // E-> No, so render it - holding the lock, so that concurrent requests wait for this rendering.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+        _renderer.render(out);
+        out.flush();
+        byte[] body = bytes.toByteArray();
+        CRC32 crc32 = new CRC32();
+        crc32.update(body);
+        _rendered = new Rendered(body, '"' + Long.toHexString(crc32.getValue()) + '-'
+                + Integer.toHexString(body.length) + '"', nowNanos);
+        return _rendered;
+    }
+
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // A weak validator matches by weak comparison, which is what If-None-Match uses.
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the page.
+     */
+    @FunctionalInterface
+    interface Renderer {
+        void render(PrintWriter out) throws IOException;
+    }
+
+    private record Rendered(byte[] body, String etag, long nanosRendered) {
+    }
+}
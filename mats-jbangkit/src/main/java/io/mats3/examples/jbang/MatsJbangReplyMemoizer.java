@@ -0,0 +1,288 @@
+package io.mats3.examples.jbang;
+
+import static io.mats3.examples.jbang.MatsJbangMetricsInterceptor.label;
+import static io.mats3.examples.jbang.MatsJbangMetricsInterceptor.sample;
+import static io.mats3.examples.jbang.MatsJbangMetricsInterceptor.type;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import io.mats3.MatsEndpoint.MatsRefuseMessageException;
+import io.mats3.MatsEndpoint.ProcessContext;
+import io.mats3.MatsEndpoint.ProcessLambda;
+import io.mats3.MatsStage;
+import io.mats3.api.intercept.MatsEditableOutgoingMessage;
+import io.mats3.api.intercept.MatsInterceptable;
+import io.mats3.api.intercept.MatsOutgoingMessage.MessageType;
+import io.mats3.api.intercept.MatsStageInterceptor.MatsStageInterceptOutgoingMessages;
+import io.mats3.api.intercept.MatsStageInterceptor.MatsStageInterceptUserLambda;
+
+/**
+ * Stage interceptor which memoizes the replies of pure Endpoints - i.e. Endpoints whose reply depends on nothing but
+ * the request, like <code>a*b</code>: For an Endpoint opted in by {@link #memoize(String...)}, the incoming request
+ * DTO is serialized to JSON as the key, and if a reply for an equal request is cached, the user lambda is not invoked
+ * at all - the cached reply is sent right away. On a miss, the lambda runs as normal, and if its only outgoing message
+ * was a reply, that reply is cached. The Endpoint's code is not changed.
+ * <p>
+ * Only single-stage Endpoints are memoized, since for a multi-stage Endpoint the reply is made by a later stage, from
+ * whatever the earlier stages got. The cache is an LRU map per Endpoint, bounded by the number of entries - there is
+ * no expiry, as the reply of a pure function never gets stale. Note that the incoming message is still received and
+ * deserialized, and the reply still sent, so what is saved is the lambda's execution: Worth it when the lambda is
+ * expensive compared to serializing the request to make the key. The cached reply DTO is shared among the hits, but
+ * Mats only serializes it.
+ * <p>
+ * The counts of hits, misses and evictions are available per Endpoint from {@link #getStats()}, and are shown on the
+ * <code>"/localinspect"</code> page and included in the metrics when added with
+ * {@link MatsJbangJettyServer#addMatsReplyMemoization(int, String...)}.
+ */
+public class MatsJbangReplyMemoizer implements MatsStageInterceptUserLambda, MatsStageInterceptOutgoingMessages {
+    private final int _maxEntriesPerEndpoint;
+    private final Map<String, EndpointMemo> _endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * The key of a miss, from the user lambda interception until the outgoing messages are intercepted - the stage is
+     * processed by a single thread.
+     */
+    private final ThreadLocal<Miss> _currentMiss = new ThreadLocal<>();
+
+    private MatsJbangReplyMemoizer(int maxEntriesPerEndpoint) {
+        _maxEntriesPerEndpoint = maxEntriesPerEndpoint;
+    }
+
+    /**
+     * Creates and installs the reply memoizer on the supplied {@link MatsInterceptable}, which typically is the
+     * MatsFactory. No Endpoints are memoized until opted in by {@link #memoize(String...)}.
+     *
+     * @param matsInterceptable
+     *         the {@link MatsInterceptable} (MatsFactory) to install on.
+     * @param maxEntriesPerEndpoint
+     *         the max number of cached replies per Endpoint - the least recently used are evicted.
+     * @return the installed interceptor.
+     */
+    public static MatsJbangReplyMemoizer install(MatsInterceptable matsInterceptable, int maxEntriesPerEndpoint) {
+        if (maxEntriesPerEndpoint < 1) {
+            throw new IllegalArgumentException("maxEntriesPerEndpoint must be >= 1, was [" + maxEntriesPerEndpoint
+                    + "].");
+        }
+        MatsJbangReplyMemoizer memoizer = new MatsJbangReplyMemoizer(maxEntriesPerEndpoint);
+        matsInterceptable.addStageInterceptor(memoizer);
+        return memoizer;
+    }
+
+    /**
+     * Opts the specified Endpoints in to memoization - they must be pure, i.e. the reply must depend only on the
+     * request, and the lambda must have no side effects that matter.
+     *
+     * @param endpointIds
+     *         the single-stage Endpoints to memoize.
+     * @return <code>this</code>, for chaining.
+     */
+    public MatsJbangReplyMemoizer memoize(String... endpointIds) {
+        for (String endpointId : endpointIds) {
+            _endpoints.computeIfAbsent(endpointId, EndpointMemo::new);
+        }
+        // .. for chaining
+        return this;
+    }
+
+    // ===== Interceptor callbacks
+
+    @Override
+    public void stageInterceptUserLambda(StageInterceptUserLambdaContext context,
+            ProcessLambda<Object, Object, Object> processLambda, ProcessContext<Object> ctx, Object state,
+            Object msg) throws MatsRefuseMessageException {
+        EndpointMemo memo = memoFor(context.getStage());
+        // ?: Is this Endpoint memoized, and do we have a request to key on?
+        if ((memo == null) || (msg == null)) {
+            // -> No, so just run the lambda.
+            processLambda.process(ctx, state, msg);
+            return;
+        }
+        // E-> Yes, memoized: Look it up.
+        String key;
+        try {
+            key = MatsJbangFuturizerCache.KEY_MAPPER.writeValueAsString(msg);
+        }
+        catch (JsonProcessingException e) {
+            // It was just deserialized, so this shouldn't happen - but if, just run the lambda.
+            memo.uncacheable.increment();
+            processLambda.process(ctx, state, msg);
+            return;
+        }
+        Object cachedReply = memo.get(key);
+        // ?: Did we have the reply?
+        if (cachedReply != null) {
+            // -> Yes, so short-circuit the lambda, replying with it.
+            memo.hits.increment();
+            ctx.reply(cachedReply);
+            return;
+        }
+        // E-> No, so run the lambda, and cache the reply when we see the outgoing messages.
+        memo.misses.increment();
+        _currentMiss.set(new Miss(memo, key));
+        processLambda.process(ctx, state, msg);
+    }
+
+    @Override
+    public void stageInterceptOutgoingMessages(StageInterceptOutgoingMessageContext context) {
+        Miss miss = _currentMiss.get();
+        // ?: Is this the outgoing messages of a miss?
+        if (miss == null) {
+            // -> No, so nothing to do.
+            return;
+        }
+        _currentMiss.remove();
+        List<MatsEditableOutgoingMessage> outgoing = context.getOutgoingMessages();
+        // ?: Was the only outgoing message a reply?
+        if ((outgoing.size() == 1) && (outgoing.get(0).getMessageType() == MessageType.REPLY)
+                && (outgoing.get(0).getData() != null)) {
+            // -> Yes, so cache it.
+            miss.memo.put(miss.key, outgoing.get(0).getData());
+        }
+        else {
+            // -> No, e.g. no replyTo, or the lambda did more than reply - so we can't replay it.
+            miss.memo.uncacheable.increment();
+        }
+    }
+
+    @Override
+    public void stageCompleted(StageCompletedContext context) {
+        Miss miss = _currentMiss.get();
+        // ?: Is there still a miss, i.e. the outgoing messages weren't intercepted?
+        if (miss != null) {
+            // -> Yes, the lambda threw, or didn't send anything - so clear it, lest the next stage on this thread
+            // would cache its reply under this key.
+            _currentMiss.remove();
+            miss.memo.uncacheable.increment();
+        }
+    }
+
+    private EndpointMemo memoFor(MatsStage<?, ?, ?> stage) {
+        // ?: Is this the single stage of its Endpoint?
+        if ((stage.getStageConfig().getStageIndex() != 0) || (stage.getParentEndpoint().getStages().size() != 1)) {
+            // -> No, so the initial stage doesn't reply, or this stage replies with state from earlier stages.
+            return null;
+        }
+        return _endpoints.get(stage.getParentEndpoint().getEndpointConfig().getEndpointId());
+    }
+
+    // ===== Stats, metrics and HTML
+
+    /**
+     * @return a snapshot of the counters per memoized Endpoint, sorted by Endpoint id.
+     */
+    public Map<String, MemoStats> getStats() {
+        Map<String, MemoStats> stats = new TreeMap<>();
+        _endpoints.values().forEach(e -> stats.put(e.endpointId, e.stats()));
+        return stats;
+    }
+
+    /**
+     * Snapshot of the memoization counters for one Endpoint.
+     *
+     * @param entries
+     *         the number of cached replies.
+     * @param maxEntries
+     *         the max number of cached replies.
+     * @param hits
+     *         total number of requests answered with a cached reply, without invoking the lambda.
+     * @param misses
+     *         total number of requests where the lambda was invoked.
+     * @param evictions
+     *         total number of cached replies evicted to make room for new ones.
+     * @param uncacheable
+     *         total number of misses whose reply couldn't be cached, e.g. since there was no replyTo, or the lambda
+     *         threw.
+     */
+    public record MemoStats(int entries, int maxEntries, long hits, long misses, long evictions, long uncacheable) {
+        /**
+         * @return hits / (hits + misses), 0 to 1 - or <code>NaN</code> if no requests yet.
+         */
+        public double hitRatio() {
+            long requests = hits + misses;
+            return requests == 0 ? Double.NaN : (double) hits / requests;
+        }
+    }
+
+    /**
+     * Writes the memoization metrics in Prometheus text exposition format, using the helpers of
+     * {@link MatsJbangMetricsInterceptor}.
+     */
+    void writePrometheusExposition(PrintWriter out) {
+        type(out, "mats_reply_memo_requests_total", "counter", "Requests to memoized Endpoints, by result.");
+        _endpoints.values().forEach(e -> {
+            sample(out, "mats_reply_memo_requests_total", e.labels + ",result=\"hit\"", e.hits);
+            sample(out, "mats_reply_memo_requests_total", e.labels + ",result=\"miss\"", e.misses);
+        });
+        type(out, "mats_reply_memo_evictions_total", "counter", "Cached replies evicted to make room.");
+        _endpoints.values().forEach(e -> sample(out, "mats_reply_memo_evictions_total", e.labels, e.evictions));
+        type(out, "mats_reply_memo_entries", "gauge", "Cached replies.");
+        _endpoints.values().forEach(e -> sample(out, "mats_reply_memo_entries", e.labels, e.stats().entries()));
+    }
+
+    /**
+     * Writes the counters as a HTML table, for the <code>"/localinspect"</code> page.
+     */
+    void writeHtml(PrintWriter out) {
+        out.println("<h2>Reply memoization</h2>");
+        out.println("<table><tr><th>Endpoint</th><th>Hit ratio</th><th>Hits</th><th>Misses</th>"
+                + "<th>Entries</th><th>Evictions</th><th>Uncacheable</th></tr>");
+        getStats().forEach((endpointId, stats) -> out.println(String.format("<tr><td>%s</td><td>%.1f %%</td>"
+                        + "<td>%d</td><td>%d</td><td>%d / %d</td><td>%d</td><td>%d</td></tr>", endpointId,
+                stats.hitRatio() * 100, stats.hits(), stats.misses(), stats.entries(), stats.maxEntries(),
+                stats.evictions(), stats.uncacheable())));
+        out.println("</table><br>");
+    }
+
+    // ===== Internals
+
+    private record Miss(EndpointMemo memo, String key) {
+    }
+
+    private class EndpointMemo {
+        private final String endpointId;
+        private final String labels;
+
+        // Access ordered, evicting the least recently used. Guarded by 'this'.
+        private final LinkedHashMap<String, Object> _replies = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                if (size() > _maxEntriesPerEndpoint) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder uncacheable = new LongAdder();
+
+        EndpointMemo(String endpointId) {
+            this.endpointId = endpointId;
+            this.labels = label("endpoint", endpointId);
+        }
+
+        synchronized Object get(String key) {
+            return _replies.get(key);
+        }
+
+        synchronized void put(String key, Object reply) {
+            _replies.put(key, reply);
+        }
+
+        synchronized MemoStats stats() {
+            return new MemoStats(_replies.size(), _maxEntriesPerEndpoint, hits.sum(), misses.sum(), evictions.sum(),
+                    uncacheable.sum());
+        }
+    }
+}
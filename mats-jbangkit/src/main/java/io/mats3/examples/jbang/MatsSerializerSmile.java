@@ -0,0 +1,347 @@
+package io.mats3.examples.jbang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+import io.mats3.serial.MatsSerializer;
+import io.mats3.serial.MatsTrace;
+import io.mats3.serial.MatsTrace.KeepMatsTrace;
+import io.mats3.serial.impl.MatsTraceFieldImpl;
+import io.mats3.serial.json.MatsSerializerJson;
+
+/**
+ * A binary, schema-less alternative to {@link MatsSerializerJson}, using Jackson's
+ * <a href="https://github.com/FasterXML/smile-format-specification">Smile</a> format - which is a binary encoding of
+ * the JSON data model. The DTOs and States are serialized to <code>byte[]</code> (so this is a
+ * <code>MatsSerializer&lt;byte[]&gt;</code>), and these are embedded as raw binary in the Smile-serialized envelope,
+ * instead of being JSON-text-within-JSON as with the JSON serializer. The Jackson setup mirrors the JSON serializer's:
+ * Fields are used (not getters/setters), nulls are dropped, unknown properties are ignored - and Java 16+ records are
+ * supported.
+ * <p>
+ * Numeric-heavy DTOs like the 'stdexample' <code>EndpointARequestDTO</code> (five doubles) benefit the most, as doubles
+ * are written as fixed-size binary instead of up to 24 chars of text, and read back without text-to-double parsing.
+ * Use the <code>mats-jbangkit-jmh</code> benchmark <code>JmhMatsSerializer_JsonVsSmile</code> to compare speed and
+ * sizes.
+ * <p>
+ * <b>Note: All MatsFactories on the Mats fabric must use the same serializer</b>, as the receiving side must understand
+ * what the sending side produced. Use {@link MatsJbangKit#createMatsFactory(javax.jms.ConnectionFactory, String,
+ * MatsSerializer)} to create a MatsFactory using this serializer.
+ */
+public class MatsSerializerSmile implements MatsSerializer<byte[]> {
+    /**
+     * The "meta" identification of a MatsTrace serialized with this serializer.
+     */
+    public static final String IDENTIFICATION = "MatsTrace_Smile_v1";
+
+    /**
+     * Postfix to the {@link #IDENTIFICATION} if the serialized MatsTrace is compressed.
+     */
+    public static final String COMPRESSED_POSTFIX = ":deflate";
+
+    /**
+     * Serialized MatsTraces above this size will be compressed.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private final int _compressionThreshold;
+
+    private final ObjectMapper _objectMapper;
+    private final ObjectReader _matsTraceReader;
+    private final ObjectWriter _matsTraceWriter;
+    private final byte[] _emptyObject;
+
+    protected MatsSerializerSmile(int compressionThreshold) {
+        _compressionThreshold = compressionThreshold;
+
+        // We want raw 8-bit binary embedded for the byte[] DTOs and States - we're not going over a text channel.
+        SmileFactory smileFactory = SmileFactory.builder()
+                .disable(SmileGenerator.Feature.ENCODE_BINARY_AS_7BIT)
+                .build();
+        ObjectMapper mapper = new ObjectMapper(smileFactory);
+
+        // Read and write any access modifier fields (e.g. private)
+        mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+        // .. but not getters/setters
+        mapper.setVisibility(PropertyAccessor.GETTER, Visibility.NONE);
+        mapper.setVisibility(PropertyAccessor.IS_GETTER, Visibility.NONE);
+        mapper.setVisibility(PropertyAccessor.SETTER, Visibility.NONE);
+        // Drop nulls
+        mapper.setSerializationInclusion(Include.NON_NULL);
+        // If props are in the data that aren't in the Java DTO, do not fail.
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        // Empty DTOs (e.g. classes with no fields) are fine.
+        mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+
+        _objectMapper = mapper;
+
+        JavaType matsTraceType = mapper.getTypeFactory()
+                .constructParametricType(MatsTraceFieldImpl.class, byte[].class);
+        _matsTraceReader = mapper.readerFor(matsTraceType);
+        _matsTraceWriter = mapper.writerFor(matsTraceType);
+
+        try {
+            _emptyObject = mapper.writeValueAsBytes(mapper.createObjectNode());
+        }
+        catch (IOException e) {
+            throw new AssertionError("Couldn't serialize empty object.", e);
+        }
+    }
+
+    /**
+     * @return a {@link MatsSerializerSmile} compressing serialized MatsTraces above
+     * {@link #DEFAULT_COMPRESSION_THRESHOLD} bytes.
+     */
+    public static MatsSerializerSmile create() {
+        return new MatsSerializerSmile(DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * @param compressionThreshold
+     *         serialized MatsTraces above this size will be compressed - use {@link Integer#MAX_VALUE} to never
+     *         compress.
+     * @return a {@link MatsSerializerSmile} compressing serialized MatsTraces above the specified size.
+     */
+    public static MatsSerializerSmile create(int compressionThreshold) {
+        return new MatsSerializerSmile(compressionThreshold);
+    }
+
+    @Override
+    public boolean handlesMeta(String meta) {
+        return meta != null && meta.startsWith(IDENTIFICATION);
+    }
+
+    @Override
+    public MatsTrace<byte[]> createNewMatsTrace(String traceId, String flowId, KeepMatsTrace keepMatsTrace,
+            boolean nonPersistent, boolean interactive, long ttlMillis, boolean noAudit) {
+        return MatsTraceFieldImpl.createNew(traceId, flowId, keepMatsTrace, nonPersistent, interactive, ttlMillis,
+                noAudit);
+    }
+
+    @Override
+    public SerializedMatsTrace serializeMatsTrace(MatsTrace<byte[]> matsTrace) {
+        try {
+            long nanosAtStart_Serialization = System.nanoTime();
+            byte[] serialized = _matsTraceWriter.writeValueAsBytes(matsTrace);
+            long nanosTaken_Serialization = System.nanoTime() - nanosAtStart_Serialization;
+
+            // ?: Is the serialized MatsTrace large enough to bother compressing?
+            if (serialized.length <= _compressionThreshold) {
+                // -> No, so return as-is.
+                return new SerializedMatsTraceImpl(serialized, IDENTIFICATION, serialized.length,
+                        nanosTaken_Serialization, 0);
+            }
+            // E-> Yes, so compress it.
+            long nanosAtStart_Compression = System.nanoTime();
+            byte[] compressed = compress(serialized);
+            long nanosTaken_Compression = System.nanoTime() - nanosAtStart_Compression;
+            return new SerializedMatsTraceImpl(compressed, IDENTIFICATION + COMPRESSED_POSTFIX, serialized.length,
+                    nanosTaken_Serialization, nanosTaken_Compression);
+        }
+        catch (IOException e) {
+            throw new SerializationException("Couldn't serialize MatsTrace, which is crazy!\n" + matsTrace, e);
+        }
+    }
+
+    @Override
+    public DeserializedMatsTrace<byte[]> deserializeMatsTrace(byte[] serialized, int offset, int len,
+            String meta) {
+        if (!handlesMeta(meta)) {
+            throw new SerializationException("The meta [" + meta + "] is not handled by "
+                    + MatsSerializerSmile.class.getSimpleName() + ".");
+        }
+        try {
+            long nanosAtStart_Decompression = System.nanoTime();
+            byte[] decompressed;
+            int decompressedOffset;
+            int decompressedLen;
+            // ?: Is it compressed?
+            if (meta.endsWith(COMPRESSED_POSTFIX)) {
+                // -> Yes, so decompress.
+                decompressed = decompress(serialized, offset, len);
+                decompressedOffset = 0;
+                decompressedLen = decompressed.length;
+            }
+            else {
+                // -> No, so use as-is.
+                decompressed = serialized;
+                decompressedOffset = offset;
+                decompressedLen = len;
+            }
+            long nanosTaken_Decompression = System.nanoTime() - nanosAtStart_Decompression;
+
+            long nanosAtStart_Deserialization = System.nanoTime();
+            MatsTrace<byte[]> matsTrace = _matsTraceReader.readValue(decompressed, decompressedOffset,
+                    decompressedLen);
+            long nanosTaken_Deserialization = System.nanoTime() - nanosAtStart_Deserialization;
+
+            return new DeserializedMatsTraceImpl(matsTrace, decompressedLen, nanosTaken_Decompression,
+                    nanosTaken_Deserialization);
+        }
+        catch (IOException | DataFormatException e) {
+            throw new SerializationException("Couldn't deserialize MatsTrace from given Smile bytes, meta ["
+                    + meta + "].", e);
+        }
+    }
+
+    @Override
+    public DeserializedMatsTrace<byte[]> deserializeMatsTrace(byte[] serialized, String meta) {
+        return deserializeMatsTrace(serialized, 0, serialized.length, meta);
+    }
+
+    @Override
+    public byte[] serializeObject(Object object) {
+        if (object == null) {
+            return null;
+        }
+        try {
+            return _objectMapper.writeValueAsBytes(object);
+        }
+        catch (IOException e) {
+            throw new SerializationException("Couldn't serialize Object [" + object + "].", e);
+        }
+    }
+
+    @Override
+    public int sizeOfSerialized(byte[] serialized) {
+        return serialized == null ? 0 : serialized.length;
+    }
+
+    @Override
+    public <T> T deserializeObject(byte[] serialized, Class<T> type) {
+        if (serialized == null) {
+            return null;
+        }
+        try {
+            return _objectMapper.readValue(serialized, type);
+        }
+        catch (IOException e) {
+            throw new SerializationException("Couldn't deserialize Smile bytes to type [" + type.getName() + "].",
+                    e);
+        }
+    }
+
+    @Override
+    public <T> T newInstance(Class<T> type) {
+        // ?: Is this a record?
+        if (type.isRecord()) {
+            // -> Yes, so there is no no-args constructor: "deserialize" an empty object, giving default values.
+            return deserializeObject(_emptyObject, type);
+        }
+        try {
+            Constructor<T> noArgsConstructor = type.getDeclaredConstructor();
+            noArgsConstructor.setAccessible(true);
+            return noArgsConstructor.newInstance();
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            throw new SerializationException("Couldn't create new empty instance of type [" + type.getName()
+                    + "] - it must have a no-args constructor.", e);
+        }
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] data, int offset, int len) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, len);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(len * 3);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                // ?: Did we get nothing, while not being finished?
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // -> Yes, so the data is truncated or otherwise bad.
+                    throw new DataFormatException("Truncated or corrupt deflated data.");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private record SerializedMatsTraceImpl(byte[] matsTraceBytes, String meta, int sizeUncompressed,
+            long nanosSerialization, long nanosCompression) implements SerializedMatsTrace {
+        @Override
+        public byte[] getMatsTraceBytes() {
+            return matsTraceBytes;
+        }
+
+        @Override
+        public String getMeta() {
+            return meta;
+        }
+
+        @Override
+        public int getSizeUncompressed() {
+            return sizeUncompressed;
+        }
+
+        @Override
+        public long getNanosSerialization() {
+            return nanosSerialization;
+        }
+
+        @Override
+        public long getNanosCompression() {
+            return nanosCompression;
+        }
+    }
+
+    private record DeserializedMatsTraceImpl(MatsTrace<byte[]> matsTrace, int sizeDecompressed,
+            long nanosDecompression, long nanosDeserialization) implements DeserializedMatsTrace<byte[]> {
+        @Override
+        public MatsTrace<byte[]> getMatsTrace() {
+            return matsTrace;
+        }
+
+        @Override
+        public int getSizeDecompressed() {
+            return sizeDecompressed;
+        }
+
+        @Override
+        public long getNanosDecompression() {
+            return nanosDecompression;
+        }
+
+        @Override
+        public long getNanosDeserialization() {
+            return nanosDeserialization;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package io.mats3.examples.jbang;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.mats3.examples.jbang.MatsJbangBulkInitiator.MappedLineIterator;
+
+/**
+ * Tests the pure parts of {@link MatsJbangBulkInitiator}: The CSV splitting, and the memory-mapped line iteration -
+ * the latter with small windows, so that lines cross the window boundaries at every possible offset.
+ */
+public class TestMatsJbangBulkInitiator {
+    private Path _file;
+
+    @Before
+    public void createFile() throws IOException {
+        _file = Files.createTempFile("TestMatsJbangBulkInitiator", ".txt");
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(_file);
+    }
+
+    // ===== splitCsvLine
+
+    @Test
+    public void csv_plain() {
+        Assert.assertArrayEquals(new String[] { "a", "b", "c" }, MatsJbangBulkInitiator.splitCsvLine("a,b,c"));
+    }
+
+    @Test
+    public void csv_empty_fields() {
+        Assert.assertArrayEquals(new String[] { "" }, MatsJbangBulkInitiator.splitCsvLine(""));
+        Assert.assertArrayEquals(new String[] { "", "", "" }, MatsJbangBulkInitiator.splitCsvLine(",,"));
+        Assert.assertArrayEquals(new String[] { "a", "" }, MatsJbangBulkInitiator.splitCsvLine("a,"));
+    }
+
+    @Test
+    public void csv_quoted_comma() {
+        Assert.assertArrayEquals(new String[] { "a", "b,c", "d" },
+                MatsJbangBulkInitiator.splitCsvLine("a,\"b,c\",d"));
+    }
+
+    @Test
+    public void csv_doubled_quotes() {
+        Assert.assertArrayEquals(new String[] { "say \"hi\"", "x" },
+                MatsJbangBulkInitiator.splitCsvLine("\"say \"\"hi\"\"\",x"));
+        // A field consisting of just an escaped quote, and an empty quoted field.
+        Assert.assertArrayEquals(new String[] { "\"", "" }, MatsJbangBulkInitiator.splitCsvLine("\"\"\"\",\"\""));
+    }
+
+    // ===== MappedLineIterator
+
+    @Test
+    public void lines_with_lf() throws IOException {
+        assertLines("one\ntwo\nthree\n", List.of("one", "two", "three"));
+    }
+
+    @Test
+    public void lines_with_crlf() throws IOException {
+        assertLines("one\r\ntwo\r\nthree\r\n", List.of("one", "two", "three"));
+    }
+
+    @Test
+    public void last_line_without_newline() throws IOException {
+        assertLines("one\ntwo\nthree", List.of("one", "two", "three"));
+        assertLines("one\r\ntwo\r\nthree", List.of("one", "two", "three"));
+    }
+
+    @Test
+    public void empty_lines_are_skipped() throws IOException {
+        assertLines("\n\none\n\r\n\ntwo\n\n", List.of("one", "two"));
+    }
+
+    @Test
+    public void empty_file() throws IOException {
+        assertLines("", List.of());
+    }
+
+    @Test
+    public void multibyte_utf8() throws IOException {
+        // The longest line is 17 bytes in UTF-8, so a 20 byte window makes multibyte chars cross the windows.
+        String content = "Stølsvik\r\nblåbærsyltetøy\n€";
+        List<String> expected = List.of("Stølsvik", "blåbærsyltetøy", "€");
+        assertLines(content, expected, MappedLineIterator.DEFAULT_WINDOW_SIZE);
+        assertLines(content, expected, 20);
+    }
+
+    @Test
+    public void lines_crossing_windows() throws IOException {
+        // Lines of varying length, so that the line starts, the '\r' and the '\n' all land on window boundaries.
+        StringBuilder content = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String line = "line-" + i + "-" + "x".repeat(i % 7);
+            expected.add(line);
+            content.append(line).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        // The longest line with its "\r\n" is 17 bytes, so windows from 17 bytes and up must work.
+        for (int windowSize = 17; windowSize <= 64; windowSize++) {
+            assertLines(content.toString(), expected, windowSize);
+        }
+        assertLines(content.toString(), expected, MappedLineIterator.DEFAULT_WINDOW_SIZE);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void line_longer_than_window() throws IOException {
+        Files.writeString(_file, "short\nthis line is longer than the window\nshort\n");
+        try (MappedLineIterator lines = new MappedLineIterator(_file, 16)) {
+            while (lines.hasNext()) {
+                lines.next();
+            }
+        }
+    }
+
+    @Test
+    public void close_before_end() throws IOException {
+        Files.writeString(_file, "one\ntwo\nthree\n");
+        MappedLineIterator lines = new MappedLineIterator(_file, 8);
+        Assert.assertEquals("one", lines.next());
+        lines.close();
+        Assert.assertFalse(lines.hasNext());
+    }
+
+    private void assertLines(String content, List<String> expected) throws IOException {
+        assertLines(content, expected, MappedLineIterator.DEFAULT_WINDOW_SIZE);
+        assertLines(content, expected, 8);
+    }
+
+    private void assertLines(String content, List<String> expected, int windowSize) throws IOException {
+        Files.write(_file, content.getBytes(StandardCharsets.UTF_8));
+        List<String> actual = new ArrayList<>();
+        try (MappedLineIterator lines = new MappedLineIterator(_file, windowSize)) {
+            lines.forEachRemaining(actual::add);
+        }
+        Assert.assertEquals("Window size " + windowSize, expected, actual);
+    }
+}
@@ -0,0 +1,71 @@
+package io.mats3.examples.jbang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.mats3.examples.jbang.MatsJbangFuturizerAdmission.AdmissionStats;
+
+/**
+ * Tests the permit hand-over of {@link MatsJbangFuturizerAdmission}, using the generic variants with plain futures -
+ * so no MatsFuturizer is needed.
+ */
+public class TestMatsJbangFuturizerAdmission {
+    private static final int WAITERS = 20_000;
+
+    @Test
+    public void many_waiters_with_already_completed_futures() {
+        try (MatsJbangFuturizerAdmission admission = MatsJbangFuturizerAdmission.create(null, 1)
+                .maxWaitingPerEndpoint(WAITERS)) {
+            // Hold the single permit, so that all the following must wait.
+            CompletableFuture<Integer> blocker = new CompletableFuture<>();
+            CompletableFuture<Integer> blockerResult = admission.tryAdmit("Test.endpoint", () -> blocker);
+
+            // Queue many waiters whose futurizations complete synchronously, e.g. cache hits - or failures.
+            List<CompletableFuture<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < WAITERS; i++) {
+                int value = i;
+                results.add(admission.admitWhenPermitted("Test.endpoint", 60_000, () -> value % 2 == 0
+                        ? CompletableFuture.completedFuture(value)
+                        : CompletableFuture.failedFuture(new IllegalStateException("Failed " + value))));
+            }
+            Assert.assertEquals(WAITERS, admission.getStats().get("Test.endpoint").waiting());
+
+            // Releasing the permit hands it over through all the waiters - which must not recurse per waiter.
+            blocker.complete(-1);
+
+            Assert.assertEquals(-1, blockerResult.join().intValue());
+            for (int i = 0; i < WAITERS; i++) {
+                CompletableFuture<Integer> result = results.get(i);
+                Assert.assertTrue("Result " + i + " should be done", result.isDone());
+                if (i % 2 == 0) {
+                    Assert.assertEquals(i, result.join().intValue());
+                }
+                else {
+                    Assert.assertTrue(result.isCompletedExceptionally());
+                }
+            }
+            AdmissionStats stats = admission.getStats().get("Test.endpoint");
+            Assert.assertEquals(0, stats.inFlight());
+            Assert.assertEquals(0, stats.waiting());
+            Assert.assertEquals(WAITERS + 1, stats.admitted());
+        }
+    }
+
+    @Test
+    public void already_completed_future_does_not_hold_permit() {
+        try (MatsJbangFuturizerAdmission admission = MatsJbangFuturizerAdmission.create(null, 1)) {
+            // Many fail-fast admissions in a row, each completing synchronously: None may be left holding the permit.
+            for (int i = 0; i < 1000; i++) {
+                int value = i;
+                CompletableFuture<Integer> result = admission.tryAdmit("Test.endpoint",
+                        () -> CompletableFuture.completedFuture(value));
+                Assert.assertEquals(i, result.join().intValue());
+            }
+            Assert.assertEquals(0, admission.getStats().get("Test.endpoint").inFlight());
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package io.mats3.examples.jbang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.mats3.examples.jbang.MatsJbangFuturizerCache.CacheStats;
+import io.mats3.util.MatsFuturizer.Reply;
+
+/**
+ * Tests the {@link MatsJbangFuturizerCache} using {@link MatsJbangFuturizerCache#getOrFuturize(String, Class, Object,
+ * java.util.function.Supplier) getOrFuturize(..)} with plain futures - so no MatsFuturizer is needed.
+ */
+public class TestMatsJbangFuturizerCache {
+    private static final String ENDPOINT = "Test.endpoint";
+
+    private final AtomicInteger _futurizations = new AtomicInteger();
+
+    @Test
+    public void hit_does_not_futurize() {
+        MatsJbangFuturizerCache cache = MatsJbangFuturizerCache.create(null, 1024 * 1024).ttl(ENDPOINT, 60_000);
+
+        Assert.assertEquals("reply-a", get(cache, "a").join().getReply());
+        Assert.assertEquals("reply-a", get(cache, "a").join().getReply());
+        Assert.assertEquals("reply-a", get(cache, "a").join().getReply());
+        // A different request is a different key.
+        Assert.assertEquals("reply-b", get(cache, "b").join().getReply());
+
+        Assert.assertEquals(2, _futurizations.get());
+        CacheStats stats = cache.getStats().get(ENDPOINT);
+        Assert.assertEquals(2, stats.hits());
+        Assert.assertEquals(2, stats.misses());
+        Assert.assertEquals(2, stats.entries());
+    }
+
+    @Test
+    public void endpoint_without_ttl_is_not_cached() {
+        MatsJbangFuturizerCache cache = MatsJbangFuturizerCache.create(null, 1024 * 1024);
+
+        get(cache, "a").join();
+        get(cache, "a").join();
+
+        Assert.assertEquals(2, _futurizations.get());
+        Assert.assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void expired_entry_futurizes_anew() throws InterruptedException {
+        MatsJbangFuturizerCache cache = MatsJbangFuturizerCache.create(null, 1024 * 1024).ttl(ENDPOINT, 50);
+
+        get(cache, "a").join();
+        Thread.sleep(100);
+        get(cache, "a").join();
+
+        Assert.assertEquals(2, _futurizations.get());
+        CacheStats stats = cache.getStats().get(ENDPOINT);
+        Assert.assertEquals(1, stats.expirations());
+        Assert.assertEquals(0, stats.hits());
+        Assert.assertEquals(1, stats.entries());
+    }
+
+    @Test
+    public void failure_is_not_cached() {
+        MatsJbangFuturizerCache cache = MatsJbangFuturizerCache.create(null, 1024 * 1024).ttl(ENDPOINT, 60_000);
+
+        CompletableFuture<Reply<String>> failed = cache.getOrFuturize(ENDPOINT, String.class, "a", () -> {
+            _futurizations.incrementAndGet();
+            return CompletableFuture.failedFuture(new IllegalStateException("Failed"));
+        });
+        Assert.assertTrue(failed.isCompletedExceptionally());
+        Assert.assertEquals("reply-a", get(cache, "a").join().getReply());
+
+        Assert.assertEquals(2, _futurizations.get());
+        Assert.assertEquals(1, cache.getStats().get(ENDPOINT).entries());
+    }
+
+    @Test
+    public void concurrent_identical_requests_share_one_futurization() {
+        MatsJbangFuturizerCache cache = MatsJbangFuturizerCache.create(null, 1024 * 1024).ttl(ENDPOINT, 60_000);
+
+        CompletableFuture<Reply<String>> inFlight = new CompletableFuture<>();
+        List<CompletableFuture<Reply<String>>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            results.add(cache.getOrFuturize(ENDPOINT, String.class, "a", () -> {
+                _futurizations.incrementAndGet();
+                return inFlight;
+            }));
+        }
+        Assert.assertEquals(1, _futurizations.get());
+        results.forEach(result -> Assert.assertFalse(result.isDone()));
+
+        // Each caller gets its own copy, so one cancelling does not affect the others.
+        results.get(0).cancel(false);
+        inFlight.complete(reply("shared"));
+
+        Assert.assertTrue(results.get(0).isCancelled());
+        for (int i = 1; i < 10; i++) {
+            Assert.assertEquals("shared", results.get(i).join().getReply());
+        }
+        // .. and the completed entry is cached.
+        Assert.assertEquals("shared", get(cache, "a").join().getReply());
+        Assert.assertEquals(1, _futurizations.get());
+        CacheStats stats = cache.getStats().get(ENDPOINT);
+        Assert.assertEquals(10, stats.hits());
+        Assert.assertEquals(1, stats.misses());
+    }
+
+    @Test
+    public void weight_is_bounded() {
+        long entryWeight = entryWeight();
+        MatsJbangFuturizerCache cache = MatsJbangFuturizerCache.create(null, 5 * entryWeight)
+                .ttl(ENDPOINT, 60_000);
+
+        for (int i = 0; i < 100; i++) {
+            get(cache, "" + (char) ('A' + (i % 26)) + (char) ('a' + (i / 26)));
+            Assert.assertTrue("Weight " + cache.getWeight() + " over max", cache.getWeight() <= 5 * entryWeight);
+        }
+        CacheStats stats = cache.getStats().get(ENDPOINT);
+        Assert.assertEquals(5, stats.entries());
+        Assert.assertEquals(5 * entryWeight, stats.weightBytes());
+        Assert.assertEquals(95, stats.evictions() + stats.rejections());
+    }
+
+    @Test
+    public void one_off_requests_do_not_flush_out_hot_entries() {
+        long entryWeight = entryWeight();
+        MatsJbangFuturizerCache cache = MatsJbangFuturizerCache.create(null, 3 * entryWeight)
+                .ttl(ENDPOINT, 60_000);
+        // Three hot entries, requested many times.
+        for (int i = 0; i < 5; i++) {
+            get(cache, "hA");
+            get(cache, "hB");
+            get(cache, "hC");
+        }
+        int futurizationsAfterWarmup = _futurizations.get();
+
+        // A scan of one-off requests: Each is requested less often than the hot, so is rejected.
+        for (int i = 0; i < 26; i++) {
+            get(cache, "o" + (char) ('A' + i));
+        }
+        CacheStats stats = cache.getStats().get(ENDPOINT);
+        Assert.assertEquals(26, stats.rejections());
+        Assert.assertEquals(0, stats.evictions());
+
+        // The hot entries are still cached.
+        get(cache, "hA");
+        get(cache, "hB");
+        get(cache, "hC");
+        Assert.assertEquals(futurizationsAfterWarmup + 26, _futurizations.get());
+    }
+
+    @Test
+    public void completed_in_flight_entry_evicts_least_recently_used() {
+        long entryWeight = entryWeight();
+        MatsJbangFuturizerCache cache = MatsJbangFuturizerCache.create(null, 2 * entryWeight)
+                .ttl(ENDPOINT, 60_000);
+
+        // The candidate is inserted first, while in flight - without weight.
+        CompletableFuture<Reply<String>> inFlight = new CompletableFuture<>();
+        cache.getOrFuturize(ENDPOINT, String.class, "cA", () -> {
+            _futurizations.incrementAndGet();
+            return inFlight;
+        });
+        // Two entries, filling the cache, are inserted after it.
+        get(cache, "xA");
+        get(cache, "xB");
+
+        // When the candidate completes, it is over the max, and evicts the least recently used other entry.
+        inFlight.complete(reply("cA"));
+
+        CacheStats stats = cache.getStats().get(ENDPOINT);
+        Assert.assertEquals(0, stats.rejections());
+        Assert.assertEquals(1, stats.evictions());
+        Assert.assertEquals(2, stats.entries());
+        int futurizations = _futurizations.get();
+        Assert.assertEquals("cA", cache.getOrFuturize(ENDPOINT, String.class, "cA",
+                () -> CompletableFuture.failedFuture(new AssertionError("Should be cached"))).join().getReply());
+        get(cache, "xB");
+        Assert.assertEquals(futurizations, _futurizations.get());
+        get(cache, "xA");
+        Assert.assertEquals(futurizations + 1, _futurizations.get());
+    }
+
+    @Test
+    public void rejected_candidate_does_not_evict_colder_entries() {
+        long entryWeight = entryWeight();
+        MatsJbangFuturizerCache cache = MatsJbangFuturizerCache.create(null, 2 * entryWeight)
+                .ttl(ENDPOINT, 60_000);
+        // A cold entry at the least recently used end, and a hot one after it.
+        get(cache, "xA");
+        for (int i = 0; i < 5; i++) {
+            get(cache, "xB");
+        }
+
+        // A candidate so heavy that it needs both evicted - but the second is hotter, so the candidate is rejected.
+        cache.getOrFuturize(ENDPOINT, String.class, "cA", () -> CompletableFuture.completedFuture(
+                reply("cA" + "x".repeat(100))));
+
+        CacheStats stats = cache.getStats().get(ENDPOINT);
+        Assert.assertEquals(1, stats.rejections());
+        // .. and the cold entry, which alone wouldn't have made room, is kept.
+        Assert.assertEquals(0, stats.evictions());
+        Assert.assertEquals(2, stats.entries());
+        Assert.assertEquals(2 * entryWeight, cache.getWeight());
+    }
+
+    @Test
+    public void invalidate_removes_completed_entries() {
+        MatsJbangFuturizerCache cache = MatsJbangFuturizerCache.create(null, 1024 * 1024).ttl(ENDPOINT, 60_000);
+        get(cache, "a");
+        get(cache, "b");
+
+        cache.invalidate(ENDPOINT);
+
+        Assert.assertEquals(0, cache.getWeight());
+        Assert.assertEquals(0, cache.getStats().get(ENDPOINT).entries());
+        get(cache, "a");
+        Assert.assertEquals(3, _futurizations.get());
+    }
+
+    /**
+     * All the keys used in the weight tests have the same length, thus the same weight.
+     */
+    private long entryWeight() {
+        MatsJbangFuturizerCache probe = MatsJbangFuturizerCache.create(null, 1024 * 1024).ttl(ENDPOINT, 60_000);
+        probe.getOrFuturize(ENDPOINT, String.class, "pA", () -> CompletableFuture.completedFuture(reply("pA")));
+        return probe.getWeight();
+    }
+
+    private CompletableFuture<Reply<String>> get(MatsJbangFuturizerCache cache, String request) {
+        return cache.getOrFuturize(ENDPOINT, String.class, request, () -> {
+            _futurizations.incrementAndGet();
+            return CompletableFuture.completedFuture(reply(request.length() == 1 ? "reply-" + request : request));
+        });
+    }
+
+    private static Reply<String> reply(String value) {
+        return new Reply<>(null, value, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,276 @@
+package io.mats3.examples.jbang;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.mats3.MatsEndpoint;
+import io.mats3.MatsEndpoint.EndpointConfig;
+import io.mats3.MatsEndpoint.MatsRefuseMessageException;
+import io.mats3.MatsEndpoint.ProcessContext;
+import io.mats3.MatsEndpoint.ProcessLambda;
+import io.mats3.MatsStage;
+import io.mats3.MatsStage.StageConfig;
+import io.mats3.api.intercept.MatsEditableOutgoingMessage;
+import io.mats3.api.intercept.MatsInterceptable;
+import io.mats3.api.intercept.MatsOutgoingMessage.MessageType;
+import io.mats3.api.intercept.MatsStageInterceptor.StageCompletedContext;
+import io.mats3.api.intercept.MatsStageInterceptor.StageInterceptOutgoingMessageContext;
+import io.mats3.api.intercept.MatsStageInterceptor.StageInterceptUserLambdaContext;
+import io.mats3.examples.jbang.MatsJbangReplyMemoizer.MemoStats;
+
+/**
+ * Tests the {@link MatsJbangReplyMemoizer} by invoking the interceptor callbacks the way a Mats3 stage does: The user
+ * lambda interception, then the outgoing messages interception if the lambda completed and sent anything, and finally
+ * the stage completed callback. The Mats3 API objects are {@link Proxy proxies} implementing only the methods used.
+ */
+public class TestMatsJbangReplyMemoizer {
+    private static final String ENDPOINT = "Test.endpoint";
+
+    private final AtomicInteger _lambdaInvocations = new AtomicInteger();
+
+    @Test
+    public void hit_short_circuits_the_lambda() throws MatsRefuseMessageException {
+        MatsJbangReplyMemoizer memoizer = install();
+        MatsStage<?, ?, ?> stage = stage(ENDPOINT, 0, 1);
+
+        Assert.assertEquals(List.of(new Reply(6)), replies(process(memoizer, stage, new Request(2, 3), multiply())));
+        Assert.assertEquals(List.of(new Reply(6)), replies(process(memoizer, stage, new Request(2, 3), multiply())));
+        Assert.assertEquals(List.of(new Reply(6)), replies(process(memoizer, stage, new Request(2, 3), multiply())));
+        // A different request is a different key.
+        Assert.assertEquals(List.of(new Reply(8)), replies(process(memoizer, stage, new Request(2, 4), multiply())));
+
+        Assert.assertEquals(2, _lambdaInvocations.get());
+        MemoStats stats = memoizer.getStats().get(ENDPOINT);
+        Assert.assertEquals(2, stats.hits());
+        Assert.assertEquals(2, stats.misses());
+        Assert.assertEquals(2, stats.entries());
+        Assert.assertEquals(0, stats.uncacheable());
+    }
+
+    @Test
+    public void multi_stage_endpoint_is_not_memoized() throws MatsRefuseMessageException {
+        MatsJbangReplyMemoizer memoizer = install();
+        MatsStage<?, ?, ?> initialStage = stage(ENDPOINT, 0, 2);
+        MatsStage<?, ?, ?> lastStage = stage(ENDPOINT, 1, 2);
+
+        for (int i = 0; i < 2; i++) {
+            process(memoizer, initialStage, new Request(2, 3), multiply());
+            process(memoizer, lastStage, new Request(2, 3), multiply());
+        }
+
+        Assert.assertEquals(4, _lambdaInvocations.get());
+        MemoStats stats = memoizer.getStats().get(ENDPOINT);
+        Assert.assertEquals(0, stats.hits());
+        Assert.assertEquals(0, stats.misses());
+        Assert.assertEquals(0, stats.entries());
+    }
+
+    @Test
+    public void endpoint_not_opted_in_is_not_memoized() throws MatsRefuseMessageException {
+        MatsJbangReplyMemoizer memoizer = install();
+        MatsStage<?, ?, ?> stage = stage("Other.endpoint", 0, 1);
+
+        process(memoizer, stage, new Request(2, 3), multiply());
+        process(memoizer, stage, new Request(2, 3), multiply());
+
+        Assert.assertEquals(2, _lambdaInvocations.get());
+        Assert.assertNull(memoizer.getStats().get("Other.endpoint"));
+    }
+
+    @Test
+    public void non_reply_outcome_is_uncacheable() throws MatsRefuseMessageException {
+        MatsJbangReplyMemoizer memoizer = install();
+        MatsStage<?, ?, ?> stage = stage(ENDPOINT, 0, 1);
+        ProcessLambda<Object, Object, Object> requesting = (ctx, state, msg) -> {
+            _lambdaInvocations.incrementAndGet();
+            ctx.request("Other.endpoint", msg);
+        };
+
+        process(memoizer, stage, new Request(2, 3), requesting);
+        process(memoizer, stage, new Request(2, 3), requesting);
+
+        Assert.assertEquals(2, _lambdaInvocations.get());
+        MemoStats stats = memoizer.getStats().get(ENDPOINT);
+        Assert.assertEquals(2, stats.misses());
+        Assert.assertEquals(2, stats.uncacheable());
+        Assert.assertEquals(0, stats.entries());
+    }
+
+    @Test
+    public void multi_message_outcome_is_uncacheable() throws MatsRefuseMessageException {
+        MatsJbangReplyMemoizer memoizer = install();
+        MatsStage<?, ?, ?> stage = stage(ENDPOINT, 0, 1);
+        // A reply, and also another message - replaying only the reply would lose the other.
+        ProcessLambda<Object, Object, Object> replyingAndRequesting = (ctx, state, msg) -> {
+            _lambdaInvocations.incrementAndGet();
+            ctx.reply(new Reply(6));
+            ctx.request("Other.endpoint", msg);
+        };
+
+        process(memoizer, stage, new Request(2, 3), replyingAndRequesting);
+        process(memoizer, stage, new Request(2, 3), replyingAndRequesting);
+
+        Assert.assertEquals(2, _lambdaInvocations.get());
+        MemoStats stats = memoizer.getStats().get(ENDPOINT);
+        Assert.assertEquals(0, stats.hits());
+        Assert.assertEquals(2, stats.uncacheable());
+        Assert.assertEquals(0, stats.entries());
+    }
+
+    @Test
+    public void throwing_lambda_does_not_leave_the_miss_for_the_next_stage() throws MatsRefuseMessageException {
+        MatsJbangReplyMemoizer memoizer = install();
+        MatsStage<?, ?, ?> stage = stage(ENDPOINT, 0, 1);
+
+        Assert.assertThrows(IllegalStateException.class, () -> process(memoizer, stage, new Request(2, 3),
+                (ctx, state, msg) -> {
+                    throw new IllegalStateException("Failed");
+                }));
+        assertNextStageOnThreadIsNotCached(memoizer, stage);
+    }
+
+    @Test
+    public void lambda_not_sending_does_not_leave_the_miss_for_the_next_stage() throws MatsRefuseMessageException {
+        MatsJbangReplyMemoizer memoizer = install();
+        MatsStage<?, ?, ?> stage = stage(ENDPOINT, 0, 1);
+
+        // No outgoing messages, so the outgoing messages interception isn't reached.
+        List<MatsEditableOutgoingMessage> outgoing = process(memoizer, stage, new Request(2, 3),
+                (ctx, state, msg) -> _lambdaInvocations.incrementAndGet());
+        Assert.assertEquals(0, outgoing.size());
+
+        assertNextStageOnThreadIsNotCached(memoizer, stage);
+    }
+
+    /**
+     * After a miss whose reply wasn't intercepted: A non-memoized stage replying on the same thread must not be cached
+     * under the miss' key - so the same request to the memoized stage must be a miss again, getting the right reply.
+     */
+    private void assertNextStageOnThreadIsNotCached(MatsJbangReplyMemoizer memoizer, MatsStage<?, ?, ?> stage)
+            throws MatsRefuseMessageException {
+        MemoStats stats = memoizer.getStats().get(ENDPOINT);
+        Assert.assertEquals(1, stats.misses());
+        Assert.assertEquals(1, stats.uncacheable());
+
+        process(memoizer, stage("Other.endpoint", 0, 1), new Request(2, 3), (ctx, state, msg) -> ctx.reply(
+                new Reply(-1)));
+        Assert.assertEquals(0, memoizer.getStats().get(ENDPOINT).entries());
+
+        int lambdaInvocations = _lambdaInvocations.get();
+        Assert.assertEquals(List.of(new Reply(6)), replies(process(memoizer, stage, new Request(2, 3), multiply())));
+        Assert.assertEquals(lambdaInvocations + 1, _lambdaInvocations.get());
+        stats = memoizer.getStats().get(ENDPOINT);
+        Assert.assertEquals(0, stats.hits());
+        Assert.assertEquals(2, stats.misses());
+        Assert.assertEquals(1, stats.entries());
+    }
+
+    // ===== Helpers
+
+    record Request(double a, double b) {
+    }
+
+    record Reply(double result) {
+    }
+
+    private ProcessLambda<Object, Object, Object> multiply() {
+        return (ctx, state, msg) -> {
+            _lambdaInvocations.incrementAndGet();
+            Request request = (Request) msg;
+            ctx.reply(new Reply(request.a() * request.b()));
+        };
+    }
+
+    private static MatsJbangReplyMemoizer install() {
+        MatsInterceptable matsInterceptable = proxy(MatsInterceptable.class, Map.of(
+                "addStageInterceptor", args -> null));
+        return MatsJbangReplyMemoizer.install(matsInterceptable, 100).memoize(ENDPOINT);
+    }
+
+    /**
+     * Runs the callbacks as a Mats3 stage does, returning the outgoing messages.
+     */
+    private static List<MatsEditableOutgoingMessage> process(MatsJbangReplyMemoizer memoizer,
+            MatsStage<?, ?, ?> stage, Object request, ProcessLambda<Object, Object, Object> lambda)
+            throws MatsRefuseMessageException {
+        List<MatsEditableOutgoingMessage> outgoing = new ArrayList<>();
+        @SuppressWarnings("unchecked")
+        ProcessContext<Object> ctx = proxy(ProcessContext.class, Map.of(
+                "reply", args -> outgoing.add(message(MessageType.REPLY, args[0])),
+                "request", args -> outgoing.add(message(MessageType.REQUEST, args[1]))));
+        try {
+            memoizer.stageInterceptUserLambda(proxy(StageInterceptUserLambdaContext.class, Map.of(
+                    "getStage", args -> stage)), lambda, ctx, null, request);
+            // ?: Any outgoing messages?
+            if (!outgoing.isEmpty()) {
+                // -> Yes, so they are intercepted.
+                memoizer.stageInterceptOutgoingMessages(proxy(StageInterceptOutgoingMessageContext.class, Map.of(
+                        "getStage", args -> stage,
+                        "getOutgoingMessages", args -> outgoing)));
+            }
+        }
+        finally {
+            memoizer.stageCompleted(proxy(StageCompletedContext.class, Map.of("getStage", args -> stage)));
+        }
+        return outgoing;
+    }
+
+    private static List<Object> replies(List<MatsEditableOutgoingMessage> outgoing) {
+        return outgoing.stream()
+                .filter(message -> message.getMessageType() == MessageType.REPLY)
+                .map(MatsEditableOutgoingMessage::getData)
+                .toList();
+    }
+
+    private static MatsEditableOutgoingMessage message(MessageType messageType, Object data) {
+        return proxy(MatsEditableOutgoingMessage.class, Map.of(
+                "getMessageType", args -> messageType,
+                "getData", args -> data));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MatsStage<?, ?, ?> stage(String endpointId, int stageIndex, int numberOfStages) {
+        EndpointConfig<?, ?> endpointConfig = proxy(EndpointConfig.class, Map.of(
+                "getEndpointId", args -> endpointId));
+        MatsEndpoint<?, ?> endpoint = proxy(MatsEndpoint.class, Map.of(
+                "getEndpointConfig", args -> endpointConfig,
+                "getStages", args -> Collections.nCopies(numberOfStages, null)));
+        StageConfig<?, ?, ?> stageConfig = proxy(StageConfig.class, Map.of(
+                "getStageIndex", args -> stageIndex));
+        return proxy(MatsStage.class, Map.of(
+                "getStageConfig", args -> stageConfig,
+                "getParentEndpoint", args -> endpoint));
+    }
+
+    /**
+     * @return a proxy implementing the specified methods by name - any other method throws.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            // ?: Is this one of Object's methods?
+            if (method.getDeclaringClass() == Object.class) {
+                // -> Yes, so identity semantics.
+                return switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> type.getSimpleName() + methods.keySet();
+                };
+            }
+            Function<Object[], Object> implementation = methods.get(method.getName());
+            if (implementation == null) {
+                throw new UnsupportedOperationException("Not implemented in test: " + type.getSimpleName() + "."
+                        + method.getName());
+            }
+            return implementation.apply(args);
+        });
+    }
+}
@@ -0,0 +1,107 @@
+package io.mats3.examples.jbang;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.mats3.serial.MatsSerializer.DeserializedMatsTrace;
+import io.mats3.serial.MatsSerializer.SerializedMatsTrace;
+import io.mats3.serial.MatsTrace;
+import io.mats3.serial.MatsTrace.Call.MessagingModel;
+import io.mats3.serial.MatsTrace.KeepMatsTrace;
+
+/**
+ * Tests the {@link MatsSerializerSmile}, both for Records and classes, and that a MatsTrace survives a round-trip both
+ * uncompressed and compressed.
+ */
+public class TestMatsSerializerSmile {
+
+    record RecordTest(String string, int integer) {
+    }
+
+    static class ClassTest {
+        private String _string;
+        private double _double;
+    }
+
+    @Test
+    public void record_back_and_forth() {
+        MatsSerializerSmile serializer = MatsSerializerSmile.create();
+
+        RecordTest recordTest = new RecordTest("endre", 1);
+        byte[] serialized = serializer.serializeObject(recordTest);
+        RecordTest recordTest_deserialized = serializer.deserializeObject(serialized, RecordTest.class);
+        Assert.assertEquals(recordTest, recordTest_deserialized);
+
+        // Nulls are dropped, and come back as null.
+        recordTest = new RecordTest(null, 2);
+        serialized = serializer.serializeObject(recordTest);
+        recordTest_deserialized = serializer.deserializeObject(serialized, RecordTest.class);
+        Assert.assertEquals(recordTest, recordTest_deserialized);
+    }
+
+    @Test
+    public void class_back_and_forth() {
+        MatsSerializerSmile serializer = MatsSerializerSmile.create();
+
+        ClassTest classTest = new ClassTest();
+        classTest._string = "endre";
+        classTest._double = Math.PI;
+        byte[] serialized = serializer.serializeObject(classTest);
+        ClassTest classTest_deserialized = serializer.deserializeObject(serialized, ClassTest.class);
+        Assert.assertEquals("endre", classTest_deserialized._string);
+        Assert.assertEquals(Math.PI, classTest_deserialized._double, 0d);
+    }
+
+    @Test
+    public void nullObject() {
+        MatsSerializerSmile serializer = MatsSerializerSmile.create();
+
+        Assert.assertNull(serializer.serializeObject(null));
+        Assert.assertNull(serializer.deserializeObject(null, RecordTest.class));
+        Assert.assertEquals(0, serializer.sizeOfSerialized(null));
+    }
+
+    @Test
+    public void newInstance() {
+        MatsSerializerSmile serializer = MatsSerializerSmile.create();
+
+        Assert.assertEquals(new RecordTest(null, 0), serializer.newInstance(RecordTest.class));
+
+        ClassTest classTest = serializer.newInstance(ClassTest.class);
+        Assert.assertNull(classTest._string);
+        Assert.assertEquals(0d, classTest._double, 0d);
+    }
+
+    @Test
+    public void matsTrace_uncompressed() {
+        matsTraceRoundTrip(MatsSerializerSmile.create(Integer.MAX_VALUE), false);
+    }
+
+    @Test
+    public void matsTrace_compressed() {
+        matsTraceRoundTrip(MatsSerializerSmile.create(0), true);
+    }
+
+    private void matsTraceRoundTrip(MatsSerializerSmile serializer, boolean expectCompressed) {
+        MatsTrace<byte[]> matsTrace = serializer.createNewMatsTrace("traceId_test", "flowId_test",
+                KeepMatsTrace.FULL, true, false, 0, false);
+        matsTrace = matsTrace.addRequestCall("Test.from", "Test.to", MessagingModel.QUEUE,
+                "Test.replyTo", MessagingModel.QUEUE,
+                serializer.serializeObject(new RecordTest("request", 1)),
+                serializer.serializeObject(new RecordTest("state", 2)), null);
+
+        SerializedMatsTrace serialized = serializer.serializeMatsTrace(matsTrace);
+        Assert.assertTrue(serializer.handlesMeta(serialized.getMeta()));
+        Assert.assertEquals(expectCompressed, serialized.getMeta().endsWith(MatsSerializerSmile.COMPRESSED_POSTFIX));
+
+        DeserializedMatsTrace<byte[]> deserialized = serializer.deserializeMatsTrace(
+                serialized.getMatsTraceBytes(), serialized.getMeta());
+        MatsTrace<byte[]> matsTrace_deserialized = deserialized.getMatsTrace();
+        Assert.assertEquals(serialized.getSizeUncompressed(), deserialized.getSizeDecompressed());
+        Assert.assertEquals("traceId_test", matsTrace_deserialized.getTraceId());
+
+        RecordTest data = serializer.deserializeObject(matsTrace_deserialized.getCurrentCall().getData(),
+                RecordTest.class);
+        Assert.assertEquals(new RecordTest("request", 1), data);
+    }
+}